@@ -7,8 +7,146 @@ public class ApplicationConstants {
 
 
     public static final int SERVER_PORT = 9090;
+    public static final int SERVER_THREADS = 16;
     public static final String SESSION_KEY_COOKIE_NAME = "sessionid";
     public static final int SESSION_EXPIRY_MINUTES = 5;
     public static final String FEEDBACK_MESSAGE_KEY = "feedback-message";
     public static final String ADMIN_ROLENAME = "ADMIN";
+    /**
+     * Maximum number of distinct role names. Roles are given an id for the whole life of the application, so new ones
+     * are rejected once it is reached.
+     */
+    public static final int MAX_ROLES = 1024;
+    /**
+     * Maximum number of distinct role lists shared by the users having them. Users with other lists keep their own copy.
+     */
+    public static final int ROLE_LISTS_CACHE_MAX_ENTRIES = 4096;
+    public static final int CREDENTIALS_CACHE_TTL_SECONDS = 30;
+    public static final int CREDENTIALS_CACHE_MAX_ENTRIES = 1024;
+    /**
+     * Maximum number of distinct <em>Accept</em> headers whose negotiated response type is remembered by each
+     * controller method.
+     */
+    public static final int ACCEPT_CACHE_MAX_ENTRIES = 64;
+    /**
+     * Minimum size in bytes of a response body to be compressed: smaller ones hardly get smaller, and are sent as they
+     * are even if the client accepts compressed responses.
+     */
+    public static final int COMPRESSION_MIN_BYTES = 256;
+    /**
+     * Maximum number of rendered pages kept in memory (a few hundred bytes each, plus their compressed bodies).
+     */
+    public static final int RENDERED_PAGES_CACHE_MAX_ENTRIES = 4096;
+    /**
+     * System property with the directory the files under <em>/static</em> are served from. When absent, they are served
+     * from <em>/static</em> in the classpath.
+     */
+    public static final String STATIC_DIRECTORY_PROPERTY = "schibsted.static.directory";
+    /**
+     * Maximum size in bytes of a static file to be kept in memory (and compressed, if it is text) once requested. Larger
+     * files are sent from the file system on every request.
+     */
+    public static final int STATIC_CACHE_MAX_FILE_BYTES = 64 * 1024;
+    /**
+     * Maximum size in bytes of all the static files kept in memory.
+     */
+    public static final int STATIC_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    /**
+     * Maximum number of requests waiting for user changes at the same time. They do not hold a server thread while
+     * waiting, but each one keeps its connection open. Further requests are answered right away.
+     */
+    public static final int MAX_CONCURRENT_LONG_POLLS = 1000;
+    public static final int MAX_LONG_POLL_SECONDS = 60;
+    /**
+     * System property with the name of the {@link lsunol.schibsted.database.UserRepositoryProvider} creating the user
+     * repository: <em>memory</em>, <em>file</em>, <em>jdbc</em> or any other plugged in. When absent, it is chosen
+     * from the properties below.
+     */
+    public static final String USERS_REPOSITORY_PROPERTY = "schibsted.users.repository";
+    /**
+     * System property with the directory where users are persisted. When absent, users are only kept in memory.
+     */
+    public static final String USERS_DIRECTORY_PROPERTY = "schibsted.users.directory";
+    /**
+     * System property with the JDBC url of the database where users are stored. It takes precedence over
+     * {@link #USERS_DIRECTORY_PROPERTY}.
+     */
+    public static final String USERS_JDBC_URL_PROPERTY = "schibsted.users.jdbcUrl";
+    /**
+     * System property which, set to <em>true</em>, makes modifications of persisted users return before they are
+     * written, which happens shortly after on a background thread.
+     */
+    public static final String USERS_WRITE_BEHIND_PROPERTY = "schibsted.users.writeBehind";
+    /**
+     * System property with the port where the web application listens, overriding {@link #SERVER_PORT}, so several
+     * nodes can run on the same machine.
+     */
+    public static final String SERVER_PORT_PROPERTY = "schibsted.server.port";
+    /**
+     * System property with the HTTP server running the controllers: <em>jdk</em> (the default) for the JDK
+     * <code>HttpServer</code>, or <em>nio</em> for the {@link lsunol.schibsted.server.NioHttpServer}.
+     */
+    public static final String SERVER_ENGINE_PROPERTY = "schibsted.server.engine";
+    /**
+     * System property with the number of threads accepting connections in the <em>nio</em> server (1 by default). Where
+     * the OS supports <em>SO_REUSEPORT</em> (and the JVM, from Java 9 on) each one listens on its own socket, so the OS
+     * balances new connections between them.
+     */
+    public static final String SERVER_ACCEPTORS_PROPERTY = "schibsted.server.acceptors";
+    /**
+     * Number of event loop threads reading and writing the connections of the <em>nio</em> server.
+     */
+    public static final int NIO_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /**
+     * Maximum number of connections open at the same time in the <em>nio</em> server. Further ones are closed right away.
+     */
+    public static final int NIO_MAX_CONNECTIONS = 10000;
+    /**
+     * Time an idle connection of the <em>nio</em> server is kept open waiting for the next request.
+     */
+    public static final int KEEP_ALIVE_SECONDS = 30;
+    /**
+     * System property with the role of the node in a cluster: <em>leader</em> replicates its users to the followers,
+     * <em>follower</em> serves a read-only replica of the users of the leader. When absent, the node runs alone.
+     */
+    public static final String CLUSTER_ROLE_PROPERTY = "schibsted.cluster.role";
+    /**
+     * System property with the secret shared by the nodes of a cluster. Nodes only talk to the ones proving they know it,
+     * so it is required to replicate users or share sessions.
+     */
+    public static final String CLUSTER_SECRET_PROPERTY = "schibsted.cluster.secret";
+    /**
+     * System property with the port where a leader node accepts followers.
+     */
+    public static final String REPLICATION_PORT_PROPERTY = "schibsted.cluster.replicationPort";
+    public static final int DEFAULT_REPLICATION_PORT = 9190;
+    /**
+     * System property with the host whose interface a leader node accepts followers on (<em>localhost</em> by default).
+     */
+    public static final String REPLICATION_HOST_PROPERTY = "schibsted.cluster.replicationHost";
+    /**
+     * System property with the <em>host:port</em> replication address of the leader followed by a follower node.
+     */
+    public static final String LEADER_ADDRESS_PROPERTY = "schibsted.cluster.leader";
+    /**
+     * System property with the name of the {@link lsunol.schibsted.database.SessionRepositoryProvider} creating the
+     * session repository: <em>memory</em>, <em>partitioned</em> or any other plugged in. When absent, sessions are
+     * partitioned if {@link #SESSIONS_PORT_PROPERTY} is set.
+     */
+    public static final String SESSIONS_REPOSITORY_PROPERTY = "schibsted.sessions.repository";
+    /**
+     * System property with the port where this node shares sessions with other nodes. When absent, sessions are only
+     * kept in the memory of this node.
+     */
+    public static final String SESSIONS_PORT_PROPERTY = "schibsted.sessions.port";
+    /**
+     * System property with the host name other nodes reach this one at to share sessions (<em>localhost</em> by default).
+     * The sessions port only listens on the interface of this host.
+     */
+    public static final String SESSIONS_HOST_PROPERTY = "schibsted.sessions.host";
+    /**
+     * System property with the comma separated <em>host:port</em> addresses of some of the nodes sharing sessions, which
+     * this node joins on start up.
+     */
+    public static final String SESSIONS_NODES_PROPERTY = "schibsted.sessions.nodes";
 }
@@ -1,24 +1,36 @@
 package lsunol.schibsted.application;
 
 import com.sun.net.httpserver.Authenticator;
-import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import lsunol.schibsted.controllers.ApplicationController;
 import lsunol.schibsted.controllers.IApplicationController;
+import lsunol.schibsted.controllers.Router;
+import lsunol.schibsted.controllers.UserRestApiController;
+import lsunol.schibsted.database.DuplicateKeyException;
 import lsunol.schibsted.database.RepositoryManager;
 import lsunol.schibsted.database.UserRepository;
+import lsunol.schibsted.server.NioHttpServer;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import static lsunol.schibsted.application.ClassManagement.isSubclassOf;
 
@@ -27,66 +39,150 @@ public class WebApplication {
     private final static Logger log = Logger.getLogger(WebApplication.class.getName());
 
     private static HttpServer server = null;
+    private static NioHttpServer nioServer = null;
+
+    /**
+     * Resource listing the web controllers, written at compile time by the
+     * <code>lsunol.schibsted.processor.ControllerIndexProcessor</code> annotation processor.
+     */
+    static final String CONTROLLER_INDEX_RESOURCE = "META-INF/lsunol.schibsted.controllers";
 
     public static void main(String[] args) {
         try {
-            // Create the Http Server
-            server = HttpServer.create(new InetSocketAddress(ApplicationConstants.SERVER_PORT), 0);
-
-            // Set single threaded executor service
-            server.setExecutor(java.util.concurrent.Executors.newSingleThreadExecutor());
-
-            // Initialization of starting users registry
+            // Initialization of starting users registry (persisted users, if any, are kept as they are; followers
+            // replicate the users of the leader)
             UserRepository userRepo = RepositoryManager.getUserRepository();
-            userRepo.addNewUser("admin", "1234", Arrays.asList(ApplicationConstants.ADMIN_ROLENAME));
-            userRepo.addNewUser("page1user", "1234", Arrays.asList("PAGE_1"));
-            userRepo.addNewUser("page2user", "1234", Arrays.asList("PAGE_2"));
-            userRepo.addNewUser("page3user", "1234", Arrays.asList("PAGE_3"));
-            userRepo.addNewUser("page12user", "1234", Arrays.asList("PAGE_1", "PAGE_2"));
+            if (!RepositoryManager.isFollower()) {
+                addUserIfAbsent(userRepo, "admin", "1234", Arrays.asList(ApplicationConstants.ADMIN_ROLENAME));
+                addUserIfAbsent(userRepo, "page1user", "1234", Arrays.asList("PAGE_1"));
+                addUserIfAbsent(userRepo, "page2user", "1234", Arrays.asList("PAGE_2"));
+                addUserIfAbsent(userRepo, "page3user", "1234", Arrays.asList("PAGE_3"));
+                addUserIfAbsent(userRepo, "page12user", "1234", Arrays.asList("PAGE_1", "PAGE_2"));
+            }
+            // Pending modifications are written and shared sessions handed over to other nodes on shut down
+            Runtime.getRuntime().addShutdownHook(new Thread(RepositoryManager::closeRepositories, "repositories-shutdown"));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> log.info("Rendered pages cache: " + ApplicationController.getRenderedPageCache()
+                    + ". Users API reads: " + UserRestApiController.getReadCoalescer()), "metrics-shutdown"));
 
             // Retrieve the list of registrable controllers
             List<Class> webControllers = getWebControllersList();
 
-            // Initializing web controllers
-            webControllers.forEach(controller -> {
+            // Initializing web controllers: their path templates are routed from a single context
+            Router router = new Router();
+            for (Class controller : webControllers) {
                 try {
                     ApplicationController controllerInstance = (ApplicationController) controller.newInstance();
                     log.info("Registering controller: " + controllerInstance.getRequestMapping());
-                    HttpContext context = server.createContext(controllerInstance.getRequestMapping(), controllerInstance);
+                    Authenticator authenticator = null;
                     Method authenticatorMethod = Arrays.stream(controller.getMethods()).filter(method -> method.getReturnType().equals(Authenticator.class)).findFirst().orElse(null);
                     if (authenticatorMethod != null) {
                         try {
-                            context.setAuthenticator((Authenticator) authenticatorMethod.invoke(controllerInstance));
+                            authenticator = (Authenticator) authenticatorMethod.invoke(controllerInstance);
                         } catch (InvocationTargetException e) {
                             log.log(Level.SEVERE, "An error occurred while retrieving the authenticator from the controller: " + e.getMessage(), e);
                         }
                     }
+                    router.addRoutes(controllerInstance, authenticator);
                 } catch (InstantiationException | IllegalAccessException iae) {
                     log.severe("Could not instantiate class '" + controller + "' and thus could not initialize its expected request path.");
                 }
-            });
-            server.start();
+            }
+
+            // Templates are read (and the static ones compressed) before the first request
+            log.info("Loaded templates: " + ApplicationController.preloadTemplates());
+
+            // Start the Http Server, with a thread pool so slow requests do not block the rest of them
+            InetSocketAddress address = new InetSocketAddress(Integer.getInteger(ApplicationConstants.SERVER_PORT_PROPERTY, ApplicationConstants.SERVER_PORT));
+            Executor executor = Executors.newFixedThreadPool(ApplicationConstants.SERVER_THREADS);
+            String engine = System.getProperty(ApplicationConstants.SERVER_ENGINE_PROPERTY, "jdk");
+            int acceptors = Integer.getInteger(ApplicationConstants.SERVER_ACCEPTORS_PROPERTY, 1);
+            if ("nio".equals(engine)) {
+                nioServer = new NioHttpServer(address, router, executor, acceptors, ApplicationConstants.NIO_EVENT_LOOPS, ApplicationConstants.NIO_MAX_CONNECTIONS, ApplicationConstants.KEEP_ALIVE_SECONDS);
+                nioServer.start();
+            } else if ("jdk".equals(engine)) {
+                if (acceptors > 1) log.warning("The jdk server has a single acceptor: start the nio engine to use " + acceptors + " of them.");
+                server = HttpServer.create(address, 0);
+                server.setExecutor(executor);
+                server.createContext("/", router);
+                server.start();
+            } else {
+                throw new IllegalArgumentException("Unknown server engine '" + engine + "': it must be 'jdk' or 'nio'.");
+            }
             log.info("Web application started successfully.");
         } catch (Exception e) {
             log.log(Level.SEVERE, "An error occurred while starting the web application server.", e);
         }
     }
 
+    /**
+     * Adds the user to the <code>userRepository</code> unless there is already a user with the same name.
+     *
+     * @param userRepository repository where the user is added.
+     * @param username       name of the user.
+     * @param password       password of the user.
+     * @param roles          roles of the user.
+     * @throws DuplicateKeyException if the user is created concurrently by someone else.
+     */
+    private static void addUserIfAbsent(UserRepository userRepository, String username, String password, List<String> roles) throws DuplicateKeyException {
+        if (userRepository.getUserByUsername(username) == null) userRepository.addNewUser(username, password, roles);
+    }
+
     /**
      * Returns a list containing all the instantiable Classes (web controllers) that inherit from {@link IApplicationController}.
+     * They are read from the index written at compile time, and only searched in the classpath if there is no index
+     * (i.e.: classes compiled without the annotation processor).
      *
      * @return a list containing all the instantiable Classes (web controllers) that inherit from {@link IApplicationController}.
+     * @throws IOException            if any error occurred while reading the index or scanning package classes in search of web controllers.
+     * @throws URISyntaxException     if any error occurred while scanning package classes in search of web controllers.
+     * @throws ClassNotFoundException if a class in the index or in the package cannot be loaded.
+     */
+    private static List<Class> getWebControllersList() throws IOException, URISyntaxException, ClassNotFoundException {
+        List<Class> webControllers = getIndexedWebControllers();
+        if (webControllers != null) return webControllers;
+        log.warning("There is no controller index in the classpath: scanning the controllers package instead. Compile the application with its annotation processor to start faster.");
+        return scanWebControllers();
+    }
+
+    /**
+     * Returns the web controllers listed in the {@link #CONTROLLER_INDEX_RESOURCE} resources, or null if there is none.
+     *
+     * @return the web controllers listed in the index, or null if there is no index in the classpath.
+     * @throws IOException            if an index cannot be read.
+     * @throws ClassNotFoundException if a class in the index cannot be loaded.
+     */
+    static List<Class> getIndexedWebControllers() throws IOException, ClassNotFoundException {
+        ClassLoader classLoader = WebApplication.class.getClassLoader();
+        Enumeration<URL> indexes = classLoader.getResources(CONTROLLER_INDEX_RESOURCE);
+        if (!indexes.hasMoreElements()) return null;
+        Set<Class> webControllers = new LinkedHashSet<>();
+        while (indexes.hasMoreElements()) {
+            try (BufferedReader index = new BufferedReader(new InputStreamReader(indexes.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                String controllerName;
+                while ((controllerName = index.readLine()) != null) {
+                    if (!controllerName.trim().isEmpty()) webControllers.add(Class.forName(controllerName.trim(), false, classLoader));
+                }
+            }
+        }
+        return new LinkedList<>(webControllers);
+    }
+
+    /**
+     * Returns the web controllers found scanning the classes of the controllers package and its sub-packages, the same
+     * ones the annotation processor lists in the index: public and concrete subclasses of {@link ApplicationController}.
+     *
+     * @return the web controllers found in the controllers package and its sub-packages.
      * @throws IOException            if any error occurred while scanning package classes in search of web controllers.
      * @throws URISyntaxException     if any error occurred while scanning package classes in search of web controllers.
      * @throws ClassNotFoundException if any error occurred while scanning package classes in search of web controllers.
      */
-    private static List<Class> getWebControllersList() throws IOException, URISyntaxException, ClassNotFoundException {
+    static List<Class> scanWebControllers() throws IOException, URISyntaxException, ClassNotFoundException {
         List<Class> webControllers = new LinkedList<>();
-        Package controllersPackage = IApplicationController.class.getPackage();
-        ArrayList<String> myClasses = getClassNamesFromPackage(controllersPackage.getName());
-        for (String classInPackage : myClasses) {
-            Class<?> controller = ClassLoader.getSystemClassLoader().loadClass(controllersPackage.getName() + "." + classInPackage.replace("/", ""));
-            if (isSubclassOf(controller, ApplicationController.class) && !Modifier.isAbstract(controller.getModifiers()) && !Modifier.isInterface(controller.getModifiers())) {
+        ClassLoader classLoader = WebApplication.class.getClassLoader();
+        for (String className : getClassNamesFromPackage(classLoader, IApplicationController.class.getPackage().getName())) {
+            Class<?> controller = Class.forName(className, false, classLoader);
+            if (isSubclassOf(controller, ApplicationController.class) && Modifier.isPublic(controller.getModifiers())
+                    && !Modifier.isAbstract(controller.getModifiers()) && !Modifier.isInterface(controller.getModifiers())) {
                 webControllers.add(controller);
             }
         }
@@ -94,56 +190,52 @@ public class WebApplication {
     }
 
     /**
-     * Returns the list of class names that belong to the Package having the fully qualified name specified in <code>packageName</code>.
+     * Returns the fully qualified names of the top level classes in the package named <code>packageName</code> and in
+     * its sub-packages, in every directory and jar of the classpath where the package is.
      *
+     * @param classLoader class loader whose classpath is scanned.
      * @param packageName fully qualified package name.
-     * @return the list of class names that belong to the Package having the fully qualified name specified in <code>packageName</code>.
-     * @throws IOException
-     * @throws URISyntaxException
+     * @return the fully qualified names of the top level classes in the package and in its sub-packages.
+     * @throws IOException        if a jar or a directory of the classpath cannot be read.
+     * @throws URISyntaxException if a directory of the classpath is not a valid URI.
      */
-    private static ArrayList<String> getClassNamesFromPackage(String packageName) throws IOException, URISyntaxException {
-        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-        URL packageURL;
-        ArrayList<String> names = new ArrayList<String>();
-
-        packageName = packageName.replace(".", "/");
-        packageURL = classLoader.getResource(packageName);
-
-        if (packageURL.getProtocol().equals("jar")) {
-            String jarFileName;
-            JarFile jf;
-            Enumeration<JarEntry> jarEntries;
-            String entryName;
-
-            // build jar file name, then loop through zipped entries
-            jarFileName = URLDecoder.decode(packageURL.getFile(), "UTF-8");
-            jarFileName = jarFileName.substring(5, jarFileName.indexOf("!"));
-            log.info(">" + jarFileName);
-            jf = new JarFile(jarFileName);
-            jarEntries = jf.entries();
-            while (jarEntries.hasMoreElements()) {
-                entryName = jarEntries.nextElement().getName();
-                if (entryName.startsWith(packageName) && !entryName.endsWith("/") && !entryName.contains("$") && entryName.length() > packageName.length() + 5) {
-                    entryName = entryName.substring(packageName.length(), entryName.lastIndexOf('.'));
-                    if (!entryName.substring(1).contains("/")) names.add(entryName);
+    private static Set<String> getClassNamesFromPackage(ClassLoader classLoader, String packageName) throws IOException, URISyntaxException {
+        String packagePath = packageName.replace('.', '/') + "/";
+        Set<String> names = new TreeSet<>();
+        Enumeration<URL> packageURLs = classLoader.getResources(packagePath);
+        while (packageURLs.hasMoreElements()) {
+            URL packageURL = packageURLs.nextElement();
+            if (packageURL.getProtocol().equals("jar")) {
+                // jar:file:/path/to/app.jar!/package/path/
+                String jarFileName = URLDecoder.decode(packageURL.getFile(), "UTF-8");
+                jarFileName = jarFileName.substring(5, jarFileName.indexOf("!"));
+                try (JarFile jarFile = new JarFile(jarFileName)) {
+                    Enumeration<JarEntry> jarEntries = jarFile.entries();
+                    while (jarEntries.hasMoreElements()) {
+                        String entryName = jarEntries.nextElement().getName();
+                        if (entryName.startsWith(packagePath)) addClassName(names, entryName);
+                    }
+                }
+            } else {
+                Path packageDirectory = Paths.get(packageURL.toURI());
+                // The root of the classpath directory, where the relative paths of the classes start
+                Path root = packageDirectory;
+                for (int i = 0; i < packageName.split("\\.").length; i++) root = root.getParent();
+                try (Stream<Path> files = Files.walk(packageDirectory)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (Files.isRegularFile(file)) addClassName(names, root.relativize(file).toString().replace(File.separatorChar, '/'));
+                    }
                 }
-            }
-            // loop through files in classpath
-        } else {
-            URI uri = new URI(packageURL.toString());
-            File folder = new File(uri.getPath());
-            // won't work with path which contains blank (%20)
-            // File folder = new File(packageURL.getFile());
-            File[] contenuti = folder.listFiles();
-            String entryName;
-            for (File actual : contenuti) {
-                entryName = actual.getName();
-                if (entryName.contains(".")) {
-                    entryName = entryName.substring(0, entryName.lastIndexOf('.'));
-                    names.add(entryName);
-                } // else -> is not a java file class, but a sub-package
             }
         }
         return names;
     }
+
+    /**
+     * Adds the class name of the <code>path</code> (like <em>package/path/Name.class</em>) to the <code>names</code>,
+     * if it is the file of a top level class.
+     */
+    private static void addClassName(Set<String> names, String path) {
+        if (path.endsWith(".class") && !path.contains("$")) names.add(path.substring(0, path.length() - ".class".length()).replace('/', '.'));
+    }
 }
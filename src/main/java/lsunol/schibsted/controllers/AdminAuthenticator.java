@@ -0,0 +1,51 @@
+package lsunol.schibsted.controllers;
+
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import lsunol.schibsted.application.ApplicationConstants;
+import lsunol.schibsted.database.UserRepository;
+
+/**
+ * {@link BasicAuthenticator} which accepts the "admin" login only, used by the REST API controllers.
+ * Verified <em>Authorization</em> headers are kept in a {@link VerifiedCredentialsCache} for
+ * {@link ApplicationConstants#CREDENTIALS_CACHE_TTL_SECONDS} seconds, so repeated calls with the same header skip
+ * the password hashing.
+ */
+class AdminAuthenticator extends BasicAuthenticator {
+
+    private final UserRepository userRepository;
+    private final VerifiedCredentialsCache credentialsCache;
+    private final ThreadLocal<VerifiedCredentialsCache.VerifiedCredentials> verifiedCredentials = new ThreadLocal<>();
+
+    AdminAuthenticator(UserRepository userRepository) {
+        super("schibstedRealm");
+        this.userRepository = userRepository;
+        this.credentialsCache = new VerifiedCredentialsCache(
+                ApplicationConstants.CREDENTIALS_CACHE_TTL_SECONDS * 1000L,
+                ApplicationConstants.CREDENTIALS_CACHE_MAX_ENTRIES,
+                userRepository::getUserByUsername);
+    }
+
+    @Override
+    public Result authenticate(HttpExchange httpExchange) {
+        String authorizationHeader = httpExchange.getRequestHeaders().getFirst("Authorization");
+        String verifiedUsername = credentialsCache.getVerifiedUsername(authorizationHeader);
+        if (verifiedUsername != null) return new Success(new HttpPrincipal(verifiedUsername, getRealm()));
+        try {
+            Result result = super.authenticate(httpExchange);
+            if (result instanceof Success) credentialsCache.put(authorizationHeader, verifiedCredentials.get());
+            return result;
+        } finally {
+            verifiedCredentials.remove();
+        }
+    }
+
+    @Override
+    public boolean checkCredentials(String user, String password) {
+        VerifiedCredentialsCache.VerifiedCredentials candidate = credentialsCache.snapshot(userRepository.getUserByUsername(user));
+        boolean correct = user.equals("admin") && userRepository.checkUserCredentials(user, password);
+        if (correct) verifiedCredentials.set(candidate);
+        return correct;
+    }
+}
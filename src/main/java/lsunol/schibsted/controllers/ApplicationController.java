@@ -3,7 +3,8 @@ package lsunol.schibsted.controllers;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
 import lsunol.schibsted.application.ApplicationConstants;
-import lsunol.schibsted.controllers.annotations.HttpProduces;
+import lsunol.schibsted.controllers.annotations.HttpCacheControl;
+import lsunol.schibsted.database.ReadOnlyRepositoryException;
 import lsunol.schibsted.database.RepositoryManager;
 import lsunol.schibsted.database.SessionRepository;
 import lsunol.schibsted.database.UserRepository;
@@ -12,18 +13,23 @@ import lsunol.schibsted.model.User;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
+import java.net.URLDecoder;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import static lsunol.schibsted.application.ClassManagement.getMethodParameters;
 
@@ -31,12 +37,16 @@ import static lsunol.schibsted.application.ClassManagement.getMethodParameters;
  * This is the mail superclass for all the web endpoints. Every single web controller should extend this class.
  * Subclasses of this class may define methods for any HTTP methods available preceded by the "do" prefix.
  * This methods may return a String meaning that a template, named as the returned string, will be used to render that
- * request, or void meaning that the controller handles the output stream by itself.
+ * request, or void meaning that the controller handles the output stream by itself. They may also return a
+ * {@link CompletableFuture} instead, so they do not hold a server thread while waiting (i.e.: for a slow repository):
+ * the response is sent when it completes, rendering the template named by a <code>CompletableFuture&lt;String&gt;</code>,
+ * or sending the object of any other future in an acceptable format (if it is not null), or the error it failed with.
  * This methods can receive the following parameters:
  * <ul>
  * <li>{@link HttpExchange}: contains the request stuff (headers, streams, etc.).</li>
  * <li>{@link User}: logged user if present</li>
  * <li>{@link Map<String, String>}: map used to specify attributes that will be used in template.</li>
+ * <li>{@link PathParameters}: values of the parameters in the path template matched by the request.</li>
  * As an example, if we wanted to create a simple controller that says "hello ${username}" on a GET method, we would
  * define a "doGet" method returning a String and receiving a {@link Map<String, String>} named something like <code>templateAttributes.</code>.
  * In addition, a subclass may also define one of each methods defined below:
@@ -52,8 +62,16 @@ import static lsunol.schibsted.application.ClassManagement.getMethodParameters;
 public abstract class ApplicationController implements IApplicationController {
 
     private final static Logger log = Logger.getLogger(ApplicationController.class.getName());
-    private static SessionRepository sessionRepository = RepositoryManager.getSessionRepository();
+    private final static ContentNegotiator objectResponseNegotiator = new ContentNegotiator("application/json;text/plain");
+    private final static ContentNegotiator errorResponseNegotiator = new ContentNegotiator("text/plain;text/html;application/json");
+    static SessionRepository sessionRepository = RepositoryManager.getSessionRepository();
     private static UserRepository userRepository = RepositoryManager.getUserRepository();
+    private final static RenderedPageCache renderedPageCache = new RenderedPageCache(ApplicationConstants.RENDERED_PAGES_CACHE_MAX_ENTRIES);
+
+    static {
+        // Pages rendered for a user who changed will not be requested again
+        RepositoryManager.getUserChangeFeed().subscribe(change -> renderedPageCache.invalidateUser(change.getUsername()));
+    }
 
     /**
      * Returns the request mapping for the controller. This is the path that follows the domain and port in the URL.
@@ -62,11 +80,51 @@ public abstract class ApplicationController implements IApplicationController {
      */
     public abstract String getRequestMapping();
 
+    /**
+     * Returns the path templates routed to the controller by the {@link Router}, like <em>/api/users/{username}</em>.
+     * The values of the parameters between braces are received in the {@link PathParameters} of the request. A last
+     * parameter like <em>{path*}</em> receives the rest of the path. By default, the only template is the {@link #getRequestMapping()}.
+     *
+     * @return the path templates routed to the controller.
+     */
+    public List<String> getPathTemplates() {
+        return Collections.singletonList(getRequestMapping());
+    }
+
+    /**
+     * Returns whether the <em>do</em> method of the controller handling the <code>httpMethod</code> (like <em>PATCH</em>)
+     * handles it on the <code>pathTemplate</code>, one of the {@link #getPathTemplates()}. Otherwise, the {@link Router}
+     * answers that HTTP method on that template with a 405 (Method not allowed). By default, every <em>do</em> method
+     * handles all the path templates.
+     *
+     * @param pathTemplate one of the path templates of the controller.
+     * @param httpMethod   HTTP method in upper case, which the controller has a <em>do</em> method for.
+     * @return whether the controller handles the <code>httpMethod</code> on the <code>pathTemplate</code>.
+     */
+    public boolean handlesHttpMethod(String pathTemplate, String httpMethod) {
+        return true;
+    }
+
     @Override
     public final void handle(HttpExchange httpExchange) throws IOException {
-        // Check for sessionid cookie to retrieve user and roles
+        String classMethodName = "do" + capitalize(httpExchange.getRequestMethod());
+        Method requestedMethod = Arrays.stream(this.getClass().getMethods()).filter(innerMethod -> innerMethod.getName().equals(classMethodName)).findFirst().orElse(null);
+        handle(httpExchange, requestedMethod, PathParameters.EMPTY);
+    }
+
+    /**
+     * Handles the request with the <code>requestedMethod</code> of the controller (doGet, doPost, etc.), already
+     * found by the {@link Router}, which also extracted the <code>pathParameters</code>.
+     *
+     * @param httpExchange    object containing http request stuff.
+     * @param requestedMethod method handling the HTTP method of the request, or null if the controller has none.
+     * @param pathParameters  values of the parameters in the path template matched by the request.
+     * @throws IOException if an error occurs when writing the response.
+     */
+    final void handle(HttpExchange httpExchange, Method requestedMethod, PathParameters pathParameters) throws IOException {
+        // Check for sessionid cookie to retrieve user and roles (latest snapshot, as the user may have changed since login)
         Session session = getSessionFromCookies(getCookiesFromRequest(httpExchange));
-        User requestUser = session == null ? null : session.getUser();
+        User requestUser = session == null ? null : userRepository.getUserByUsername(session.getUsername());
 
         // Map to store template attributes in html based responses
         Map<String, String> templateAttributes = initializeTemplateParams(requestUser);
@@ -75,35 +133,33 @@ public abstract class ApplicationController implements IApplicationController {
                 // Search & invoke "preRequestFilter" method, if present
                 try {
                     Method preRequestFilter = getMethodFromClass(this.getClass(), "preRequestFilter");
-                    Object[] parameters = getMethodParameters(preRequestFilter, httpExchange, templateAttributes, requestUser, session);
+                    Object[] parameters = getMethodParameters(preRequestFilter, httpExchange, templateAttributes, requestUser, session, pathParameters);
                     preRequestFilter.invoke(this, parameters);
                 } catch (NoSuchMethodException e) {
                     // Not a real problem, meaning the controller has no filters to be applied before executing.
                 }
 
-                // Search & invoke main requested method (doGet, doPost, etc.)
-                String classMethodName = "do" + capitalize(httpExchange.getRequestMethod());
-                Method requestedMethod = Arrays.stream(this.getClass().getMethods()).filter(innerMethod -> innerMethod.getName().equals(classMethodName)).findFirst().orElseThrow(() -> new NoSuchMethodException("Method do'" + classMethodName + "' does not exist in the implemented controller: '" + this.getClass().getName() + "'."));
+                // Invoke main requested method (doGet, doPost, etc.)
+                if (requestedMethod == null) throw new NoSuchMethodException("Method 'do" + capitalize(httpExchange.getRequestMethod()) + "' does not exist in the implemented controller: '" + this.getClass().getName() + "'.");
                 // Collect parameters found in method's definition
-                Object[] parameters = getMethodParameters(requestedMethod, httpExchange, templateAttributes, requestUser, session);
+                Object[] parameters = getMethodParameters(requestedMethod, httpExchange, templateAttributes, requestUser, session, pathParameters);
                 // Ensure the requested method can provide an acceptable response to the client
-                String clientAccepts = getAcceptHeader(httpExchange);
-                String methodProduces = getProducesAnnotation(requestedMethod);
-                if (getAcceptableResponseType(methodProduces, clientAccepts) == null)
-                    throw new ResponseToClientException(HttpURLConnection.HTTP_NOT_ACCEPTABLE, "The method for the resource requested cannot produce an acceptable response for your client. Please, consider accepting one of the following: '" + methodProduces + "'.", "error");
+                ContentNegotiator contentNegotiator = ContentNegotiator.forMethod(requestedMethod);
+                if (contentNegotiator.negotiate(getAcceptHeader(httpExchange)) == null)
+                    throw new ResponseToClientException(HttpURLConnection.HTTP_NOT_ACCEPTABLE, "The method for the resource requested cannot produce an acceptable response for your client. Please, consider accepting one of the following: '" + contentNegotiator.getProduces() + "'.", "error");
+                HttpCacheControl cacheControl = requestedMethod.getAnnotation(HttpCacheControl.class);
+                if (cacheControl != null) httpExchange.getResponseHeaders().set("Cache-Control", cacheControl.value());
                 // Analyze method's return type to distinguish template-based outputs from self-responsed ones
                 Object methodsReturnValue = requestedMethod.invoke(this, parameters);
                 if (methodsReturnValue instanceof String)
                     sendResponse(httpExchange, HttpURLConnection.HTTP_OK, (String) methodsReturnValue, templateAttributes);
+                else if (methodsReturnValue instanceof CompletableFuture)
+                    // The request thread is released: the response is sent when the future completes
+                    ((CompletableFuture<?>) methodsReturnValue).whenComplete((result, failure) -> completeAsyncResponse(httpExchange, isFutureOfTemplate(requestedMethod), result, failure, templateAttributes));
                 // else -> the controller responds directly via the httpExchange output stream.
 
             } catch (InvocationTargetException e) {
-                if (e.getTargetException() instanceof ResponseToClientException) {
-                    sendResponse(httpExchange, e.getTargetException(), templateAttributes);
-                } else {
-                    log.log(Level.SEVERE, "Internal server error: " + e.getMessage(), e);
-                    sendResponse(httpExchange, e);
-                }
+                sendFailure(httpExchange, e.getTargetException(), templateAttributes);
             } catch (NoSuchMethodException e) {
                 String errorMessage = "An unexpected request method " + httpExchange.getRequestMethod() + " has been received for resource '" + this.getRequestMapping() + "'. 405 (Method not allowed) is returned.";
                 log.warning(errorMessage);
@@ -124,6 +180,54 @@ public abstract class ApplicationController implements IApplicationController {
         }
     }
 
+    /**
+     * Sends the response of a controller method which returned a {@link CompletableFuture}, once it is completed:
+     * the template named <code>result</code> if the future is of {@link String}, the <code>result</code> object in an
+     * acceptable format otherwise, or nothing if it is null (the controller responded by itself). If the future
+     * completed with a <code>failure</code>, it is reported as if the method had thrown it.
+     */
+    private static void completeAsyncResponse(HttpExchange httpExchange, boolean rendersTemplate, Object result, Throwable failure, Map<String, String> templateAttributes) {
+        try {
+            try {
+                if (failure != null) sendFailure(httpExchange, failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure, templateAttributes);
+                else if (result != null && rendersTemplate) sendResponse(httpExchange, HttpURLConnection.HTTP_OK, (String) result, templateAttributes);
+                else if (result != null) sendResponse(httpExchange, HttpURLConnection.HTTP_OK, result);
+            } catch (ResponseToClientException e) {
+                sendResponse(httpExchange, e, templateAttributes);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Could not send the response of an asynchronous request: " + e.getMessage(), e);
+            httpExchange.close();
+        }
+    }
+
+    /**
+     * Sends the error response for the <code>failure</code> of a controller method: its own status for a
+     * {@link ResponseToClientException}, 503 (Service unavailable) for a {@link ReadOnlyRepositoryException}, and
+     * 500 (Internal server error) for anything else.
+     */
+    private static void sendFailure(HttpExchange httpExchange, Throwable failure, Map<String, String> templateAttributes) throws IOException {
+        if (failure instanceof ResponseToClientException) {
+            sendResponse(httpExchange, failure, templateAttributes);
+        } else if (failure instanceof ReadOnlyRepositoryException) {
+            // Users can only be modified on the leader node: it is not an error of this node
+            log.info("Rejected a modification on a read only node: " + failure.getMessage());
+            sendResponse(httpExchange, new ResponseToClientException(HttpURLConnection.HTTP_UNAVAILABLE, failure.getMessage(), "error"), templateAttributes);
+        } else {
+            log.log(Level.SEVERE, "Internal server error: " + failure.getMessage(), failure);
+            sendResponse(httpExchange, failure);
+        }
+    }
+
+    /**
+     * Returns whether the <code>method</code> returns a {@link CompletableFuture} of {@link String}, meaning the name
+     * of the template to be rendered.
+     */
+    private static boolean isFutureOfTemplate(Method method) {
+        Type returnType = method.getGenericReturnType();
+        return returnType instanceof ParameterizedType && ((ParameterizedType) returnType).getActualTypeArguments()[0] == String.class;
+    }
+
     /**
      * Returns the {@link Method} with the name <code>methodName</code> present in the <code>controllerClass</code>.
      *
@@ -136,19 +240,6 @@ public abstract class ApplicationController implements IApplicationController {
         return Arrays.stream(controllerClass.getMethods()).filter(innerMethod -> innerMethod.getName().equals(methodName)).findFirst().orElseThrow(() -> new NoSuchMethodException("Method do'" + methodName + "' does not exist in the implemented controller: '" + controllerClass.getClass().getName() + "'."));
     }
 
-    /**
-     * Retrieves the value of the {@link HttpProduces} annotation from the given <code>method</code> if present.
-     *
-     * @param method
-     * @return the value of the {@link HttpProduces} annotation from the given <code>method</code> if present.
-     */
-    private String getProducesAnnotation(Method method) {
-        if (method == null) return null;
-        Annotation annotation = method.getAnnotation(HttpProduces.class);
-        if (annotation instanceof HttpProduces) return ((HttpProduces) annotation).name();
-        else return null;
-    }
-
     /**
      * Returns a new {@link HashMap<String, String>} containing the common parameters used in most of the HTML templates,
      * such as the user or roles strings.
@@ -161,7 +252,7 @@ public abstract class ApplicationController implements IApplicationController {
         Map<String, String> templateAttributes = new HashMap<>();
         if (requestUser != null) {
             templateAttributes.put("username", requestUser.getUsername());
-            templateAttributes.put("roles", requestUser.getRoles().stream().collect(Collectors.joining(", ")));
+            templateAttributes.put("roles", requestUser.getRolesAsString());
         }
         return templateAttributes;
     }
@@ -196,6 +287,28 @@ public abstract class ApplicationController implements IApplicationController {
         return parameters;
     }
 
+    /**
+     * Returns a map containing the URL-decoded query string parameters of the <code>httpExchange</code> request.
+     *
+     * @param httpExchange object containing http request stuff.
+     * @return a map containing the URL-decoded query string parameters of the <code>httpExchange</code> request.
+     */
+    static Map<String, String> getQueryParameters(HttpExchange httpExchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = httpExchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) return parameters;
+        for (String keyValuePair : query.split("&")) {
+            int separator = keyValuePair.indexOf('=');
+            if (separator <= 0) continue;
+            try {
+                parameters.put(URLDecoder.decode(keyValuePair.substring(0, separator), "UTF-8"), URLDecoder.decode(keyValuePair.substring(separator + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                // Malformed parameters are ignored, as if they were not present
+            }
+        }
+        return parameters;
+    }
+
     /**
      * Returns the body of a POST request in String.
      *
@@ -218,19 +331,24 @@ public abstract class ApplicationController implements IApplicationController {
 
     /**
      * Returns the html content of the template in the path <em>/resources/templates/<code>templateName</code>.html</em>.
+     * Templates are only read the first time, see {@link Template}.
      *
      * @param templateName path and name of the template in <em>/resources/templates</em> whose contents will be returned.
      * @return the html content of the template in the path <em>/resources/templates/<code>templateName</code>.html</em>.
-     * @throws IOException
+     * @throws IOException if the template does not exist or cannot be read.
      */
     static String getTemplate(String templateName) throws IOException {
-        InputStream in = ApplicationController.class.getResourceAsStream("/templates/" + templateName + ".html");
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-        StringBuilder sb = new StringBuilder();
-        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-            sb.append(line);
-        }
-        return sb.toString();
+        return Template.get(templateName).getHtml();
+    }
+
+    /**
+     * Reads every template and compresses the static ones, so the first requests do not have to.
+     *
+     * @return the names of the templates.
+     * @throws IOException if the templates cannot be read.
+     */
+    public static List<String> preloadTemplates() throws IOException {
+        return Template.preloadAll();
     }
 
     /**
@@ -306,12 +424,60 @@ public abstract class ApplicationController implements IApplicationController {
      * @throws IOException if an error occurs when reading and writing to <code>httpExchange</code>'s input and output streams.
      */
     static void sendResponse(HttpExchange httpExchange, int statusCode, String templateName, Map<String, String> templateAttributes) throws IOException {
-        String responseMessage = fillTemplateWithAttributes(getTemplate(templateName), templateAttributes);
+        Template template = Template.get(templateName);
         httpExchange.getResponseHeaders().set("Content-Type", "text/html");
-        httpExchange.sendResponseHeaders(statusCode, responseMessage.length());
-        OutputStream os = httpExchange.getResponseBody();
-        os.write(responseMessage.getBytes());
-        os.close();
+        // Pages only depend on their template and attributes, so unchanged ones are not even rendered
+        String entityTag = statusCode == HttpURLConnection.HTTP_OK && "GET".equalsIgnoreCase(httpExchange.getRequestMethod()) ? template.getEntityTag(templateAttributes) : null;
+        String matchingEntityTag = entityTag == null ? null : getMatchingEntityTag(httpExchange.getRequestHeaders().getFirst("If-None-Match"), entityTag);
+        if (matchingEntityTag != null) {
+            httpExchange.getResponseHeaders().set("ETag", matchingEntityTag);
+            httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+            httpExchange.close();
+            return;
+        }
+        // Static templates are rendered as they are unless there is a message or a logout link to be added
+        if (template.isStatic() && !templateAttributes.containsKey(ApplicationConstants.FEEDBACK_MESSAGE_KEY) && !templateAttributes.containsKey("username")) {
+            sendBody(httpExchange, statusCode, template.getBytes(), template::getCompressedBytes, entityTag);
+        } else if (entityTag != null) {
+            RenderedPageCache.RenderedPage page = renderedPageCache.get(entityTag);
+            if (page == null) page = renderedPageCache.put(entityTag, templateAttributes.get("username"), fillTemplateWithAttributes(template.getHtml(), templateAttributes).getBytes());
+            sendBody(httpExchange, statusCode, page.getBody(), page::getCompressedBody, entityTag);
+        } else {
+            sendBody(httpExchange, statusCode, fillTemplateWithAttributes(template.getHtml(), templateAttributes).getBytes(), null, entityTag);
+        }
+    }
+
+    /**
+     * Returns the cache of the pages rendered with a GET request.
+     *
+     * @return the cache of the pages rendered with a GET request.
+     */
+    public static RenderedPageCache getRenderedPageCache() {
+        return renderedPageCache;
+    }
+
+    /**
+     * Returns the entity tag in the <code>ifNoneMatch</code> header of a request matching the <code>entityTag</code>
+     * of the page, in any of its encodings, or null if there is none. Entity tags are compared weakly, as
+     * <em>If-None-Match</em> requires.
+     *
+     * @param ifNoneMatch value of the <em>If-None-Match</em> header, which may be null.
+     * @param entityTag   entity tag (without quotes) of the uncompressed page.
+     * @return the quoted entity tag matching the page, or null.
+     */
+    static String getMatchingEntityTag(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null) return null;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) return "\"" + entityTag + "\"";
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.length() < 2 || candidate.charAt(0) != '"' || candidate.charAt(candidate.length() - 1) != '"') continue;
+            String opaqueTag = candidate.substring(1, candidate.length() - 1);
+            if (opaqueTag.equals(entityTag) || opaqueTag.equals(entityTag + "-" + ResponseCompression.GZIP) || opaqueTag.equals(entityTag + "-" + ResponseCompression.DEFLATE))
+                return candidate;
+        }
+        return null;
     }
 
     /**
@@ -337,16 +503,17 @@ public abstract class ApplicationController implements IApplicationController {
     static void sendResponse(HttpExchange httpExchange, Throwable throwable, Map<String, String> templateAttributes) throws IOException {
         boolean isResponseToClientException = throwable instanceof ResponseToClientException;
 
-        String clientAccepts = httpExchange.getRequestHeaders().getFirst("Accept");
+        // Errors are always reported: in plain text when the client accepts none of the other formats
+        String responseType = errorResponseNegotiator.negotiate(getAcceptHeader(httpExchange));
         String errorMessage = isResponseToClientException ? ((ResponseToClientException) throwable).getMessageToUser() : throwable.getMessage();
         String responseString;
         int responseStatus = isResponseToClientException ? ((ResponseToClientException) throwable).getResponseStatus() : HttpURLConnection.HTTP_INTERNAL_ERROR;
-        if (clientAccepts.contains("html")) {
+        if ("text/html".equals(responseType)) {
             httpExchange.getResponseHeaders().set("Content-Type", "text/html");
             templateAttributes.put(ApplicationConstants.FEEDBACK_MESSAGE_KEY, errorMessage);
             String templateToRender = isResponseToClientException ? ((ResponseToClientException) throwable).getTemplateToRender() : "error";
             responseString = fillTemplateWithAttributes(getTemplate(templateToRender), templateAttributes);
-        } else if (clientAccepts.contains("json")) {
+        } else if ("application/json".equals(responseType)) {
             httpExchange.getResponseHeaders().set("Content-Type", "application/json");
             Map<String, String> responseMap = new HashMap<String, String>() {{
                 put("error", Integer.toString(responseStatus));
@@ -355,13 +522,10 @@ public abstract class ApplicationController implements IApplicationController {
             ObjectMapper mapper = new ObjectMapper();
             responseString = mapper.writeValueAsString(responseMap);
         } else {
-            httpExchange.getResponseHeaders().set("Content-Type", "plain/text");
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain");
             responseString = errorMessage;
         }
-        httpExchange.sendResponseHeaders(responseStatus, responseString.length());
-        OutputStream os = httpExchange.getResponseBody();
-        os.write(responseString.getBytes());
-        os.close();
+        sendBody(httpExchange, responseStatus, responseString.getBytes(), null, null);
     }
 
     /**
@@ -375,22 +539,85 @@ public abstract class ApplicationController implements IApplicationController {
      * @throws ResponseToClientException if no acceptable format can be found.
      */
     static void sendResponse(HttpExchange httpExchange, int responseStatusCode, Object responseObject) throws IOException, ResponseToClientException {
-        String acceptableResponseType = getAcceptableResponseType("application/json;text/plain", getAcceptHeader(httpExchange));
+        String acceptableResponseType = getObjectResponseType(httpExchange);
+        if (responseObject == null) {
+            httpExchange.getResponseHeaders().set("Content-Type", acceptableResponseType);
+            httpExchange.sendResponseHeaders(responseStatusCode, 0);
+        } else {
+            sendSerializedResponse(httpExchange, responseStatusCode, acceptableResponseType, serialize(responseObject));
+        }
+    }
+
+    /**
+     * Returns the format objects are sent in to the HTTP client of the <code>httpExchange</code>.
+     *
+     * @param httpExchange object containing http request stuff.
+     * @return <em>application/json</em> or <em>text/plain</em>, as accepted by the HTTP client.
+     * @throws ResponseToClientException if no acceptable format can be found.
+     */
+    static String getObjectResponseType(HttpExchange httpExchange) throws ResponseToClientException {
+        String acceptableResponseType = objectResponseNegotiator.negotiate(getAcceptHeader(httpExchange));
         if (acceptableResponseType == null)
             throw new ResponseToClientException(HttpURLConnection.HTTP_NOT_ACCEPTABLE, "Cannot provide an acceptable content for your request.");
-        else {
-            httpExchange.getResponseHeaders().set("Content-Type", acceptableResponseType);
-            if (responseObject == null) {
-                httpExchange.sendResponseHeaders(responseStatusCode, 0);
-            } else {
-                ObjectMapper mapper = new ObjectMapper();
-                String responseBody = mapper.writeValueAsString(responseObject);
-                httpExchange.sendResponseHeaders(responseStatusCode, responseBody.length());
-                OutputStream os = httpExchange.getResponseBody();
-                os.write(responseBody.getBytes());
-                os.close();
+        return acceptableResponseType;
+    }
+
+    /**
+     * Returns the body the <code>responseObject</code> is sent with, in any of the formats of
+     * {@link #getObjectResponseType(HttpExchange)}.
+     *
+     * @param responseObject object to be sent as body of the message.
+     * @return the serialized <code>responseObject</code>.
+     * @throws IOException if the <code>responseObject</code> cannot be serialized.
+     */
+    static byte[] serialize(Object responseObject) throws IOException {
+        return new ObjectMapper().writeValueAsString(responseObject).getBytes();
+    }
+
+    /**
+     * Sends the already serialized <code>responseBody</code> with the <code>responseStatusCode</code>.
+     *
+     * @param httpExchange       object containing http request stuff.
+     * @param responseStatusCode HTTP response code that will be sent.
+     * @param responseType       format of the <code>responseBody</code>, see {@link #getObjectResponseType(HttpExchange)}.
+     * @param responseBody       body of the message, as returned by {@link #serialize(Object)}.
+     * @throws IOException if an error occurs when writing to <code>httpExchange</code>'s output stream.
+     */
+    static void sendSerializedResponse(HttpExchange httpExchange, int responseStatusCode, String responseType, byte[] responseBody) throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", responseType);
+        sendBody(httpExchange, responseStatusCode, responseBody, null, null);
+    }
+
+    /**
+     * Sends the <code>body</code> with the <code>statusCode</code>, compressed if the client accepts it and it is at
+     * least {@link ApplicationConstants#COMPRESSION_MIN_BYTES} long. Bodies already compressed (i.e.: of a static
+     * template or a cached page) are given by <code>compressedBodies</code> instead of compressing them again. The
+     * <code>entityTag</code> of a compressed body gets the encoding appended, as it is a different representation.
+     *
+     * @param httpExchange     object containing http request stuff.
+     * @param statusCode       HTTP response status.
+     * @param body             uncompressed body of the response.
+     * @param compressedBodies function returning the <code>body</code> compressed with an encoding (or null if it
+     *                         does not get smaller), or null to compress it.
+     * @param entityTag        entity tag (without quotes) of the uncompressed body, or null to send none.
+     * @throws IOException if an error occurs when writing to <code>httpExchange</code>'s output stream.
+     */
+    static void sendBody(HttpExchange httpExchange, int statusCode, byte[] body, Function<String, byte[]> compressedBodies, String entityTag) throws IOException {
+        httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        String encoding = body.length >= ApplicationConstants.COMPRESSION_MIN_BYTES ? ResponseCompression.negotiate(httpExchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+        if (encoding != null) {
+            byte[] compressedBody = compressedBodies != null ? compressedBodies.apply(encoding) : ResponseCompression.compress(body, encoding);
+            if (compressedBody != null && compressedBody.length < body.length) {
+                httpExchange.getResponseHeaders().set("Content-Encoding", encoding);
+                body = compressedBody;
+                if (entityTag != null) entityTag += "-" + encoding;
             }
         }
+        if (entityTag != null) httpExchange.getResponseHeaders().set("ETag", "\"" + entityTag + "\"");
+        httpExchange.sendResponseHeaders(statusCode, body.length);
+        OutputStream os = httpExchange.getResponseBody();
+        os.write(body);
+        os.close();
     }
 
     /**
@@ -447,17 +674,6 @@ public abstract class ApplicationController implements IApplicationController {
      * @return the acceptable format in <code>accepts</code> which is available to be produced.
      */
     static String getAcceptableResponseType(String produces, String accepts) {
-        if (produces == null) throw new IllegalArgumentException("The 'produces' parameter cannot be null.");
-        else if (accepts == null || "".equals(accepts)) return produces.split(";")[0].trim();
-        else {
-            // produces and accepts both are not null
-            String[] producesArray = produces.split(";");
-            for (String availableFormat : producesArray) {
-                if (accepts.contains("*/*") || accepts.contains(availableFormat.split("/")[0] + "/*") || accepts.contains(availableFormat)) {
-                    return availableFormat;
-                }
-            }
-            return null;
-        }
+        return new ContentNegotiator(produces).negotiate(accepts);
     }
-}
+}
\ No newline at end of file
@@ -2,6 +2,7 @@ package lsunol.schibsted.controllers;
 
 import com.sun.net.httpserver.HttpExchange;
 import lsunol.schibsted.application.ApplicationConstants;
+import lsunol.schibsted.model.RoleSet;
 import lsunol.schibsted.model.Session;
 import lsunol.schibsted.model.User;
 
@@ -15,8 +16,20 @@ public abstract class AuthenticatedController extends ApplicationController {
 
     private final static Logger log = Logger.getLogger(AuthenticatedController.class.getName());
 
+    /**
+     * Roles granting access to the controller (its required role or the admin role), resolved once when the
+     * controller is registered. Null when no role is required.
+     */
+    private final RoleSet grantedRoles;
+
+    AuthenticatedController() {
+        String requiredRole = getRequiredRole();
+        grantedRoles = requiredRole == null ? null : RoleSet.of(requiredRole, ApplicationConstants.ADMIN_ROLENAME);
+    }
+
     /**
      * Returns the necessary role the requesting user must have in order to see its contents.
+     * It is resolved once at instantiation time, so it must not depend on the state of the subclass.
      */
     abstract String getRequiredRole();
 
@@ -27,11 +40,11 @@ public abstract class AuthenticatedController extends ApplicationController {
             unsetSessionCookie(httpExchange);
             // and show him the login page
             throw new ResponseToClientException(HttpURLConnection.HTTP_UNAUTHORIZED, "You must first authenticate.", "login-form");
-        } else if ((getRequiredRole() != null && !requestUser.getRoles().contains(getRequiredRole())) && !requestUser.getRoles().contains(ApplicationConstants.ADMIN_ROLENAME)) {
+        } else if (grantedRoles != null && !requestUser.hasAnyRole(grantedRoles)) {
             // The user is correctly logged in, but has no access to the resource
             throw new ResponseToClientException(HttpURLConnection.HTTP_FORBIDDEN, "You have no access to this resource.", "access-denied");
         } else {
-            session.refreshSessionExpiryDate();
+            sessionRepository.refreshSession(session);
             setSessionCookie(httpExchange, session);
         }
     }
@@ -0,0 +1,145 @@
+package lsunol.schibsted.controllers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded cache which drops its least recently used entries, and which is read without taking any lock: every entry
+ * remembers when it was last read, and only the thread adding an entry over the limit sorts them to drop the oldest.
+ * The tenth of the entries least recently used is dropped at once, so the sort is only done every so many additions.
+ *
+ * @param <K> type of the keys.
+ * @param <V> type of the values.
+ */
+final class ConcurrentLruCache<K, V> {
+
+    private final int maxEntries;
+    private final BiConsumer<K, V> evictionListener;
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * @param maxEntries       maximum number of entries kept.
+     * @param evictionListener called with every entry dropped to make room for others, or null.
+     */
+    ConcurrentLruCache(int maxEntries, BiConsumer<K, V> evictionListener) {
+        this.maxEntries = maxEntries;
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Returns the value of the <code>key</code>, or null if it is not cached.
+     *
+     * @param key key of the entry.
+     * @return the value of the <code>key</code>, or null if it is not cached.
+     */
+    V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) return null;
+        entry.lastAccess = clock.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Caches the <code>value</code> of the <code>key</code>, dropping the least recently used entries if the cache is
+     * full.
+     *
+     * @param key   key of the entry.
+     * @param value value of the entry.
+     */
+    void put(K key, V value) {
+        entries.put(key, new Entry<>(value, clock.incrementAndGet()));
+        if (entries.size() > maxEntries) evict();
+    }
+
+    /**
+     * Removes the entry of the <code>key</code> if its value is <code>value</code>.
+     *
+     * @param key   key of the entry.
+     * @param value expected value of the entry.
+     * @return true if the entry was removed.
+     */
+    boolean remove(K key, V value) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && entry.value == value && entries.remove(key, entry);
+    }
+
+    /**
+     * Removes the entry of the <code>key</code>.
+     *
+     * @param key key of the entry.
+     * @return the value removed, or null if the <code>key</code> was not cached.
+     */
+    V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Removes every entry.
+     *
+     * @return the number of entries removed.
+     */
+    int clear() {
+        int removed = 0;
+        for (K key : entries.keySet()) if (entries.remove(key) != null) removed++;
+        return removed;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drops the least recently used entries until a tenth of the room is free again. Additions racing with the eviction
+     * of another thread do not wait for it.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) return;
+        try {
+            int excess = entries.size() - maxEntries;
+            if (excess <= 0) return;
+            // The entries are sorted by a copy of their last access, which readers keep changing
+            List<Candidate<K, V>> candidates = new ArrayList<>(entries.size());
+            for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) candidates.add(new Candidate<>(entry.getKey(), entry.getValue()));
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+            int toEvict = Math.min(candidates.size(), excess + maxEntries / 10);
+            for (int i = 0; i < toEvict; i++) {
+                Candidate<K, V> candidate = candidates.get(i);
+                if (entries.remove(candidate.key, candidate.entry) && evictionListener != null)
+                    evictionListener.accept(candidate.key, candidate.entry.value);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static final class Candidate<K, V> {
+        private final K key;
+        private final Entry<V> entry;
+        private final long lastAccess;
+
+        private Candidate(K key, Entry<V> entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private volatile long lastAccess;
+
+        private Entry(V value, long lastAccess) {
+            this.value = value;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package lsunol.schibsted.controllers;
+
+import lsunol.schibsted.application.ApplicationConstants;
+import lsunol.schibsted.controllers.annotations.HttpProduces;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the response type of a controller method among the ones it produces (in the {@link HttpProduces} annotation,
+ * separated by ';'), according to the <em>Accept</em> header of the request. Each produced type gets the q-value of
+ * the most specific media range of the header matching it (<em>type/subtype</em>, then <em>type/*</em>, then
+ * <em>*&#47;*</em>), and the produced type with the highest q-value is chosen. In case of a tie, the type named more
+ * specifically in the header wins, and then the first one declared. Types whose q-value is 0 are never chosen.
+ * A request without <em>Accept</em> header accepts anything, and a method producing <em>*&#47;*</em> (i.e.: static files,
+ * whose type is not negotiated) is acceptable for any media range whose q-value is not 0. The types produced are parsed once, and the type chosen
+ * is remembered for each distinct <em>Accept</em> header, up to {@link ApplicationConstants#ACCEPT_CACHE_MAX_ENTRIES}
+ * headers.
+ */
+class ContentNegotiator {
+
+    private static final Map<Method, ContentNegotiator> negotiatorsByMethod = new ConcurrentHashMap<>();
+
+    /**
+     * Value remembered for the headers accepting none of the types produced.
+     */
+    private static final String NOT_ACCEPTABLE = "";
+
+    private final String produces;
+    private final List<String> producedTypes = new ArrayList<>();
+    private final Map<String, String> negotiatedTypes = new ConcurrentHashMap<>();
+
+    /**
+     * @param produces mime types produced in the format "mimetype/submimetype", separated by ';'.
+     * @throws IllegalArgumentException if <code>produces</code> is null or it has no mime type.
+     */
+    ContentNegotiator(String produces) {
+        if (produces == null) throw new IllegalArgumentException("The 'produces' parameter cannot be null.");
+        this.produces = produces;
+        for (String producedType : produces.split(";")) {
+            if (!producedType.trim().isEmpty()) producedTypes.add(producedType.trim());
+        }
+        if (producedTypes.isEmpty()) throw new IllegalArgumentException("The 'produces' parameter must have a mime type.");
+    }
+
+    /**
+     * Returns the negotiator of the types produced by the <code>method</code>, parsing its {@link HttpProduces}
+     * annotation the first time.
+     *
+     * @param method controller method annotated with {@link HttpProduces}.
+     * @return the negotiator of the types produced by the <code>method</code>.
+     * @throws IllegalArgumentException if the <code>method</code> is not annotated with {@link HttpProduces}.
+     */
+    static ContentNegotiator forMethod(Method method) {
+        ContentNegotiator negotiator = negotiatorsByMethod.get(method);
+        if (negotiator != null) return negotiator;
+        HttpProduces annotation = method.getAnnotation(HttpProduces.class);
+        if (annotation == null) throw new IllegalArgumentException("The method '" + method.getName() + "' of " + method.getDeclaringClass().getName() + " has no @HttpProduces annotation.");
+        negotiator = new ContentNegotiator(annotation.name());
+        ContentNegotiator existing = negotiatorsByMethod.putIfAbsent(method, negotiator);
+        return existing == null ? negotiator : existing;
+    }
+
+    /**
+     * Returns the mime types produced, as declared.
+     *
+     * @return the mime types produced, as declared.
+     */
+    String getProduces() {
+        return produces;
+    }
+
+    /**
+     * Returns the produced type acceptable for the <code>acceptHeader</code>, or null if none of them is acceptable.
+     * If <code>acceptHeader</code> is null or empty, the first type produced is returned.
+     *
+     * @param acceptHeader value of the <em>Accept</em> request header.
+     * @return the produced type acceptable for the <code>acceptHeader</code>, or null if none of them is acceptable.
+     */
+    String negotiate(String acceptHeader) {
+        if (acceptHeader == null || acceptHeader.trim().isEmpty()) return producedTypes.get(0);
+        String negotiatedType = negotiatedTypes.get(acceptHeader);
+        if (negotiatedType == null) {
+            negotiatedType = chooseType(parseAcceptHeader(acceptHeader));
+            // Clients send only a handful of distinct headers: a full cache means unusual ones, which are dropped
+            if (negotiatedTypes.size() >= ApplicationConstants.ACCEPT_CACHE_MAX_ENTRIES) negotiatedTypes.clear();
+            negotiatedTypes.put(acceptHeader, negotiatedType);
+        }
+        return negotiatedType == NOT_ACCEPTABLE ? null : negotiatedType;
+    }
+
+    /**
+     * Returns the produced type with the highest q-value for the <code>mediaRanges</code>, or {@link #NOT_ACCEPTABLE}.
+     */
+    private String chooseType(List<MediaRange> mediaRanges) {
+        String chosenType = NOT_ACCEPTABLE;
+        double chosenQuality = 0;
+        int chosenSpecificity = -1;
+        for (String producedType : producedTypes) {
+            String[] typeAndSubtype = producedType.toLowerCase(Locale.ROOT).split("/", 2);
+            int bestSpecificity = -1;
+            double quality = 0;
+            for (MediaRange mediaRange : mediaRanges) {
+                int specificity = mediaRange.getSpecificity(typeAndSubtype[0], typeAndSubtype.length > 1 ? typeAndSubtype[1] : "");
+                // Ranges matching equally (every range, for a produced */*) give their highest q-value
+                if (specificity > bestSpecificity || (specificity >= 0 && specificity == bestSpecificity && mediaRange.quality > quality)) {
+                    bestSpecificity = specificity;
+                    quality = mediaRange.quality;
+                }
+            }
+            if (quality > chosenQuality || (quality > 0 && quality == chosenQuality && bestSpecificity > chosenSpecificity)) {
+                chosenType = producedType;
+                chosenQuality = quality;
+                chosenSpecificity = bestSpecificity;
+            }
+        }
+        return chosenType;
+    }
+
+    /**
+     * Returns the media ranges of the <code>acceptHeader</code>, ignoring the malformed ones.
+     */
+    private static List<MediaRange> parseAcceptHeader(String acceptHeader) {
+        List<MediaRange> mediaRanges = new ArrayList<>();
+        for (String element : acceptHeader.split(",")) {
+            String[] parts = element.split(";");
+            String[] typeAndSubtype = parts[0].trim().toLowerCase(Locale.ROOT).split("/", -1);
+            if (typeAndSubtype.length != 2 || typeAndSubtype[0].isEmpty() || typeAndSubtype[1].isEmpty()) continue;
+            if ("*".equals(typeAndSubtype[0]) && !"*".equals(typeAndSubtype[1])) continue;
+            double quality = 1;
+            boolean validQuality = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.length() < 2 || Character.toLowerCase(parameter.charAt(0)) != 'q' || parameter.charAt(1) != '=') continue;
+                try {
+                    quality = Double.parseDouble(parameter.substring(2).trim());
+                    validQuality = quality >= 0 && quality <= 1;
+                } catch (NumberFormatException e) {
+                    validQuality = false;
+                }
+            }
+            if (validQuality) mediaRanges.add(new MediaRange(typeAndSubtype[0], typeAndSubtype[1], quality));
+        }
+        return mediaRanges;
+    }
+
+    /**
+     * Media range of an <em>Accept</em> header, like <em>text/*;q=0.5</em>.
+     */
+    private static final class MediaRange {
+        private final String type;
+        private final String subtype;
+        private final double quality;
+
+        private MediaRange(String type, String subtype, double quality) {
+            this.type = type;
+            this.subtype = subtype;
+            this.quality = quality;
+        }
+
+        /**
+         * Returns how specifically the range matches the media type: 2 for <em>type/subtype</em>, 1 for
+         * <em>type/*</em>, 0 for <em>*&#47;*</em> (or any range, if the media type is <em>*&#47;*</em>), or -1 if it
+         * does not match it.
+         */
+        private int getSpecificity(String mediaType, String mediaSubtype) {
+            if ("*".equals(type) || "*".equals(mediaType)) return 0;
+            if (!type.equals(mediaType)) return -1;
+            if ("*".equals(subtype)) return 1;
+            return subtype.equals(mediaSubtype) ? 2 : -1;
+        }
+    }
+}
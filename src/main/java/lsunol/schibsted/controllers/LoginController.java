@@ -1,6 +1,7 @@
 package lsunol.schibsted.controllers;
 
 import com.sun.net.httpserver.HttpExchange;
+import lsunol.schibsted.controllers.annotations.HttpCacheControl;
 import lsunol.schibsted.controllers.annotations.HttpProduces;
 import lsunol.schibsted.database.RepositoryManager;
 import lsunol.schibsted.database.SessionRepository;
@@ -12,7 +13,6 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.Map;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 public class LoginController extends ApplicationController {
 
@@ -29,6 +29,7 @@ public class LoginController extends ApplicationController {
     }
 
     @HttpProduces(name = "text/html")
+    @HttpCacheControl("private, no-cache")
     public String doGet() {
         return "login-form";
     }
@@ -46,7 +47,7 @@ public class LoginController extends ApplicationController {
                 Session session = sessionRepository.generateSessionForUser(user);
                 setSessionCookie(httpExchange, session);
                 templateAttributes.put("username", user.getUsername());
-                templateAttributes.put("roles", user.getRoles().stream().collect(Collectors.joining(", ")));
+                templateAttributes.put("roles", user.getRolesAsString());
                 if (targetResource == null || !targetResource.startsWith("page")) return "home";
                 else return targetResource;
             } else {
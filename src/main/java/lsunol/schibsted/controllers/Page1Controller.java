@@ -1,5 +1,6 @@
 package lsunol.schibsted.controllers;
 
+import lsunol.schibsted.controllers.annotations.HttpCacheControl;
 import lsunol.schibsted.controllers.annotations.HttpProduces;
 
 public class Page1Controller extends AuthenticatedController {
@@ -15,6 +16,7 @@ public class Page1Controller extends AuthenticatedController {
     }
 
     @HttpProduces(name = "text/html")
+    @HttpCacheControl("private, no-cache")
     public final String doGet() {
         return "page1";
     }
@@ -0,0 +1,43 @@
+package lsunol.schibsted.controllers;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * URL-decoded values of the parameters in the path template matched by a request, like <em>username</em> in
+ * <em>/api/users/{username}</em>. A controller method receives them by declaring a parameter of this type.
+ */
+public final class PathParameters {
+
+    static final PathParameters EMPTY = new PathParameters(Collections.emptyMap());
+
+    private final Map<String, String> parameters;
+
+    PathParameters(Map<String, String> parameters) {
+        this.parameters = Collections.unmodifiableMap(parameters);
+    }
+
+    /**
+     * Returns the value of the path parameter <code>name</code>, or null if the matched template does not have it.
+     *
+     * @param name name of the parameter in the path template.
+     * @return the value of the path parameter <code>name</code>, or null if the matched template does not have it.
+     */
+    public String get(String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * Returns the path parameters as an unmodifiable map from their names to their values.
+     *
+     * @return the path parameters as an unmodifiable map from their names to their values.
+     */
+    public Map<String, String> asMap() {
+        return parameters;
+    }
+
+    @Override
+    public String toString() {
+        return parameters.toString();
+    }
+}
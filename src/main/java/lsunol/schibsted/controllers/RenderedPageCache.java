@@ -0,0 +1,171 @@
+package lsunol.schibsted.controllers;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of rendered pages, keyed by their entity tag: a page only depends on its template and its
+ * attributes (user name, roles, feedback message...), which is what its entity tag is computed from. The template
+ * version is part of it, so pages of a modified template are never served. Pages of a user are dropped as soon as the
+ * user is modified or deleted, as they will not be requested again: the entity tags of the pages of each user are
+ * indexed, so that does not scan the whole cache. Pages are read without taking any lock (see
+ * {@link ConcurrentLruCache}).
+ * <p>
+ * Pages keep their compressed bodies too, compressed the first time they are sent in each encoding.
+ */
+public class RenderedPageCache {
+
+    private final ConcurrentLruCache<String, RenderedPage> pages;
+    // Entity tags of the cached pages of each user. Its sets are only modified within a compute() of their user
+    private final Map<String, Set<String>> entityTagsByUsername = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxEntries maximum number of pages kept: the least recently used ones are dropped to make room for more.
+     */
+    RenderedPageCache(int maxEntries) {
+        this.pages = new ConcurrentLruCache<>(maxEntries, (entityTag, page) -> {
+            evictions.incrementAndGet();
+            unindex(entityTag, page.username);
+        });
+    }
+
+    /**
+     * Returns the page with the <code>entityTag</code>, or null if it is not cached.
+     *
+     * @param entityTag entity tag of the page, see {@link Template#getEntityTag(Map)}.
+     * @return the page with the <code>entityTag</code>, or null if it is not cached.
+     */
+    RenderedPage get(String entityTag) {
+        RenderedPage page = pages.get(entityTag);
+        (page == null ? misses : hits).incrementAndGet();
+        return page;
+    }
+
+    /**
+     * Caches the rendered <code>body</code> of the page with the <code>entityTag</code>.
+     *
+     * @param entityTag entity tag of the page, see {@link Template#getEntityTag(Map)}.
+     * @param username  name of the user the page is rendered for, or null.
+     * @param body      rendered page.
+     * @return the cached page.
+     */
+    RenderedPage put(String entityTag, String username, byte[] body) {
+        RenderedPage page = new RenderedPage(username, body);
+        pages.put(entityTag, page);
+        // Indexed after the put, so a page put while its user is invalidated stays indexed for the next invalidation
+        if (username != null) {
+            entityTagsByUsername.compute(username, (name, entityTags) -> {
+                Set<String> userEntityTags = entityTags == null ? new HashSet<>() : entityTags;
+                userEntityTags.add(entityTag);
+                return userEntityTags;
+            });
+        }
+        return page;
+    }
+
+    /**
+     * Drops the pages rendered for the user named <code>username</code>.
+     *
+     * @param username name of a modified or deleted user.
+     */
+    void invalidateUser(String username) {
+        if (username == null) return;
+        Set<String> entityTags = entityTagsByUsername.remove(username);
+        if (entityTags == null) return;
+        for (String entityTag : entityTags) {
+            if (pages.remove(entityTag) != null) invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops every page.
+     */
+    void clear() {
+        entityTagsByUsername.clear();
+        invalidations.addAndGet(pages.clear());
+    }
+
+    public int size() {
+        return pages.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of pages dropped to make room for others.
+     *
+     * @return the number of pages dropped to make room for others.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of pages dropped because their user changed (or the cache was cleared).
+     *
+     * @return the number of pages dropped because their user changed.
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Removes the <code>entityTag</code> of an evicted page from the index of its user.
+     */
+    private void unindex(String entityTag, String username) {
+        if (username == null) return;
+        entityTagsByUsername.computeIfPresent(username, (name, entityTags) -> {
+            entityTags.remove(entityTag);
+            return entityTags.isEmpty() ? null : entityTags;
+        });
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return size() + " pages, " + hits + " hits of " + lookups + " lookups (" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%), "
+                + getEvictions() + " evictions, " + getInvalidations() + " invalidations";
+    }
+
+    /**
+     * Rendered page, with its compressed bodies.
+     */
+    static final class RenderedPage {
+        private final String username;
+        private final byte[] body;
+        private final Map<String, byte[]> compressedBodies = new ConcurrentHashMap<>();
+
+        private RenderedPage(String username, byte[] body) {
+            this.username = username;
+            this.body = body;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the body compressed with the <code>encoding</code>, compressing it the first time.
+         *
+         * @param encoding <em>gzip</em> or <em>deflate</em>.
+         * @return the compressed body.
+         */
+        byte[] getCompressedBody(String encoding) {
+            return compressedBodies.computeIfAbsent(encoding, compressedEncoding -> ResponseCompression.compress(body, compressedEncoding));
+        }
+    }
+}
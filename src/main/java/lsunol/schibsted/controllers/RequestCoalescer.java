@@ -0,0 +1,111 @@
+package lsunol.schibsted.controllers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single flight of identical concurrent requests: the first request with a key loads the response, and the requests
+ * with the same key arriving while it is being loaded wait for it and share it instead of loading it again. Responses
+ * are not kept once loaded, so they are never stale.
+ * <p>
+ * Loads started before a modification must not be shared with the requests arriving after it, so every modification
+ * calls {@link #invalidate()}, which makes the next requests start new loads.
+ *
+ * @param <V> type of the responses.
+ */
+public class RequestCoalescer<V> {
+
+    private final Map<String, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Loader of a response, which may fail with the same exceptions a controller method does.
+     *
+     * @param <V> type of the response.
+     */
+    @FunctionalInterface
+    interface Loader<V> {
+        V load() throws IOException, ResponseToClientException;
+    }
+
+    /**
+     * Returns the response with the <code>key</code>: loaded by the <code>loader</code>, or by the request already
+     * loading it.
+     *
+     * @param key    key of the response, which identical requests share.
+     * @param loader loader of the response.
+     * @return the response with the <code>key</code>.
+     * @throws IOException               if the load failed with it, or the thread was interrupted while waiting.
+     * @throws ResponseToClientException if the load failed with it.
+     */
+    V execute(String key, Loader<V> loader) throws IOException, ResponseToClientException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> current = flights.putIfAbsent(key, flight);
+        if (current != null) {
+            coalesced.incrementAndGet();
+            return await(current);
+        }
+        loads.incrementAndGet();
+        try {
+            V response = loader.load();
+            flight.complete(response);
+            return response;
+        } catch (IOException | ResponseToClientException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Makes the requests arriving from now on start new loads instead of waiting for the current ones.
+     */
+    void invalidate() {
+        flights.clear();
+    }
+
+    /**
+     * Returns the number of responses loaded.
+     *
+     * @return the number of responses loaded.
+     */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    /**
+     * Returns the number of requests which shared the response of another one instead of loading it.
+     *
+     * @return the number of requests which shared the response of another one.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public String toString() {
+        return getLoads() + " loads, " + getCoalesced() + " coalesced requests";
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) throws IOException, ResponseToClientException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical request.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof ResponseToClientException) throw (ResponseToClientException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw (Error) cause;
+        }
+    }
+}
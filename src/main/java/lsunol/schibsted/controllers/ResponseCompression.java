@@ -0,0 +1,92 @@
+package lsunol.schibsted.controllers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of response bodies in the encodings negotiated with the <em>Accept-Encoding</em> header of the request:
+ * <em>gzip</em> and <em>deflate</em> (zlib format, as HTTP defines it).
+ */
+final class ResponseCompression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private ResponseCompression() {
+    }
+
+    /**
+     * Returns the encoding to compress a response with, given the <code>acceptEncoding</code> header of the request:
+     * the one with the highest quality (<em>gzip</em> on ties), or null if none is accepted and the response must be
+     * sent uncompressed.
+     *
+     * @param acceptEncoding value of the <em>Accept-Encoding</em> header, which may be null.
+     * @return <em>gzip</em>, <em>deflate</em> or null.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.trim().isEmpty()) return null;
+        float gzipQuality = -1;
+        float deflateQuality = -1;
+        float anyQuality = -1;
+        for (String codingRange : acceptEncoding.split(",")) {
+            String[] parts = codingRange.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            float quality = 1;
+            try {
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim().toLowerCase();
+                    if (parameter.startsWith("q=")) quality = Float.parseFloat(parameter.substring(2));
+                }
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (quality < 0 || quality > 1) continue;
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) gzipQuality = quality;
+            else if (coding.equals(DEFLATE)) deflateQuality = quality;
+            else if (coding.equals("*")) anyQuality = quality;
+        }
+        if (gzipQuality < 0) gzipQuality = anyQuality;
+        if (deflateQuality < 0) deflateQuality = anyQuality;
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) return GZIP;
+        if (deflateQuality > 0) return DEFLATE;
+        return null;
+    }
+
+    /**
+     * Returns the <code>body</code> compressed with the <code>encoding</code>.
+     *
+     * @param body     bytes to compress.
+     * @param encoding <em>gzip</em> or <em>deflate</em>.
+     * @return the compressed bytes.
+     */
+    static byte[] compress(byte[] body, String encoding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2 + 32);
+        try (OutputStream output = GZIP.equals(encoding) ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            output.write(body);
+        } catch (IOException e) {
+            // Never thrown when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Returns the <code>body</code> compressed with every encoding it gets smaller with.
+     *
+     * @param body bytes to compress.
+     * @return the compressed bytes by encoding.
+     */
+    static Map<String, byte[]> compressAll(byte[] body) {
+        Map<String, byte[]> compressedBodies = new HashMap<>();
+        for (String encoding : new String[] {GZIP, DEFLATE}) {
+            byte[] compressed = compress(body, encoding);
+            if (compressed.length < body.length) compressedBodies.put(encoding, compressed);
+        }
+        return compressedBodies;
+    }
+}
@@ -0,0 +1,291 @@
+package lsunol.schibsted.controllers;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import lsunol.schibsted.controllers.annotations.HttpProduces;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Dispatches every request to the controller method handling it. The path templates of the controllers (see
+ * {@link ApplicationController#getPathTemplates()}) are compiled on registration into a radix tree, whose edges are
+ * the static parts of the templates and whose parameter nodes, like <em>{username}</em>, match a whole path segment.
+ * A parameter ending a template with an asterisk, like <em>/static/{path*}</em>, matches the rest of the path instead,
+ * slashes included. A request is matched walking the tree once, preferring static parts over parameters, and parameters
+ * over the rest of the path, and then its <em>do</em>
+ * method is looked up by the HTTP method among the ones found on registration for that template (see
+ * {@link ApplicationController#handlesHttpMethod(String, String)}), which are also the ones listed in the <em>Allow</em>
+ * header of a 405 (Method not allowed). The controller receives the
+ * URL-decoded {@link PathParameters}. A single trailing slash in the request path is ignored.
+ */
+public class Router implements HttpHandler {
+
+    private final static Logger log = Logger.getLogger(Router.class.getName());
+
+    private final Node root = new Node("");
+
+    /**
+     * Registers the path templates of the <code>controller</code>, whose requests are authenticated by the
+     * <code>authenticator</code> (if not null) before being handled.
+     *
+     * @param controller    controller handling the requests matching its path templates.
+     * @param authenticator {@link Authenticator} of the requests to the controller, or null if they are not authenticated.
+     * @throws IllegalArgumentException if a path template is not valid.
+     * @throws IllegalStateException    if a path template is already registered, or it names a parameter differently
+     *                                  than a template already registered at the same position.
+     */
+    public synchronized void addRoutes(ApplicationController controller, Authenticator authenticator) {
+        Map<String, Method> methods = new TreeMap<>();
+        for (Method method : controller.getClass().getMethods()) {
+            if (method.getName().startsWith("do") && method.getName().length() > 2 && !methods.containsKey(method.getName().substring(2).toUpperCase())) {
+                methods.put(method.getName().substring(2).toUpperCase(), method);
+                // The response types are parsed once, on registration
+                if (method.isAnnotationPresent(HttpProduces.class)) ContentNegotiator.forMethod(method);
+            }
+        }
+        for (String template : controller.getPathTemplates()) {
+            List<String> parameterNames = new ArrayList<>();
+            Node node = insert(template, parameterNames);
+            if (node.route != null) throw new IllegalStateException("The path template '" + template + "' of " + controller.getClass().getName() + " is already registered by " + node.route.controller.getClass().getName() + ".");
+            Map<String, Method> templateMethods = new TreeMap<>(methods);
+            templateMethods.keySet().removeIf(httpMethod -> !controller.handlesHttpMethod(template, httpMethod));
+            node.route = new Route(template, controller, authenticator, templateMethods, parameterNames);
+            log.info("Routing " + templateMethods.keySet() + " " + template + " to " + controller.getClass().getSimpleName() + ".");
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+        try {
+            Match match;
+            try {
+                match = match(httpExchange.getRequestURI().getRawPath());
+            } catch (IllegalArgumentException e) {
+                throw new ResponseToClientException(HttpURLConnection.HTTP_BAD_REQUEST, "The requested path is not correctly encoded.", "error");
+            }
+            if (match == null)
+                throw new ResponseToClientException(HttpURLConnection.HTTP_NOT_FOUND, "The requested resource '" + httpExchange.getRequestURI().getPath() + "' does not exist.", "error");
+            Route route = match.getRoute();
+            if (route.authenticator != null) {
+                Authenticator.Result result = route.authenticator.authenticate(httpExchange);
+                if (result instanceof Authenticator.Failure || result instanceof Authenticator.Retry) {
+                    int responseCode = result instanceof Authenticator.Failure ? ((Authenticator.Failure) result).getResponseCode() : ((Authenticator.Retry) result).getResponseCode();
+                    httpExchange.sendResponseHeaders(responseCode, -1);
+                    httpExchange.close();
+                    return;
+                }
+            }
+            Method method = route.getMethod(httpExchange.getRequestMethod());
+            if (method == null) httpExchange.getResponseHeaders().set("Allow", String.join(", ", route.methods.keySet()));
+            route.controller.handle(httpExchange, method, match.getParameters());
+        } catch (ResponseToClientException e) {
+            ApplicationController.sendResponse(httpExchange, e, new HashMap<>());
+        }
+    }
+
+    /**
+     * Returns the route matching the <code>rawPath</code> with the URL-decoded values of its path parameters, or null
+     * if no route matches it.
+     *
+     * @param rawPath path of the request, as sent by the client (not decoded).
+     * @return the route matching the <code>rawPath</code> with the values of its path parameters, or null if no route
+     * matches it.
+     * @throws IllegalArgumentException if a path parameter is not correctly encoded.
+     */
+    Match match(String rawPath) {
+        String path = rawPath == null || rawPath.isEmpty() ? "/" : rawPath;
+        if (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+        List<String> values = new ArrayList<>();
+        Route route = find(root, path, 0, values);
+        if (route == null) return null;
+        if (values.isEmpty()) return new Match(route, PathParameters.EMPTY);
+        Map<String, String> parameters = new LinkedHashMap<>();
+        for (int i = 0; i < values.size(); i++) parameters.put(route.parameterNames.get(i), decodePathSegment(values.get(i)));
+        return new Match(route, new PathParameters(parameters));
+    }
+
+    /**
+     * Adds the nodes of the <code>template</code> to the tree, and returns the last one.
+     */
+    private Node insert(String template, List<String> parameterNames) {
+        if (template == null || !template.startsWith("/"))
+            throw new IllegalArgumentException("The path template '" + template + "' must start with '/'.");
+        String normalizedTemplate = template.length() > 1 && template.endsWith("/") ? template.substring(0, template.length() - 1) : template;
+        Node node = root;
+        int position = 0;
+        while (position < normalizedTemplate.length()) {
+            int parameterStart = normalizedTemplate.indexOf('{', position);
+            if (parameterStart < 0) parameterStart = normalizedTemplate.length();
+            if (parameterStart > position) node = insertStatic(node, normalizedTemplate.substring(position, parameterStart));
+            if (parameterStart == normalizedTemplate.length()) break;
+            int parameterEnd = normalizedTemplate.indexOf('}', parameterStart);
+            boolean wholeSegment = normalizedTemplate.charAt(parameterStart - 1) == '/'
+                    && (parameterEnd == normalizedTemplate.length() - 1 || (parameterEnd > 0 && normalizedTemplate.charAt(parameterEnd + 1) == '/'));
+            if (parameterEnd < 0 || parameterEnd == parameterStart + 1 || !wholeSegment)
+                throw new IllegalArgumentException("The path template '" + template + "' must have its parameters like '/{name}' as whole path segments.");
+            String parameterName = normalizedTemplate.substring(parameterStart + 1, parameterEnd);
+            if (parameterName.endsWith("*")) {
+                parameterName = parameterName.substring(0, parameterName.length() - 1);
+                if (parameterName.isEmpty() || parameterEnd != normalizedTemplate.length() - 1)
+                    throw new IllegalArgumentException("The path template '" + template + "' can only end with a parameter matching the rest of the path, like '/{name*}'.");
+                if (node.remainderChild == null) node.remainderChild = new Node(parameterName);
+                else if (!node.remainderChild.label.equals(parameterName))
+                    throw new IllegalStateException("The path template '" + template + "' names '{" + parameterName + "*}' a parameter already registered as '{" + node.remainderChild.label + "*}'.");
+                node = node.remainderChild;
+            } else {
+                if (node.parameterChild == null) node.parameterChild = new Node(parameterName);
+                else if (!node.parameterChild.label.equals(parameterName))
+                    throw new IllegalStateException("The path template '" + template + "' names '{" + parameterName + "}' a parameter already registered as '{" + node.parameterChild.label + "}'.");
+                node = node.parameterChild;
+            }
+            parameterNames.add(parameterName);
+            position = parameterEnd + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Adds the static <code>part</code> of a template below the <code>node</code>, splitting the edges sharing a prefix
+     * with it, and returns the node where it ends.
+     */
+    private static Node insertStatic(Node node, String part) {
+        while (!part.isEmpty()) {
+            Node child = node.staticChildren.get(part.charAt(0));
+            if (child == null) {
+                child = new Node(part);
+                node.staticChildren.put(part.charAt(0), child);
+                return child;
+            }
+            int common = 0;
+            while (common < child.label.length() && common < part.length() && child.label.charAt(common) == part.charAt(common)) common++;
+            if (common < child.label.length()) {
+                Node intermediate = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                intermediate.staticChildren.put(child.label.charAt(0), child);
+                node.staticChildren.put(intermediate.label.charAt(0), intermediate);
+                child = intermediate;
+            }
+            node = child;
+            part = part.substring(common);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the route of the path from <code>position</code> on below the <code>node</code>, adding the values of
+     * the parameters matched to <code>values</code>, or null if there is none.
+     */
+    private static Route find(Node node, String path, int position, List<String> values) {
+        if (position == path.length()) return node.route;
+        Node child = node.staticChildren.get(path.charAt(position));
+        if (child != null && path.startsWith(child.label, position)) {
+            Route route = find(child, path, position + child.label.length(), values);
+            if (route != null) return route;
+        }
+        if (node.parameterChild != null) {
+            int segmentEnd = path.indexOf('/', position);
+            if (segmentEnd < 0) segmentEnd = path.length();
+            if (segmentEnd > position) {
+                values.add(path.substring(position, segmentEnd));
+                Route route = find(node.parameterChild, path, segmentEnd, values);
+                if (route != null) return route;
+                values.remove(values.size() - 1);
+            }
+        }
+        if (node.remainderChild != null && node.remainderChild.route != null && position < path.length()) {
+            values.add(path.substring(position));
+            return node.remainderChild.route;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the URL-decoded <code>rawSegment</code> of a path (or the rest of it), where a '+' is not a space.
+     */
+    private static String decodePathSegment(String rawSegment) {
+        if (rawSegment.indexOf('%') < 0) return rawSegment;
+        try {
+            return URLDecoder.decode(rawSegment.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported.", e);
+        }
+    }
+
+    /**
+     * Node of the radix tree: its <code>label</code> is the static part of the path it matches, or the name of the
+     * parameter it matches if it is a parameter node. Nodes matching the rest of the path are always leaves.
+     */
+    private static final class Node {
+        private String label;
+        private final Map<Character, Node> staticChildren = new HashMap<>();
+        private Node parameterChild;
+        private Node remainderChild;
+        private Route route;
+
+        private Node(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * Path template of a controller, with the methods handling each HTTP method.
+     */
+    static final class Route {
+        private final String template;
+        private final ApplicationController controller;
+        private final Authenticator authenticator;
+        private final Map<String, Method> methods;
+        private final List<String> parameterNames;
+
+        private Route(String template, ApplicationController controller, Authenticator authenticator, Map<String, Method> methods, List<String> parameterNames) {
+            this.template = template;
+            this.controller = controller;
+            this.authenticator = authenticator;
+            this.methods = methods;
+            this.parameterNames = parameterNames;
+        }
+
+        String getTemplate() {
+            return template;
+        }
+
+        ApplicationController getController() {
+            return controller;
+        }
+
+        /**
+         * Returns the controller method handling the <code>httpMethod</code>, or null if there is none.
+         */
+        Method getMethod(String httpMethod) {
+            return methods.get(httpMethod.toUpperCase());
+        }
+    }
+
+    /**
+     * Route matched by a request path, with the values of its path parameters.
+     */
+    static final class Match {
+        private final Route route;
+        private final PathParameters parameters;
+
+        private Match(Route route, PathParameters parameters) {
+            this.route = route;
+            this.parameters = parameters;
+        }
+
+        Route getRoute() {
+            return route;
+        }
+
+        PathParameters getParameters() {
+            return parameters;
+        }
+    }
+}
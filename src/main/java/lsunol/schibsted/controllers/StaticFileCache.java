@@ -0,0 +1,99 @@
+package lsunol.schibsted.controllers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Least recently used cache of small static files, up to a total size in bytes. Each file is kept with its size and
+ * modification time, so a file modified since it was cached is read again instead of being served stale.
+ */
+class StaticFileCache {
+
+    private final long maxBytes;
+    private final Map<String, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    /**
+     * @param maxBytes maximum size in bytes of all the files kept: the least recently used ones are dropped to make
+     *                 room for more.
+     */
+    StaticFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached file named <code>name</code>, or null if it is not cached or it has been modified since.
+     *
+     * @param name         name of the file.
+     * @param lastModified current modification time of the file, in milliseconds.
+     * @param size         current size of the file.
+     * @return the cached file, or null if it is not cached or it has been modified since.
+     */
+    synchronized CachedFile get(String name, long lastModified, long size) {
+        CachedFile file = files.get(name);
+        return file != null && file.lastModified == lastModified && file.bytes.length == size ? file : null;
+    }
+
+    /**
+     * Caches the <code>bytes</code> of the file named <code>name</code>.
+     *
+     * @param name         name of the file.
+     * @param lastModified modification time of the file when it was read, in milliseconds.
+     * @param bytes        contents of the file.
+     * @param compressible whether the file is worth compressing (i.e.: it is text).
+     * @return the cached file.
+     */
+    synchronized CachedFile put(String name, long lastModified, byte[] bytes, boolean compressible) {
+        CachedFile file = new CachedFile(lastModified, bytes, compressible);
+        CachedFile previous = files.put(name, file);
+        if (previous != null) cachedBytes -= previous.bytes.length;
+        cachedBytes += bytes.length;
+        for (Iterator<CachedFile> eldest = files.values().iterator(); cachedBytes > maxBytes && eldest.hasNext(); ) {
+            cachedBytes -= eldest.next().bytes.length;
+            eldest.remove();
+        }
+        return file;
+    }
+
+    synchronized int size() {
+        return files.size();
+    }
+
+    synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Static file kept in memory, with its compressed contents.
+     */
+    static final class CachedFile {
+        private final long lastModified;
+        private final byte[] bytes;
+        private final boolean compressible;
+        private final Map<String, byte[]> compressedBytes = new ConcurrentHashMap<>();
+
+        private CachedFile(long lastModified, byte[] bytes, boolean compressible) {
+            this.lastModified = lastModified;
+            this.bytes = bytes;
+            this.compressible = compressible;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the contents compressed with the <code>encoding</code>, compressing them the first time, or null if
+         * the file is not worth compressing.
+         *
+         * @param encoding <em>gzip</em> or <em>deflate</em>.
+         * @return the compressed contents, or null.
+         */
+        byte[] getCompressedBytes(String encoding) {
+            if (!compressible) return null;
+            return compressedBytes.computeIfAbsent(encoding, compressedEncoding -> ResponseCompression.compress(bytes, compressedEncoding));
+        }
+    }
+}
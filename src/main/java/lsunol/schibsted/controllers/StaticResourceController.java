@@ -0,0 +1,396 @@
+package lsunol.schibsted.controllers;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import lsunol.schibsted.application.ApplicationConstants;
+import lsunol.schibsted.controllers.annotations.HttpCacheControl;
+import lsunol.schibsted.controllers.annotations.HttpProduces;
+import lsunol.schibsted.server.FileSender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Serves the files under <em>/static</em> (style sheets, scripts, images...) from the directory set with
+ * {@link ApplicationConstants#STATIC_DIRECTORY_PROPERTY}, or from <em>/static</em> in the classpath. Their type is
+ * given by their extension.
+ * <p>
+ * Small files are kept in memory once requested, and text ones compressed like any other response. Larger files are
+ * never read into memory: the {@link lsunol.schibsted.server.NioHttpServer} sends them straight from the file system to
+ * the socket (see {@link FileSender}), and the JDK server gets them transferred to its response body. Files are sent
+ * with their <em>Last-Modified</em> time, which conditional requests are answered with a 304 (Not modified) for, and
+ * single byte ranges are sent with a 206 (Partial content).
+ */
+public class StaticResourceController extends ApplicationController {
+    private final static Logger log = Logger.getLogger(StaticResourceController.class.getName());
+
+    private final static String REQUEST_PATH = "/static";
+    private final static String PATH_PARAMETER = "path";
+    private final static String CLASSPATH_ROOT = "/static/";
+    private final static DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+    private final static String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private final static Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("js", "application/javascript");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+    }
+
+    private final Path directory;
+    private final StaticFileCache cache = new StaticFileCache(ApplicationConstants.STATIC_CACHE_MAX_BYTES);
+
+    public StaticResourceController() {
+        this(System.getProperty(ApplicationConstants.STATIC_DIRECTORY_PROPERTY) == null ? null : Paths.get(System.getProperty(ApplicationConstants.STATIC_DIRECTORY_PROPERTY)));
+    }
+
+    /**
+     * @param directory directory the files are served from, or null to serve them from the classpath.
+     */
+    StaticResourceController(Path directory) {
+        this.directory = directory == null ? null : directory.toAbsolutePath().normalize();
+        if (directory != null && !Files.isDirectory(directory)) log.warning("The static files directory '" + directory + "' does not exist.");
+    }
+
+    @Override
+    public String getRequestMapping() {
+        return REQUEST_PATH;
+    }
+
+    /**
+     * Returns the path template of the controller, matching every file below <em>/static</em>.
+     * @return the path template of the controller, matching every file below <em>/static</em>.
+     */
+    @Override
+    public List<String> getPathTemplates() {
+        return Collections.singletonList(REQUEST_PATH + "/{" + PATH_PARAMETER + "*}");
+    }
+
+    /**
+     * Handler for the GET method: sends the requested file, or the requested range of it.
+     * The type of the file is given by its extension, so it is not negotiated with the <em>Accept</em> header.
+     * @param httpExchange
+     * @param pathParameters path parameters of the request, with the <em>path</em> of the file.
+     * @throws ResponseToClientException if the file does not exist, or the range requested is not satisfiable.
+     * @throws IOException when an error occurs while reading the file or writing to the output stream.
+     */
+    @HttpProduces(name = "*/*")
+    @HttpCacheControl("public, no-cache")
+    public void doGet(HttpExchange httpExchange, PathParameters pathParameters) throws ResponseToClientException, IOException {
+        send(httpExchange, pathParameters.get(PATH_PARAMETER), true);
+    }
+
+    /**
+     * Handler for the HEAD method: sends the headers the GET method would send.
+     * @param httpExchange
+     * @param pathParameters path parameters of the request, with the <em>path</em> of the file.
+     * @throws ResponseToClientException if the file does not exist, or the range requested is not satisfiable.
+     * @throws IOException when an error occurs while reading the file or writing to the output stream.
+     */
+    @HttpProduces(name = "*/*")
+    @HttpCacheControl("public, no-cache")
+    public void doHead(HttpExchange httpExchange, PathParameters pathParameters) throws ResponseToClientException, IOException {
+        send(httpExchange, pathParameters.get(PATH_PARAMETER), false);
+    }
+
+    private void send(HttpExchange httpExchange, String path, boolean withBody) throws ResponseToClientException, IOException {
+        StaticFile staticFile = find(path);
+        String contentType = getContentType(path);
+        Headers responseHeaders = httpExchange.getResponseHeaders();
+        responseHeaders.set("Content-Type", contentType);
+        responseHeaders.set("Last-Modified", HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(staticFile.lastModified)));
+        responseHeaders.set("Accept-Ranges", "bytes");
+        if (isNotModified(httpExchange.getRequestHeaders().getFirst("If-Modified-Since"), staticFile.lastModified)) {
+            httpExchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+            httpExchange.close();
+            return;
+        }
+
+        long[] range = null;
+        if (isRangeApplicable(httpExchange.getRequestHeaders().getFirst("If-Range"), staticFile.lastModified)) {
+            try {
+                range = getRange(httpExchange.getRequestHeaders().getFirst("Range"), staticFile.size);
+            } catch (ResponseToClientException e) {
+                responseHeaders.set("Content-Range", "bytes */" + staticFile.size);
+                throw e;
+            }
+        }
+        int statusCode = range == null ? HttpURLConnection.HTTP_OK : 206;
+        long start = range == null ? 0 : range[0];
+        long count = range == null ? staticFile.size : range[1] - range[0] + 1;
+        if (range != null) responseHeaders.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + staticFile.size);
+
+        if (!withBody) {
+            // As the JDK server requires for HEAD requests, the length is declared in the headers
+            responseHeaders.set("Content-Length", String.valueOf(count));
+            httpExchange.sendResponseHeaders(statusCode, -1);
+            httpExchange.close();
+        } else if (staticFile.size <= ApplicationConstants.STATIC_CACHE_MAX_FILE_BYTES) {
+            StaticFileCache.CachedFile cachedFile = getCachedFile(path, staticFile, isCompressible(contentType));
+            if (range == null) {
+                sendBody(httpExchange, statusCode, cachedFile.getBytes(), cachedFile::getCompressedBytes, null);
+            } else {
+                httpExchange.sendResponseHeaders(statusCode, count);
+                OutputStream os = httpExchange.getResponseBody();
+                os.write(cachedFile.getBytes(), (int) start, (int) count);
+                os.close();
+            }
+        } else if (staticFile.file != null) {
+            sendFile(httpExchange, statusCode, staticFile.file, start, count);
+        } else {
+            httpExchange.sendResponseHeaders(statusCode, count);
+            try (InputStream in = staticFile.resource.openStream(); OutputStream os = httpExchange.getResponseBody()) {
+                skipFully(in, start);
+                copy(in, os, count);
+            }
+        }
+    }
+
+    /**
+     * Returns the static file at <code>path</code>, relative to the directory (or classpath folder) served.
+     * @param path URL-decoded path of the file.
+     * @return the static file at <code>path</code>.
+     * @throws ResponseToClientException if there is no such file, or the path is not below the folder served.
+     * @throws IOException when an error occurs while reading the attributes of the file.
+     */
+    private StaticFile find(String path) throws ResponseToClientException, IOException {
+        ResponseToClientException notFound = new ResponseToClientException(HttpURLConnection.HTTP_NOT_FOUND, "The requested resource '" + REQUEST_PATH + "/" + path + "' does not exist.", "error");
+        if (path == null || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) throw notFound;
+        // Hidden files and relative segments are never served
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.startsWith(".")) throw notFound;
+        }
+
+        if (directory != null) {
+            Path file = directory.resolve(path).normalize();
+            if (!file.startsWith(directory) || !Files.isRegularFile(file)) throw notFound;
+            return new StaticFile(file, null, Files.readAttributes(file, BasicFileAttributes.class));
+        }
+        URL resource = StaticResourceController.class.getResource(CLASSPATH_ROOT + path);
+        if (resource == null) throw notFound;
+        if (resource.getProtocol().equals("file")) {
+            try {
+                Path file = Paths.get(resource.toURI());
+                if (!Files.isRegularFile(file)) throw notFound;
+                return new StaticFile(file, null, Files.readAttributes(file, BasicFileAttributes.class));
+            } catch (URISyntaxException e) {
+                throw notFound;
+            }
+        }
+        URLConnection connection = resource.openConnection();
+        if (connection instanceof JarURLConnection && ((JarURLConnection) connection).getJarEntry().isDirectory()) throw notFound;
+        return new StaticFile(resource, connection.getContentLengthLong(), connection.getLastModified());
+    }
+
+    /**
+     * Returns the file at <code>path</code> from the cache, reading and caching it if it is not cached or it has been
+     * modified since.
+     */
+    private StaticFileCache.CachedFile getCachedFile(String path, StaticFile staticFile, boolean compressible) throws IOException {
+        StaticFileCache.CachedFile cachedFile = cache.get(path, staticFile.lastModified, staticFile.size);
+        if (cachedFile != null) return cachedFile;
+        byte[] bytes;
+        if (staticFile.file != null) {
+            bytes = Files.readAllBytes(staticFile.file);
+        } else {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream((int) staticFile.size);
+            try (InputStream in = staticFile.resource.openStream()) {
+                copy(in, contents, staticFile.size);
+            }
+            bytes = contents.toByteArray();
+        }
+        // A file modified while being read gets its new size, so it is not served with the old one
+        if (bytes.length != staticFile.size) throw new IOException("The file '" + path + "' was modified while being read.");
+        return cache.put(path, staticFile.lastModified, bytes, compressible);
+    }
+
+    /**
+     * Sends <code>count</code> bytes of the <code>file</code> from <code>start</code> on without reading them into the
+     * heap: from the file system to the socket if the server supports it, or transferred to the response body
+     * otherwise.
+     */
+    private static void sendFile(HttpExchange httpExchange, int statusCode, Path file, long start, long count) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            httpExchange.sendResponseHeaders(statusCode, count);
+            if (httpExchange instanceof FileSender) {
+                // The exchange closes the file once it is sent
+                FileChannel sentChannel = fileChannel;
+                fileChannel = null;
+                ((FileSender) httpExchange).sendFile(sentChannel, start, count);
+                return;
+            }
+            try (OutputStream os = httpExchange.getResponseBody()) {
+                WritableByteChannel responseChannel = Channels.newChannel(os);
+                for (long position = start, end = start + count; position < end; ) {
+                    long transferred = fileChannel.transferTo(position, end - position, responseChannel);
+                    if (transferred <= 0) throw new IOException("The file '" + file + "' is shorter than the response declares.");
+                    position += transferred;
+                }
+            }
+        } finally {
+            if (fileChannel != null) fileChannel.close();
+        }
+    }
+
+    /**
+     * Returns whether a file modified at <code>lastModified</code> has not been modified since the
+     * <em>If-Modified-Since</em> request header.
+     */
+    private static boolean isNotModified(String ifModifiedSince, long lastModified) {
+        if (ifModifiedSince == null) return false;
+        try {
+            return lastModified <= ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the <em>Range</em> request header applies: always, unless the <em>If-Range</em> request header
+     * is not the modification time of the file (i.e.: the client has an older version, or an entity tag).
+     */
+    private static boolean isRangeApplicable(String ifRange, long lastModified) {
+        if (ifRange == null) return true;
+        try {
+            return lastModified == ZonedDateTime.parse(ifRange.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the first and last positions of the byte range requested in the <code>rangeHeader</code> of a file of
+     * <code>size</code> bytes, or null if the whole file is sent: when there is no range, it is not valid, or there
+     * are several of them (which may be sent as a whole, and browsers do not request).
+     * @param rangeHeader value of the <em>Range</em> request header, like <em>bytes=0-99</em>, <em>bytes=100-</em> or
+     *                    <em>bytes=-100</em> (the last 100 bytes).
+     * @param size        size of the file.
+     * @return the first and last positions of the byte range requested, or null.
+     * @throws ResponseToClientException if the range requested is out of the file.
+     */
+    static long[] getRange(String rangeHeader, long size) throws ResponseToClientException {
+        if (rangeHeader == null || !rangeHeader.trim().startsWith("bytes=") || rangeHeader.indexOf(',') >= 0) return null;
+        String range = rangeHeader.trim().substring("bytes=".length()).trim();
+        int separator = range.indexOf('-');
+        if (separator < 0) return null;
+        long first, last;
+        try {
+            if (separator == 0) {
+                long suffixLength = Long.parseLong(range.substring(1).trim());
+                if (suffixLength <= 0 || size == 0) throw notSatisfiable(size);
+                first = Math.max(0, size - suffixLength);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(range.substring(0, separator).trim());
+                String lastPosition = range.substring(separator + 1).trim();
+                last = lastPosition.isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(lastPosition));
+                if (!lastPosition.isEmpty() && Long.parseLong(lastPosition) < first) return null;
+                if (first >= size) throw notSatisfiable(size);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return first < 0 ? null : new long[] {first, last};
+    }
+
+    private static ResponseToClientException notSatisfiable(long size) {
+        return new ResponseToClientException(416, "The requested range is not satisfiable: the resource has " + size + " bytes.");
+    }
+
+    /**
+     * Returns the content type of the file at <code>path</code>, given by its extension.
+     */
+    static String getContentType(String path) {
+        int extensionStart = path.lastIndexOf('.');
+        if (extensionStart < 0 || extensionStart < path.lastIndexOf('/')) return DEFAULT_CONTENT_TYPE;
+        return CONTENT_TYPES.getOrDefault(path.substring(extensionStart + 1).toLowerCase(Locale.ROOT), DEFAULT_CONTENT_TYPE);
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.equals("application/javascript") || contentType.equals("application/json") || contentType.equals("image/svg+xml");
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        for (long skipped = 0; skipped < count; ) {
+            long skippedNow = in.skip(count - skipped);
+            if (skippedNow <= 0) {
+                if (in.read() < 0) throw new IOException("Unexpected end of a static file.");
+                skippedNow = 1;
+            }
+            skipped += skippedNow;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (long copied = 0; copied < count; ) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+            if (read < 0) throw new IOException("Unexpected end of a static file.");
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+    }
+
+    /**
+     * Static file found in the directory served (or the classpath folder), with its size and modification time
+     * (truncated to seconds, as <em>Last-Modified</em> sends it).
+     */
+    private static final class StaticFile {
+        private final Path file;
+        private final URL resource;
+        private final long size;
+        private final long lastModified;
+
+        private StaticFile(Path file, URL resource, BasicFileAttributes attributes) {
+            this(file, resource, attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+        private StaticFile(URL resource, long size, long lastModified) {
+            this(null, resource, size, lastModified);
+        }
+
+        private StaticFile(Path file, URL resource, long size, long lastModified) {
+            this.file = file;
+            this.resource = resource;
+            this.size = size;
+            this.lastModified = lastModified / 1000 * 1000;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package lsunol.schibsted.controllers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+
+/**
+ * HTML template of <em>/resources/templates</em>, read once and kept in memory. Templates without attributes to be
+ * replaced (i.e.: <em>login-form</em>, <em>logout</em>) are static pages, which are also kept compressed in every
+ * encoding they get smaller with, so they are sent compressed without compressing them on every request.
+ * <p>
+ * Its version is a hash of its contents, so the entity tags of the pages rendered from it change when it changes,
+ * and are the same in every node.
+ */
+final class Template {
+
+    private static final String TEMPLATES_PATH = "templates/";
+    private static final String TEMPLATES_EXTENSION = ".html";
+    private static final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    private final String html;
+    private final byte[] bytes;
+    private final String version;
+    private final Map<String, byte[]> compressedBytes;
+
+    private Template(String html) {
+        this.html = html;
+        this.bytes = html.getBytes();
+        this.version = toHex(newDigest().digest(bytes), 8);
+        this.compressedBytes = isStatic() ? ResponseCompression.compressAll(bytes) : Collections.emptyMap();
+    }
+
+    /**
+     * Returns the template named <code>templateName</code>, reading it the first time.
+     *
+     * @param templateName name of the template in <em>/resources/templates</em>, without extension.
+     * @return the template named <code>templateName</code>.
+     * @throws IOException if the template does not exist or cannot be read.
+     */
+    static Template get(String templateName) throws IOException {
+        Template template = templates.get(templateName);
+        if (template == null) {
+            template = new Template(read(templateName));
+            Template previous = templates.putIfAbsent(templateName, template);
+            if (previous != null) template = previous;
+        }
+        return template;
+    }
+
+    /**
+     * Reads and compresses every template, so no request has to.
+     *
+     * @return the names of the templates.
+     * @throws IOException if the templates cannot be listed or read.
+     */
+    static List<String> preloadAll() throws IOException {
+        List<String> templateNames = listTemplateNames();
+        for (String templateName : templateNames) get(templateName);
+        return templateNames;
+    }
+
+    String getHtml() {
+        return html;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the strong entity tag (without quotes) of the page rendered from this template with the
+     * <code>templateAttributes</code>, without rendering it: pages rendered from the same template with the same
+     * attributes are identical.
+     *
+     * @param templateAttributes attributes the template is rendered with.
+     * @return the entity tag of the rendered page.
+     */
+    String getEntityTag(Map<String, String> templateAttributes) {
+        MessageDigest digest = newDigest();
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> attribute : new TreeMap<>(templateAttributes).entrySet()) {
+            digest.update((byte) 0);
+            digest.update(attribute.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(attribute.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+        return toHex(digest.digest(), 12);
+    }
+
+    /**
+     * Returns whether the template has no attributes to be replaced.
+     *
+     * @return whether the template has no attributes to be replaced.
+     */
+    boolean isStatic() {
+        return !html.contains("${");
+    }
+
+    /**
+     * Returns the bytes of the template compressed with the <code>encoding</code>, or null if it is not static or it
+     * does not get smaller with it.
+     *
+     * @param encoding <em>gzip</em> or <em>deflate</em>.
+     * @return the compressed bytes of the template, or null.
+     */
+    byte[] getCompressedBytes(String encoding) {
+        return compressedBytes.get(encoding);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform implements SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash, int length) {
+        StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        return hex.toString();
+    }
+
+    private static String read(String templateName) throws IOException {
+        InputStream in = Template.class.getResourceAsStream("/" + TEMPLATES_PATH + templateName + TEMPLATES_EXTENSION);
+        if (in == null) throw new FileNotFoundException("There is no template named '" + templateName + "'.");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+            StringBuilder sb = new StringBuilder();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                sb.append(line);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static List<String> listTemplateNames() throws IOException {
+        List<String> templateNames = new ArrayList<>();
+        URL templatesURL = Template.class.getResource("/" + TEMPLATES_PATH);
+        if (templatesURL == null) return templateNames;
+        if (templatesURL.getProtocol().equals("jar")) {
+            Enumeration<JarEntry> entries = ((JarURLConnection) templatesURL.openConnection()).getJarFile().entries();
+            while (entries.hasMoreElements()) {
+                String entryName = entries.nextElement().getName();
+                if (entryName.startsWith(TEMPLATES_PATH) && entryName.endsWith(TEMPLATES_EXTENSION) && entryName.indexOf('/', TEMPLATES_PATH.length()) < 0)
+                    templateNames.add(entryName.substring(TEMPLATES_PATH.length(), entryName.length() - TEMPLATES_EXTENSION.length()));
+            }
+        } else {
+            File[] files;
+            try {
+                files = new File(templatesURL.toURI()).listFiles((directory, fileName) -> fileName.endsWith(TEMPLATES_EXTENSION));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                throw new IOException("Cannot list the templates in " + templatesURL + ": " + e.getMessage(), e);
+            }
+            if (files != null) for (File file : files) templateNames.add(file.getName().substring(0, file.getName().length() - TEMPLATES_EXTENSION.length()));
+        }
+        return templateNames;
+    }
+}
@@ -0,0 +1,96 @@
+package lsunol.schibsted.controllers;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import lsunol.schibsted.application.ApplicationConstants;
+import lsunol.schibsted.controllers.annotations.HttpProduces;
+import lsunol.schibsted.database.MissedChangesException;
+import lsunol.schibsted.database.RepositoryManager;
+import lsunol.schibsted.database.UserChange;
+import lsunol.schibsted.database.UserChangeFeed;
+
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * REST API to follow the modifications of the users, published by the {@link UserChangeFeed} of the application.
+ * <em>GET /api/user-changes?since=N</em> returns the changes after the one numbered N, waiting up to <em>timeout</em>
+ * seconds for new ones if there are none (long polling). Without <em>since</em>, it returns no changes but the last
+ * sequence number, to start following the changes from there. If the requested changes are no longer available (or
+ * the application has been restarted), 410 (Gone) is returned: the client has to reload all the users and start again.
+ */
+public class UserChangesController extends ApplicationController {
+
+    private final static String REQUEST_PATH = "/api/user-changes";
+    private final static int DEFAULT_LIMIT = 100;
+    private final static int MAX_LIMIT = 1000;
+    private final static int DEFAULT_TIMEOUT_SECONDS = 25;
+
+    private final UserChangeFeed changeFeed = RepositoryManager.getUserChangeFeed();
+    private final Semaphore longPolls = new Semaphore(ApplicationConstants.MAX_CONCURRENT_LONG_POLLS);
+
+    @Override
+    public String getRequestMapping() {
+        return REQUEST_PATH;
+    }
+
+    /**
+     * Returns an {@link AdminAuthenticator} for the controller, which accepts a "admin" login only.
+     * @return an {@link AdminAuthenticator} for the controller, which accepts a "admin" login only.
+     */
+    public Authenticator getAuthenticator() {
+        return new AdminAuthenticator(RepositoryManager.getUserRepository());
+    }
+
+    /**
+     * Handler for the GET REST API method.
+     * Returns the last sequence number and the changes after the <em>since</em> parameter (up to <em>limit</em>).
+     * While waiting for new changes, the request does not hold a server thread.
+     * @param httpExchange
+     * @return a future completed with the response once there are changes, or the <em>timeout</em> expires.
+     * @throws ResponseToClientException if the parameters are not valid numbers.
+     */
+    @HttpProduces(name = "application/json")
+    public final CompletableFuture<Object> doGet(HttpExchange httpExchange) throws ResponseToClientException {
+        Map<String, String> queryParameters = getQueryParameters(httpExchange);
+        long since = getNumberParameter(queryParameters, "since", changeFeed.getLastSequence(), Long.MAX_VALUE);
+        int limit = (int) getNumberParameter(queryParameters, "limit", DEFAULT_LIMIT, MAX_LIMIT);
+        long timeoutSeconds = !queryParameters.containsKey("since") ? 0 :
+                getNumberParameter(queryParameters, "timeout", DEFAULT_TIMEOUT_SECONDS, ApplicationConstants.MAX_LONG_POLL_SECONDS);
+        CompletableFuture<List<UserChange>> changes;
+        if (timeoutSeconds > 0 && longPolls.tryAcquire()) {
+            changes = changeFeed.changesAfter(since, limit, timeoutSeconds * 1000);
+            changes.whenComplete((changesAfter, failure) -> longPolls.release());
+        } else changes = changeFeed.changesAfter(since, limit, 0);
+        return changes.handle((changesAfter, failure) -> {
+            if (failure instanceof MissedChangesException)
+                throw new CompletionException(new ResponseToClientException(HttpURLConnection.HTTP_GONE, failure.getMessage()));
+            else if (failure != null) throw new CompletionException(failure);
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("lastSequence", changesAfter.isEmpty() ? since : changesAfter.get(changesAfter.size() - 1).getSequence());
+            response.put("changes", changesAfter);
+            return response;
+        });
+    }
+
+    /**
+     * Returns the value of the query parameter <code>name</code>, capped to <code>maxValue</code>.
+     * @throws ResponseToClientException if the parameter is not a number greater or equal than zero.
+     */
+    private static long getNumberParameter(Map<String, String> queryParameters, String name, long defaultValue, long maxValue) throws ResponseToClientException {
+        String value = queryParameters.get(name);
+        if (value == null) return defaultValue;
+        try {
+            long number = Long.parseLong(value);
+            if (number < 0) throw new NumberFormatException();
+            return Math.min(number, maxValue);
+        } catch (NumberFormatException e) {
+            throw new ResponseToClientException(HttpURLConnection.HTTP_BAD_REQUEST, "The '" + name + "' parameter must be a number greater or equal than zero.");
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package lsunol.schibsted.controllers;
 
 import com.sun.net.httpserver.Authenticator;
-import com.sun.net.httpserver.BasicAuthenticator;
 import com.sun.net.httpserver.HttpExchange;
 import lsunol.schibsted.controllers.annotations.HttpProduces;
 import lsunol.schibsted.database.DuplicateKeyException;
 import lsunol.schibsted.database.RepositoryManager;
 import lsunol.schibsted.database.UserRepository;
+import lsunol.schibsted.model.RoleRegistry;
 import lsunol.schibsted.model.User;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -14,15 +14,34 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class UserRestApiController extends ApplicationController {
     private final static Logger log = Logger.getLogger(UserRestApiController.class.getName());
 
     private final static String REQUEST_PATH = "/api/users";
+    private final static String USERNAME_PARAMETER = "username";
+    private final static int DEFAULT_SEARCH_LIMIT = 10;
+    private final static int MAX_SEARCH_LIMIT = 100;
+
+    /**
+     * Identical GET requests (same path, query and response type) sent at the same time share the same repository
+     * lookup and serialized response, as dashboards polling the users do.
+     */
+    private final static RequestCoalescer<SerializedResponse> readCoalescer = new RequestCoalescer<>();
+
+    static {
+        // Requests arriving after a modification must see it
+        RepositoryManager.getUserChangeFeed().subscribe(change -> readCoalescer.invalidate());
+    }
 
     UserRepository userRepository = RepositoryManager.getUserRepository();
 
@@ -32,45 +51,84 @@ public class UserRestApiController extends ApplicationController {
     }
 
     /**
-     * Returns a {@link BasicAuthenticator} for the controller, which accepts a "admin" login only.
-     * @return a {@link BasicAuthenticator} for the controller, which accepts a "admin" login only.
+     * Returns the path templates of the controller: the users collection and each one of the users.
+     * @return the path templates of the controller: the users collection and each one of the users.
+     */
+    @Override
+    public List<String> getPathTemplates() {
+        return Arrays.asList(REQUEST_PATH, REQUEST_PATH + "/{" + USERNAME_PARAMETER + "}");
+    }
+
+    /**
+     * Batch modifications (PATCH) are only handled by the users collection, not by a single user.
+     */
+    @Override
+    public boolean handlesHttpMethod(String pathTemplate, String httpMethod) {
+        return !"PATCH".equals(httpMethod) || REQUEST_PATH.equals(pathTemplate);
+    }
+
+    /**
+     * Returns an {@link AdminAuthenticator} for the controller, which accepts a "admin" login only.
+     * @return an {@link AdminAuthenticator} for the controller, which accepts a "admin" login only.
      */
     public Authenticator getAuthenticator() {
-        return new BasicAuthenticator("schibstedRealm") {
-            @Override
-            public boolean checkCredentials(String user, String password) {
-                return user.equals("admin") && userRepository.checkUserCredentials(user, password);
-            }
-        };
+        return new AdminAuthenticator(userRepository);
     }
 
     /**
      * Handler for the GET REST API method.
      * Returns the queried user (if present) to the http client in an acceptable response format.
+     * When no user is queried, all the users are returned, or only those matching the <em>prefix</em> or <em>role</em>
+     * query parameters if present.
      * @param httpExchange
+     * @param pathParameters path parameters of the request, with the <em>username</em> if present.
      */
     @HttpProduces(name = "application/json;text/plain")
-    public final void doGet(HttpExchange httpExchange) throws ResponseToClientException, IOException {
-        String targetUserName = getUserPathParam(httpExchange);
+    public final void doGet(HttpExchange httpExchange, PathParameters pathParameters) throws ResponseToClientException, IOException {
+        String responseType = getObjectResponseType(httpExchange);
+        URI requestURI = httpExchange.getRequestURI();
+        String requestKey = responseType + " " + requestURI.getRawPath() + (requestURI.getRawQuery() == null ? "" : "?" + requestURI.getRawQuery());
+        SerializedResponse response = readCoalescer.execute(requestKey, () -> getSerializedResponse(httpExchange, pathParameters));
+        sendSerializedResponse(httpExchange, response.statusCode, responseType, response.body);
+    }
+
+    /**
+     * Returns the response of a GET request: the queried user, the users matching the query parameters, or a
+     * "not found" message.
+     * @param httpExchange
+     * @param pathParameters path parameters of the request, with the <em>username</em> if present.
+     * @return the serialized response of the GET request.
+     */
+    private SerializedResponse getSerializedResponse(HttpExchange httpExchange, PathParameters pathParameters) throws ResponseToClientException, IOException {
+        String targetUserName = getUserPathParam(pathParameters);
+        if (targetUserName.isEmpty()) return new SerializedResponse(HttpURLConnection.HTTP_OK, serialize(getUsersList(getQueryParameters(httpExchange))));
         User targetUser = userRepository.getUserByUsername(targetUserName);
-        if (targetUserName == null || targetUserName.isEmpty()) sendResponse(httpExchange, HttpURLConnection.HTTP_OK, userRepository.getAllUsers());
-        else if (targetUser != null) sendResponse(httpExchange, HttpURLConnection.HTTP_OK, targetUser);
-        else sendResponse(httpExchange, HttpURLConnection.HTTP_NOT_FOUND, new HashMap<String, String>() {{ put("op", "get"); put("msg", "User '" + targetUserName + "' not found."); }});
+        if (targetUser != null) return new SerializedResponse(HttpURLConnection.HTTP_OK, serialize(targetUser));
+        else return new SerializedResponse(HttpURLConnection.HTTP_NOT_FOUND, serialize(new HashMap<String, String>() {{ put("op", "get"); put("msg", "User '" + targetUserName + "' not found."); }}));
+    }
+
+    /**
+     * Returns the single flight of GET requests: identical concurrent requests share the same response.
+     * @return the single flight of GET requests.
+     */
+    public static RequestCoalescer<?> getReadCoalescer() {
+        return readCoalescer;
     }
 
     /**
      * Handler for the POST REST API method.
      * Creates a new user in the system.
      * @param httpExchange
+     * @param pathParameters path parameters of the request, with the <em>username</em> if present.
      */
     @HttpProduces(name = "application/json;text/plain")
-    public final void doPost(HttpExchange httpExchange) throws ResponseToClientException, IOException {
-        String targetUserPathParam = getUserPathParam(httpExchange);
+    public final void doPost(HttpExchange httpExchange, PathParameters pathParameters) throws ResponseToClientException, IOException {
+        String targetUserPathParam = getUserPathParam(pathParameters);
         try {
             JSONObject newUserValues = getRequestBodyAsJson(httpExchange);
             try {
                 String newPassword = newUserValues.getString("password");
-                List<String> newUserRoles = getListFromJsonArray(newUserValues.getJSONArray("roles"));
+                List<String> newUserRoles = getRolesFromJsonArray(newUserValues.getJSONArray("roles"));
                 userRepository.addNewUser(targetUserPathParam, newPassword, newUserRoles);
                 sendResponse(httpExchange, HttpURLConnection.HTTP_CREATED, "User '" + targetUserPathParam + "' created successfully.");
             } catch (DuplicateKeyException e) {
@@ -90,18 +148,19 @@ public class UserRestApiController extends ApplicationController {
      * Handler for the PUT REST API method.
      * Modifies a user in the system.
      * @param httpExchange
+     * @param pathParameters path parameters of the request, with the <em>username</em> if present.
      * @throws ResponseToClientException if the JSON provided lacks any mandatory parameter
      * @throws IOException when an error occurs while reading from the input stream or writing to the output stream.
      */
     @HttpProduces(name = "application/json")
-    public final void doPut(HttpExchange httpExchange) throws ResponseToClientException, IOException {
+    public final void doPut(HttpExchange httpExchange, PathParameters pathParameters) throws ResponseToClientException, IOException {
         try {
             JSONObject newUserValues = getRequestBodyAsJson(httpExchange);
-            String targetUserPathParam = getUserPathParam(httpExchange);
-            User targetUser = userRepository.getUserByUsername(targetUserPathParam);
+            String targetUserPathParam = getUserPathParam(pathParameters);
+            String newPassword = newUserValues.keySet().contains("password") ? newUserValues.optString("password") : null;
+            List<String> newRoles = newUserValues.keySet().contains("roles") ? getRolesFromJsonArray(newUserValues.optJSONArray("roles")) : null;
+            User targetUser = userRepository.updateUser(targetUserPathParam, newPassword, newRoles);
             if (targetUser == null) throw new ResponseToClientException(HttpURLConnection.HTTP_NOT_FOUND, "User '" + targetUserPathParam + "' not found.");
-            if (newUserValues.keySet().contains("password")) targetUser.setPassword(newUserValues.optString("password"));
-            if (newUserValues.keySet().contains("roles")) targetUser.setRoles(getListFromJsonArray(newUserValues.optJSONArray("roles")));
             sendResponse(httpExchange, HttpURLConnection.HTTP_NO_CONTENT);
         } catch (JSONException e) {
             String errorMessage = "The request body provided is not a valid JSON.";
@@ -110,16 +169,101 @@ public class UserRestApiController extends ApplicationController {
         }
     }
 
+    /**
+     * Handler for the PATCH REST API method.
+     * Applies a batch of modifications to the users of the system, sent to <em>/api/users</em> as a JSON like:
+     * <pre>
+     * {"add": [{"username": "user4", "password": "pass4", "roles": ["PAGE_1"]}],
+     *  "grant": {"usernames": ["user1", "user2"], "roles": ["PAGE_3"]},
+     *  "revoke": {"usernames": ["user3"], "roles": ["PAGE_1"]},
+     *  "delete": ["user5", "user6"]}
+     * </pre>
+     * Every part is optional. The whole JSON is validated before applying anything, and then the parts are applied in
+     * the order above, each one of them as a single batch of the repository. The batch as a whole is not atomic, so the
+     * response reports the outcome of each part sent: <em>applied</em> with the <em>count</em> of users it changed,
+     * <em>failed</em> with the <em>error</em>, or <em>skipped</em> when an earlier part failed. A failed part may have
+     * changed some of its users in repositories without transactions. The response is a 200 (OK) if every part was
+     * applied, and a 500 (Internal server error) otherwise. If the first part fails, nothing was applied and the error
+     * is reported as for a single modification: in particular, a 409 (Conflict) if any of the users to be added
+     * already exists.
+     * @param httpExchange
+     * @throws ResponseToClientException if the JSON is not valid, or the first part could not be applied.
+     * @throws IOException when an error occurs while reading from the input stream or writing to the output stream.
+     */
+    @HttpProduces(name = "application/json")
+    public final void doPatch(HttpExchange httpExchange) throws ResponseToClientException, IOException {
+        try {
+            JSONObject batch = getRequestBodyAsJson(httpExchange);
+            List<User> newUsers = new LinkedList<>();
+            List<String> grantUsernames, grantRoles, revokeUsernames, revokeRoles, deleteUsernames;
+            try {
+                JSONArray addedUsers = batch.optJSONArray("add");
+                if (addedUsers != null) {
+                    for (int i = 0; i < addedUsers.length(); i++) {
+                        JSONObject newUser = addedUsers.getJSONObject(i);
+                        newUsers.add(new User(newUser.getString("username"), newUser.getString("password"), getRolesFromJsonArray(newUser.getJSONArray("roles"))));
+                    }
+                }
+                JSONObject grant = batch.optJSONObject("grant");
+                grantUsernames = grant == null ? null : getListFromJsonArray(grant.getJSONArray("usernames"));
+                grantRoles = grant == null ? null : getRolesFromJsonArray(grant.getJSONArray("roles"));
+                JSONObject revoke = batch.optJSONObject("revoke");
+                revokeUsernames = revoke == null ? null : getListFromJsonArray(revoke.getJSONArray("usernames"));
+                revokeRoles = revoke == null ? null : getRolesFromJsonArray(revoke.getJSONArray("roles"));
+                deleteUsernames = batch.has("delete") ? getListFromJsonArray(batch.getJSONArray("delete")) : null;
+            } catch (JSONException e) {
+                // This exception may occur if any of the parameters is missing
+                throw new ResponseToClientException(422, "Mandatory parameter missing in the JSON: " + e.getMessage());
+            }
+            Map<String, BatchPart> parts = new LinkedHashMap<>();
+            if (!newUsers.isEmpty()) parts.put("add", () -> userRepository.addNewUsers(newUsers).size());
+            if (grantUsernames != null) parts.put("grant", () -> userRepository.addRolesToUsers(grantUsernames, grantRoles).size());
+            if (revokeUsernames != null) parts.put("revoke", () -> userRepository.removeRolesFromUsers(revokeUsernames, revokeRoles).size());
+            if (deleteUsernames != null) parts.put("delete", () -> userRepository.deleteUsers(deleteUsernames));
+            Map<String, Map<String, Object>> results = new LinkedHashMap<>();
+            boolean failed = false;
+            for (Map.Entry<String, BatchPart> part : parts.entrySet()) {
+                Map<String, Object> result = new LinkedHashMap<>();
+                results.put(part.getKey(), result);
+                if (failed) {
+                    result.put("status", "skipped");
+                    continue;
+                }
+                try {
+                    int count = part.getValue().apply();
+                    result.put("status", "applied");
+                    result.put("count", count);
+                } catch (DuplicateKeyException | RuntimeException e) {
+                    if (results.size() == 1) {
+                        // Nothing was applied, so it fails as a single modification would
+                        if (e instanceof DuplicateKeyException) throw new ResponseToClientException(HttpURLConnection.HTTP_CONFLICT, e.getMessage());
+                        throw (RuntimeException) e;
+                    }
+                    log.log(Level.WARNING, "Could not apply the '" + part.getKey() + "' part of a batch: " + e.getMessage(), e);
+                    result.put("status", "failed");
+                    result.put("error", e.getMessage());
+                    failed = true;
+                }
+            }
+            sendResponse(httpExchange, failed ? HttpURLConnection.HTTP_INTERNAL_ERROR : HttpURLConnection.HTTP_OK, results);
+        } catch (JSONException e) {
+            String errorMessage = "The request body provided is not a valid JSON.";
+            log.info(errorMessage);
+            throw new ResponseToClientException(HttpURLConnection.HTTP_BAD_REQUEST, errorMessage);
+        }
+    }
+
     /**
      * Handler for the DELETE REST API method.
      * Deletes a user from the system.
      *
      * @param
      * httpExchange
+     * @param pathParameters path parameters of the request, with the <em>username</em> if present.
      */
     @HttpProduces(name = "application/json;text/plain")
-    public final void doDelete(HttpExchange httpExchange) throws ResponseToClientException, IOException {
-        String userPathParam = getUserPathParam(httpExchange);
+    public final void doDelete(HttpExchange httpExchange, PathParameters pathParameters) throws ResponseToClientException, IOException {
+        String userPathParam = getUserPathParam(pathParameters);
         if (userRepository.getUserByUsername(userPathParam) == null) throw new ResponseToClientException(HttpURLConnection.HTTP_NOT_FOUND, "Could not find user '" + userPathParam + "'.");
         else {
             userRepository.deleteUser(userPathParam);
@@ -128,13 +272,67 @@ public class UserRestApiController extends ApplicationController {
     }
 
     /**
-     * Returns the path param representing the queried user in a GET operation.
-     * @param httpExchange
-     * @return
+     * Returns the list of users matching the filters in the <code>queryParameters</code>: the first <em>limit</em>
+     * users whose name starts with the <em>prefix</em> parameter if present, the users having the <em>role</em>
+     * parameter if present, or all of them otherwise.
+     * @param queryParameters query string parameters of the request.
+     * @return the list of users matching the filters in the <code>queryParameters</code>.
+     * @throws ResponseToClientException if the <em>limit</em> parameter is not a positive number.
+     */
+    private List<User> getUsersList(Map<String, String> queryParameters) throws ResponseToClientException {
+        String prefix = queryParameters.get("prefix");
+        String role = queryParameters.get("role");
+        if (prefix != null) return userRepository.searchUsersByPrefix(prefix, getSearchLimit(queryParameters.get("limit")));
+        else if (role != null) return userRepository.getUsersByRole(role);
+        else return userRepository.getAllUsers();
+    }
+
+    /**
+     * Returns the maximum number of users a prefix search returns, from the <em>limit</em> query parameter.
+     * @param limitParam value of the <em>limit</em> query parameter, or null if absent.
+     * @return the maximum number of users a prefix search returns, capped to {@link #MAX_SEARCH_LIMIT}.
+     * @throws ResponseToClientException if <code>limitParam</code> is not a positive number.
+     */
+    private static int getSearchLimit(String limitParam) throws ResponseToClientException {
+        if (limitParam == null) return DEFAULT_SEARCH_LIMIT;
+        try {
+            int limit = Integer.parseInt(limitParam);
+            if (limit <= 0) throw new NumberFormatException();
+            return Math.min(limit, MAX_SEARCH_LIMIT);
+        } catch (NumberFormatException e) {
+            throw new ResponseToClientException(HttpURLConnection.HTTP_BAD_REQUEST, "The 'limit' parameter must be a positive number.");
+        }
+    }
+
+    /**
+     * Returns the URL-decoded path param representing the queried user, or an empty string when the request is sent
+     * to the users collection.
+     * @param pathParameters path parameters of the request.
+     * @return the path param representing the queried user, or an empty string if there is none.
      */
-    private static String getUserPathParam(HttpExchange httpExchange) {
-        String queriedUsername = httpExchange.getRequestURI().getPath().replaceFirst(REQUEST_PATH + "/", "");
-        return queriedUsername.contains("/") ? queriedUsername.substring(0, queriedUsername.indexOf("/")) : queriedUsername;
+    private static String getUserPathParam(PathParameters pathParameters) {
+        String username = pathParameters.get(USERNAME_PARAMETER);
+        return username == null ? "" : username;
+    }
+
+    /**
+     * Status and serialized body of a response, shared by identical requests.
+     */
+    /**
+     * Part of a batch modification, returning the number of users it changed.
+     */
+    private interface BatchPart {
+        int apply() throws DuplicateKeyException;
+    }
+
+    private static final class SerializedResponse {
+        private final int statusCode;
+        private final byte[] body;
+
+        private SerializedResponse(int statusCode, byte[] body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
     }
 
     /**
@@ -147,4 +345,20 @@ public class UserRestApiController extends ApplicationController {
         for (int i = 0; i < jsonArray.length(); i++) newRoles.add(jsonArray.getString(i));
         return newRoles;
     }
+
+    /**
+     * Returns the role names in a {@link JSONArray}, registering the new ones in the {@link RoleRegistry}.
+     * @param jsonArray JSON array of role names.
+     * @return the list of role names in the <code>jsonArray</code>.
+     * @throws ResponseToClientException if a new role cannot be registered, as there are too many roles already.
+     */
+    private static List<String> getRolesFromJsonArray(JSONArray jsonArray) throws ResponseToClientException {
+        List<String> roles = getListFromJsonArray(jsonArray);
+        try {
+            for (String role : roles) RoleRegistry.getRoleId(role);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseToClientException(422, e.getMessage());
+        }
+        return roles;
+    }
 }
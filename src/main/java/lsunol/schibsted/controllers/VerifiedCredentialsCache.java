@@ -0,0 +1,106 @@
+package lsunol.schibsted.controllers;
+
+import lsunol.schibsted.model.User;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.function.Function;
+
+/**
+ * Short lived cache of <em>Authorization</em> header values whose credentials have already been verified, so a cached
+ * header costs a lookup instead of hashing its password. Entries are found by the hash code of the header, which
+ * {@link String} already keeps, and the header is then compared in constant time with the one verified. Only
+ * successful logins are cached, and the least recently used entry is dropped to make room for more.
+ * Each entry remembers the version and password digest of the {@link User} it was verified against, so an entry stops
+ * being valid as soon as its TTL expires or the user is deleted or modified.
+ */
+class VerifiedCredentialsCache {
+
+    private final long ttlMillis;
+    private final Function<String, User> userLookup;
+
+    private final ConcurrentLruCache<Integer, VerifiedCredentials> verifiedByHeaderHash;
+
+    /**
+     * @param ttlMillis  time in milliseconds a verified header is trusted without checking the password again.
+     * @param maxEntries maximum number of headers kept in the cache.
+     * @param userLookup function returning the current {@link User} for a username, or null if it does not exist.
+     */
+    VerifiedCredentialsCache(long ttlMillis, int maxEntries, Function<String, User> userLookup) {
+        this.ttlMillis = ttlMillis;
+        this.userLookup = userLookup;
+        this.verifiedByHeaderHash = new ConcurrentLruCache<>(maxEntries, null);
+    }
+
+    /**
+     * Returns the name of the user the <code>authorizationHeader</code> was verified for, or null if the header is not
+     * cached or its entry is no longer valid.
+     *
+     * @param authorizationHeader raw value of the <em>Authorization</em> request header.
+     * @return the name of the user the <code>authorizationHeader</code> was verified for, or null if the header is not
+     * cached or its entry is no longer valid.
+     */
+    String getVerifiedUsername(String authorizationHeader) {
+        if (authorizationHeader == null) return null;
+        int headerHash = authorizationHeader.hashCode();
+        VerifiedCredentials verified = verifiedByHeaderHash.get(headerHash);
+        // A different header with the same hash code is just not cached
+        if (verified == null || !MessageDigest.isEqual(verified.authorizationHeader, authorizationHeader.getBytes(StandardCharsets.UTF_8))) return null;
+        if (verified.expiresOnMillis < System.currentTimeMillis() || !verified.isVerifiedFor(userLookup.apply(verified.username))) {
+            verifiedByHeaderHash.remove(headerHash, verified);
+            return null;
+        }
+        return verified.username;
+    }
+
+    /**
+     * Captures the <code>user</code> snapshot. It must be taken right before its credentials are checked, so a password
+     * changed concurrently invalidates the entry instead of being hidden by it.
+     *
+     * @param user {@link User} whose credentials are about to be checked.
+     * @return the captured credentials, or null if <code>user</code> is null.
+     */
+    VerifiedCredentials snapshot(User user) {
+        return user == null ? null : new VerifiedCredentials(user, System.currentTimeMillis() + ttlMillis);
+    }
+
+    /**
+     * Stores the <code>authorizationHeader</code> as verified for the <code>verified</code> credentials. Must only be
+     * called once the credentials of the header have been checked successfully.
+     *
+     * @param authorizationHeader raw value of the <em>Authorization</em> request header.
+     * @param verified            credentials captured by {@link #snapshot(User)} and already checked successfully.
+     */
+    void put(String authorizationHeader, VerifiedCredentials verified) {
+        if (authorizationHeader == null || verified == null) return;
+        verified.authorizationHeader = authorizationHeader.getBytes(StandardCharsets.UTF_8);
+        verifiedByHeaderHash.put(authorizationHeader.hashCode(), verified);
+    }
+
+    static class VerifiedCredentials {
+        private final String username;
+        private final long version;
+        private final byte[] passwordDigest;
+        private final long expiresOnMillis;
+        private byte[] authorizationHeader;
+
+        private VerifiedCredentials(User user, long expiresOnMillis) {
+            this.username = user.getUsername();
+            this.version = user.getVersion();
+            this.passwordDigest = user.getPasswordDigest();
+            this.expiresOnMillis = expiresOnMillis;
+        }
+
+        /**
+         * Returns whether <code>currentUser</code> is still the user these credentials were verified against. Its
+         * snapshot is compared by value, as repositories may load a new one for every lookup.
+         *
+         * @param currentUser current {@link User} of the repository, or null if it was deleted.
+         * @return whether <code>currentUser</code> is still the user these credentials were verified against.
+         */
+        private boolean isVerifiedFor(User currentUser) {
+            return currentUser != null && currentUser.getUsername().equals(username) && currentUser.getVersion() == version
+                    && MessageDigest.isEqual(currentUser.getPasswordDigest(), passwordDigest);
+        }
+    }
+}
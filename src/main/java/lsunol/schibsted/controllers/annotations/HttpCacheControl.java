@@ -0,0 +1,16 @@
+package lsunol.schibsted.controllers.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <em>Cache-Control</em> header of the responses of a controller method, like <em>private, no-cache</em>.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+
+public @interface HttpCacheControl {
+    String value();
+}
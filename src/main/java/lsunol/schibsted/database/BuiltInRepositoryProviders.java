@@ -0,0 +1,118 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.application.ApplicationConstants;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Providers of the repositories shipped with the application, registered in
+ * <em>META-INF/services</em> like any other provider.
+ */
+public final class BuiltInRepositoryProviders {
+
+    private BuiltInRepositoryProviders() { }
+
+    /**
+     * Users kept in memory, lost on shut down.
+     */
+    public static class InMemoryUsers implements UserRepositoryProvider {
+        @Override
+        public String getName() {
+            return "memory";
+        }
+
+        @Override
+        public UserRepository createUserRepository() {
+            return new InMemoryUserRepository();
+        }
+    }
+
+    /**
+     * Users stored in the directory set in the {@link ApplicationConstants#USERS_DIRECTORY_PROPERTY} system property.
+     */
+    public static class FileUsers implements UserRepositoryProvider {
+        @Override
+        public String getName() {
+            return "file";
+        }
+
+        @Override
+        public UserRepository createUserRepository() {
+            String usersDirectory = System.getProperty(ApplicationConstants.USERS_DIRECTORY_PROPERTY);
+            if (usersDirectory == null) throw new IllegalStateException("Users stored in files need a directory in the '" + ApplicationConstants.USERS_DIRECTORY_PROPERTY + "' system property.");
+            try {
+                return new FileUserRepository(Paths.get(usersDirectory));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open the users stored in '" + usersDirectory + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Users stored in the database set in the {@link ApplicationConstants#USERS_JDBC_URL_PROPERTY} system property.
+     */
+    public static class JdbcUsers implements UserRepositoryProvider {
+        @Override
+        public String getName() {
+            return "jdbc";
+        }
+
+        @Override
+        public UserRepository createUserRepository() {
+            String usersJdbcUrl = System.getProperty(ApplicationConstants.USERS_JDBC_URL_PROPERTY);
+            if (usersJdbcUrl == null) throw new IllegalStateException("Users stored in a database need its url in the '" + ApplicationConstants.USERS_JDBC_URL_PROPERTY + "' system property.");
+            try {
+                return new JdbcUserRepository(usersJdbcUrl);
+            } catch (SQLException e) {
+                throw new RepositoryException("Could not open the users database '" + usersJdbcUrl + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Sessions kept in the memory of this node.
+     */
+    public static class InMemorySessions implements SessionRepositoryProvider {
+        @Override
+        public String getName() {
+            return "memory";
+        }
+
+        @Override
+        public SessionRepository createSessionRepository() {
+            return new InMemorySessionRepository();
+        }
+    }
+
+    /**
+     * Sessions partitioned over the nodes joined through the {@link ApplicationConstants#SESSIONS_NODES_PROPERTY}
+     * system property, sharing them on the {@link ApplicationConstants#SESSIONS_PORT_PROPERTY} port with the nodes knowing
+     * the {@link ApplicationConstants#CLUSTER_SECRET_PROPERTY} secret.
+     */
+    public static class PartitionedSessions implements SessionRepositoryProvider {
+        @Override
+        public String getName() {
+            return "partitioned";
+        }
+
+        @Override
+        public SessionRepository createSessionRepository() {
+            Integer sessionsPort = Integer.getInteger(ApplicationConstants.SESSIONS_PORT_PROPERTY);
+            if (sessionsPort == null) throw new IllegalStateException("Partitioned sessions need a port in the '" + ApplicationConstants.SESSIONS_PORT_PROPERTY + "' system property.");
+            List<String> seedAddresses = new ArrayList<>();
+            for (String node : System.getProperty(ApplicationConstants.SESSIONS_NODES_PROPERTY, "").split(",")) {
+                if (!node.trim().isEmpty()) seedAddresses.add(node.trim());
+            }
+            try {
+                return new PartitionedSessionRepository(System.getProperty(ApplicationConstants.SESSIONS_HOST_PROPERTY, "localhost"), sessionsPort, ClusterAuthentication.getClusterSecret(), seedAddresses);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not share sessions on port " + sessionsPort + ".", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.application.ApplicationConstants;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Mutual authentication of two nodes of a cluster sharing a secret, done on every connection before any request is
+ * handled. Each side sends a random challenge and answers the challenge of the other with an HMAC-SHA256 of both
+ * challenges, its side of the connection and the protocol spoken, keyed with the secret. The secret never travels, and an
+ * answer is useless on any other connection, for the other side or for another protocol.
+ */
+final class ClusterAuthentication {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_BYTES = 16;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final String protocol;
+
+    /**
+     * @param secret   secret shared by the nodes of the cluster.
+     * @param protocol name of the protocol spoken on the connections, so answers cannot be reused by another protocol.
+     * @throws IllegalArgumentException if <code>secret</code> is null or empty.
+     */
+    ClusterAuthentication(String secret, String protocol) {
+        if (secret == null || secret.isEmpty()) throw new IllegalArgumentException("The nodes of a cluster need a shared secret.");
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        this.protocol = protocol;
+    }
+
+    /**
+     * Returns the secret shared by the nodes of the cluster, from the {@link ApplicationConstants#CLUSTER_SECRET_PROPERTY}
+     * system property.
+     *
+     * @return the secret shared by the nodes of the cluster.
+     * @throws IllegalStateException if the system property is not set.
+     */
+    static String getClusterSecret() {
+        String secret = System.getProperty(ApplicationConstants.CLUSTER_SECRET_PROPERTY);
+        if (secret == null || secret.isEmpty()) throw new IllegalStateException("The nodes of a cluster need a shared secret in the '" + ApplicationConstants.CLUSTER_SECRET_PROPERTY + "' system property.");
+        return secret;
+    }
+
+    /**
+     * Authenticates the node at the other end of the <code>socket</code>, and proves this node knows the secret too.
+     *
+     * @param socket connection to the other node, with nothing sent or received yet.
+     * @param in     stream reading from the <code>socket</code>.
+     * @param out    stream writing to the <code>socket</code>.
+     * @param client true on the side which opened the connection.
+     * @throws IOException if the other node does not know the secret, or the connection fails.
+     */
+    void authenticate(Socket socket, DataInputStream in, DataOutputStream out, boolean client) throws IOException {
+        // A peer which does not answer must not keep the connection waiting forever
+        int previousTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        out.write(challenge);
+        out.flush();
+        byte[] peerChallenge = new byte[CHALLENGE_BYTES];
+        in.readFully(peerChallenge);
+        byte[] clientChallenge = client ? challenge : peerChallenge;
+        byte[] serverChallenge = client ? peerChallenge : challenge;
+        out.write(answer(client, clientChallenge, serverChallenge));
+        out.flush();
+        byte[] peerAnswer = new byte[getAnswerLength()];
+        in.readFully(peerAnswer);
+        if (!MessageDigest.isEqual(peerAnswer, answer(!client, clientChallenge, serverChallenge)))
+            throw new IOException("The node at " + socket.getRemoteSocketAddress() + " does not know the cluster secret.");
+        socket.setSoTimeout(previousTimeout);
+    }
+
+    private byte[] answer(boolean client, byte[] clientChallenge, byte[] serverChallenge) {
+        Mac mac = newMac();
+        mac.update(protocol.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) (client ? 'C' : 'S'));
+        mac.update(clientChallenge);
+        mac.update(serverChallenge);
+        return mac.doFinal();
+    }
+
+    private int getAnswerLength() {
+        return newMac().getMacLength();
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // Every Java platform implements HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
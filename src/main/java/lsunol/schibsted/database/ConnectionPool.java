@@ -0,0 +1,152 @@
+package lsunol.schibsted.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixed size pool of JDBC connections. Each pooled connection keeps its prepared statements, so every statement is
+ * prepared once per connection and then reused.
+ */
+class ConnectionPool implements AutoCloseable {
+
+    private final static Logger log = Logger.getLogger(ConnectionPool.class.getName());
+
+    private final String jdbcUrl;
+    private final long borrowTimeoutMillis;
+    private final BlockingQueue<PooledConnection> idleConnections;
+    private volatile boolean closed;
+
+    /**
+     * Opens <code>size</code> connections to <code>jdbcUrl</code>.
+     *
+     * @param jdbcUrl             JDBC url of the database.
+     * @param size                number of connections of the pool.
+     * @param borrowTimeoutMillis maximum time to wait for an idle connection.
+     * @throws SQLException if any connection could not be opened.
+     */
+    ConnectionPool(String jdbcUrl, int size, long borrowTimeoutMillis) throws SQLException {
+        this.jdbcUrl = jdbcUrl;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleConnections = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) idleConnections.add(new PooledConnection(DriverManager.getConnection(jdbcUrl)));
+    }
+
+    /**
+     * Returns an idle connection, which must be given back by closing it. A connection which broke and could not be
+     * replaced when it was given back is opened again here.
+     *
+     * @return an idle connection.
+     * @throws SQLException if no connection became idle in time, or it could not be opened again.
+     */
+    PooledConnection borrow() throws SQLException {
+        try {
+            PooledConnection connection = idleConnections.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (connection == null) throw new SQLException("No idle connection to '" + jdbcUrl + "' after " + borrowTimeoutMillis + " ms.");
+            if (connection.connection == null) {
+                try {
+                    connection.connection = DriverManager.getConnection(jdbcUrl);
+                } catch (SQLException e) {
+                    // The slot is kept, so the next borrow tries again
+                    idleConnections.add(connection);
+                    throw e;
+                }
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for an idle connection.", e);
+        }
+    }
+
+    /**
+     * Closes the idle connections. Connections closed afterwards are closed instead of being given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idleConnections.poll()) != null) connection.closePhysically();
+    }
+
+    /**
+     * Connection borrowed from the pool. Closing it rolls back any pending transaction, discards the rows left in the
+     * batches of its statements and gives it back to the pool.
+     * Its JDBC connection is <code>null</code> while it is idle after a failed reconnection.
+     */
+    class PooledConnection implements AutoCloseable {
+
+        private Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns the prepared statement for <code>sql</code>, preparing it the first time.
+         *
+         * @param sql SQL statement.
+         * @return the prepared statement for <code>sql</code>.
+         * @throws SQLException if the statement could not be prepared.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                closePhysically();
+                return;
+            }
+            try {
+                // A borrower which failed before executing its batches must not leave their rows to the next one
+                for (PreparedStatement statement : statements.values()) statement.clearBatch();
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                // The connection is no longer usable, so it is replaced by a new one
+                log.log(Level.WARNING, "Replacing broken connection to '" + jdbcUrl + "': " + e.getMessage(), e);
+                closePhysically();
+                try {
+                    connection = DriverManager.getConnection(jdbcUrl);
+                } catch (SQLException reconnectionError) {
+                    // Given back without a connection, so the next borrow reconnects
+                    log.log(Level.SEVERE, "Could not reconnect to '" + jdbcUrl + "': " + reconnectionError.getMessage(), reconnectionError);
+                    connection = null;
+                }
+            }
+            idleConnections.add(this);
+        }
+
+        private void closePhysically() {
+            statements.clear();
+            if (connection == null) return;
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.log(Level.WARNING, "Could not close connection to '" + jdbcUrl + "': " + e.getMessage(), e);
+            }
+        }
+    }
+}
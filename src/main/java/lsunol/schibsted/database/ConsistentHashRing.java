@@ -0,0 +1,97 @@
+package lsunol.schibsted.database;
+
+import java.util.*;
+
+/**
+ * Immutable consistent hash ring of nodes. Every node is placed on the ring at several points (virtual nodes), so keys
+ * are evenly spread and adding or removing a node only moves the keys of its neighbours.
+ */
+final class ConsistentHashRing {
+
+    private final int virtualNodes;
+    private final SortedSet<String> nodes;
+    private final TreeMap<Long, String> nodesByPoint;
+
+    /**
+     * @param virtualNodes number of points every node takes on the ring.
+     */
+    ConsistentHashRing(int virtualNodes) {
+        this(virtualNodes, Collections.emptySet());
+    }
+
+    private ConsistentHashRing(int virtualNodes, Collection<String> nodes) {
+        this.virtualNodes = virtualNodes;
+        this.nodes = Collections.unmodifiableSortedSet(new TreeSet<>(nodes));
+        this.nodesByPoint = new TreeMap<>();
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) nodesByPoint.put(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Returns a ring with the nodes of this one plus <code>node</code>.
+     * @param node node to add.
+     * @return a ring with the nodes of this one plus <code>node</code>.
+     */
+    ConsistentHashRing withNode(String node) {
+        if (nodes.contains(node)) return this;
+        Set<String> newNodes = new TreeSet<>(nodes);
+        newNodes.add(node);
+        return new ConsistentHashRing(virtualNodes, newNodes);
+    }
+
+    /**
+     * Returns a ring with the nodes of this one but <code>node</code>.
+     * @param node node to remove.
+     * @return a ring with the nodes of this one but <code>node</code>.
+     */
+    ConsistentHashRing withoutNode(String node) {
+        if (!nodes.contains(node)) return this;
+        Set<String> newNodes = new TreeSet<>(nodes);
+        newNodes.remove(node);
+        return new ConsistentHashRing(virtualNodes, newNodes);
+    }
+
+    SortedSet<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the <code>count</code> distinct nodes which own the <code>key</code>, walking the ring clockwise from the
+     * point of the key: the first one is the primary owner, and the rest hold its replicas.
+     *
+     * @param key   key whose owners are returned.
+     * @param count number of owners.
+     * @return the distinct nodes owning the <code>key</code>, fewer than <code>count</code> if the ring has not as many.
+     */
+    List<String> getOwners(String key, int count) {
+        int ownersCount = Math.min(count, nodes.size());
+        List<String> owners = new ArrayList<>(ownersCount);
+        if (ownersCount == 0) return owners;
+        long point = hash(key);
+        Iterator<String> clockwise = nodesByPoint.tailMap(point).values().iterator();
+        Iterator<String> wrapped = nodesByPoint.values().iterator();
+        while (owners.size() < ownersCount) {
+            String node = clockwise.hasNext() ? clockwise.next() : wrapped.next();
+            if (!owners.contains(node)) owners.add(node);
+        }
+        return owners;
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the characters of the <code>key</code>, with a final mix so close keys (such as the
+     * virtual nodes of a node) land far apart on the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
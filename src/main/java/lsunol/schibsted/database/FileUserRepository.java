@@ -0,0 +1,644 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This is an implementation of the {@link UserRepository} interface which persists users to disk.
+ * Users are served from an {@link InMemoryUserRepository}, and every modification is appended to a write-ahead log and
+ * fsync'ed before it is applied in memory, so readers only see durable modifications and a failed write is not visible
+ * at all. Every {@link #snapshotEveryRecords} modifications, the whole set of users is dumped to a
+ * binary snapshot and the log is truncated. On start up, the snapshot is loaded and the log is replayed on top of it.
+ * With group commit enabled, the modifications waiting to be persisted are written and fsync'ed together by a single
+ * writer thread, so concurrent writers share one fsync instead of paying one each. Batch modifications append all their
+ * records before waiting, so they usually share a single fsync too.
+ */
+public class FileUserRepository implements UserRepository, ManagedRepository {
+
+    private final static Logger log = Logger.getLogger(FileUserRepository.class.getName());
+
+    static final String SNAPSHOT_FILE_NAME = "users.snapshot";
+    static final String LOG_FILE_NAME = "users.wal";
+    static final int DEFAULT_SNAPSHOT_EVERY_RECORDS = 10000;
+
+    private static final int SNAPSHOT_MAGIC = 0x55534e50;
+    private static final int LOG_MAGIC = 0x5557414c;
+    private static final int LOG_HEADER_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final byte PUT_RECORD = 1;
+    private static final byte DELETE_RECORD = 2;
+
+    private final InMemoryUserRepository users = new InMemoryUserRepository();
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final boolean groupCommit;
+    private final int snapshotEveryRecords;
+
+    // Serializes modifications, so each one is built on top of the previous ones and appended to the log in that order
+    private final Object writeLock = new Object();
+    /**
+     * Last record appended for each user whose modifications are not applied in memory yet, because they are not
+     * durable yet. Modifications are built on top of them.
+     */
+    private final Map<String, PendingRecord> unappliedRecords = new ConcurrentHashMap<>();
+    private final BlockingQueue<PendingRecord> pendingRecords = new LinkedBlockingQueue<>();
+    private final Thread logWriter;
+    private FileChannel logChannel;
+    private long generation;
+    private int recordsSinceSnapshot;
+    private PendingRecord lastRecord;
+    private boolean closed;
+    /**
+     * Failure which left the log with torn bytes at its end, so nothing else can be appended behind them until the next
+     * snapshot starts the log again.
+     */
+    private volatile IOException logFailure;
+
+    /**
+     * Opens (or creates) the repository stored in <code>directory</code>, with group commit enabled.
+     *
+     * @param directory directory where the snapshot and the log files are stored.
+     * @throws IOException if the stored users could not be recovered.
+     */
+    public FileUserRepository(Path directory) throws IOException {
+        this(directory, true, DEFAULT_SNAPSHOT_EVERY_RECORDS);
+    }
+
+    /**
+     * Opens (or creates) the repository stored in <code>directory</code>.
+     *
+     * @param directory            directory where the snapshot and the log files are stored.
+     * @param groupCommit          true to fsync concurrent modifications in batches, false to fsync each one of them.
+     * @param snapshotEveryRecords number of modifications after which a new snapshot is taken.
+     * @throws IOException if the stored users could not be recovered.
+     */
+    public FileUserRepository(Path directory, boolean groupCommit, int snapshotEveryRecords) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotFile = directory.resolve(SNAPSHOT_FILE_NAME);
+        this.logFile = directory.resolve(LOG_FILE_NAME);
+        this.groupCommit = groupCommit;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+        recover();
+        if (groupCommit) {
+            logWriter = new Thread(this::writeLogBatches, "user-log-writer");
+            logWriter.setDaemon(true);
+            logWriter.start();
+        } else logWriter = null;
+    }
+
+    @Override
+    public User getUserByUsername(String username) {
+        return users.getUserByUsername(username);
+    }
+
+    @Override
+    public boolean checkUserCredentials(String username, String password) {
+        return users.checkUserCredentials(username, password);
+    }
+
+    @Override
+    public User addNewUser(String username, String password, List<String> roles) throws DuplicateKeyException {
+        User user;
+        PendingRecord record;
+        synchronized (writeLock) {
+            checkOpen();
+            if (getLatestUser(username) != null) throw new DuplicateKeyException("There is already another user with the same name: '" + username + "'.");
+            user = new User(username, password, roles);
+            record = appendPutRecord(user);
+        }
+        awaitDurable(record);
+        return user;
+    }
+
+    @Override
+    public void addRoleToUser(String username, List<String> newRoles) {
+        PendingRecord record = null;
+        synchronized (writeLock) {
+            checkOpen();
+            User user = getLatestUser(username);
+            if (user != null) {
+                List<String> roles = new ArrayList<>(user.getRoles());
+                roles.addAll(newRoles);
+                record = appendPutRecord(user.withRoles(roles));
+            }
+        }
+        awaitDurable(record);
+    }
+
+    @Override
+    public User updateUser(String username, String newPassword, List<String> newRoles) {
+        User updatedUser;
+        PendingRecord record = null;
+        synchronized (writeLock) {
+            checkOpen();
+            updatedUser = getLatestUser(username);
+            if (updatedUser != null) {
+                if (newPassword != null) updatedUser = updatedUser.withPassword(newPassword);
+                if (newRoles != null) updatedUser = updatedUser.withRoles(newRoles);
+                record = appendPutRecord(updatedUser);
+            }
+        }
+        awaitDurable(record);
+        return updatedUser;
+    }
+
+    @Override
+    public User replaceUser(User user) {
+        User updatedUser;
+        PendingRecord record = null;
+        synchronized (writeLock) {
+            checkOpen();
+            updatedUser = getLatestUser(user.getUsername());
+            if (updatedUser != null) {
+                updatedUser = updatedUser.withPasswordAndRolesOf(user);
+                record = appendPutRecord(updatedUser);
+            }
+        }
+        awaitDurable(record);
+        return updatedUser;
+    }
+
+    @Override
+    public void deleteUser(String username) {
+        PendingRecord record = null;
+        synchronized (writeLock) {
+            checkOpen();
+            if (getLatestUser(username) != null) record = appendDeleteRecord(username);
+        }
+        awaitDurable(record);
+    }
+
+    @Override
+    public List<User> addNewUsers(List<User> newUsers) throws DuplicateKeyException {
+        List<PendingRecord> records = new ArrayList<>(newUsers.size());
+        synchronized (writeLock) {
+            checkOpen();
+            // A single validation pass before writing anything, so a batch with a taken name adds nothing
+            Set<String> usernames = new HashSet<>(newUsers.size() * 2);
+            List<String> duplicatedUsernames = new ArrayList<>();
+            for (User user : newUsers) {
+                if (!usernames.add(user.getUsername()) || getLatestUser(user.getUsername()) != null) duplicatedUsernames.add(user.getUsername());
+            }
+            if (!duplicatedUsernames.isEmpty())
+                throw new DuplicateKeyException("There are already other users with the same names: " + duplicatedUsernames + ".");
+            for (User user : newUsers) records.add(appendPutRecord(user));
+        }
+        records.forEach(FileUserRepository::awaitDurable);
+        return new ArrayList<>(newUsers);
+    }
+
+    @Override
+    public List<User> addRolesToUsers(Collection<String> usernames, List<String> roles) {
+        List<User> modifiedUsers = new ArrayList<>(usernames.size());
+        List<PendingRecord> records = new ArrayList<>(usernames.size());
+        synchronized (writeLock) {
+            checkOpen();
+            for (String username : usernames) {
+                User user = getLatestUser(username);
+                if (user == null) continue;
+                List<String> newRoles = new ArrayList<>(user.getRoles());
+                for (String role : roles) if (!newRoles.contains(role)) newRoles.add(role);
+                if (newRoles.size() != user.getRoles().size()) {
+                    user = user.withRoles(newRoles);
+                    records.add(appendPutRecord(user));
+                }
+                modifiedUsers.add(user);
+            }
+        }
+        records.forEach(FileUserRepository::awaitDurable);
+        return modifiedUsers;
+    }
+
+    @Override
+    public List<User> removeRolesFromUsers(Collection<String> usernames, List<String> roles) {
+        List<User> modifiedUsers = new ArrayList<>(usernames.size());
+        List<PendingRecord> records = new ArrayList<>(usernames.size());
+        synchronized (writeLock) {
+            checkOpen();
+            for (String username : usernames) {
+                User user = getLatestUser(username);
+                if (user == null) continue;
+                List<String> newRoles = new ArrayList<>(user.getRoles());
+                if (newRoles.removeAll(roles)) {
+                    user = user.withRoles(newRoles);
+                    records.add(appendPutRecord(user));
+                }
+                modifiedUsers.add(user);
+            }
+        }
+        records.forEach(FileUserRepository::awaitDurable);
+        return modifiedUsers;
+    }
+
+    @Override
+    public int deleteUsers(Collection<String> usernames) {
+        List<PendingRecord> records = new ArrayList<>(usernames.size());
+        synchronized (writeLock) {
+            checkOpen();
+            for (String username : usernames) {
+                if (getLatestUser(username) != null) records.add(appendDeleteRecord(username));
+            }
+        }
+        records.forEach(FileUserRepository::awaitDurable);
+        return records.size();
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        return users.getAllUsers();
+    }
+
+    @Override
+    public List<User> getUsersByRole(String role) {
+        return users.getUsersByRole(role);
+    }
+
+    @Override
+    public List<User> searchUsersByPrefix(String prefix, int limit) {
+        return users.searchUsersByPrefix(prefix, limit);
+    }
+
+    /**
+     * Dumps all the users to a new snapshot and truncates the log. Modifications wait until the snapshot is taken,
+     * while reads are not affected.
+     *
+     * @throws IOException if the snapshot could not be written.
+     */
+    public void takeSnapshot() throws IOException {
+        synchronized (writeLock) {
+            // The log must be idle before truncating it: then memory holds every durable modification, and no failed one
+            if (lastRecord != null) lastRecord.durable.handle((result, error) -> null).join();
+            long newGeneration = generation + 1;
+            Path temporaryFile = snapshotFile.resolveSibling(SNAPSHOT_FILE_NAME + ".tmp");
+            FileChannel snapshotChannel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(snapshotChannel)))) {
+                List<User> allUsers = users.getAllUsers();
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(newGeneration);
+                out.writeInt(allUsers.size());
+                for (User user : allUsers) UserSerialization.writeUser(out, user);
+                out.flush();
+                snapshotChannel.force(true);
+            }
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // The rename must be durable before the log is truncated, or a crash may leave the old snapshot and no log
+            forceDirectory(snapshotFile.getParent());
+            // From now on, the log of the previous generation is ignored on recovery even if it is not truncated
+            startLog(newGeneration);
+            generation = newGeneration;
+            recordsSinceSnapshot = 0;
+        }
+    }
+
+    /**
+     * Takes a last snapshot, so the next start up does not need to replay the log, and releases the files.
+     *
+     * @throws IOException if the snapshot could not be written or the files could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) return;
+            try {
+                takeSnapshot();
+            } finally {
+                closed = true;
+                if (logWriter != null) pendingRecords.add(PendingRecord.CLOSE);
+                logChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the latest version of the user, including the modifications which are not durable yet. It must be called
+     * holding the {@link #writeLock}.
+     *
+     * @param username name of the user.
+     * @return the latest version of the user, or null if it does not exist.
+     */
+    private User getLatestUser(String username) {
+        PendingRecord record = unappliedRecords.get(username);
+        return record != null ? record.user : users.getUserByUsername(username);
+    }
+
+    private PendingRecord appendPutRecord(User user) {
+        return appendRecord(new PendingRecord(user.getUsername(), user, frame(putRecord(user))));
+    }
+
+    private PendingRecord appendDeleteRecord(String username) {
+        return appendRecord(new PendingRecord(username, null, frame(deleteRecord(username))));
+    }
+
+    /**
+     * Appends the <code>record</code> to the log. With group commit, the record is handed to the writer thread;
+     * otherwise it is written and fsync'ed right away. Its modification is applied in memory once it is durable.
+     * It must be called holding the {@link #writeLock}.
+     *
+     * @param record modification to be persisted.
+     * @return the <code>record</code>, which completes when the modification is durable and applied.
+     */
+    private PendingRecord appendRecord(PendingRecord record) {
+        unappliedRecords.put(record.username, record);
+        if (groupCommit) pendingRecords.add(record);
+        else {
+            try {
+                writeAndForce(record.bytes);
+                applyDurable(record);
+            } catch (IOException e) {
+                discardFailed(record, e);
+            }
+        }
+        lastRecord = record;
+        if (++recordsSinceSnapshot >= snapshotEveryRecords) {
+            try {
+                takeSnapshot();
+            } catch (IOException e) {
+                // The log still holds every modification, so it is retried after the next modifications
+                log.log(Level.SEVERE, "Could not take a snapshot of the users: " + e.getMessage(), e);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Waits until the <code>record</code> is durable on disk.
+     *
+     * @param record record to wait for, or null to return right away.
+     * @throws UncheckedIOException if the record could not be written.
+     */
+    private static void awaitDurable(PendingRecord record) {
+        if (record == null) return;
+        try {
+            record.durable.join();
+        } catch (CompletionException e) {
+            throw new UncheckedIOException("Could not persist the user modification: " + e.getCause().getMessage(), (IOException) e.getCause());
+        }
+    }
+
+    /**
+     * Body of the group commit writer thread: writes and fsyncs all the pending records at once.
+     */
+    private void writeLogBatches() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pendingRecords.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pendingRecords.drainTo(batch);
+            boolean closing = batch.remove(PendingRecord.CLOSE);
+            if (!batch.isEmpty()) {
+                try {
+                    int batchSize = 0;
+                    for (PendingRecord record : batch) batchSize += record.bytes.length;
+                    ByteBuffer buffer = ByteBuffer.allocate(batchSize);
+                    for (PendingRecord record : batch) buffer.put(record.bytes);
+                    writeAndForce(buffer.array());
+                    batch.forEach(this::applyDurable);
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "Could not write the user modifications to the log: " + e.getMessage(), e);
+                    batch.forEach(record -> discardFailed(record, e));
+                }
+                batch.clear();
+            }
+            if (closing) return;
+        }
+    }
+
+    /**
+     * Applies in memory the modification of a durable <code>record</code>, and completes it.
+     */
+    private void applyDurable(PendingRecord record) {
+        if (record.user != null) users.restoreUser(record.user);
+        else users.deleteUser(record.username);
+        unappliedRecords.remove(record.username, record);
+        record.durable.complete(null);
+    }
+
+    /**
+     * Forgets the modification of a <code>record</code> which could not be written, and fails it.
+     */
+    private void discardFailed(PendingRecord record, IOException failure) {
+        unappliedRecords.remove(record.username, record);
+        record.durable.completeExceptionally(failure);
+    }
+
+    /**
+     * Appends the <code>bytes</code> to the log and fsyncs it. If that fails, the log is truncated back to where it
+     * ended, so later records are not appended behind a torn one (and lost on recovery with it). If it cannot be
+     * truncated either, no more records are written until the next snapshot: every write fails meanwhile.
+     *
+     * @param bytes framed records.
+     * @throws IOException if the records could not be written, or the log is unusable after a previous failure.
+     */
+    private void writeAndForce(byte[] bytes) throws IOException {
+        if (logFailure != null) throw new IOException("The log cannot be written after a failed write: " + logFailure.getMessage(), logFailure);
+        long logEnd = logChannel.position();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) logChannel.write(buffer);
+            logChannel.force(false);
+        } catch (IOException e) {
+            try {
+                logChannel.truncate(logEnd);
+                logChannel.position(logEnd);
+            } catch (IOException truncateFailure) {
+                log.log(Level.SEVERE, "Could not discard a torn record at the end of '" + logFile + "': no more modifications will be written.", truncateFailure);
+                e.addSuppressed(truncateFailure);
+                logFailure = e;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fsyncs the <code>directory</code>, so the files renamed in it keep their new names after a crash. Platforms which
+     * cannot open directories (such as Windows) already make renames durable.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        FileChannel directoryChannel;
+        try {
+            directoryChannel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Could not open the directory '" + directory + "' to fsync it: " + e.getMessage(), e);
+            return;
+        }
+        try (FileChannel channel = directoryChannel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Truncates the log and writes the header of the given <code>logGeneration</code>.
+     */
+    private void startLog(long logGeneration) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        header.putInt(LOG_MAGIC).putLong(logGeneration).flip();
+        logChannel.truncate(0);
+        logChannel.position(0);
+        while (header.hasRemaining()) logChannel.write(header);
+        logChannel.force(true);
+        // Any torn bytes are gone with the truncated log
+        logFailure = null;
+    }
+
+    /**
+     * Loads the snapshot and replays the log of the same generation on top of it. A torn or corrupted record at the end
+     * of the log (i.e. a crash while writing it) is discarded, together with anything written after it.
+     */
+    private void recover() throws IOException {
+        long snapshotGeneration = 0;
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("'" + snapshotFile + "' is not a users snapshot.");
+                snapshotGeneration = in.readLong();
+                int usersCount = in.readInt();
+                for (int i = 0; i < usersCount; i++) users.restoreUser(UserSerialization.readUser(in));
+            }
+        }
+        generation = snapshotGeneration;
+        logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLogSize = replayLog(snapshotGeneration);
+        if (validLogSize < 0) startLog(snapshotGeneration);
+        else {
+            if (validLogSize < logChannel.size()) {
+                log.warning("Discarding " + (logChannel.size() - validLogSize) + " bytes of incomplete records at the end of '" + logFile + "'.");
+                logChannel.truncate(validLogSize);
+            }
+            logChannel.position(validLogSize);
+        }
+        log.info("Recovered " + users.getAllUsers().size() + " users from '" + snapshotFile.getParent() + "'.");
+    }
+
+    /**
+     * Replays the records of the log, if it belongs to the <code>snapshotGeneration</code>.
+     *
+     * @return the size of the valid part of the log, or -1 if the log has to be started again.
+     */
+    private long replayLog(long snapshotGeneration) throws IOException {
+        if (logChannel.size() < LOG_HEADER_SIZE) return -1;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            if (in.readInt() != LOG_MAGIC) throw new IOException("'" + logFile + "' is not a users log.");
+            long logGeneration = in.readLong();
+            // An older log was already dumped into the snapshot, but the crash happened before truncating it
+            if (logGeneration < snapshotGeneration) return -1;
+            if (logGeneration > snapshotGeneration) throw new IOException("'" + logFile + "' is newer than the snapshot '" + snapshotFile + "'.");
+            long validLogSize = LOG_HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int payloadSize;
+                int checksum;
+                byte[] payload;
+                try {
+                    payloadSize = in.readInt();
+                    checksum = in.readInt();
+                    if (payloadSize <= 0 || payloadSize > MAX_RECORD_SIZE) break;
+                    payload = new byte[payloadSize];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != checksum) break;
+                applyRecord(payload);
+                validLogSize += RECORD_HEADER_SIZE + payloadSize;
+                recordsSinceSnapshot++;
+            }
+            return validLogSize;
+        }
+    }
+
+    private void applyRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte recordType = in.readByte();
+        if (recordType == PUT_RECORD) users.restoreUser(UserSerialization.readUser(in));
+        else if (recordType == DELETE_RECORD) users.deleteUser(in.readUTF());
+        else throw new IOException("Unknown record type " + recordType + " in '" + logFile + "'.");
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("The user repository has already been closed.");
+    }
+
+    private static byte[] putRecord(User user) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(PUT_RECORD);
+            UserSerialization.writeUser(out, user);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Never thrown when writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] deleteRecord(String username) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DELETE_RECORD);
+            out.writeUTF(username);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Never thrown when writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Prepends the size and the CRC32 checksum of the <code>payload</code>.
+     */
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return record.array();
+    }
+
+    /**
+     * Framed log record waiting to be written, the modification it applies in memory once it is durable, and the future
+     * completed then.
+     */
+    private static class PendingRecord {
+        private static final PendingRecord CLOSE = new PendingRecord(null, null, new byte[0]);
+
+        private final String username;
+        // New version of the user, or null if it is deleted
+        private final User user;
+        private final byte[] bytes;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private PendingRecord(String username, User user, byte[] bytes) {
+            this.username = username;
+            this.user = user;
+            this.bytes = bytes;
+        }
+    }
+}
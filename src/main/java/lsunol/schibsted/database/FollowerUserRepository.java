@@ -0,0 +1,285 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link UserRepository} of a follower node: a read-only replica of the users of the leader node, kept up to date by
+ * following its {@link ReplicationLeader}. Reads are served locally from an {@link InMemoryUserRepository}, so they may
+ * lag slightly behind the leader. Modifications are rejected with a {@link ReadOnlyRepositoryException}.
+ * Every change applied to the replica is published to the local {@link UserChangeFeed}, so the caches of the follower
+ * node are invalidated too. If the connection to the leader is lost, the follower keeps serving the last replicated
+ * users and reconnects in the background.
+ */
+public class FollowerUserRepository implements UserRepository, ManagedRepository {
+
+    private final static Logger log = Logger.getLogger(FollowerUserRepository.class.getName());
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 100;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 2000;
+
+    private final InMemoryUserRepository replica = new InMemoryUserRepository();
+    private final InetSocketAddress leaderAddress;
+    private final ClusterAuthentication authentication;
+    private final UserChangeFeed changeFeed;
+    private final Thread follower;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    // Only used by the follower thread
+    private long followedFeedId;
+    // Guarded by this, so callers can wait for a change to be applied
+    private long lastAppliedSequence;
+
+    /**
+     * Starts following the leader listening on <code>leaderHost</code>:<code>leaderPort</code>.
+     *
+     * @param leaderHost host of the leader node.
+     * @param leaderPort replication port of the leader node.
+     * @param secret     secret shared by the nodes, which the leader must prove to know before it is followed.
+     * @param changeFeed feed where the changes applied to the replica are published.
+     */
+    public FollowerUserRepository(String leaderHost, int leaderPort, String secret, UserChangeFeed changeFeed) {
+        this.leaderAddress = new InetSocketAddress(leaderHost, leaderPort);
+        this.authentication = new ClusterAuthentication(secret, ReplicationLeader.AUTHENTICATION_PROTOCOL);
+        this.changeFeed = changeFeed;
+        this.follower = new Thread(this::followLeader, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    @Override
+    public User getUserByUsername(String username) {
+        return replica.getUserByUsername(username);
+    }
+
+    @Override
+    public boolean checkUserCredentials(String username, String password) {
+        return replica.checkUserCredentials(username, password);
+    }
+
+    @Override
+    public User addNewUser(String username, String password, List<String> roles) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<User> addNewUsers(List<User> newUsers) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addRoleToUser(String username, List<String> newRoles) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<User> addRolesToUsers(Collection<String> usernames, List<String> roles) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<User> removeRolesFromUsers(Collection<String> usernames, List<String> roles) {
+        throw readOnly();
+    }
+
+    @Override
+    public User updateUser(String username, String newPassword, List<String> newRoles) {
+        throw readOnly();
+    }
+
+    @Override
+    public User replaceUser(User user) {
+        throw readOnly();
+    }
+
+    @Override
+    public void deleteUser(String username) {
+        throw readOnly();
+    }
+
+    @Override
+    public int deleteUsers(Collection<String> usernames) {
+        throw readOnly();
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        return replica.getAllUsers();
+    }
+
+    @Override
+    public List<User> getUsersByRole(String role) {
+        return replica.getUsersByRole(role);
+    }
+
+    @Override
+    public List<User> searchUsersByPrefix(String prefix, int limit) {
+        return replica.searchUsersByPrefix(prefix, limit);
+    }
+
+    /**
+     * Returns the sequence number, in the change feed of the leader, of the last change applied to the replica.
+     * @return the sequence number of the last change applied to the replica.
+     */
+    public synchronized long getLastAppliedSequence() {
+        return lastAppliedSequence;
+    }
+
+    /**
+     * Waits until the change numbered <code>sequence</code> in the change feed of the leader has been applied.
+     *
+     * @param sequence      sequence number of the change.
+     * @param timeoutMillis maximum time to wait.
+     * @return true if the change has been applied, false if the timeout expired before.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized boolean awaitSequence(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (lastAppliedSequence < sequence) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Stops following the leader.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        follower.interrupt();
+        Socket currentSocket = socket;
+        if (currentSocket != null) currentSocket.close();
+    }
+
+    /**
+     * Body of the follower thread: follows the leader, reconnecting with an increasing delay when the connection fails.
+     */
+    private void followLeader() {
+        long reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+        while (!closed) {
+            try {
+                if (follow()) reconnectDelayMillis = MIN_RECONNECT_DELAY_MILLIS;
+            } catch (IOException e) {
+                if (closed) return;
+                log.log(Level.WARNING, "Lost the connection to the leader at " + leaderAddress + ": " + e.getMessage());
+            }
+            try {
+                Thread.sleep(reconnectDelayMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reconnectDelayMillis = Math.min(reconnectDelayMillis * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Connects to the leader and applies the messages it sends until the connection is lost.
+     *
+     * @return true if the connection was established (so the next attempt may be done right away).
+     */
+    private boolean follow() throws IOException {
+        boolean connected = false;
+        try (Socket leader = new Socket()) {
+            socket = leader;
+            if (closed) return false;
+            leader.connect(leaderAddress, CONNECT_TIMEOUT_MILLIS);
+            leader.setTcpNoDelay(true);
+            // A leader sends at least a heartbeat every interval, so a longer silence means it is gone
+            leader.setSoTimeout((int) (3 * ReplicationLeader.HEARTBEAT_INTERVAL_MILLIS));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(leader.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(leader.getInputStream()));
+            authentication.authenticate(leader, in, out, true);
+            out.writeInt(ReplicationLeader.PROTOCOL_MAGIC);
+            out.writeLong(followedFeedId);
+            out.writeLong(getLastAppliedSequence());
+            out.flush();
+            if (in.readInt() != ReplicationLeader.PROTOCOL_MAGIC) throw new IOException("The leader does not speak the replication protocol.");
+            long feedId = in.readLong();
+            connected = true;
+            log.info("Following the leader at " + leaderAddress + ".");
+            while (!closed) {
+                byte messageType = in.readByte();
+                if (messageType == ReplicationLeader.SNAPSHOT_MESSAGE) applySnapshot(in, feedId);
+                else if (messageType == ReplicationLeader.CHANGE_MESSAGE) applyChange(in);
+                else if (messageType == ReplicationLeader.HEARTBEAT_MESSAGE) in.readLong();
+                else throw new IOException("Unknown replication message: " + messageType + ".");
+            }
+        } finally {
+            socket = null;
+        }
+        return connected;
+    }
+
+    /**
+     * Replaces the replica with the snapshot sent by the leader, publishing only the users which changed.
+     */
+    private void applySnapshot(DataInputStream in, long feedId) throws IOException {
+        long sequence = in.readLong();
+        int usersCount = in.readInt();
+        Map<String, User> previousUsers = new HashMap<>();
+        for (User user : replica.getAllUsers()) previousUsers.put(user.getUsername(), user);
+        for (int i = 0; i < usersCount; i++) {
+            User user = UserSerialization.readUser(in);
+            User previousUser = previousUsers.remove(user.getUsername());
+            if (previousUser != null && isSameUser(previousUser, user)) continue;
+            replica.restoreUser(user);
+            changeFeed.publish(previousUser == null ? UserChange.Type.CREATED : UserChange.Type.UPDATED, user.getUsername(), user);
+        }
+        for (String deletedUsername : previousUsers.keySet()) {
+            replica.deleteUser(deletedUsername);
+            changeFeed.publish(UserChange.Type.DELETED, deletedUsername, null);
+        }
+        followedFeedId = feedId;
+        applied(sequence);
+        log.info("Replicated a snapshot of " + usersCount + " users at change " + sequence + ".");
+    }
+
+    private void applyChange(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        UserChange.Type type = UserChange.Type.values()[in.readUnsignedByte()];
+        String username = in.readUTF();
+        if (type == UserChange.Type.DELETED) {
+            replica.deleteUser(username);
+            changeFeed.publish(type, username, null);
+        } else {
+            User user = UserSerialization.readUser(in);
+            // Concurrent modifications of a user may reach the feed of the leader out of order
+            User currentUser = replica.getUserByUsername(username);
+            if (currentUser == null || currentUser.getVersion() < user.getVersion()) {
+                replica.restoreUser(user);
+                changeFeed.publish(type, username, user);
+            }
+        }
+        applied(sequence);
+    }
+
+    private synchronized void applied(long sequence) {
+        lastAppliedSequence = sequence;
+        notifyAll();
+    }
+
+    private static boolean isSameUser(User user, User otherUser) {
+        return user.getVersion() == otherUser.getVersion() && user.getRoles().equals(otherUser.getRoles())
+                && Arrays.equals(user.getPasswordDigest(), otherUser.getPasswordDigest());
+    }
+
+    private ReadOnlyRepositoryException readOnly() {
+        return new ReadOnlyRepositoryException("This node is a follower: users must be modified on the leader node, replicating at " + leaderAddress + ".");
+    }
+}
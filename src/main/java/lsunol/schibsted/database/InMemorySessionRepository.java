@@ -15,12 +15,14 @@ import java.util.logging.Logger;
  * This {@link SessionRepository} implements the {@link Runnable} interface because it holds a clean up task that
  * its executed every 6 x {@link ApplicationConstants#SESSION_EXPIRY_MINUTES} minutes.
  */
-public class InMemorySessionRepository implements SessionRepository, Runnable {
+public class InMemorySessionRepository implements SessionRepository, Runnable, ManagedRepository {
 
     private final static Logger log = Logger.getLogger(InMemorySessionRepository.class.getName());
 
     private Map<String, Session> sessionsBySessionKey = new ConcurrentHashMap<>();
 
+    private Thread cleanupTask;
+
     @Override
     public Session generateSessionForUser(User user) {
         Session newSession = new Session(user);
@@ -37,10 +39,36 @@ public class InMemorySessionRepository implements SessionRepository, Runnable {
     @Override
     public String getUsernameFromSession(String sessionKey) {
         Session queriedSession = sessionsBySessionKey.get(sessionKey);
-        if (queriedSession != null && !queriedSession.hasExpired()) return queriedSession.getUser().getUsername();
+        if (queriedSession != null && !queriedSession.hasExpired()) return queriedSession.getUsername();
         else return null;
     }
 
+    @Override
+    public void refreshSession(Session session) {
+        session.refreshSessionExpiryDate();
+    }
+
+    /**
+     * Starts the clean up task in a background thread.
+     */
+    @Override
+    public synchronized void start() {
+        if (cleanupTask != null) return;
+        cleanupTask = new Thread(this, "session-cleanup");
+        cleanupTask.setDaemon(true);
+        cleanupTask.start();
+    }
+
+    /**
+     * Stops the clean up task.
+     */
+    @Override
+    public synchronized void close() {
+        if (cleanupTask == null) return;
+        cleanupTask.interrupt();
+        cleanupTask = null;
+    }
+
     /**
      * As sessions may grow infinitely, this batch method cleans up expired sessions.
      */
@@ -53,7 +81,7 @@ public class InMemorySessionRepository implements SessionRepository, Runnable {
                 log.info("Expired sessions have been purged from session repository.");
             }
         } catch (InterruptedException e) {
-            log.log(Level.SEVERE, "An error occurred in the sessions cleanup task: " + e.getMessage(), e);
+            log.log(Level.FINE, "The sessions cleanup task has been stopped.");
         }
     }
 }
@@ -3,18 +3,33 @@ package lsunol.schibsted.database;
 import lsunol.schibsted.model.User;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 /**
  * This is an implementation of the {@link UserRepository} interface.
  * This implementation stores users in memory, so as soon as the application is shut down all users are lost.
+ * Users are immutable snapshots: modifications build a new {@link User} and swap it atomically into the map, so
+ * readers never block nor see half-applied updates.
+ * An inverted index of usernames by role is kept up to date within the same atomic operation that swaps the user, so
+ * role queries take time proportional to the number of matching users. A sorted set of usernames is maintained the
+ * same way to serve prefix searches. Batch modifications swap all their users first and then update each role of the
+ * index once for the whole batch.
  */
 public class InMemoryUserRepository implements UserRepository {
 
-    private Map<String, User> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> usernamesByRole = new ConcurrentHashMap<>();
+    private final NavigableSet<String> sortedUsernames = new ConcurrentSkipListSet<>();
 
     @Override
     public User getUserByUsername(String username) {
@@ -23,20 +38,37 @@ public class InMemoryUserRepository implements UserRepository {
 
     @Override
     public boolean checkUserCredentials(String username, String password) {
-        return (users.containsKey(username) && users.get(username).isPasswordCorrect(password));
+        User user = users.get(username);
+        return (user != null && user.isPasswordCorrect(password));
     }
 
     @Override
     public void addRoleToUser(String username, List<String> newRoles) {
-        User user = users.get(username);
-        if (user != null) {
-            user.getRoles().addAll(newRoles);
-        }
+        users.computeIfPresent(username, (name, user) -> {
+            List<String> roles = new ArrayList<>(user.getRoles());
+            roles.addAll(newRoles);
+            return reindex(user, user.withRoles(roles));
+        });
+    }
+
+    @Override
+    public User updateUser(String username, String newPassword, List<String> newRoles) {
+        return users.computeIfPresent(username, (name, user) -> {
+            User updatedUser = user;
+            if (newPassword != null) updatedUser = updatedUser.withPassword(newPassword);
+            if (newRoles != null) updatedUser = updatedUser.withRoles(newRoles);
+            return reindex(user, updatedUser);
+        });
+    }
+
+    @Override
+    public User replaceUser(User user) {
+        return users.computeIfPresent(user.getUsername(), (name, currentUser) -> reindex(currentUser, currentUser.withPasswordAndRolesOf(user)));
     }
 
     @Override
     public void deleteUser(String username) {
-        users.remove(username);
+        users.computeIfPresent(username, (name, user) -> reindex(user, null));
     }
 
     @Override
@@ -44,12 +76,217 @@ public class InMemoryUserRepository implements UserRepository {
         return new ArrayList<>(users.values());
     }
 
+    @Override
+    public List<User> getUsersByRole(String role) {
+        Set<String> usernames = usernamesByRole.get(role);
+        if (usernames == null) return new ArrayList<>();
+        List<User> usersWithRole = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            User user = users.get(username);
+            // The user may have been modified after reading the index
+            if (user != null && user.getRoles().contains(role)) usersWithRole.add(user);
+        }
+        return usersWithRole;
+    }
+
+    @Override
+    public List<User> searchUsersByPrefix(String prefix, int limit) {
+        List<User> matchingUsers = new ArrayList<>(Math.min(limit, 64));
+        for (String username : sortedUsernames.tailSet(prefix, true)) {
+            if (matchingUsers.size() >= limit || !username.startsWith(prefix)) break;
+            User user = users.get(username);
+            if (user != null) matchingUsers.add(user);
+        }
+        return matchingUsers;
+    }
+
     @Override
     public User addNewUser(String username, String password, List<String> roles) throws DuplicateKeyException {
-        if (users.containsKey(username))
-            throw new DuplicateKeyException("There is already another user with the same name: '" + username + "'.");
         User user = new User(username, password, roles);
-        users.put(username, user);
+        if (users.computeIfAbsent(username, name -> reindex(null, user)) != user)
+            throw new DuplicateKeyException("There is already another user with the same name: '" + username + "'.");
         return user;
     }
+
+    @Override
+    public List<User> addNewUsers(List<User> newUsers) throws DuplicateKeyException {
+        // A single validation pass before modifying anything, so a batch with a taken name adds nothing
+        Set<String> usernames = new HashSet<>(newUsers.size() * 2);
+        List<String> duplicatedUsernames = new ArrayList<>();
+        for (User user : newUsers) {
+            if (!usernames.add(user.getUsername()) || users.containsKey(user.getUsername())) duplicatedUsernames.add(user.getUsername());
+        }
+        if (!duplicatedUsernames.isEmpty())
+            throw new DuplicateKeyException("There are already other users with the same names: " + duplicatedUsernames + ".");
+        List<User> addedUsers = new ArrayList<>(newUsers.size());
+        for (User user : newUsers) {
+            if (users.putIfAbsent(user.getUsername(), user) != null) {
+                // Another thread took the name after the validation: the users already added are removed
+                for (User addedUser : addedUsers) users.remove(addedUser.getUsername(), addedUser);
+                throw new DuplicateKeyException("There is already another user with the same name: '" + user.getUsername() + "'.");
+            }
+            addedUsers.add(user);
+        }
+        List<User[]> changes = new ArrayList<>(addedUsers.size());
+        for (User user : addedUsers) changes.add(new User[] {null, user});
+        reindexBatch(changes);
+        return addedUsers;
+    }
+
+    @Override
+    public List<User> addRolesToUsers(Collection<String> usernames, List<String> roles) {
+        List<User> modifiedUsers = new ArrayList<>(usernames.size());
+        List<User[]> changes = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            User modifiedUser = users.computeIfPresent(username, (name, user) -> {
+                List<String> newRoles = new ArrayList<>(user.getRoles());
+                for (String role : roles) if (!newRoles.contains(role)) newRoles.add(role);
+                if (newRoles.size() == user.getRoles().size()) return user;
+                User grantedUser = user.withRoles(newRoles);
+                changes.add(new User[] {user, grantedUser});
+                return grantedUser;
+            });
+            if (modifiedUser != null) modifiedUsers.add(modifiedUser);
+        }
+        reindexBatch(changes);
+        return modifiedUsers;
+    }
+
+    @Override
+    public List<User> removeRolesFromUsers(Collection<String> usernames, List<String> roles) {
+        List<User> modifiedUsers = new ArrayList<>(usernames.size());
+        List<User[]> changes = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            User modifiedUser = users.computeIfPresent(username, (name, user) -> {
+                List<String> newRoles = new ArrayList<>(user.getRoles());
+                if (!newRoles.removeAll(roles)) return user;
+                User revokedUser = user.withRoles(newRoles);
+                changes.add(new User[] {user, revokedUser});
+                return revokedUser;
+            });
+            if (modifiedUser != null) modifiedUsers.add(modifiedUser);
+        }
+        reindexBatch(changes);
+        return modifiedUsers;
+    }
+
+    @Override
+    public int deleteUsers(Collection<String> usernames) {
+        List<User[]> changes = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            users.computeIfPresent(username, (name, user) -> {
+                changes.add(new User[] {user, null});
+                return null;
+            });
+        }
+        reindexBatch(changes);
+        return changes.size();
+    }
+
+    /**
+     * Stores <code>user</code> as it is, replacing the previous version of the user if any. Used by the repositories
+     * restoring users they had persisted.
+     *
+     * @param user {@link User} to be stored.
+     */
+    void restoreUser(User user) {
+        users.compute(user.getUsername(), (name, previousUser) -> reindex(previousUser, user));
+    }
+
+    /**
+     * Updates the index of usernames by role and the sorted set of usernames for all the users modified by a batch,
+     * once they are all replaced in the map: each role of the index is updated once for the whole batch, instead of
+     * once per user. As other threads may modify the same users meanwhile, an entry is only added (or removed) if the
+     * current version of the user still has (or no longer has) the role, checked within the atomic update of the role.
+     *
+     * @param changes pairs of previous version (null if created) and new version (null if deleted) of each user.
+     */
+    private void reindexBatch(List<User[]> changes) {
+        Map<String, List<String>> addedUsernamesByRole = new HashMap<>();
+        Map<String, List<String>> removedUsernamesByRole = new HashMap<>();
+        List<String> createdUsernames = new ArrayList<>();
+        List<String> deletedUsernames = new ArrayList<>();
+        for (User[] change : changes) {
+            User previousUser = change[0];
+            User currentUser = change[1];
+            List<String> previousRoles = previousUser == null ? Collections.emptyList() : previousUser.getRoles();
+            List<String> currentRoles = currentUser == null ? Collections.emptyList() : currentUser.getRoles();
+            String username = previousUser == null ? currentUser.getUsername() : previousUser.getUsername();
+            if (previousUser == null) createdUsernames.add(username);
+            else if (currentUser == null) deletedUsernames.add(username);
+            for (String role : previousRoles) {
+                if (!currentRoles.contains(role)) removedUsernamesByRole.computeIfAbsent(role, key -> new ArrayList<>()).add(username);
+            }
+            for (String role : currentRoles) {
+                if (!previousRoles.contains(role)) addedUsernamesByRole.computeIfAbsent(role, key -> new ArrayList<>()).add(username);
+            }
+        }
+        for (Map.Entry<String, List<String>> removedUsernames : removedUsernamesByRole.entrySet()) {
+            String role = removedUsernames.getKey();
+            usernamesByRole.computeIfPresent(role, (key, roleUsernames) -> {
+                for (String username : removedUsernames.getValue()) {
+                    if (!hasRole(users.get(username), role)) roleUsernames.remove(username);
+                }
+                return roleUsernames.isEmpty() ? null : roleUsernames;
+            });
+        }
+        for (Map.Entry<String, List<String>> addedUsernames : addedUsernamesByRole.entrySet()) {
+            String role = addedUsernames.getKey();
+            usernamesByRole.compute(role, (key, usernames) -> {
+                Set<String> roleUsernames = usernames == null ? ConcurrentHashMap.newKeySet() : usernames;
+                for (String username : addedUsernames.getValue()) {
+                    if (hasRole(users.get(username), role)) roleUsernames.add(username);
+                }
+                return roleUsernames.isEmpty() ? null : roleUsernames;
+            });
+        }
+        // The map is checked again after changing the set, in case another thread created or deleted the user meanwhile
+        sortedUsernames.addAll(createdUsernames);
+        for (String username : createdUsernames) {
+            if (!users.containsKey(username)) sortedUsernames.remove(username);
+        }
+        sortedUsernames.removeAll(deletedUsernames);
+        for (String username : deletedUsernames) {
+            if (users.containsKey(username)) sortedUsernames.add(username);
+        }
+    }
+
+    private static boolean hasRole(User user, String role) {
+        return user != null && user.getRoles().contains(role);
+    }
+
+    /**
+     * Updates the index of usernames by role from the roles of <code>previousUser</code> to the roles of
+     * <code>currentUser</code>, and the sorted set of usernames when the user is created or deleted.
+     * It must be called within the atomic operation replacing the user in the map.
+     *
+     * @param previousUser previous version of the user, or null if it is being created.
+     * @param currentUser  new version of the user, or null if it is being deleted.
+     * @return <code>currentUser</code>.
+     */
+    private User reindex(User previousUser, User currentUser) {
+        List<String> previousRoles = previousUser == null ? Collections.emptyList() : previousUser.getRoles();
+        List<String> currentRoles = currentUser == null ? Collections.emptyList() : currentUser.getRoles();
+        String username = previousUser == null ? currentUser.getUsername() : previousUser.getUsername();
+        if (previousUser == null) sortedUsernames.add(username);
+        else if (currentUser == null) sortedUsernames.remove(username);
+        for (String role : previousRoles) {
+            if (!currentRoles.contains(role)) {
+                usernamesByRole.computeIfPresent(role, (key, usernames) -> {
+                    usernames.remove(username);
+                    return usernames.isEmpty() ? null : usernames;
+                });
+            }
+        }
+        for (String role : currentRoles) {
+            if (!previousRoles.contains(role)) {
+                usernamesByRole.compute(role, (key, usernames) -> {
+                    Set<String> roleUsernames = usernames == null ? ConcurrentHashMap.newKeySet() : usernames;
+                    roleUsernames.add(username);
+                    return roleUsernames;
+                });
+            }
+        }
+        return currentUser;
+    }
 }
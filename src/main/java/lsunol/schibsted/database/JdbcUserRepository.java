@@ -0,0 +1,374 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * This is an implementation of the {@link UserRepository} interface which stores users in a JDBC database, intended
+ * to be an embedded one (e.g. <em>jdbc:h2:file:/var/lib/schibsted/users</em>) so no external server is needed.
+ * Connections come from a {@link ConnectionPool} which reuses the prepared statements, rows are written in batches,
+ * and {@link #getUserByUsername(String)} (which is called on every request with a session) is served from a
+ * read-through cache which is updated by the modifications.
+ */
+public class JdbcUserRepository implements UserRepository, ManagedRepository {
+
+    static final int DEFAULT_POOL_SIZE = 8;
+    static final int DEFAULT_CACHE_MAX_ENTRIES = 100000;
+    private static final long BORROW_TIMEOUT_MILLIS = 5000;
+
+    private static final String SELECT_USER = "SELECT u.username, u.password, u.version, r.role FROM users u LEFT JOIN user_roles r ON r.username = u.username WHERE u.username = ? ORDER BY r.position";
+    private static final String SELECT_USER_FOR_UPDATE = "SELECT username FROM users WHERE username = ? FOR UPDATE";
+    private static final String SELECT_ALL_USERS = "SELECT u.username, u.password, u.version, r.role FROM users u LEFT JOIN user_roles r ON r.username = u.username ORDER BY u.username, r.position";
+    private static final String SELECT_USERS_BY_ROLE = "SELECT u.username, u.password, u.version, r.role FROM users u LEFT JOIN user_roles r ON r.username = u.username WHERE u.username IN (SELECT username FROM user_roles WHERE role = ?) ORDER BY u.username, r.position";
+    private static final String SELECT_USERS_BY_PREFIX = "SELECT u.username, u.password, u.version, r.role FROM (SELECT username, password, version FROM users WHERE username LIKE ? ESCAPE '\\' ORDER BY username LIMIT ?) u LEFT JOIN user_roles r ON r.username = u.username ORDER BY u.username, r.position";
+    private static final String INSERT_USER = "INSERT INTO users (username, password, version) VALUES (?, ?, ?)";
+    private static final String UPDATE_USER = "UPDATE users SET password = ?, version = ? WHERE username = ?";
+    private static final String DELETE_USER = "DELETE FROM users WHERE username = ?";
+    private static final String INSERT_ROLE = "INSERT INTO user_roles (username, position, role) VALUES (?, ?, ?)";
+    private static final String DELETE_ROLES = "DELETE FROM user_roles WHERE username = ?";
+
+    private final ConnectionPool connectionPool;
+    private final int cacheMaxEntries;
+    private final Map<String, User> usersCache = new ConcurrentHashMap<>();
+    // Increased on every modification, so a cache load which raced with one of them does not keep a stale user
+    private final AtomicLong modificationsCount = new AtomicLong();
+
+    /**
+     * Opens the database at <code>jdbcUrl</code>, creating its tables if they do not exist.
+     *
+     * @param jdbcUrl JDBC url of the database.
+     * @throws SQLException if the database could not be opened or initialized.
+     */
+    public JdbcUserRepository(String jdbcUrl) throws SQLException {
+        this(jdbcUrl, DEFAULT_POOL_SIZE, DEFAULT_CACHE_MAX_ENTRIES);
+    }
+
+    /**
+     * Opens the database at <code>jdbcUrl</code>, creating its tables if they do not exist.
+     *
+     * @param jdbcUrl         JDBC url of the database.
+     * @param poolSize        number of pooled connections.
+     * @param cacheMaxEntries maximum number of users kept in the read-through cache.
+     * @throws SQLException if the database could not be opened or initialized.
+     */
+    public JdbcUserRepository(String jdbcUrl, int poolSize, int cacheMaxEntries) throws SQLException {
+        this.connectionPool = new ConnectionPool(jdbcUrl, poolSize, BORROW_TIMEOUT_MILLIS);
+        this.cacheMaxEntries = cacheMaxEntries;
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow();
+             Statement statement = pooledConnection.getConnection().createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS users (username VARCHAR(255) PRIMARY KEY, password VARBINARY(64) NOT NULL, version BIGINT NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS user_roles (username VARCHAR(255) NOT NULL, position INT NOT NULL, role VARCHAR(255) NOT NULL, " +
+                    "PRIMARY KEY (username, position), FOREIGN KEY (username) REFERENCES users (username) ON DELETE CASCADE)");
+            statement.execute("CREATE INDEX IF NOT EXISTS user_roles_by_role ON user_roles (role)");
+        }
+    }
+
+    @Override
+    public User getUserByUsername(String username) {
+        if (username == null) return null;
+        User cachedUser = usersCache.get(username);
+        if (cachedUser != null) return cachedUser;
+        long modificationsBeforeLoad = modificationsCount.get();
+        User user;
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            PreparedStatement statement = pooledConnection.prepare(SELECT_USER);
+            statement.setString(1, username);
+            List<User> users = readUsers(statement);
+            user = users.isEmpty() ? null : users.get(0);
+        } catch (SQLException e) {
+            throw new RepositoryException("Could not read the user '" + username + "': " + e.getMessage(), e);
+        }
+        if (user != null) cacheUser(user, modificationsBeforeLoad);
+        return user;
+    }
+
+    @Override
+    public boolean checkUserCredentials(String username, String password) {
+        User user = getUserByUsername(username);
+        return user != null && user.isPasswordCorrect(password);
+    }
+
+    @Override
+    public User addNewUser(String username, String password, List<String> roles) throws DuplicateKeyException {
+        return addNewUsers(Collections.singletonList(new User(username, password, roles))).get(0);
+    }
+
+    @Override
+    public List<User> addNewUsers(List<User> newUsers) throws DuplicateKeyException {
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            Connection connection = pooledConnection.getConnection();
+            connection.setAutoCommit(false);
+            PreparedStatement insertUser = pooledConnection.prepare(INSERT_USER);
+            PreparedStatement insertRole = pooledConnection.prepare(INSERT_ROLE);
+            for (User user : newUsers) {
+                insertUser.setString(1, user.getUsername());
+                insertUser.setBytes(2, user.getPasswordDigest());
+                insertUser.setLong(3, user.getVersion());
+                insertUser.addBatch();
+                addRoleRows(insertRole, user);
+            }
+            insertUser.executeBatch();
+            insertRole.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            if (isIntegrityViolation(e)) throw new DuplicateKeyException("There are already other users with the same names: " + e.getMessage());
+            throw new RepositoryException("Could not add the users: " + e.getMessage(), e);
+        } finally {
+            for (User user : newUsers) invalidate(user.getUsername());
+        }
+        return newUsers;
+    }
+
+    @Override
+    public void addRoleToUser(String username, List<String> newRoles) {
+        modifyUser(username, user -> {
+            List<String> roles = new ArrayList<>(user.getRoles());
+            roles.addAll(newRoles);
+            return user.withRoles(roles);
+        });
+    }
+
+    @Override
+    public User updateUser(String username, String newPassword, List<String> newRoles) {
+        return modifyUser(username, user -> {
+            User updatedUser = user;
+            if (newPassword != null) updatedUser = updatedUser.withPassword(newPassword);
+            if (newRoles != null) updatedUser = updatedUser.withRoles(newRoles);
+            return updatedUser;
+        });
+    }
+
+    @Override
+    public User replaceUser(User user) {
+        return modifyUser(user.getUsername(), currentUser -> currentUser.withPasswordAndRolesOf(user));
+    }
+
+    @Override
+    public List<User> addRolesToUsers(Collection<String> usernames, List<String> roles) {
+        return modifyUsers(usernames, user -> {
+            List<String> newRoles = new ArrayList<>(user.getRoles());
+            for (String role : roles) if (!newRoles.contains(role)) newRoles.add(role);
+            return newRoles.size() == user.getRoles().size() ? user : user.withRoles(newRoles);
+        });
+    }
+
+    @Override
+    public List<User> removeRolesFromUsers(Collection<String> usernames, List<String> roles) {
+        return modifyUsers(usernames, user -> {
+            List<String> newRoles = new ArrayList<>(user.getRoles());
+            return newRoles.removeAll(roles) ? user.withRoles(newRoles) : user;
+        });
+    }
+
+    @Override
+    public void deleteUser(String username) {
+        deleteUsers(Collections.singleton(username));
+    }
+
+    @Override
+    public int deleteUsers(Collection<String> usernames) {
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            PreparedStatement statement = pooledConnection.prepare(DELETE_USER);
+            for (String username : usernames) {
+                statement.setString(1, username);
+                statement.addBatch();
+            }
+            int deletedUsers = 0;
+            for (int updateCount : statement.executeBatch()) if (updateCount > 0) deletedUsers += updateCount;
+            return deletedUsers;
+        } catch (SQLException e) {
+            throw new RepositoryException("Could not delete the users " + usernames + ": " + e.getMessage(), e);
+        } finally {
+            usernames.forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            return readUsers(pooledConnection.prepare(SELECT_ALL_USERS));
+        } catch (SQLException e) {
+            throw new RepositoryException("Could not read the users: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<User> getUsersByRole(String role) {
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            PreparedStatement statement = pooledConnection.prepare(SELECT_USERS_BY_ROLE);
+            statement.setString(1, role);
+            return readUsers(statement);
+        } catch (SQLException e) {
+            throw new RepositoryException("Could not read the users with role '" + role + "': " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<User> searchUsersByPrefix(String prefix, int limit) {
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            PreparedStatement statement = pooledConnection.prepare(SELECT_USERS_BY_PREFIX);
+            statement.setString(1, prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+            statement.setInt(2, limit);
+            return readUsers(statement);
+        } catch (SQLException e) {
+            throw new RepositoryException("Could not search the users starting with '" + prefix + "': " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the pooled connections.
+     */
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+
+    /**
+     * Applies the <code>modification</code> to the user within a transaction which locks its row.
+     *
+     * @param username     name of the user to be modified.
+     * @param modification function returning the new version of the user.
+     * @return the new version of the user, or null if it does not exist.
+     */
+    private User modifyUser(String username, UnaryOperator<User> modification) {
+        List<User> modifiedUsers = modifyUsers(Collections.singleton(username), modification);
+        return modifiedUsers.isEmpty() ? null : modifiedUsers.get(0);
+    }
+
+    /**
+     * Applies the <code>modification</code> to each one of the users within a single transaction which locks their
+     * rows, sorted by name so concurrent batches do not deadlock. The new versions are written in batches.
+     *
+     * @param usernames    names of the users to be modified. Names of users which do not exist are ignored.
+     * @param modification function returning the new version of a user.
+     * @return the new version of the users which exist.
+     */
+    private List<User> modifyUsers(Collection<String> usernames, UnaryOperator<User> modification) {
+        List<User> modifiedUsers = new ArrayList<>(usernames.size());
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            Connection connection = pooledConnection.getConnection();
+            connection.setAutoCommit(false);
+            PreparedStatement lockUser = pooledConnection.prepare(SELECT_USER_FOR_UPDATE);
+            PreparedStatement selectUser = pooledConnection.prepare(SELECT_USER);
+            PreparedStatement updateUser = pooledConnection.prepare(UPDATE_USER);
+            PreparedStatement deleteRoles = pooledConnection.prepare(DELETE_ROLES);
+            PreparedStatement insertRole = pooledConnection.prepare(INSERT_ROLE);
+            for (String username : new TreeSet<>(usernames)) {
+                lockUser.setString(1, username);
+                try (ResultSet resultSet = lockUser.executeQuery()) {
+                    if (!resultSet.next()) continue;
+                }
+                selectUser.setString(1, username);
+                User modifiedUser = modification.apply(readUsers(selectUser).get(0));
+                updateUser.setBytes(1, modifiedUser.getPasswordDigest());
+                updateUser.setLong(2, modifiedUser.getVersion());
+                updateUser.setString(3, username);
+                updateUser.addBatch();
+                deleteRoles.setString(1, username);
+                deleteRoles.addBatch();
+                addRoleRows(insertRole, modifiedUser);
+                modifiedUsers.add(modifiedUser);
+            }
+            if (modifiedUsers.isEmpty()) return modifiedUsers;
+            updateUser.executeBatch();
+            deleteRoles.executeBatch();
+            insertRole.executeBatch();
+            // Counted while the rows are still locked: loads which started before the commit do not cache their stale
+            // version, and the users are not cached if anything else is modified before the cache is updated
+            long modificationsBeforeCommit = modificationsCount.incrementAndGet();
+            connection.commit();
+            // Readers only see the new versions once they are committed
+            for (User modifiedUser : modifiedUsers) cacheUser(modifiedUser, modificationsBeforeCommit);
+            return modifiedUsers;
+        } catch (SQLException e) {
+            usernames.forEach(this::invalidate);
+            throw new RepositoryException("Could not modify the users " + usernames + ": " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            usernames.forEach(this::invalidate);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds to the batch of the <code>insertRole</code> statement one row per role of the <code>user</code>.
+     */
+    private static void addRoleRows(PreparedStatement insertRole, User user) throws SQLException {
+        int position = 0;
+        for (String role : user.getRoles()) {
+            insertRole.setString(1, user.getUsername());
+            insertRole.setInt(2, position++);
+            insertRole.setString(3, role);
+            insertRole.addBatch();
+        }
+    }
+
+    /**
+     * Executes the <code>statement</code> and returns the users it selects. The statement must return the columns
+     * username, password, version and role, with one row per role sorted by user.
+     */
+    private static List<User> readUsers(PreparedStatement statement) throws SQLException {
+        List<User> users = new ArrayList<>();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            String username = null;
+            byte[] password = null;
+            long version = 0;
+            List<String> roles = new ArrayList<>();
+            while (resultSet.next()) {
+                String rowUsername = resultSet.getString(1);
+                if (!rowUsername.equals(username)) {
+                    if (username != null) users.add(User.fromPasswordDigest(username, password, roles, version));
+                    username = rowUsername;
+                    password = resultSet.getBytes(2);
+                    version = resultSet.getLong(3);
+                    roles = new ArrayList<>();
+                }
+                String role = resultSet.getString(4);
+                if (role != null) roles.add(role);
+            }
+            if (username != null) users.add(User.fromPasswordDigest(username, password, roles, version));
+        }
+        return users;
+    }
+
+    /**
+     * Stores the <code>user</code> loaded from or committed to the database into the cache, unless a modification
+     * happened since <code>modificationsBefore</code> (the version might be stale then), and never over a newer version.
+     */
+    private void cacheUser(User user, long modificationsBefore) {
+        if (modificationsCount.get() != modificationsBefore) return;
+        if (usersCache.size() >= cacheMaxEntries) usersCache.clear();
+        usersCache.merge(user.getUsername(), user, (cachedUser, newUser) -> newUser.getVersion() > cachedUser.getVersion() ? newUser : cachedUser);
+        // A modification may have happened right after the previous check: its invalidation may have run before the put
+        if (modificationsCount.get() != modificationsBefore) usersCache.remove(user.getUsername(), user);
+    }
+
+    private void invalidate(String username) {
+        modificationsCount.incrementAndGet();
+        usersCache.remove(username);
+    }
+
+    /**
+     * True whether <code>e</code>, or any of the exceptions chained to it (batches report the failed statement as the
+     * next exception), is an integrity constraint violation.
+     */
+    private static boolean isIntegrityViolation(SQLException e) {
+        for (SQLException exception = e; exception != null; exception = exception.getNextException()) {
+            if (exception.getSQLState() != null && exception.getSQLState().startsWith("23")) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,32 @@
+package lsunol.schibsted.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Lifecycle of a repository managed by the {@link RepositoryManager}: it is started once before being used, flushed on
+ * demand and closed when the application shuts down. Every hook does nothing unless the repository needs it.
+ */
+public interface ManagedRepository extends Closeable {
+
+    /**
+     * Starts the background tasks of the repository, if any. It is called once, right after the repository is created.
+     */
+    default void start() { }
+
+    /**
+     * Blocks until every modification made before the call is persisted, for repositories which persist them later.
+     *
+     * @throws IOException          if the modifications could not be persisted.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    default void flush() throws IOException, InterruptedException { }
+
+    /**
+     * Stops the background tasks of the repository and releases its resources.
+     *
+     * @throws IOException if the resources could not be released.
+     */
+    @Override
+    default void close() throws IOException { }
+}
@@ -0,0 +1,11 @@
+package lsunol.schibsted.database;
+
+/**
+ * Thrown when the changes requested to a {@link UserChangeFeed} are no longer available (or never were, because the
+ * feed has been restarted). The requester has to reload all the users and continue from the last sequence number.
+ */
+public class MissedChangesException extends Exception {
+    public MissedChangesException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,206 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link UserRepository} decorator which publishes every modification of the wrapped repository to a
+ * {@link UserChangeFeed}, so caches and other nodes can follow the changes of the users.
+ * Modifications are not serialized here, so writers of the wrapped repository still run concurrently (and share its
+ * group commits): a change is only numbered, under the short lock of the feed, once the wrapped repository returns.
+ * Two concurrent modifications of the same user may thus be published in either order; every change carries the
+ * version of the user, so consumers keeping users (such as {@link FollowerUserRepository}) skip the outdated ones.
+ */
+public class ObservableUserRepository implements UserRepository, ManagedRepository {
+
+    private final UserRepository delegate;
+    private final UserChangeFeed changeFeed;
+
+    public ObservableUserRepository(UserRepository delegate) {
+        this(delegate, new UserChangeFeed());
+    }
+
+    /**
+     * @param delegate   repository whose modifications are published.
+     * @param changeFeed feed where the modifications are published.
+     */
+    public ObservableUserRepository(UserRepository delegate, UserChangeFeed changeFeed) {
+        this.delegate = delegate;
+        this.changeFeed = changeFeed;
+    }
+
+    /**
+     * Returns the feed where the modifications of the users are published.
+     * @return the feed where the modifications of the users are published.
+     */
+    public UserChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public User getUserByUsername(String username) {
+        return delegate.getUserByUsername(username);
+    }
+
+    @Override
+    public boolean checkUserCredentials(String username, String password) {
+        return delegate.checkUserCredentials(username, password);
+    }
+
+    @Override
+    public User addNewUser(String username, String password, List<String> roles) throws DuplicateKeyException {
+        User user = delegate.addNewUser(username, password, roles);
+        changeFeed.publish(UserChange.Type.CREATED, username, user);
+        return user;
+    }
+
+    @Override
+    public List<User> addNewUsers(List<User> newUsers) throws DuplicateKeyException {
+        List<User> addedUsers = delegate.addNewUsers(newUsers);
+        for (User user : addedUsers) changeFeed.publish(UserChange.Type.CREATED, user.getUsername(), user);
+        return addedUsers;
+    }
+
+    @Override
+    public void addRoleToUser(String username, List<String> newRoles) {
+        Map<String, Long> previousVersions = getVersions(Collections.singletonList(username));
+        delegate.addRoleToUser(username, newRoles);
+        User user = delegate.getUserByUsername(username);
+        if (user != null) publishUpdates(Collections.singletonList(user), previousVersions);
+    }
+
+    @Override
+    public List<User> addRolesToUsers(Collection<String> usernames, List<String> roles) {
+        Map<String, Long> previousVersions = getVersions(usernames);
+        List<User> modifiedUsers = delegate.addRolesToUsers(usernames, roles);
+        publishUpdates(modifiedUsers, previousVersions);
+        return modifiedUsers;
+    }
+
+    @Override
+    public List<User> removeRolesFromUsers(Collection<String> usernames, List<String> roles) {
+        Map<String, Long> previousVersions = getVersions(usernames);
+        List<User> modifiedUsers = delegate.removeRolesFromUsers(usernames, roles);
+        publishUpdates(modifiedUsers, previousVersions);
+        return modifiedUsers;
+    }
+
+    @Override
+    public User updateUser(String username, String newPassword, List<String> newRoles) {
+        User user = delegate.updateUser(username, newPassword, newRoles);
+        if (user != null) changeFeed.publish(UserChange.Type.UPDATED, username, user);
+        return user;
+    }
+
+    @Override
+    public User replaceUser(User user) {
+        User replacedUser = delegate.replaceUser(user);
+        if (replacedUser != null) changeFeed.publish(UserChange.Type.UPDATED, user.getUsername(), replacedUser);
+        return replacedUser;
+    }
+
+    @Override
+    public void deleteUser(String username) {
+        if (delegate.getUserByUsername(username) == null) return;
+        delegate.deleteUser(username);
+        changeFeed.publish(UserChange.Type.DELETED, username, null);
+    }
+
+    @Override
+    public int deleteUsers(Collection<String> usernames) {
+        List<String> existingUsernames = new ArrayList<>(usernames.size());
+        for (String username : usernames) {
+            if (delegate.getUserByUsername(username) != null) existingUsernames.add(username);
+        }
+        if (existingUsernames.isEmpty()) return 0;
+        int deletedUsers = delegate.deleteUsers(existingUsernames);
+        for (String username : existingUsernames) changeFeed.publish(UserChange.Type.DELETED, username, null);
+        return deletedUsers;
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        return delegate.getAllUsers();
+    }
+
+    @Override
+    public List<User> getUsersByRole(String role) {
+        return delegate.getUsersByRole(role);
+    }
+
+    @Override
+    public List<User> searchUsersByPrefix(String prefix, int limit) {
+        return delegate.searchUsersByPrefix(prefix, limit);
+    }
+
+    /**
+     * Starts the wrapped repository if it is a {@link ManagedRepository}.
+     */
+    @Override
+    public void start() {
+        if (delegate instanceof ManagedRepository) ((ManagedRepository) delegate).start();
+    }
+
+    /**
+     * Flushes the wrapped repository if it is a {@link ManagedRepository}.
+     *
+     * @throws IOException          if the modifications could not be persisted.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    @Override
+    public void flush() throws IOException, InterruptedException {
+        if (delegate instanceof ManagedRepository) ((ManagedRepository) delegate).flush();
+    }
+
+    /**
+     * Closes the wrapped repository if it is {@link Closeable}.
+     *
+     * @throws IOException if the wrapped repository could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) ((Closeable) delegate).close();
+    }
+
+    /**
+     * Adds all the users to <code>users</code>, and returns the sequence number of the last change they include. They
+     * may include later modifications too, whose changes are published afterwards.
+     *
+     * @param users collection where the users are added.
+     * @return the sequence number of the last change published before copying the users.
+     */
+    long copyUsers(Collection<User> users) {
+        // Every change numbered up to this one was applied before it was published, so the copy includes it
+        long sequence = changeFeed.getLastSequence();
+        users.addAll(delegate.getAllUsers());
+        return sequence;
+    }
+
+    private Map<String, Long> getVersions(Collection<String> usernames) {
+        Map<String, Long> versions = new HashMap<>();
+        for (String username : usernames) {
+            User user = delegate.getUserByUsername(username);
+            if (user != null) versions.put(username, user.getVersion());
+        }
+        return versions;
+    }
+
+    /**
+     * Publishes the <code>modifiedUsers</code> whose version changed, as some of them may have been left as they were.
+     */
+    private void publishUpdates(List<User> modifiedUsers, Map<String, Long> previousVersions) {
+        for (User user : modifiedUsers) {
+            Long previousVersion = previousVersions.get(user.getUsername());
+            if (previousVersion == null || previousVersion != user.getVersion())
+                changeFeed.publish(UserChange.Type.UPDATED, user.getUsername(), user);
+        }
+    }
+}
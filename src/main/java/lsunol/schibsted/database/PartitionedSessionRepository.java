@@ -0,0 +1,465 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.Session;
+import lsunol.schibsted.model.User;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link SessionRepository} shared by several nodes, each one holding only part of the sessions.
+ * Sessions are partitioned by key over a {@link ConsistentHashRing} of the nodes: every session is stored in its
+ * primary node and in one replica (the next node on the ring), so it survives the loss of any single node.
+ * Nodes talk to each other over plain sockets, listening only on the interface of their host and authenticating each
+ * other with the secret of the cluster before any request. Sessions travel with the name of their user only: the user
+ * itself is looked up in the user repository. A new node joins through any of the existing ones, and when a node joins
+ * or leaves, every node sends the sessions it holds to their new owners and drops the ones it no longer owns.
+ * Recently used sessions are also kept in a small local near-cache for a couple of seconds, so the requests of a user
+ * do not reach other nodes every time.
+ */
+public class PartitionedSessionRepository implements SessionRepository, ManagedRepository {
+
+    private final static Logger log = Logger.getLogger(PartitionedSessionRepository.class.getName());
+
+    static final byte GET_REQUEST = 1;
+    static final byte PUT_REQUEST = 2;
+    static final byte JOIN_REQUEST = 3;
+    static final byte LEAVE_REQUEST = 4;
+
+    /**
+     * Number of nodes every session is stored in: the primary one plus a replica.
+     */
+    private static final int OWNERS_PER_SESSION = 2;
+    private static final int VIRTUAL_NODES = 128;
+    private static final int MAX_SESSIONS_PER_PUT = 500;
+    private static final long NEAR_CACHE_TTL_MILLIS = 2000;
+    private static final int NEAR_CACHE_MAX_ENTRIES = 1024;
+    /**
+     * Minimum time a refreshed session extends its expiry date before it is stored again, so a user browsing does not
+     * write its session to other nodes on every request.
+     */
+    private static final long REFRESH_WRITE_INTERVAL_MILLIS = 60000;
+    private static final String AUTHENTICATION_PROTOCOL = "schibsted-sessions";
+
+    private final String address;
+    private final ClusterAuthentication authentication;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Map<String, Session> localSessions = new ConcurrentHashMap<>();
+    private final Map<String, SessionPeerClient> peers = new ConcurrentHashMap<>();
+    private final ExecutorService rebalancer;
+    private final Object membershipLock = new Object();
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(VIRTUAL_NODES);
+    private volatile boolean closed;
+
+    private final Map<String, CachedSession> nearCache = new LinkedHashMap<String, CachedSession>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+            return size() > NEAR_CACHE_MAX_ENTRIES;
+        }
+    };
+    private final AtomicLong nearCacheHits = new AtomicLong();
+    private final AtomicLong nearCacheMisses = new AtomicLong();
+
+    /**
+     * Starts a node listening on <code>host</code>:<code>port</code>, and joins the nodes known by the
+     * <code>seedAddresses</code>.
+     *
+     * @param host          host name the other nodes reach this one at, and whose interface the port listens on.
+     * @param port          port where the other nodes connect to, or 0 to pick any free port.
+     * @param secret        secret shared by the nodes, which every connection proves to know before any request.
+     * @param seedAddresses <em>host:port</em> addresses of some of the existing nodes, or none to start alone.
+     * @throws IOException if the port could not be opened.
+     */
+    public PartitionedSessionRepository(String host, int port, String secret, Collection<String> seedAddresses) throws IOException {
+        this.authentication = new ClusterAuthentication(secret, AUTHENTICATION_PROTOCOL);
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(host, port));
+        this.address = host + ":" + serverSocket.getLocalPort();
+        this.ring = ring.withNode(address);
+        this.rebalancer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acceptor = new Thread(this::acceptPeers, "session-node-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        join(seedAddresses);
+        log.info("Session node " + address + " started with " + ring.getNodes().size() + " nodes: " + ring.getNodes() + ".");
+    }
+
+    @Override
+    public Session generateSessionForUser(User user) {
+        Session newSession = new Session(user);
+        store(newSession);
+        cache(newSession);
+        return newSession;
+    }
+
+    @Override
+    public Session getSession(String sessionKey) {
+        if (sessionKey == null) return null;
+        synchronized (nearCache) {
+            CachedSession cached = nearCache.get(sessionKey);
+            if (cached != null && cached.cachedOnMillis + NEAR_CACHE_TTL_MILLIS > System.currentTimeMillis()) {
+                nearCacheHits.incrementAndGet();
+                return cached.session;
+            }
+        }
+        nearCacheMisses.incrementAndGet();
+        Session session = load(sessionKey);
+        if (session != null) cache(session);
+        return session;
+    }
+
+    @Override
+    public String getUsernameFromSession(String sessionKey) {
+        Session queriedSession = getSession(sessionKey);
+        if (queriedSession != null && !queriedSession.hasExpired()) return queriedSession.getUsername();
+        else return null;
+    }
+
+    @Override
+    public void refreshSession(Session session) {
+        session.refreshSessionExpiryDate();
+        synchronized (nearCache) {
+            CachedSession cached = nearCache.get(session.getSessionKey());
+            if (cached != null && cached.session == session && getExpiryMillis(session) - cached.storedExpiryMillis < REFRESH_WRITE_INTERVAL_MILLIS) return;
+        }
+        try {
+            store(session);
+            cache(session);
+        } catch (RepositoryException e) {
+            log.log(Level.WARNING, "Could not store the refreshed session: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the <em>host:port</em> address of this node.
+     * @return the <em>host:port</em> address of this node.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the addresses of the nodes sessions are partitioned over, as known by this node.
+     * @return the addresses of the nodes sessions are partitioned over.
+     */
+    public SortedSet<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    /**
+     * Returns the number of sessions stored in this node, as primary or replica.
+     * @return the number of sessions stored in this node.
+     */
+    public int getLocalSessionsCount() {
+        return localSessions.size();
+    }
+
+    /**
+     * Returns the number of sessions found in the near-cache.
+     * @return the number of sessions found in the near-cache.
+     */
+    public long getNearCacheHits() {
+        return nearCacheHits.get();
+    }
+
+    /**
+     * Returns the number of sessions which had to be looked up in their nodes.
+     * @return the number of sessions which had to be looked up in their nodes.
+     */
+    public long getNearCacheMisses() {
+        return nearCacheMisses.get();
+    }
+
+    /**
+     * Waits until the sessions moved by the membership changes known so far have been sent to their new owners.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void awaitRebalancing() throws InterruptedException {
+        try {
+            rebalancer.submit(() -> { }).get();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            throw new IllegalStateException("Could not wait for the rebalancing of the sessions.", e);
+        }
+    }
+
+    /**
+     * Leaves the nodes: once the others know, the sessions of this node are handed over to their new owners.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        ConsistentHashRing previousRing;
+        ConsistentHashRing newRing;
+        synchronized (membershipLock) {
+            previousRing = ring;
+            newRing = previousRing.withoutNode(address);
+            ring = newRing;
+        }
+        rebalancer.shutdown();
+        try {
+            rebalancer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The others must know this node is leaving before they accept the sessions it hands over
+        for (String node : newRing.getNodes()) {
+            try {
+                getPeer(node).leave(address);
+            } catch (IOException e) {
+                log.warning("Could not tell node " + node + " that " + address + " leaves: " + e.getMessage());
+            }
+        }
+        rebalance(previousRing, newRing);
+        serverSocket.close();
+        for (Socket connection : connections) connection.close();
+        for (SessionPeerClient peer : peers.values()) peer.close();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Joins the nodes known by the <code>seedAddresses</code>, and the nodes they know in turn.
+     */
+    private void join(Collection<String> seedAddresses) {
+        Set<String> contacted = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(seedAddresses);
+        while (!pending.isEmpty()) {
+            String node = pending.poll();
+            if (node.equals(address) || !contacted.add(node)) continue;
+            try {
+                List<String> knownNodes = getPeer(node).join(address);
+                changeMembership(currentRing -> currentRing.withNode(node));
+                pending.addAll(knownNodes);
+            } catch (IOException e) {
+                log.warning("Could not join the session node " + node + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void changeMembership(UnaryOperator<ConsistentHashRing> change) {
+        synchronized (membershipLock) {
+            if (closed) return;
+            ConsistentHashRing previousRing = ring;
+            ConsistentHashRing newRing = change.apply(previousRing);
+            if (newRing == previousRing) return;
+            ring = newRing;
+            rebalancer.execute(() -> rebalance(previousRing, newRing));
+        }
+    }
+
+    /**
+     * Sends the sessions of this node to the nodes which own them in <code>newRing</code> but did not in
+     * <code>previousRing</code>, and drops the sessions this node no longer owns once their new owners have them.
+     */
+    private void rebalance(ConsistentHashRing previousRing, ConsistentHashRing newRing) {
+        Map<String, List<Session>> sessionsByNewOwner = new HashMap<>();
+        List<Session> disowned = new ArrayList<>();
+        for (Iterator<Session> iterator = localSessions.values().iterator(); iterator.hasNext(); ) {
+            Session session = iterator.next();
+            if (session.hasExpired()) {
+                iterator.remove();
+                continue;
+            }
+            List<String> previousOwners = previousRing.getOwners(session.getSessionKey(), OWNERS_PER_SESSION);
+            List<String> newOwners = newRing.getOwners(session.getSessionKey(), OWNERS_PER_SESSION);
+            for (String owner : newOwners) {
+                if (!owner.equals(address) && !previousOwners.contains(owner))
+                    sessionsByNewOwner.computeIfAbsent(owner, node -> new ArrayList<>()).add(session);
+            }
+            if (!newOwners.contains(address)) disowned.add(session);
+        }
+        Set<String> failedOwners = new HashSet<>();
+        for (Map.Entry<String, List<Session>> newOwnerSessions : sessionsByNewOwner.entrySet()) {
+            List<Session> sessions = newOwnerSessions.getValue();
+            try {
+                for (int from = 0; from < sessions.size(); from += MAX_SESSIONS_PER_PUT)
+                    getPeer(newOwnerSessions.getKey()).putSessions(sessions.subList(from, Math.min(from + MAX_SESSIONS_PER_PUT, sessions.size())));
+            } catch (IOException e) {
+                failedOwners.add(newOwnerSessions.getKey());
+                log.warning("Could not send " + sessions.size() + " sessions to their new node " + newOwnerSessions.getKey() + ": " + e.getMessage());
+            }
+        }
+        for (Session session : disowned) {
+            List<String> newOwners = newRing.getOwners(session.getSessionKey(), OWNERS_PER_SESSION);
+            if (Collections.disjoint(newOwners, failedOwners)) localSessions.remove(session.getSessionKey(), session);
+        }
+        if (!sessionsByNewOwner.isEmpty() || !disowned.isEmpty())
+            log.info("Session node " + address + " rebalanced: " + disowned.size() + " sessions handed over to other nodes, " + localSessions.size() + " kept.");
+    }
+
+    /**
+     * Stores the <code>session</code> in all its owners.
+     *
+     * @throws RepositoryException if it could not be stored in any of them.
+     */
+    private void store(Session session) {
+        List<String> owners = ring.getOwners(session.getSessionKey(), OWNERS_PER_SESSION);
+        IOException lastException = null;
+        int storedCopies = 0;
+        for (String owner : owners) {
+            if (owner.equals(address)) {
+                localSessions.put(session.getSessionKey(), session);
+                storedCopies++;
+                continue;
+            }
+            try {
+                getPeer(owner).putSessions(Collections.singletonList(session));
+                storedCopies++;
+            } catch (IOException e) {
+                lastException = e;
+                log.warning("Could not store a session in node " + owner + ": " + e.getMessage());
+            }
+        }
+        if (storedCopies == 0) throw new RepositoryException("Could not store the session in any of its nodes: " + owners + ".", lastException);
+    }
+
+    /**
+     * Returns the session from the first of its owners which answers, or null if they do not have it.
+     */
+    private Session load(String sessionKey) {
+        for (String owner : ring.getOwners(sessionKey, OWNERS_PER_SESSION)) {
+            if (owner.equals(address)) {
+                Session session = localSessions.get(sessionKey);
+                if (session != null) return session;
+                continue;
+            }
+            try {
+                Session session = getPeer(owner).getSession(sessionKey);
+                if (session != null) return session;
+            } catch (IOException e) {
+                log.warning("Could not look a session up in node " + owner + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    private void cache(Session session) {
+        CachedSession cached = new CachedSession(session, System.currentTimeMillis(), getExpiryMillis(session));
+        synchronized (nearCache) {
+            nearCache.put(session.getSessionKey(), cached);
+        }
+    }
+
+    private SessionPeerClient getPeer(String node) {
+        return peers.computeIfAbsent(node, peerAddress -> new SessionPeerClient(peerAddress, authentication));
+    }
+
+    private void acceptPeers() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                Thread connection = new Thread(() -> servePeer(socket), "session-node-" + socket.getRemoteSocketAddress());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (!closed) log.log(Level.WARNING, "Could not accept a session node: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Body of the thread serving the requests of another node until it disconnects.
+     */
+    private void servePeer(Socket socket) {
+        try (Socket peer = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(peer.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(peer.getOutputStream()))) {
+            peer.setTcpNoDelay(true);
+            authentication.authenticate(peer, in, out, false);
+            while (!closed) {
+                byte request = in.readByte();
+                if (request == GET_REQUEST) {
+                    Session session = localSessions.get(in.readUTF());
+                    out.writeBoolean(session != null);
+                    if (session != null) writeSession(out, session);
+                } else if (request == PUT_REQUEST) {
+                    int sessionsCount = in.readInt();
+                    for (int i = 0; i < sessionsCount; i++) {
+                        Session session = readSession(in);
+                        // A node rebalancing with an outdated view of the ring may send sessions this node does not own
+                        if (!ring.getOwners(session.getSessionKey(), OWNERS_PER_SESSION).contains(address)) continue;
+                        // Keep whichever copy expires later, as a refreshed session may cross a rebalanced older one
+                        localSessions.merge(session.getSessionKey(), session, (stored, received) -> getExpiryMillis(received) > getExpiryMillis(stored) ? received : stored);
+                        synchronized (nearCache) {
+                            nearCache.remove(session.getSessionKey());
+                        }
+                    }
+                    out.writeBoolean(true);
+                } else if (request == JOIN_REQUEST) {
+                    String node = in.readUTF();
+                    changeMembership(currentRing -> currentRing.withNode(node));
+                    SortedSet<String> nodes = ring.getNodes();
+                    out.writeInt(nodes.size());
+                    for (String knownNode : nodes) out.writeUTF(knownNode);
+                } else if (request == LEAVE_REQUEST) {
+                    String node = in.readUTF();
+                    changeMembership(currentRing -> currentRing.withoutNode(node));
+                    SessionPeerClient leavingPeer = peers.remove(node);
+                    if (leavingPeer != null) leavingPeer.close();
+                    out.writeBoolean(true);
+                } else {
+                    throw new IOException("Unknown session node request: " + request + ".");
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // The other node disconnected
+        } catch (IOException e) {
+            if (!closed) log.info("Session node " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    static void writeSession(DataOutput out, Session session) throws IOException {
+        out.writeUTF(session.getSessionKey());
+        out.writeLong(getExpiryMillis(session));
+        out.writeUTF(session.getUsername());
+    }
+
+    static Session readSession(DataInput in) throws IOException {
+        String sessionKey = in.readUTF();
+        OffsetDateTime expiresOnTime = OffsetDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneOffset.UTC);
+        return Session.restore(sessionKey, in.readUTF(), expiresOnTime);
+    }
+
+    private static long getExpiryMillis(Session session) {
+        return session.getExpiresOnTime().toInstant().toEpochMilli();
+    }
+
+    private static class CachedSession {
+        private final Session session;
+        private final long cachedOnMillis;
+        private final long storedExpiryMillis;
+
+        private CachedSession(Session session, long cachedOnMillis, long storedExpiryMillis) {
+            this.session = session;
+            this.cachedOnMillis = cachedOnMillis;
+            this.storedExpiryMillis = storedExpiryMillis;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package lsunol.schibsted.database;
+
+/**
+ * Thrown when modifying a repository which only serves reads, like the replica of a follower node.
+ */
+public class ReadOnlyRepositoryException extends RepositoryException {
+    public ReadOnlyRepositoryException(String message) {
+        super(message, null);
+    }
+}
@@ -0,0 +1,184 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ships the {@link UserChangeFeed} of the leader node to the {@link FollowerUserRepository} of the follower nodes,
+ * over plain sockets. The leader only listens on the interface of its host, and both ends prove each other they know
+ * the secret of the cluster before anything else is sent.
+ * The protocol is a single stream from the leader to each follower. On connection, the follower sends the identifier
+ * of the feed it followed and the sequence number of the last change it applied. If the leader still keeps the changes
+ * after it, they are streamed right away; otherwise (a new follower, a restarted leader or a follower left too far
+ * behind) the leader sends a snapshot of all the users first, and then the changes after it. A heartbeat is sent
+ * when there are no changes, so followers detect a dead leader.
+ */
+public class ReplicationLeader implements Closeable {
+
+    private final static Logger log = Logger.getLogger(ReplicationLeader.class.getName());
+
+    static final int PROTOCOL_MAGIC = 0x55524550;
+    static final byte SNAPSHOT_MESSAGE = 1;
+    static final byte CHANGE_MESSAGE = 2;
+    static final byte HEARTBEAT_MESSAGE = 3;
+    static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+    static final String AUTHENTICATION_PROTOCOL = "schibsted-replication";
+    private static final int MAX_CHANGES_PER_READ = 1000;
+
+    private final ObservableUserRepository userRepository;
+    private final ClusterAuthentication authentication;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Starts listening for followers on <code>host</code>:<code>port</code>.
+     *
+     * @param userRepository repository whose changes are replicated.
+     * @param host           host whose interface the port listens on.
+     * @param port           port where followers connect to, or 0 to pick any free port.
+     * @param secret         secret shared by the nodes, which every follower proves to know before it is sent anything.
+     * @throws IOException if the port could not be opened.
+     */
+    public ReplicationLeader(ObservableUserRepository userRepository, String host, int port, String secret) throws IOException {
+        this.userRepository = userRepository;
+        this.authentication = new ClusterAuthentication(secret, AUTHENTICATION_PROTOCOL);
+        this.serverSocket = new ServerSocket();
+        // A restarted leader must get its port back while connections of its previous run are still closing
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(host, port));
+        this.acceptor = new Thread(this::acceptFollowers, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Replicating users to followers connecting to " + serverSocket.getLocalSocketAddress() + ".");
+    }
+
+    /**
+     * Returns the port where followers connect to.
+     * @return the port where followers connect to.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of followers connected.
+     * @return the number of followers connected.
+     */
+    public int getFollowersCount() {
+        return followers.size();
+    }
+
+    /**
+     * Stops accepting followers and disconnects the connected ones. The port is released when this method returns.
+     *
+     * @throws IOException if the port could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket follower : followers) {
+            try {
+                follower.close();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Could not close the connection to a follower.", e);
+            }
+        }
+        // The port may only be released once the acceptor thread leaves accept()
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptFollowers() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                followers.add(socket);
+                Thread follower = new Thread(() -> serveFollower(socket), "replication-" + socket.getRemoteSocketAddress());
+                follower.setDaemon(true);
+                follower.start();
+            } catch (IOException e) {
+                if (!closed) log.log(Level.WARNING, "Could not accept a follower: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Body of the thread serving a follower: sends a snapshot if needed and then streams the changes until the
+     * follower disconnects.
+     */
+    private void serveFollower(Socket socket) {
+        try (Socket follower = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(follower.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(follower.getOutputStream()))) {
+            follower.setTcpNoDelay(true);
+            authentication.authenticate(follower, in, out, false);
+            if (in.readInt() != PROTOCOL_MAGIC) throw new IOException("The follower does not speak the replication protocol.");
+            long followedFeedId = in.readLong();
+            long sequence = in.readLong();
+            UserChangeFeed changeFeed = userRepository.getChangeFeed();
+            out.writeInt(PROTOCOL_MAGIC);
+            out.writeLong(changeFeed.getFeedId());
+            if (followedFeedId != changeFeed.getFeedId()) sequence = sendSnapshot(out);
+            log.info("Follower " + follower.getRemoteSocketAddress() + " connected at change " + sequence + ".");
+            while (!closed) {
+                List<UserChange> changes;
+                try {
+                    changes = changeFeed.awaitChangesAfter(sequence, MAX_CHANGES_PER_READ, HEARTBEAT_INTERVAL_MILLIS);
+                } catch (MissedChangesException e) {
+                    log.info("Follower " + follower.getRemoteSocketAddress() + " is too far behind: " + e.getMessage() + " Sending a snapshot.");
+                    sequence = sendSnapshot(out);
+                    continue;
+                }
+                if (changes.isEmpty()) {
+                    out.writeByte(HEARTBEAT_MESSAGE);
+                    out.writeLong(sequence);
+                }
+                for (UserChange change : changes) {
+                    out.writeByte(CHANGE_MESSAGE);
+                    out.writeLong(change.getSequence());
+                    out.writeByte(change.getType().ordinal());
+                    out.writeUTF(change.getUsername());
+                    if (change.getUser() != null) UserSerialization.writeUser(out, change.getUser());
+                    sequence = change.getSequence();
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) log.info("Follower " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(socket);
+        }
+    }
+
+    /**
+     * Sends all the users, and returns the sequence number of the last change they include.
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        List<User> users = new ArrayList<>();
+        long sequence = userRepository.copyUsers(users);
+        out.writeByte(SNAPSHOT_MESSAGE);
+        out.writeLong(sequence);
+        out.writeInt(users.size());
+        for (User user : users) UserSerialization.writeUser(out, user);
+        out.flush();
+        return sequence;
+    }
+}
@@ -0,0 +1,10 @@
+package lsunol.schibsted.database;
+
+/**
+ * Unchecked exception thrown when a repository cannot reach or use its backing store.
+ */
+public class RepositoryException extends RuntimeException {
+    public RepositoryException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,20 +1,197 @@
 package lsunol.schibsted.database;
 
+import lsunol.schibsted.application.ApplicationConstants;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the repositories of the application from the {@link UserRepositoryProvider} and
+ * {@link SessionRepositoryProvider} selected by configuration. Each repository is created and started exactly once,
+ * even when several threads ask for it at the same time, and every thread sees it fully initialized.
+ */
 public class RepositoryManager {
 
-    private static SessionRepository sessionRepository = null;
+    private final static Logger log = Logger.getLogger(RepositoryManager.class.getName());
+
+    private static final Object initializationLock = new Object();
+
+    private static volatile SessionRepository sessionRepository = null;
 
-    private static UserRepository userRepository = null;
+    private static volatile ObservableUserRepository userRepository = null;
+
+    private static ReplicationLeader replicationLeader = null;
+
+    private static final String LEADER_ROLE = "leader";
+    private static final String FOLLOWER_ROLE = "follower";
 
     private RepositoryManager() { }
 
+    /**
+     * Returns the {@link SessionRepository} of the application, created by the provider named in the
+     * {@link ApplicationConstants#SESSIONS_REPOSITORY_PROPERTY} system property. By default, sessions are
+     * <em>partitioned</em> with other nodes when the {@link ApplicationConstants#SESSIONS_PORT_PROPERTY} system
+     * property is set, or kept in <em>memory</em> otherwise.
+     * @return the {@link SessionRepository} of the application.
+     */
     public static SessionRepository getSessionRepository() {
-        if (sessionRepository == null) sessionRepository = new InMemorySessionRepository();
-        return sessionRepository;
+        SessionRepository repository = sessionRepository;
+        if (repository != null) return repository;
+        synchronized (initializationLock) {
+            if (sessionRepository == null) {
+                String defaultProvider = System.getProperty(ApplicationConstants.SESSIONS_PORT_PROPERTY) != null ? "partitioned" : "memory";
+                String providerName = System.getProperty(ApplicationConstants.SESSIONS_REPOSITORY_PROPERTY, defaultProvider);
+                sessionRepository = start(getSessionRepositoryProvider(providerName).createSessionRepository());
+            }
+            return sessionRepository;
+        }
     }
 
+    /**
+     * Returns the {@link UserRepository} of the application, created by the provider named in the
+     * {@link ApplicationConstants#USERS_REPOSITORY_PROPERTY} system property. By default, users are stored in the
+     * <em>jdbc</em> database set in the {@link ApplicationConstants#USERS_JDBC_URL_PROPERTY} system property, in
+     * <em>file</em>s in the directory set in the {@link ApplicationConstants#USERS_DIRECTORY_PROPERTY} system property,
+     * or in <em>memory</em> if none of them is set. Persisted users are wrapped with a
+     * {@link WriteBehindUserRepository} when the {@link ApplicationConstants#USERS_WRITE_BEHIND_PROPERTY} system
+     * property is <em>true</em>. Every modification is published to the {@link #getUserChangeFeed()}.
+     * In a cluster, a leader node replicates its users to the followers through a {@link ReplicationLeader}, and a
+     * follower node returns a {@link FollowerUserRepository} replicating the users of the leader.
+     * @return the {@link UserRepository} of the application.
+     */
     public static UserRepository getUserRepository() {
-        if (userRepository == null) userRepository = new InMemoryUserRepository();
-        return userRepository;
+        return getObservableUserRepository();
+    }
+
+    /**
+     * Returns whether this node is a follower, whose users are a read-only replica of the users of the leader node
+     * set in the {@link ApplicationConstants#LEADER_ADDRESS_PROPERTY} system property.
+     * @return true if this node is a follower.
+     */
+    public static boolean isFollower() {
+        return FOLLOWER_ROLE.equals(System.getProperty(ApplicationConstants.CLUSTER_ROLE_PROPERTY));
+    }
+
+    /**
+     * Returns the feed where every modification of the users of the application is published.
+     * @return the feed where every modification of the users of the application is published.
+     */
+    public static UserChangeFeed getUserChangeFeed() {
+        return getObservableUserRepository().getChangeFeed();
+    }
+
+    /**
+     * Blocks until every modification made so far to the repositories created is persisted.
+     *
+     * @throws IOException          if the modifications could not be persisted.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public static void flushRepositories() throws IOException, InterruptedException {
+        for (Object repository : new Object[] {userRepository, sessionRepository}) {
+            if (repository instanceof ManagedRepository) ((ManagedRepository) repository).flush();
+        }
+    }
+
+    /**
+     * Stops replicating users and closes the repositories created, logging the errors instead of throwing them, so
+     * every repository gets the chance to close. Meant to be called once, when the application shuts down.
+     */
+    public static void closeRepositories() {
+        synchronized (initializationLock) {
+            for (Closeable closeable : new Closeable[] {replicationLeader, userRepository, asCloseable(sessionRepository)}) {
+                if (closeable == null) continue;
+                try {
+                    closeable.close();
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.SEVERE, "An error occurred while closing " + closeable.getClass().getSimpleName() + ".", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link UserRepositoryProvider} named <code>name</code>.
+     *
+     * @param name name of the provider.
+     * @return the {@link UserRepositoryProvider} named <code>name</code>.
+     * @throws IllegalStateException if there is no provider with that name.
+     */
+    static UserRepositoryProvider getUserRepositoryProvider(String name) {
+        return findProvider(ServiceLoader.load(UserRepositoryProvider.class), UserRepositoryProvider::getName, name, "user");
+    }
+
+    /**
+     * Returns the {@link SessionRepositoryProvider} named <code>name</code>.
+     *
+     * @param name name of the provider.
+     * @return the {@link SessionRepositoryProvider} named <code>name</code>.
+     * @throws IllegalStateException if there is no provider with that name.
+     */
+    static SessionRepositoryProvider getSessionRepositoryProvider(String name) {
+        return findProvider(ServiceLoader.load(SessionRepositoryProvider.class), SessionRepositoryProvider::getName, name, "session");
+    }
+
+    private static ObservableUserRepository getObservableUserRepository() {
+        ObservableUserRepository repository = userRepository;
+        if (repository != null) return repository;
+        synchronized (initializationLock) {
+            if (userRepository == null) userRepository = isFollower() ? createFollowerRepository() : createLeaderRepository();
+            return userRepository;
+        }
+    }
+
+    private static ObservableUserRepository createLeaderRepository() {
+        String defaultProvider = System.getProperty(ApplicationConstants.USERS_JDBC_URL_PROPERTY) != null ? "jdbc"
+                : System.getProperty(ApplicationConstants.USERS_DIRECTORY_PROPERTY) != null ? "file" : "memory";
+        String providerName = System.getProperty(ApplicationConstants.USERS_REPOSITORY_PROPERTY, defaultProvider);
+        UserRepository repository = getUserRepositoryProvider(providerName).createUserRepository();
+        if (!(repository instanceof InMemoryUserRepository) && Boolean.getBoolean(ApplicationConstants.USERS_WRITE_BEHIND_PROPERTY))
+            repository = new WriteBehindUserRepository(repository);
+        ObservableUserRepository observableRepository = start(new ObservableUserRepository(repository));
+        if (LEADER_ROLE.equals(System.getProperty(ApplicationConstants.CLUSTER_ROLE_PROPERTY))) {
+            String replicationHost = System.getProperty(ApplicationConstants.REPLICATION_HOST_PROPERTY, "localhost");
+            int replicationPort = Integer.getInteger(ApplicationConstants.REPLICATION_PORT_PROPERTY, ApplicationConstants.DEFAULT_REPLICATION_PORT);
+            try {
+                replicationLeader = new ReplicationLeader(observableRepository, replicationHost, replicationPort, ClusterAuthentication.getClusterSecret());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not listen for followers on port " + replicationPort + ".", e);
+            }
+        }
+        return observableRepository;
+    }
+
+    private static ObservableUserRepository createFollowerRepository() {
+        String leaderAddress = System.getProperty(ApplicationConstants.LEADER_ADDRESS_PROPERTY);
+        int portSeparator = leaderAddress == null ? -1 : leaderAddress.lastIndexOf(':');
+        if (portSeparator < 0) throw new IllegalStateException("A follower node needs the address of the leader in the '" + ApplicationConstants.LEADER_ADDRESS_PROPERTY + "' system property, as host:port.");
+        UserChangeFeed changeFeed = new UserChangeFeed();
+        FollowerUserRepository replica = new FollowerUserRepository(leaderAddress.substring(0, portSeparator), Integer.parseInt(leaderAddress.substring(portSeparator + 1)), ClusterAuthentication.getClusterSecret(), changeFeed);
+        return start(new ObservableUserRepository(replica, changeFeed));
+    }
+
+    private static <T> T start(T repository) {
+        if (repository instanceof ManagedRepository) ((ManagedRepository) repository).start();
+        log.info("Using " + repository.getClass().getSimpleName() + ".");
+        return repository;
+    }
+
+    private static Closeable asCloseable(Object repository) {
+        return repository instanceof Closeable ? (Closeable) repository : null;
+    }
+
+    private static <P> P findProvider(Iterable<P> providers, Function<P, String> nameOf, String name, String repositoryType) {
+        List<String> availableNames = new ArrayList<>();
+        for (P provider : providers) {
+            if (nameOf.apply(provider).equals(name)) return provider;
+            availableNames.add(nameOf.apply(provider));
+        }
+        throw new IllegalStateException("There is no " + repositoryType + " repository named '" + name + "'. Available ones: " + availableNames + ".");
     }
 }
@@ -0,0 +1,137 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.Session;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection from a {@link PartitionedSessionRepository} to one of its peers. Requests are sent one at a time over a
+ * single socket, which is opened and authenticated on the first request and opened again after a failure.
+ */
+class SessionPeerClient implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 2000;
+
+    private final String address;
+    private final ClusterAuthentication authentication;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    /**
+     * @param address        <em>host:port</em> address of the peer.
+     * @param authentication authentication of the connections with the secret of the cluster.
+     */
+    SessionPeerClient(String address, ClusterAuthentication authentication) {
+        this.address = address;
+        this.authentication = authentication;
+    }
+
+    /**
+     * Returns the session stored in the peer, or null if the peer does not have it.
+     */
+    synchronized Session getSession(String sessionKey) throws IOException {
+        try {
+            connect();
+            out.writeByte(PartitionedSessionRepository.GET_REQUEST);
+            out.writeUTF(sessionKey);
+            out.flush();
+            return in.readBoolean() ? PartitionedSessionRepository.readSession(in) : null;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Stores the sessions in the peer.
+     */
+    synchronized void putSessions(List<Session> sessions) throws IOException {
+        try {
+            connect();
+            out.writeByte(PartitionedSessionRepository.PUT_REQUEST);
+            out.writeInt(sessions.size());
+            for (Session session : sessions) PartitionedSessionRepository.writeSession(out, session);
+            out.flush();
+            in.readBoolean();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Announces that the node at <code>nodeAddress</code> joins the peers, and returns the nodes the peer knows.
+     */
+    synchronized List<String> join(String nodeAddress) throws IOException {
+        try {
+            connect();
+            out.writeByte(PartitionedSessionRepository.JOIN_REQUEST);
+            out.writeUTF(nodeAddress);
+            out.flush();
+            int nodesCount = in.readInt();
+            List<String> nodes = new ArrayList<>(nodesCount);
+            for (int i = 0; i < nodesCount; i++) nodes.add(in.readUTF());
+            return nodes;
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Announces that the node at <code>nodeAddress</code> leaves the peers.
+     */
+    synchronized void leave(String nodeAddress) throws IOException {
+        try {
+            connect();
+            out.writeByte(PartitionedSessionRepository.LEAVE_REQUEST);
+            out.writeUTF(nodeAddress);
+            out.flush();
+            in.readBoolean();
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+
+    private void connect() throws IOException {
+        if (socket != null) return;
+        int portSeparator = address.lastIndexOf(':');
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(address.substring(0, portSeparator), Integer.parseInt(address.substring(portSeparator + 1))), CONNECT_TIMEOUT_MILLIS);
+            newSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            newSocket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(newSocket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream()));
+            authentication.authenticate(newSocket, in, out, true);
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        socket = newSocket;
+    }
+
+    private void disconnect() {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else can be done: the next request opens a new socket
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+}
@@ -27,4 +27,11 @@ public interface SessionRepository {
      * @return the name of the {@link User} that is registered to the given <code>sessionkey</code>.
      */
     String getUsernameFromSession(String sessionkey);
+
+    /**
+     * Refreshes the expiry date of the <code>session</code> up to
+     * {@link lsunol.schibsted.application.ApplicationConstants#SESSION_EXPIRY_MINUTES} more minutes, and stores it.
+     * @param session session being used.
+     */
+    void refreshSession(Session session);
 }
@@ -0,0 +1,23 @@
+package lsunol.schibsted.database;
+
+/**
+ * Service provider of a {@link SessionRepository} implementation. Providers are found with a
+ * {@link java.util.ServiceLoader}, so a new one is plugged in by listing it in a
+ * <em>META-INF/services/lsunol.schibsted.database.SessionRepositoryProvider</em> file of its jar, and selected by its
+ * name in the {@link lsunol.schibsted.application.ApplicationConstants#SESSIONS_REPOSITORY_PROPERTY} system property.
+ */
+public interface SessionRepositoryProvider {
+
+    /**
+     * Returns the name the provider is selected by.
+     * @return the name the provider is selected by.
+     */
+    String getName();
+
+    /**
+     * Returns a new {@link SessionRepository}, configured from system properties. If it is a
+     * {@link ManagedRepository}, it is started by the {@link RepositoryManager}.
+     * @return a new {@link SessionRepository}.
+     */
+    SessionRepository createSessionRepository();
+}
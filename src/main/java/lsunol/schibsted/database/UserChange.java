@@ -0,0 +1,54 @@
+package lsunol.schibsted.database;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lsunol.schibsted.model.User;
+
+/**
+ * Modification of a user, published by a {@link UserChangeFeed}. Changes are numbered with consecutive sequence
+ * numbers, in the same order in which they were applied.
+ */
+public final class UserChange {
+
+    public enum Type { CREATED, UPDATED, DELETED }
+
+    private final long sequence;
+    private final Type type;
+    private final String username;
+    private final User user;
+
+    UserChange(long sequence, Type type, String username, User user) {
+        this.sequence = sequence;
+        this.type = type;
+        this.username = username;
+        this.user = user;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the version of the user after the change, or null if it has been deleted.
+     * @return the version of the user after the change, or null if it has been deleted.
+     */
+    public Long getVersion() {
+        return user == null ? null : user.getVersion();
+    }
+
+    /**
+     * Returns the {@link User} after the change, or null if it has been deleted.
+     * @return the {@link User} after the change, or null if it has been deleted.
+     */
+    @JsonIgnore
+    public User getUser() {
+        return user;
+    }
+}
@@ -0,0 +1,221 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ordered stream of {@link UserChange}, numbered with consecutive sequence numbers starting at 1.
+ * Changes are pushed to the in-process subscribers as soon as they are published, and the last {@link #capacity}
+ * changes are kept so remote consumers can poll them by sequence number (waiting for new ones if there are none).
+ * Sequence numbers start again at 1 when the application restarts, so consumers must reload the users then. Each feed
+ * has a random identifier, so remote consumers can tell whether they are still following the same feed.
+ */
+public class UserChangeFeed {
+
+    private final static Logger log = Logger.getLogger(UserChangeFeed.class.getName());
+
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private final long feedId = new SecureRandom().nextLong();
+    private final int capacity;
+    private final UserChange[] changes;
+    private final List<Consumer<UserChange>> subscribers = new CopyOnWriteArrayList<>();
+    private long lastSequence;
+    private final List<ChangesWaiter> waiters = new ArrayList<>();
+
+    public UserChangeFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of changes kept to be polled.
+     */
+    public UserChangeFeed(int capacity) {
+        this.capacity = capacity;
+        this.changes = new UserChange[capacity];
+    }
+
+    /**
+     * Returns the random identifier of the feed, which changes every time the application restarts.
+     * @return the random identifier of the feed.
+     */
+    public long getFeedId() {
+        return feedId;
+    }
+
+    /**
+     * Registers a <code>subscriber</code> which receives every change published from now on, in order, on the thread
+     * publishing it. Subscribers must be fast and must not modify users.
+     *
+     * @param subscriber consumer of the changes.
+     */
+    public void subscribe(Consumer<UserChange> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Consumer<UserChange> subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Returns the sequence number of the last published change, or 0 if there is none.
+     * @return the sequence number of the last published change, or 0 if there is none.
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns up to <code>limit</code> changes published after the one numbered <code>sequence</code>.
+     *
+     * @param sequence sequence number of the last change already known by the requester, or 0 to start from the
+     *                 first one.
+     * @param limit    maximum number of changes to be returned.
+     * @return up to <code>limit</code> changes published after the one numbered <code>sequence</code>, in order.
+     * @throws MissedChangesException if some of the changes after <code>sequence</code> are no longer kept, or
+     *                                <code>sequence</code> has not been published yet.
+     */
+    public synchronized List<UserChange> getChangesAfter(long sequence, int limit) throws MissedChangesException {
+        if (sequence > lastSequence)
+            throw new MissedChangesException("Change " + sequence + " has not been published: last change is " + lastSequence + ".");
+        if (sequence < lastSequence - capacity)
+            throw new MissedChangesException("Changes after " + sequence + " are no longer available: oldest change is " + (lastSequence - capacity + 1) + ".");
+        int count = (int) Math.min(limit, lastSequence - sequence);
+        List<UserChange> changesAfter = new ArrayList<>(count);
+        for (long next = sequence + 1; next <= sequence + count; next++) changesAfter.add(changes[(int) (next % capacity)]);
+        return changesAfter;
+    }
+
+    /**
+     * Same as {@link #getChangesAfter(long, int)}, but if there are no changes after <code>sequence</code> it waits
+     * up to <code>timeoutMillis</code> for new ones.
+     *
+     * @param sequence      sequence number of the last change already known by the requester.
+     * @param limit         maximum number of changes to be returned.
+     * @param timeoutMillis maximum time to wait for new changes.
+     * @return up to <code>limit</code> changes published after the one numbered <code>sequence</code>, in order. The
+     * list is empty if none was published before the timeout.
+     * @throws MissedChangesException if some of the changes after <code>sequence</code> are no longer kept, or
+     *                                <code>sequence</code> has not been published yet.
+     * @throws InterruptedException   if the thread is interrupted while waiting.
+     */
+    public synchronized List<UserChange> awaitChangesAfter(long sequence, int limit, long timeoutMillis) throws MissedChangesException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (sequence == lastSequence) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) break;
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        }
+        return getChangesAfter(sequence, limit);
+    }
+
+    /**
+     * Same as {@link #awaitChangesAfter(long, int, long)}, but without blocking the calling thread: the returned
+     * future is completed with the changes as soon as there are any, or with an empty list after
+     * <code>timeoutMillis</code>. It is completed right away if there are changes already, or if
+     * <code>timeoutMillis</code> is 0. Waiting futures are completed on the common fork join pool, never on the thread
+     * publishing the change.
+     *
+     * @param sequence      sequence number of the last change already known by the requester.
+     * @param limit         maximum number of changes to be returned.
+     * @param timeoutMillis maximum time to wait for new changes.
+     * @return a future completed with up to <code>limit</code> changes published after the one numbered
+     * <code>sequence</code>, in order, or completed with a {@link MissedChangesException} if some of them are no
+     * longer kept, or <code>sequence</code> has not been published yet.
+     */
+    public CompletableFuture<List<UserChange>> changesAfter(long sequence, int limit, long timeoutMillis) {
+        ChangesWaiter waiter = new ChangesWaiter(sequence, limit);
+        synchronized (this) {
+            if (sequence == lastSequence && timeoutMillis > 0) {
+                waiters.add(waiter);
+                waiter.timeout = Timer.SCHEDULER.schedule(() -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+                return waiter.future;
+            }
+        }
+        complete(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Publishes a change of the user named <code>username</code>, numbered with the next sequence number. Concurrent
+     * modifications of the same user may be published in any order: consumers rely on the version of the user to
+     * tell which one is the latest.
+     *
+     * @param type     type of change.
+     * @param username name of the user.
+     * @param user     the {@link User} after the change, or null if it has been deleted.
+     * @return the published change.
+     */
+    synchronized UserChange publish(UserChange.Type type, String username, User user) {
+        UserChange change = new UserChange(++lastSequence, type, username, user);
+        changes[(int) (change.getSequence() % capacity)] = change;
+        for (Consumer<UserChange> subscriber : subscribers) {
+            try {
+                subscriber.accept(change);
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "A subscriber failed to process the change " + change.getSequence() + ": " + e.getMessage(), e);
+            }
+        }
+        notifyAll();
+        if (!waiters.isEmpty()) {
+            List<ChangesWaiter> readyWaiters = new ArrayList<>(waiters);
+            waiters.clear();
+            CompletableFuture.runAsync(() -> readyWaiters.forEach(this::complete));
+        }
+        return change;
+    }
+
+    private void expire(ChangesWaiter waiter) {
+        synchronized (this) {
+            if (!waiters.remove(waiter)) return;
+        }
+        complete(waiter);
+    }
+
+    private void complete(ChangesWaiter waiter) {
+        if (waiter.timeout != null) waiter.timeout.cancel(false);
+        try {
+            waiter.future.complete(getChangesAfter(waiter.sequence, waiter.limit));
+        } catch (MissedChangesException e) {
+            waiter.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Request waiting for the changes after <code>sequence</code>.
+     */
+    private static final class ChangesWaiter {
+        private final long sequence;
+        private final int limit;
+        private final CompletableFuture<List<UserChange>> future = new CompletableFuture<>();
+        private ScheduledFuture<?> timeout;
+
+        private ChangesWaiter(long sequence, int limit) {
+            this.sequence = sequence;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Timer expiring the waiting requests of every feed, created the first time a request waits.
+     */
+    private static final class Timer {
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-changes-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -2,6 +2,7 @@ package lsunol.schibsted.database;
 
 import lsunol.schibsted.model.User;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface UserRepository {
@@ -28,17 +29,88 @@ public interface UserRepository {
      */
     User addNewUser(String username, String password, List<String> roles) throws DuplicateKeyException;
 
+    /**
+     * Adds the <code>newRoles</code> to the roles of the user with the name <code>username</code>, if it exists.
+     * @param username name of the user.
+     * @param newRoles list of roles (String) to be added to the user.
+     */
     void addRoleToUser(String username, List<String> newRoles);
 
+    /**
+     * Atomically replaces the password and/or the roles of the user with the name <code>username</code>.
+     * @param username name of the user to be modified.
+     * @param newPassword new password of the user, or <em>null</em> to keep the current one.
+     * @param newRoles new list of roles (String) of the user, or <em>null</em> to keep the current ones.
+     * @return the new version of the {@link User}, or <em>null</em> if the user does not exist.
+     */
+    User updateUser(String username, String newPassword, List<String> newRoles);
+
+    /**
+     * Atomically replaces the password and the roles of the user with the name of <code>user</code> with the ones of
+     * <code>user</code>, whose password is already hashed. Used to copy users between repositories without their
+     * passwords in clear text.
+     * @param user user with the new password and roles.
+     * @return the new version of the {@link User}, or <em>null</em> if the user does not exist.
+     */
+    User replaceUser(User user);
+
     /**
      * Deletes the user with id <code>username</code>.
      * @param username identifier of the user to be deleted.
      */
     void deleteUser(String username);
 
+    /**
+     * Adds all the <code>newUsers</code>, or none of them if any of their names is repeated or already exists.
+     * @param newUsers users to be added, built with {@link User#User(String, String, List)}.
+     * @return the added {@link User}, in the same order.
+     * @throws DuplicateKeyException if any of the names is repeated or already exists. No user is added then.
+     */
+    List<User> addNewUsers(List<User> newUsers) throws DuplicateKeyException;
+
+    /**
+     * Adds the <code>roles</code> each user with a name in <code>usernames</code> does not have yet. Names of users
+     * which do not exist are ignored.
+     * @param usernames names of the users.
+     * @param roles list of roles (String) to be granted.
+     * @return the {@link User} which exist, once modified.
+     */
+    List<User> addRolesToUsers(Collection<String> usernames, List<String> roles);
+
+    /**
+     * Removes the <code>roles</code> from each user with a name in <code>usernames</code>. Names of users which do not
+     * exist are ignored.
+     * @param usernames names of the users.
+     * @param roles list of roles (String) to be revoked.
+     * @return the {@link User} which exist, once modified.
+     */
+    List<User> removeRolesFromUsers(Collection<String> usernames, List<String> roles);
+
+    /**
+     * Deletes the users with a name in <code>usernames</code>.
+     * @param usernames names of the users to be deleted.
+     * @return the number of users which existed and have been deleted.
+     */
+    int deleteUsers(Collection<String> usernames);
+
     /**
      * Returns the list of all the {@link User} in the system.
      * @return the list of all the {@link User} in the system.
      */
     List<User> getAllUsers();
+
+    /**
+     * Returns the list of the {@link User} having the role <code>role</code>.
+     * @param role name of the role.
+     * @return the list of the {@link User} having the role <code>role</code>.
+     */
+    List<User> getUsersByRole(String role);
+
+    /**
+     * Returns up to <code>limit</code> {@link User} whose name starts with <code>prefix</code>, sorted by name.
+     * @param prefix beginning of the names of the users to be returned.
+     * @param limit maximum number of users to be returned.
+     * @return up to <code>limit</code> {@link User} whose name starts with <code>prefix</code>, sorted by name.
+     */
+    List<User> searchUsersByPrefix(String prefix, int limit);
 }
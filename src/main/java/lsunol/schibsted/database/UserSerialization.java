@@ -0,0 +1,39 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of a {@link User}, shared by the files of the {@link FileUserRepository} and the replication
+ * protocol: name, version, password digest and roles.
+ */
+final class UserSerialization {
+
+    private UserSerialization() { }
+
+    static void writeUser(DataOutput out, User user) throws IOException {
+        byte[] passwordDigest = user.getPasswordDigest();
+        out.writeUTF(user.getUsername());
+        out.writeLong(user.getVersion());
+        out.writeByte(passwordDigest.length);
+        out.write(passwordDigest);
+        out.writeInt(user.getRoles().size());
+        for (String role : user.getRoles()) out.writeUTF(role);
+    }
+
+    static User readUser(DataInput in) throws IOException {
+        String username = in.readUTF();
+        long version = in.readLong();
+        byte[] passwordDigest = new byte[in.readUnsignedByte()];
+        in.readFully(passwordDigest);
+        int rolesCount = in.readInt();
+        List<String> roles = new ArrayList<>(rolesCount);
+        for (int i = 0; i < rolesCount; i++) roles.add(in.readUTF());
+        return User.fromPasswordDigest(username, passwordDigest, roles, version);
+    }
+}
@@ -0,0 +1,485 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link UserRepository} decorator which acknowledges modifications as soon as they are applied to an in-memory copy
+ * of the users, and writes them to the wrapped repository later on a background thread.
+ * All the users of the wrapped repository are loaded on construction, and every read is served from memory.
+ * Modifications waiting to be written are kept per user, so repeated modifications of the same user are coalesced into
+ * a single write. They are written in batches every {@link #flushIntervalMillis}, or as soon as
+ * {@link #maxBatchSize} users are waiting. {@link #close()} writes every pending modification before closing the
+ * wrapped repository, so no acknowledged modification is lost on a clean shut down.
+ */
+public class WriteBehindUserRepository implements UserRepository, ManagedRepository {
+
+    private final static Logger log = Logger.getLogger(WriteBehindUserRepository.class.getName());
+
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+    static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    static final int MAX_FLUSH_ATTEMPTS = 3;
+
+    private final UserRepository delegate;
+    private final InMemoryUserRepository users = new InMemoryUserRepository();
+    private final long flushIntervalMillis;
+    private final int maxBatchSize;
+    private final Thread flusher;
+
+    // Guards every field below. Modifications are applied in memory and queued while holding it, so the queue keeps
+    // the same order in which they were applied
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    private List<PendingWrite> batch = new ArrayList<>();
+    private int batchPosition;
+    private long writesSequence;
+    private long coalescedWrites;
+    private long flushedBatches;
+    private long failedWrites;
+    private RuntimeException lastWriteError;
+    private int flushWaiters;
+    private boolean closed;
+    private RuntimeException flushError;
+
+    /**
+     * Wraps <code>delegate</code> with the default flush interval and batch size.
+     *
+     * @param delegate repository where the modifications are eventually written.
+     */
+    public WriteBehindUserRepository(UserRepository delegate) {
+        this(delegate, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Wraps <code>delegate</code>, loading all its users in memory.
+     *
+     * @param delegate            repository where the modifications are eventually written.
+     * @param flushIntervalMillis maximum time a modification waits before being written.
+     * @param maxBatchSize        number of pending users which triggers a write without waiting for the interval.
+     */
+    public WriteBehindUserRepository(UserRepository delegate, long flushIntervalMillis, int maxBatchSize) {
+        this.delegate = delegate;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxBatchSize = maxBatchSize;
+        for (User user : delegate.getAllUsers()) users.restoreUser(user);
+        flusher = new Thread(this::flushBatches, "user-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public User getUserByUsername(String username) {
+        return users.getUserByUsername(username);
+    }
+
+    @Override
+    public boolean checkUserCredentials(String username, String password) {
+        return users.checkUserCredentials(username, password);
+    }
+
+    @Override
+    public User addNewUser(String username, String password, List<String> roles) throws DuplicateKeyException {
+        synchronized (lock) {
+            checkOpen();
+            User user = users.addNewUser(username, password, roles);
+            pendingWrite(username).created = user;
+            return user;
+        }
+    }
+
+    @Override
+    public List<User> addNewUsers(List<User> newUsers) throws DuplicateKeyException {
+        synchronized (lock) {
+            checkOpen();
+            List<User> addedUsers = users.addNewUsers(newUsers);
+            for (User user : addedUsers) pendingWrite(user.getUsername()).created = user;
+            return addedUsers;
+        }
+    }
+
+    @Override
+    public void addRoleToUser(String username, List<String> newRoles) {
+        synchronized (lock) {
+            checkOpen();
+            users.addRoleToUser(username, newRoles);
+            User user = users.getUserByUsername(username);
+            if (user != null) queueUpdate(user);
+        }
+    }
+
+    @Override
+    public List<User> addRolesToUsers(Collection<String> usernames, List<String> roles) {
+        synchronized (lock) {
+            checkOpen();
+            List<User> modifiedUsers = users.addRolesToUsers(usernames, roles);
+            modifiedUsers.forEach(this::queueUpdate);
+            return modifiedUsers;
+        }
+    }
+
+    @Override
+    public List<User> removeRolesFromUsers(Collection<String> usernames, List<String> roles) {
+        synchronized (lock) {
+            checkOpen();
+            List<User> modifiedUsers = users.removeRolesFromUsers(usernames, roles);
+            modifiedUsers.forEach(this::queueUpdate);
+            return modifiedUsers;
+        }
+    }
+
+    @Override
+    public User updateUser(String username, String newPassword, List<String> newRoles) {
+        synchronized (lock) {
+            checkOpen();
+            User user = users.updateUser(username, newPassword, newRoles);
+            if (user != null) queueUpdate(user);
+            return user;
+        }
+    }
+
+    @Override
+    public User replaceUser(User user) {
+        synchronized (lock) {
+            checkOpen();
+            User replacedUser = users.replaceUser(user);
+            if (replacedUser != null) queueUpdate(replacedUser);
+            return replacedUser;
+        }
+    }
+
+    @Override
+    public void deleteUser(String username) {
+        synchronized (lock) {
+            checkOpen();
+            queueDeletion(username);
+        }
+    }
+
+    @Override
+    public int deleteUsers(Collection<String> usernames) {
+        synchronized (lock) {
+            checkOpen();
+            int deletedUsers = 0;
+            for (String username : usernames) if (queueDeletion(username)) deletedUsers++;
+            return deletedUsers;
+        }
+    }
+
+    @Override
+    public List<User> getAllUsers() {
+        return users.getAllUsers();
+    }
+
+    @Override
+    public List<User> getUsersByRole(String role) {
+        return users.getUsersByRole(role);
+    }
+
+    @Override
+    public List<User> searchUsersByPrefix(String prefix, int limit) {
+        return users.searchUsersByPrefix(prefix, limit);
+    }
+
+    /**
+     * Starts the wrapped repository if it is a {@link ManagedRepository}. Modifications are written by a background
+     * thread started on construction.
+     */
+    @Override
+    public void start() {
+        if (delegate instanceof ManagedRepository) ((ManagedRepository) delegate).start();
+    }
+
+    /**
+     * Blocks until every modification made before the call has been written to the wrapped repository. Gives up once
+     * a write has failed {@link #MAX_FLUSH_ATTEMPTS} times during the call, leaving the modifications pending for the
+     * background thread to keep retrying.
+     *
+     * @throws IOException          if the modifications could not be written, or the background thread has stopped.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    @Override
+    public void flush() throws IOException, InterruptedException {
+        synchronized (lock) {
+            long lastWrite = writesSequence;
+            long previouslyFailedWrites = failedWrites;
+            flushWaiters++;
+            lock.notifyAll();
+            try {
+                while (oldestPendingWrite() != null && oldestPendingWrite().sequence <= lastWrite) {
+                    if (flushError != null) throw flushError;
+                    if (failedWrites - previouslyFailedWrites >= MAX_FLUSH_ATTEMPTS)
+                        throw new IOException(getQueueDepth() + " modifications could not be written after " + MAX_FLUSH_ATTEMPTS + " attempts: " + lastWriteError.getMessage(), lastWriteError);
+                    if (!flusher.isAlive())
+                        throw new IOException("The write-behind thread has stopped with " + getQueueDepth() + " modifications not written.");
+                    // Timed, so a background thread which dies without notifying is noticed
+                    lock.wait(RETRY_DELAY_MILLIS);
+                }
+            } finally {
+                flushWaiters--;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of users with modifications not yet written to the wrapped repository.
+     * @return the number of users with modifications not yet written to the wrapped repository.
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pendingWrites.size() + batch.size() - batchPosition;
+        }
+    }
+
+    /**
+     * Returns how long the oldest modification not yet written to the wrapped repository has been waiting, in
+     * milliseconds, or 0 if every modification has been written.
+     * @return how long the oldest modification not yet written has been waiting, in milliseconds.
+     */
+    public long getFlushLagMillis() {
+        synchronized (lock) {
+            PendingWrite oldestPendingWrite = oldestPendingWrite();
+            return oldestPendingWrite == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestPendingWrite.queuedNanos);
+        }
+    }
+
+    /**
+     * Returns the number of modifications which have been merged into a pending write of the same user.
+     * @return the number of modifications which have been merged into a pending write of the same user.
+     */
+    public long getCoalescedWrites() {
+        synchronized (lock) {
+            return coalescedWrites;
+        }
+    }
+
+    /**
+     * Returns the number of batches written to the wrapped repository.
+     * @return the number of batches written to the wrapped repository.
+     */
+    public long getFlushedBatches() {
+        synchronized (lock) {
+            return flushedBatches;
+        }
+    }
+
+    /**
+     * Rejects new modifications, writes the pending ones and closes the wrapped repository if it is {@link Closeable}.
+     *
+     * @throws IOException if the pending modifications could not be written, or the wrapped repository not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the pending modifications.", e);
+        }
+        synchronized (lock) {
+            if (flushError != null)
+                throw new IOException(getQueueDepth() + " modifications could not be written: " + flushError.getMessage(), flushError);
+            if (getQueueDepth() > 0)
+                throw new IOException(getQueueDepth() + " modifications could not be written: the write-behind thread has stopped.");
+        }
+        if (delegate instanceof Closeable) ((Closeable) delegate).close();
+    }
+
+    /**
+     * Body of the flusher thread: waits for pending modifications and writes them in batches until the repository is
+     * closed and no modification is pending.
+     */
+    private void flushBatches() {
+        while (true) {
+            synchronized (lock) {
+                try {
+                    waitForBatch();
+                } catch (InterruptedException e) {
+                    log.log(Level.SEVERE, "Write-behind thread interrupted with " + getQueueDepth() + " pending modifications.", e);
+                    return;
+                }
+                if (pendingWrites.isEmpty()) return;
+                batch = new ArrayList<>(Math.min(pendingWrites.size(), maxBatchSize));
+                batchPosition = 0;
+                Iterator<PendingWrite> iterator = pendingWrites.values().iterator();
+                while (iterator.hasNext() && batch.size() < maxBatchSize) {
+                    batch.add(iterator.next());
+                    iterator.remove();
+                }
+            }
+            for (PendingWrite pendingWrite : batch) {
+                if (!writeWithRetries(pendingWrite)) return;
+                synchronized (lock) {
+                    batchPosition++;
+                    lock.notifyAll();
+                }
+            }
+            synchronized (lock) {
+                flushedBatches++;
+            }
+        }
+    }
+
+    /**
+     * Waits until a batch has to be written: there are {@link #maxBatchSize} pending users, the oldest pending
+     * modification is {@link #flushIntervalMillis} old, a flush has been requested or the repository is closed.
+     */
+    private void waitForBatch() throws InterruptedException {
+        while (!closed) {
+            // A pending user may be deleted while waiting, which can leave no pending write at all
+            if (pendingWrites.isEmpty()) {
+                lock.wait();
+                continue;
+            }
+            if (flushWaiters > 0 || pendingWrites.size() >= maxBatchSize) return;
+            long waitMillis = flushIntervalMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestPendingWrite().queuedNanos);
+            if (waitMillis <= 0) return;
+            lock.wait(waitMillis);
+        }
+    }
+
+    /**
+     * Writes <code>pendingWrite</code> to the wrapped repository, retrying until it succeeds or, once the repository is
+     * closed, giving up after the first failure.
+     *
+     * @return true if the modification was written.
+     */
+    private boolean writeWithRetries(PendingWrite pendingWrite) {
+        while (true) {
+            try {
+                write(pendingWrite);
+                return true;
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Could not write the user '" + pendingWrite.username + "': " + e.getMessage(), e);
+                synchronized (lock) {
+                    failedWrites++;
+                    lastWriteError = e;
+                    lock.notifyAll();
+                    if (closed) {
+                        flushError = e;
+                        lock.notifyAll();
+                        return false;
+                    }
+                    try {
+                        lock.wait(RETRY_DELAY_MILLIS);
+                    } catch (InterruptedException interruption) {
+                        flushError = e;
+                        lock.notifyAll();
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+    private void write(PendingWrite pendingWrite) {
+        if (pendingWrite.deleteFirst) delegate.deleteUser(pendingWrite.username);
+        if (pendingWrite.created != null) {
+            try {
+                delegate.addNewUsers(Collections.singletonList(pendingWrite.created));
+            } catch (DuplicateKeyException e) {
+                // The wrapped repository has been modified by someone else: the in-memory copy wins
+                log.warning("User '" + pendingWrite.username + "' already existed in the wrapped repository, so it is overwritten.");
+                delegate.deleteUser(pendingWrite.username);
+                try {
+                    delegate.addNewUsers(Collections.singletonList(pendingWrite.created));
+                } catch (DuplicateKeyException concurrentCreation) {
+                    throw new RepositoryException(concurrentCreation.getMessage(), concurrentCreation);
+                }
+            }
+        }
+        else if (pendingWrite.updated != null) delegate.replaceUser(pendingWrite.updated);
+    }
+
+    /**
+     * Queues the modified <code>user</code>. Must be called holding the lock.
+     */
+    private void queueUpdate(User user) {
+        PendingWrite pendingWrite = pendingWrite(user.getUsername());
+        if (pendingWrite.created != null) pendingWrite.created = user;
+        else pendingWrite.updated = user;
+    }
+
+    /**
+     * Deletes the user in memory and queues its deletion. Must be called holding the lock.
+     *
+     * @return true if the user existed.
+     */
+    private boolean queueDeletion(String username) {
+        if (users.getUserByUsername(username) == null) return false;
+        users.deleteUser(username);
+        PendingWrite pendingWrite = pendingWrite(username);
+        if (pendingWrite.created != null && !pendingWrite.deleteFirst) {
+            // The user never reached the wrapped repository
+            pendingWrites.remove(username);
+            return true;
+        }
+        pendingWrite.deleteFirst = true;
+        pendingWrite.created = null;
+        pendingWrite.updated = null;
+        return true;
+    }
+
+    /**
+     * Returns the pending write of the user, queueing a new one if there is none. Must be called holding the lock.
+     */
+    private PendingWrite pendingWrite(String username) {
+        writesSequence++;
+        PendingWrite pendingWrite = pendingWrites.get(username);
+        if (pendingWrite != null) coalescedWrites++;
+        else {
+            pendingWrite = new PendingWrite(username, writesSequence);
+            pendingWrites.put(username, pendingWrite);
+            if (pendingWrites.size() == 1 || pendingWrites.size() >= maxBatchSize) lock.notifyAll();
+        }
+        return pendingWrite;
+    }
+
+    /**
+     * Returns the oldest modification not yet written, or null if there is none. Must be called holding the lock.
+     */
+    private PendingWrite oldestPendingWrite() {
+        if (batchPosition < batch.size()) return batch.get(batchPosition);
+        if (pendingWrites.isEmpty()) return null;
+        return pendingWrites.values().iterator().next();
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("The repository is closed.");
+    }
+
+    /**
+     * Coalesced modifications of a user not yet written: first the user is deleted (if <code>deleteFirst</code>), then
+     * it is created as <code>created</code> or replaced by <code>updated</code> (if not null). Both keep the password
+     * hashed, so no password is ever kept in clear text.
+     */
+    private static class PendingWrite {
+        private final String username;
+        private final long sequence;
+        private final long queuedNanos = System.nanoTime();
+        private boolean deleteFirst;
+        private User created;
+        private User updated;
+
+        private PendingWrite(String username, long sequence) {
+            this.username = username;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package lsunol.schibsted.model;
+
+import lsunol.schibsted.application.ApplicationConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, canonical list of role names. Users having the same roles (in the same order) share the same instance,
+ * together with its {@link RoleSet} and display string, instead of keeping their own copies. Up to
+ * {@link ApplicationConstants#ROLE_LISTS_CACHE_MAX_ENTRIES} lists are shared; further ones are not kept by this class.
+ */
+public final class RoleList {
+
+    private static final Map<List<String>, RoleList> canonicalLists = new ConcurrentHashMap<>();
+
+    public static final RoleList EMPTY = of(Collections.emptyList());
+
+    private final List<String> names;
+    private final RoleSet roleSet;
+    private final String displayString;
+
+    private RoleList(List<String> names) {
+        this.names = names;
+        this.roleSet = RoleSet.of(names);
+        this.displayString = String.join(", ", names);
+    }
+
+    /**
+     * Returns the canonical {@link RoleList} holding the role names in <code>roleNames</code>, or a new one if there are
+     * already too many canonical lists.
+     *
+     * @param roleNames names of the roles, or null for no roles.
+     * @return the canonical {@link RoleList} holding the role names in <code>roleNames</code>.
+     * @throws IllegalArgumentException if a role cannot be registered in the {@link RoleRegistry}.
+     */
+    public static RoleList of(List<String> roleNames) {
+        if (roleNames == null) return EMPTY;
+        RoleList roleList = canonicalLists.get(roleNames);
+        if (roleList != null) return roleList;
+        List<String> names = new ArrayList<>(roleNames.size());
+        for (String roleName : roleNames) names.add(roleName.intern());
+        List<String> canonicalNames = Collections.unmodifiableList(names);
+        if (canonicalLists.size() >= ApplicationConstants.ROLE_LISTS_CACHE_MAX_ENTRIES) return new RoleList(canonicalNames);
+        return canonicalLists.computeIfAbsent(canonicalNames, key -> new RoleList(canonicalNames));
+    }
+
+    /**
+     * Returns the unmodifiable list of role names.
+     * @return the unmodifiable list of role names.
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Returns the roles as a {@link RoleSet}.
+     * @return the roles as a {@link RoleSet}.
+     */
+    public RoleSet getRoleSet() {
+        return roleSet;
+    }
+
+    /**
+     * Returns the comma separated list of role names.
+     * @return the comma separated list of role names.
+     */
+    public String getDisplayString() {
+        return displayString;
+    }
+}
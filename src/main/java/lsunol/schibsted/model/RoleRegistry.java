@@ -0,0 +1,55 @@
+package lsunol.schibsted.model;
+
+import lsunol.schibsted.application.ApplicationConstants;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry interning role names into small integer ids, so role sets can be stored and compared as bitsets.
+ * Ids are assigned in registration order starting from 0 and are never reused, so at most
+ * {@link ApplicationConstants#MAX_ROLES} roles can be registered.
+ */
+public final class RoleRegistry {
+
+    private static final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private static final List<String> namesById = new CopyOnWriteArrayList<>();
+
+    private RoleRegistry() { }
+
+    /**
+     * Returns the id of the role named <code>roleName</code>, registering it if it was not known yet.
+     *
+     * @param roleName name of the role.
+     * @return the id of the role named <code>roleName</code>.
+     * @throws IllegalArgumentException if <code>roleName</code> is null, or it is a new role and
+     *                                  {@link ApplicationConstants#MAX_ROLES} roles are already registered.
+     */
+    public static int getRoleId(String roleName) {
+        if (roleName == null) throw new IllegalArgumentException("The 'roleName' parameter cannot be null.");
+        Integer roleId = idsByName.get(roleName);
+        if (roleId != null) return roleId;
+        synchronized (namesById) {
+            roleId = idsByName.get(roleName);
+            if (roleId != null) return roleId;
+            if (namesById.size() >= ApplicationConstants.MAX_ROLES) {
+                throw new IllegalArgumentException("Role '" + roleName + "' cannot be registered: there are already " + ApplicationConstants.MAX_ROLES + " roles.");
+            }
+            namesById.add(roleName);
+            idsByName.put(roleName, namesById.size() - 1);
+            return namesById.size() - 1;
+        }
+    }
+
+    /**
+     * Returns the name of the role identified by <code>roleId</code>.
+     *
+     * @param roleId id of a registered role.
+     * @return the name of the role identified by <code>roleId</code>.
+     */
+    public static String getRoleName(int roleId) {
+        return namesById.get(roleId);
+    }
+}
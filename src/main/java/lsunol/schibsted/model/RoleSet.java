@@ -0,0 +1,81 @@
+package lsunol.schibsted.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of roles stored as a bitset of the ids assigned by {@link RoleRegistry}.
+ */
+public final class RoleSet {
+
+    public static final RoleSet EMPTY = new RoleSet(new long[0]);
+
+    private final long[] words;
+
+    private RoleSet(long[] words) {
+        this.words = words;
+    }
+
+    /**
+     * Returns a new {@link RoleSet} containing the roles named in <code>roleNames</code>.
+     *
+     * @param roleNames names of the roles.
+     * @return a new {@link RoleSet} containing the roles named in <code>roleNames</code>.
+     */
+    public static RoleSet of(String... roleNames) {
+        return of(Arrays.asList(roleNames));
+    }
+
+    /**
+     * Returns a new {@link RoleSet} containing the roles named in <code>roleNames</code>.
+     *
+     * @param roleNames names of the roles.
+     * @return a new {@link RoleSet} containing the roles named in <code>roleNames</code>.
+     */
+    public static RoleSet of(Collection<String> roleNames) {
+        if (roleNames == null || roleNames.isEmpty()) return EMPTY;
+        long[] words = new long[0];
+        for (String roleName : roleNames) {
+            int roleId = RoleRegistry.getRoleId(roleName);
+            if (roleId / 64 >= words.length) words = Arrays.copyOf(words, roleId / 64 + 1);
+            words[roleId / 64] |= 1L << roleId;
+        }
+        return new RoleSet(words);
+    }
+
+    /**
+     * Returns true if the role identified by <code>roleId</code> belongs to this set. False otherwise.
+     *
+     * @param roleId id of the role, as assigned by {@link RoleRegistry}.
+     * @return true if the role identified by <code>roleId</code> belongs to this set. False otherwise.
+     */
+    public boolean contains(int roleId) {
+        int wordIndex = roleId / 64;
+        return wordIndex < words.length && (words[wordIndex] & (1L << roleId)) != 0;
+    }
+
+    /**
+     * Returns true if this set and <code>other</code> have at least one role in common. False otherwise.
+     *
+     * @param other {@link RoleSet} to be compared with.
+     * @return true if this set and <code>other</code> have at least one role in common. False otherwise.
+     */
+    public boolean intersects(RoleSet other) {
+        int commonWords = Math.min(words.length, other.words.length);
+        for (int i = 0; i < commonWords; i++) {
+            if ((words[i] & other.words[i]) != 0) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        // Words never end in zeroes, so equal sets always have equal arrays
+        return this == o || (o instanceof RoleSet && Arrays.equals(words, ((RoleSet) o).words));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
@@ -11,14 +11,34 @@ public class Session {
 
     private String sessionKey;
     private OffsetDateTime expiresOnTime;
+    private String username;
     private User user;
 
     public Session(User user) {
         this.user = user;
+        this.username = user.getUsername();
         this.sessionKey = UUID.randomUUID().toString();
         refreshSessionExpiryDate();
     }
 
+    private Session(String sessionKey, String username, OffsetDateTime expiresOnTime) {
+        this.sessionKey = sessionKey;
+        this.username = username;
+        this.expiresOnTime = expiresOnTime;
+    }
+
+    /**
+     * Returns an already existing {@link Session}, as stored by repositories sharing sessions between nodes. Only the
+     * name of its user is kept: the user itself must be looked up in the user repository.
+     * @param sessionKey key of the session.
+     * @param username name of the user the session is registered to.
+     * @param expiresOnTime expiry date of the session.
+     * @return an already existing {@link Session}.
+     */
+    public static Session restore(String sessionKey, String username, OffsetDateTime expiresOnTime) {
+        return new Session(sessionKey, username, expiresOnTime);
+    }
+
     public boolean hasExpired() {
         return getExpiresOnTime().isBefore(OffsetDateTime.now());
     }
@@ -31,6 +51,14 @@ public class Session {
         return expiresOnTime;
     }
 
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the user the session was generated for, or null if the session was restored from another node.
+     * @return the user the session was generated for, or null if the session was restored from another node.
+     */
     public User getUser() {
         return user;
     }
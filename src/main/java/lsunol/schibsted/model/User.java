@@ -1,73 +1,160 @@
 package lsunol.schibsted.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class User {
+/**
+ * Immutable snapshot of a user. Every modification returns a new {@link User} with a higher {@link #getVersion()},
+ * so snapshots can be shared between threads and swapped atomically by the repositories.
+ * In order to keep the footprint small, the password is kept as the raw MD5 digest and the roles as a canonical
+ * {@link RoleList} shared by all the users having the same roles.
+ */
+public final class User {
 
     private final static Logger log = Logger.getLogger(User.class.getName());
 
-    private String username;
-    private List<String> roles;
-    private String password;
+    private final String username;
+    private final RoleList roles;
+    private final byte[] password;
+    private final long version;
 
     public User(String username, String password, List<String> roles) {
+        this(username, calculateMd5(password), RoleList.of(roles), 0);
+    }
+
+    private User(String username, byte[] hashedPassword, RoleList roles, long version) {
         this.username = username;
-        this.password = calculateMd5(password);
+        this.password = hashedPassword;
         this.roles = roles;
+        this.version = version;
+    }
+
+    /**
+     * Returns a {@link User} from an already hashed password, as returned by {@link #getPasswordDigest()}. Used by the
+     * repositories restoring users they had persisted.
+     * @param username name of the user.
+     * @param passwordDigest MD5 digest of the password of the user.
+     * @param roles list of roles of the user.
+     * @param version version of the user snapshot.
+     * @return a {@link User} from an already hashed password.
+     */
+    public static User fromPasswordDigest(String username, byte[] passwordDigest, List<String> roles, long version) {
+        return new User(username, passwordDigest.clone(), RoleList.of(roles), version);
     }
 
     public String getUsername() {
         return username;
     }
 
-    public void setPassword(String newPassword) {
-        this.password = calculateMd5(newPassword);
+    /**
+     * Returns a copy of this user with <code>newPassword</code> as password.
+     * @param newPassword password of the new version of the user.
+     * @return a copy of this user with <code>newPassword</code> as password.
+     */
+    public User withPassword(String newPassword) {
+        return new User(username, calculateMd5(newPassword), roles, version + 1);
+    }
+
+    /**
+     * Returns a copy of this user with <code>newRoles</code> as roles.
+     * @param newRoles roles of the new version of the user.
+     * @return a copy of this user with <code>newRoles</code> as roles.
+     */
+    public User withRoles(List<String> newRoles) {
+        return new User(username, password, RoleList.of(newRoles), version + 1);
+    }
+
+    /**
+     * Returns a copy of this user with the password and the roles of <code>user</code>, whose password is already hashed.
+     * @param user user whose password and roles are copied.
+     * @return a copy of this user with the password and the roles of <code>user</code>.
+     */
+    public User withPasswordAndRolesOf(User user) {
+        return new User(username, user.password, user.roles, version + 1);
+    }
+
+    /**
+     * Returns the version of this snapshot, which starts at 0 and is increased on every modification of the user.
+     * @return the version of this snapshot.
+     */
+    @JsonIgnore
+    public long getVersion() {
+        return version;
     }
 
+    /**
+     * Returns the unmodifiable list of roles of the user.
+     * @return the unmodifiable list of roles of the user.
+     */
     public List<String> getRoles() {
-        return roles;
+        return roles.getNames();
     }
 
-    public void setRoles(List<String> roles) {
-        this.roles = roles;
+    /**
+     * Returns the roles of the user as a {@link RoleSet}.
+     * @return the roles of the user as a {@link RoleSet}.
+     */
+    @JsonIgnore
+    public RoleSet getRoleSet() {
+        return roles.getRoleSet();
+    }
+
+    /**
+     * Returns the comma separated list of roles of the user, as displayed in the templates.
+     * @return the comma separated list of roles of the user, as displayed in the templates.
+     */
+    @JsonIgnore
+    public String getRolesAsString() {
+        return roles.getDisplayString();
+    }
+
+    /**
+     * Returns true if the user has at least one of the roles in <code>roles</code>. False otherwise.
+     * @param roles {@link RoleSet} of the roles to look for.
+     * @return true if the user has at least one of the roles in <code>roles</code>. False otherwise.
+     */
+    public boolean hasAnyRole(RoleSet roles) {
+        return this.roles.getRoleSet().intersects(roles);
+    }
+
+    /**
+     * Returns a copy of the MD5 digest of the password of the user.
+     * @return a copy of the MD5 digest of the password of the user.
+     */
+    @JsonIgnore
+    public byte[] getPasswordDigest() {
+        return password.clone();
     }
 
+    /**
+     * Returns true if <code>password</code> is the password of the user. The digests are compared in constant time.
+     * @param password password to be checked.
+     * @return true if <code>password</code> is the password of the user. False otherwise.
+     */
     public boolean isPasswordCorrect(String password) {
-        return this.password.equals(calculateMd5(password));
+        return password != null && MessageDigest.isEqual(this.password, calculateMd5(password));
     }
 
     /**
-     * Generates the MD5 sum for the given <code>messageToHash</code>.
+     * Generates the MD5 digest for the given <code>messageToHash</code>.
      * https://howtodoinjava.com/security/how-to-generate-secure-password-hash-md5-sha-pbkdf2-bcrypt-examples/
      *
      * @param messageToHash String to be hashed.
-     * @return the MD5 sum for the given <code>messageToHash</code>.
+     * @return the MD5 digest (16 bytes) for the given <code>messageToHash</code>.
      */
-    private static String calculateMd5(String messageToHash) {
-        String generatedPassword = null;
+    private static byte[] calculateMd5(String messageToHash) {
         try {
-            // Create MessageDigest instance for MD5
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            //Add password bytes to digest
-            md.update(messageToHash.getBytes());
-            //Get the hash's bytes
-            byte[] bytes = md.digest();
-            //This bytes[] has bytes in decimal format;
-            //Convert it to hexadecimal format
-            StringBuilder sb = new StringBuilder();
-            for(int i=0; i< bytes.length ;i++) {
-                sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-            }
-            //Get complete hashed password in hex format
-            generatedPassword = sb.toString();
-        }
-        catch (NoSuchAlgorithmException e) {
+            return MessageDigest.getInstance("MD5").digest(messageToHash.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5
             log.log(Level.SEVERE, "Could not find the MD5 algorithm. Exception: " + e.getMessage(), e);
+            throw new IllegalStateException(e);
         }
-        return generatedPassword;
     }
 }
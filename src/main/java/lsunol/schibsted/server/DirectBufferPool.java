@@ -0,0 +1,66 @@
+package lsunol.schibsted.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct {@link ByteBuffer}s of the same size, so sockets are read and written without allocating (nor
+ * copying to) a new native buffer every time. Up to <code>maxPooled</code> released buffers are kept for reuse; when
+ * the pool is empty a new buffer is allocated, and it is left to the garbage collector if the pool is full when it is
+ * released.
+ */
+class DirectBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize capacity in bytes of each buffer.
+     * @param maxPooled  maximum number of released buffers kept for reuse.
+     */
+    DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared buffer, taken from the pool if there is any.
+     *
+     * @return a cleared buffer, taken from the pool if there is any.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives the <code>buffer</code> back to the pool. It must not be used after being released.
+     *
+     * @param buffer buffer acquired from this pool.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) return;
+        if (pooled.incrementAndGet() <= maxPooled) buffers.offer(buffer);
+        else pooled.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of buffers kept for reuse.
+     *
+     * @return the number of buffers kept for reuse.
+     */
+    int getPooledCount() {
+        return pooled.get();
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
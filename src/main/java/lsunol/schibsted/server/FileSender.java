@@ -0,0 +1,25 @@
+package lsunol.schibsted.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link com.sun.net.httpserver.HttpExchange} able to send a region of a file as the response body straight from the
+ * file system to the socket (i.e.: with <em>sendfile</em> on Linux), without reading it into the JVM. Handlers check
+ * whether the exchange implements it, and write the file to the response body otherwise.
+ */
+public interface FileSender {
+
+    /**
+     * Sends <code>count</code> bytes of the <code>file</code> from <code>position</code> on as the response body, and
+     * finishes the exchange. The response headers must have been sent with a length of <code>count</code>, and nothing
+     * written to the response body. The <code>file</code> is closed once it is sent, or if it cannot be.
+     *
+     * @param file     file to be sent, which is owned by the exchange from now on.
+     * @param position position in the <code>file</code> of the first byte sent.
+     * @param count    number of bytes sent.
+     * @throws IOException if the response headers do not declare <code>count</code> bytes, or the exchange is already
+     *                     finished.
+     */
+    void sendFile(FileChannel file, long position, long count) throws IOException;
+}
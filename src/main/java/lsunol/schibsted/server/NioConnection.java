@@ -0,0 +1,349 @@
+package lsunol.schibsted.server;
+
+import com.sun.net.httpserver.Headers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection of a {@link NioHttpServer}, only read and written by its event loop. Requests are handled one at a time:
+ * reading stops while a request is being handled, and pipelined requests wait in the input until the response of the
+ * previous one has been written. Connections idle for longer than the keep-alive time (or stalled in the middle of a
+ * request or response) are closed; connections whose request is being handled are not, as handlers may wait (i.e.:
+ * long polling).
+ */
+class NioConnection {
+
+    private final static Logger log = Logger.getLogger(NioConnection.class.getName());
+
+    private enum State {READING, HANDLING, WRITING, CLOSED}
+
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final NioHttpServer server;
+    private final NioHttpServer.EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+    private SelectionKey key;
+    private State state = State.READING;
+    private long lastActivityMillis = System.currentTimeMillis();
+
+    private byte[] input = new byte[1024];
+    private int inputLength;
+
+    // Head of the request being read, once it is complete
+    private String requestMethod;
+    private URI requestURI;
+    private String requestProtocol;
+    private Headers requestHeaders;
+    private int headLength;
+    private int bodyLength;
+    private boolean continueSent;
+
+    // Response being written, and the region of a file following it (if any)
+    private byte[] output;
+    private int outputOffset;
+    private ByteBuffer outputBuffer;
+    private boolean closeAfterWrite;
+    private FileChannel outputFile;
+    private long outputFilePosition;
+    private long outputFileEnd;
+
+    NioConnection(NioHttpServer server, NioHttpServer.EventLoop eventLoop, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Reads or writes the connection, as the <code>selectionKey</code> is ready for.
+     */
+    void onReady(SelectionKey selectionKey) {
+        try {
+            if (selectionKey.isValid() && selectionKey.isReadable()) read();
+            if (selectionKey.isValid() && selectionKey.isWritable()) write();
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.FINE, "Closing a broken connection from " + remoteAddress + ": " + e.getMessage(), e);
+            close();
+        }
+    }
+
+    /**
+     * Sends the <code>response</code> of the request being handled. Called from any thread.
+     *
+     * @param response   bytes of the whole response, head and body.
+     * @param closeAfter whether the connection is closed once the response is written.
+     */
+    void respond(byte[] response, boolean closeAfter) {
+        eventLoop.execute(() -> {
+            if (state != State.HANDLING) return;
+            startWrite(response, closeAfter);
+        });
+    }
+
+    /**
+     * Sends the <code>head</code> of the response of the request being handled followed by <code>count</code> bytes of
+     * the <code>file</code> from <code>position</code> on, transferred from the file system to the socket. The
+     * <code>file</code> is closed once it is sent. Called from any thread.
+     *
+     * @param head       bytes of the status line and headers of the response.
+     * @param file       file with the body of the response.
+     * @param position   position in the <code>file</code> of the body.
+     * @param count      length of the body.
+     * @param closeAfter whether the connection is closed once the response is written.
+     */
+    void respond(byte[] head, FileChannel file, long position, long count, boolean closeAfter) {
+        eventLoop.execute(() -> {
+            if (state != State.HANDLING) {
+                NioHttpServer.closeQuietly(file);
+                return;
+            }
+            outputFile = file;
+            outputFilePosition = position;
+            outputFileEnd = position + count;
+            startWrite(head, closeAfter);
+        });
+    }
+
+    /**
+     * Closes the connection without a response for the request being handled. Called from any thread.
+     */
+    void abort() {
+        eventLoop.execute(this::close);
+    }
+
+    /**
+     * Closes the connection if it has been idle for longer than the keep-alive time.
+     */
+    void closeIfIdle(long nowMillis) {
+        if (state != State.HANDLING && nowMillis - lastActivityMillis > server.getKeepAliveMillis()) close();
+    }
+
+    void close() {
+        if (state == State.CLOSED) return;
+        state = State.CLOSED;
+        if (outputBuffer != null) server.getBufferPool().release(outputBuffer);
+        outputBuffer = null;
+        if (outputFile != null) NioHttpServer.closeQuietly(outputFile);
+        outputFile = null;
+        if (key != null) key.cancel();
+        NioHttpServer.closeQuietly(channel);
+        eventLoop.unregister(this);
+        server.connectionClosed();
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = server.getBufferPool().acquire();
+        try {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            ensureInputCapacity(inputLength + read);
+            buffer.get(input, inputLength, read);
+            inputLength += read;
+        } finally {
+            server.getBufferPool().release(buffer);
+        }
+        lastActivityMillis = System.currentTimeMillis();
+        processInput();
+    }
+
+    /**
+     * Dispatches the next request in the input to the handler, if it has been completely read.
+     */
+    private void processInput() throws IOException {
+        if (state != State.READING) return;
+        if (requestHeaders == null) {
+            int headEnd = indexOfHeadEnd();
+            if (headEnd < 0) {
+                if (inputLength > NioHttpServer.MAX_REQUEST_HEAD_BYTES) respondError(431, "Request Header Fields Too Large");
+                return;
+            }
+            if (!parseHead(headEnd)) return;
+        }
+        if (inputLength < headLength + bodyLength) {
+            if (!continueSent && "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"))) {
+                continueSent = true;
+                channel.write(ByteBuffer.wrap(CONTINUE_RESPONSE));
+            }
+            return;
+        }
+        byte[] body = Arrays.copyOfRange(input, headLength, headLength + bodyLength);
+        System.arraycopy(input, headLength + bodyLength, input, 0, inputLength - headLength - bodyLength);
+        inputLength -= headLength + bodyLength;
+
+        String connectionHeader = requestHeaders.getFirst("Connection");
+        boolean keepAlive = "HTTP/1.1".equals(requestProtocol) ? !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
+        NioHttpExchange exchange = new NioHttpExchange(this, requestMethod, requestURI, requestProtocol, requestHeaders, body, keepAlive);
+        requestHeaders = null;
+        continueSent = false;
+        state = State.HANDLING;
+        key.interestOps(0);
+        try {
+            server.getExecutor().execute(() -> handle(exchange));
+        } catch (RejectedExecutionException e) {
+            respondError(503, "Service Unavailable");
+        }
+    }
+
+    private void handle(NioHttpExchange exchange) {
+        try {
+            server.getHandler().handle(exchange);
+        } catch (Throwable e) {
+            log.log(Level.SEVERE, "Could not handle the request " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e.getMessage(), e);
+            exchange.abort();
+        }
+    }
+
+    /**
+     * Parses the request line and headers, which end at <code>headEnd</code>. Invalid requests are answered with an
+     * error and false is returned.
+     */
+    private boolean parseHead(int headEnd) {
+        String[] lines = new String(input, 0, headEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) return respondError(400, "Bad Request");
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int separator = lines[i].indexOf(':');
+            if (separator <= 0) return respondError(400, "Bad Request");
+            headers.add(lines[i].substring(0, separator).trim(), lines[i].substring(separator + 1).trim());
+        }
+        if (headers.containsKey("Transfer-encoding")) return respondError(501, "Not Implemented");
+        long contentLength;
+        try {
+            contentLength = headers.containsKey("Content-length") ? Long.parseLong(headers.getFirst("Content-length")) : 0;
+            requestURI = new URI(requestLine[1]);
+        } catch (NumberFormatException | URISyntaxException e) {
+            return respondError(400, "Bad Request");
+        }
+        if (contentLength < 0) return respondError(400, "Bad Request");
+        if (contentLength > NioHttpServer.MAX_REQUEST_BODY_BYTES) return respondError(413, "Payload Too Large");
+        requestMethod = requestLine[0];
+        requestProtocol = requestLine[2];
+        requestHeaders = headers;
+        headLength = headEnd;
+        bodyLength = (int) contentLength;
+        ensureInputCapacity(headLength + bodyLength);
+        return true;
+    }
+
+    /**
+     * Answers the request with an error, closing the connection afterwards, and returns false.
+     */
+    private boolean respondError(int responseCode, String reason) {
+        state = State.HANDLING;
+        startWrite(("HTTP/1.1 " + responseCode + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1), true);
+        return false;
+    }
+
+    private void startWrite(byte[] response, boolean closeAfter) {
+        state = State.WRITING;
+        output = response;
+        outputOffset = 0;
+        closeAfterWrite = closeAfter;
+        outputBuffer = server.getBufferPool().acquire();
+        outputBuffer.limit(0);
+        try {
+            write();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes as much of the response as the socket takes, and waits to be writable again if it is not complete.
+     */
+    private void write() throws IOException {
+        if (state != State.WRITING) return;
+        while (true) {
+            if (!outputBuffer.hasRemaining()) {
+                if (outputOffset == output.length) {
+                    if (outputFile == null || outputFilePosition == outputFileEnd) {
+                        finishWrite();
+                        return;
+                    }
+                    long written = outputFile.transferTo(outputFilePosition, outputFileEnd - outputFilePosition, channel);
+                    if (written == 0) {
+                        if (outputFilePosition >= outputFile.size()) throw new IOException("The file sent is shorter than the response declares.");
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outputFilePosition += written;
+                    lastActivityMillis = System.currentTimeMillis();
+                    continue;
+                }
+                outputBuffer.clear();
+                int length = Math.min(outputBuffer.capacity(), output.length - outputOffset);
+                outputBuffer.put(output, outputOffset, length);
+                outputOffset += length;
+                outputBuffer.flip();
+            }
+            if (channel.write(outputBuffer) == 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            lastActivityMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void finishWrite() throws IOException {
+        server.getBufferPool().release(outputBuffer);
+        outputBuffer = null;
+        output = null;
+        if (outputFile != null) NioHttpServer.closeQuietly(outputFile);
+        outputFile = null;
+        if (closeAfterWrite) {
+            close();
+            return;
+        }
+        state = State.READING;
+        lastActivityMillis = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+        processInput();
+    }
+
+    /**
+     * Returns the position following the blank line ending the head of the request in the input, or -1 if it has not
+     * been read yet.
+     */
+    private int indexOfHeadEnd() {
+        for (int i = 3; i < inputLength; i++) {
+            if (input[i] == '\n' && input[i - 1] == '\r' && input[i - 2] == '\n' && input[i - 3] == '\r') return i + 1;
+        }
+        return -1;
+    }
+
+    private void ensureInputCapacity(int capacity) {
+        if (capacity > input.length) input = Arrays.copyOf(input, Math.max(capacity, input.length * 2));
+    }
+}
@@ -0,0 +1,285 @@
+package lsunol.schibsted.server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * {@link HttpExchange} of a request read by a {@link NioHttpServer}, so handlers written for the JDK server run
+ * unchanged. It follows the same contract: the response body can only be written after the response headers are sent,
+ * and the exchange is finished when it (or its response body) is closed, from whichever thread, or right away when the
+ * response has no body. The response body is kept in memory until then, and the whole response is handed to the event
+ * loop of the connection to be written. A file sent with {@link #sendFile(FileChannel, long, long)} is not read into
+ * memory: the event loop transfers it to the socket after the head of the response.
+ */
+class NioHttpExchange extends HttpExchange implements FileSender {
+
+    private final static Logger log = Logger.getLogger(NioHttpExchange.class.getName());
+
+    private static final Set<String> GENERATED_HEADERS = new HashSet<>(Arrays.asList("Content-length", "Connection", "Date", "Transfer-encoding"));
+
+    private final NioConnection connection;
+    private final String requestMethod;
+    private final URI requestURI;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final boolean keepAlive;
+    private final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<>());
+    private final ResponseBody responseBody = new ResponseBody();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private InputStream requestBody;
+    private OutputStream responseStream = responseBody;
+    private volatile int responseCode = -1;
+    private volatile long responseLength;
+    private volatile boolean headersSent;
+
+    NioHttpExchange(NioConnection connection, String requestMethod, URI requestURI, String protocol, Headers requestHeaders, byte[] requestBody, boolean keepAlive) {
+        this.connection = connection;
+        this.requestMethod = requestMethod;
+        this.requestURI = requestURI;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = new ByteArrayInputStream(requestBody);
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return requestURI;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return requestMethod;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (!finished.compareAndSet(false, true)) return;
+        if (!headersSent) {
+            connection.abort();
+        } else if (hasResponseBody() && responseLength > 0 && responseBody.bytes.size() < responseLength) {
+            log.warning("Closing the connection: the response to " + requestMethod + " " + requestURI + " is shorter than its declared length.");
+            connection.abort();
+        } else {
+            connection.respond(serializeResponse(), !keepAlive);
+        }
+    }
+
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        try {
+            if (!headersSent || !hasResponseBody() || responseLength != count) throw new IOException("The response headers must declare the " + count + " bytes of the file.");
+            if (responseBody.bytes.size() > 0) throw new IOException("The response body has already been written.");
+            if (!finished.compareAndSet(false, true)) throw new IOException("The exchange is already finished.");
+        } catch (IOException e) {
+            NioHttpServer.closeQuietly(file);
+            throw e;
+        }
+        connection.respond(serializeHead(count), file, position, count, !keepAlive);
+    }
+
+    /**
+     * Closes the connection without answering, or after a partial response.
+     */
+    void abort() {
+        if (finished.compareAndSet(false, true)) connection.abort();
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseStream;
+    }
+
+    /**
+     * Sends the response headers, as {@link HttpExchange#sendResponseHeaders(int, long)} does: a
+     * <code>responseLength</code> of 0 means a body of any length, and -1 means no body, which finishes the exchange.
+     */
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (headersSent) throw new IOException("The response headers have already been sent.");
+        this.responseCode = rCode;
+        this.responseLength = responseLength;
+        this.headersSent = true;
+        if (!hasResponseBody()) close();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) requestBody = i;
+        if (o != null) responseStream = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private boolean hasResponseBody() {
+        return responseLength >= 0 && responseCode >= 200 && responseCode != 204 && responseCode != 304 && !"HEAD".equalsIgnoreCase(requestMethod);
+    }
+
+    private byte[] serializeResponse() {
+        byte[] headBytes = serializeHead(responseBody.bytes.size());
+        byte[] response = Arrays.copyOf(headBytes, headBytes.length + responseBody.bytes.size());
+        System.arraycopy(responseBody.bytes.toByteArray(), 0, response, headBytes.length, responseBody.bytes.size());
+        return response;
+    }
+
+    /**
+     * Returns the status line and headers of the response, with a body of <code>bodyLength</code> bytes.
+     */
+    private byte[] serializeHead(long bodyLength) {
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(responseCode).append(' ').append(getReasonPhrase(responseCode)).append("\r\n");
+        head.append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC))).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            if (GENERATED_HEADERS.contains(header.getKey())) continue;
+            for (String value : header.getValue()) head.append(header.getKey()).append(": ").append(value).append("\r\n");
+        }
+        if (hasResponseBody()) head.append("Content-Length: ").append(bodyLength).append("\r\n");
+        else if ("HEAD".equalsIgnoreCase(requestMethod) && responseLength > 0) head.append("Content-Length: ").append(responseLength).append("\r\n");
+        // As in the JDK server, a HEAD response may declare the length of the body it would have in its headers
+        else if ("HEAD".equalsIgnoreCase(requestMethod) && responseHeaders.containsKey("Content-length")) head.append("Content-Length: ").append(responseHeaders.getFirst("Content-length")).append("\r\n");
+        else if (responseCode >= 200 && responseCode != 204 && responseCode != 304) head.append("Content-Length: 0\r\n");
+        if (!keepAlive) head.append("Connection: close\r\n");
+        else if (!"HTTP/1.1".equals(protocol)) head.append("Connection: keep-alive\r\n");
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static String getReasonPhrase(int responseCode) {
+        switch (responseCode) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 406: return "Not Acceptable";
+            case 409: return "Conflict";
+            case 410: return "Gone";
+            case 412: return "Precondition Failed";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Status " + responseCode;
+        }
+    }
+
+    /**
+     * Response body kept in memory until the exchange is closed.
+     */
+    private final class ResponseBody extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) throws IOException {
+            checkWritable(1);
+            bytes.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkWritable(len);
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            NioHttpExchange.this.close();
+        }
+
+        private void checkWritable(int length) throws IOException {
+            if (!headersSent) throw new IOException("The response headers have not been sent.");
+            if (finished.get()) throw new IOException("The exchange is already finished.");
+            if (!hasResponseBody()) throw new IOException("The response has no body.");
+            if (responseLength > 0 && bytes.size() + length > responseLength) throw new IOException("Too many bytes to write to the response body.");
+        }
+    }
+}
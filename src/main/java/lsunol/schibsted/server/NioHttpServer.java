@@ -0,0 +1,321 @@
+package lsunol.schibsted.server;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/1.1 server on non-blocking sockets, an alternative to the JDK <code>HttpServer</code> which gives control over
+ * buffers, keep-alive and connection limits. Acceptor threads accept the connections and hand them round-robin to the
+ * event loops, each one with its own {@link Selector}, which read the requests and write the responses of their
+ * connections. With several acceptors, each one listens on its own socket bound with <em>SO_REUSEPORT</em> where the
+ * JVM and the OS support it, so the OS spreads the incoming connections over them; otherwise they share the same socket. Complete requests are handled by the {@link HttpHandler} on the <code>executor</code> through a
+ * {@link NioHttpExchange}, so the same controllers run on both servers, and handlers (which may block on repositories)
+ * never block an event loop. Sockets are read and written through pooled direct buffers.
+ */
+public class NioHttpServer implements Closeable {
+
+    private final static Logger log = Logger.getLogger(NioHttpServer.class.getName());
+
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int MAX_REQUEST_HEAD_BYTES = 16 * 1024;
+    static final int MAX_REQUEST_BODY_BYTES = 1024 * 1024;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    private final HttpHandler handler;
+    private final Executor executor;
+    private final int maxConnections;
+    private final long keepAliveMillis;
+    private final DirectBufferPool bufferPool;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger connectionsCount = new AtomicInteger();
+    private final int acceptorsCount;
+    private final List<Thread> acceptors = new ArrayList<>();
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private volatile boolean running;
+
+    /**
+     * Binds the server to the <code>address</code>, with a single acceptor thread. It does not accept connections until
+     * it is started.
+     *
+     * @see #NioHttpServer(InetSocketAddress, HttpHandler, Executor, int, int, int, int)
+     */
+    public NioHttpServer(InetSocketAddress address, HttpHandler handler, Executor executor, int eventLoopsCount, int maxConnections, int keepAliveSeconds) throws IOException {
+        this(address, handler, executor, 1, eventLoopsCount, maxConnections, keepAliveSeconds);
+    }
+
+    /**
+     * Binds the server to the <code>address</code>. It does not accept connections until it is started.
+     *
+     * @param address          address to listen on.
+     * @param handler          handler of every request.
+     * @param executor         executor running the <code>handler</code>.
+     * @param acceptorsCount   number of threads accepting connections.
+     * @param eventLoopsCount  number of threads reading and writing the connections.
+     * @param maxConnections   maximum number of open connections: further ones are closed as soon as they are accepted.
+     * @param keepAliveSeconds time an idle connection is kept open waiting for the next request.
+     * @throws IOException if the server cannot listen on the <code>address</code>.
+     */
+    public NioHttpServer(InetSocketAddress address, HttpHandler handler, Executor executor, int acceptorsCount, int eventLoopsCount, int maxConnections, int keepAliveSeconds) throws IOException {
+        this.handler = handler;
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.keepAliveMillis = keepAliveSeconds * 1000L;
+        this.acceptorsCount = acceptorsCount;
+        this.bufferPool = new DirectBufferPool(BUFFER_SIZE, eventLoopsCount * 64);
+        this.eventLoops = new EventLoop[eventLoopsCount];
+        for (int i = 0; i < eventLoopsCount; i++) eventLoops[i] = new EventLoop(i);
+        try {
+            ServerSocketChannel serverChannel = openServerChannel(address, acceptorsCount > 1);
+            serverChannels.add(serverChannel);
+            if (acceptorsCount > 1 && serverChannel.supportedOptions().contains(SO_REUSEPORT)) {
+                // Bound to the port of the first one, which may have been chosen by the OS
+                InetSocketAddress boundAddress = new InetSocketAddress(address.getAddress(), getAddress().getPort());
+                for (int i = 1; i < acceptorsCount; i++) serverChannels.add(openServerChannel(boundAddress, true));
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel serverChannel : serverChannels) closeQuietly(serverChannel);
+            for (EventLoop eventLoop : eventLoops) eventLoop.selector.close();
+            throw e;
+        }
+    }
+
+    private static ServerSocketChannel openServerChannel(InetSocketAddress address, boolean reusePort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort && serverChannel.supportedOptions().contains(SO_REUSEPORT)) serverChannel.setOption(SO_REUSEPORT, true);
+            serverChannel.bind(address, 1024);
+            return serverChannel;
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the <em>SO_REUSEPORT</em> socket option, or null if this JVM does not have it (it was added in Java 9).
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts accepting connections.
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        for (EventLoop eventLoop : eventLoops) eventLoop.thread.start();
+        for (int i = 0; i < acceptorsCount; i++) {
+            ServerSocketChannel serverChannel = serverChannels.get(i % serverChannels.size());
+            Thread acceptor = new Thread(() -> acceptConnections(serverChannel), "nio-http-acceptor-" + i);
+            acceptors.add(acceptor);
+            acceptor.start();
+        }
+        log.info("Listening on " + getAddress() + " with " + acceptorsCount + " acceptors (" + serverChannels.size() + " sockets) and " + eventLoops.length + " event loops.");
+    }
+
+    /**
+     * Returns the address the server is listening on.
+     *
+     * @return the address the server is listening on.
+     */
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannels.get(0).getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of connections open.
+     *
+     * @return the number of connections open.
+     */
+    public int getConnectionsCount() {
+        return connectionsCount.get();
+    }
+
+    /**
+     * Returns the number of sockets listening for connections: one per acceptor if they use <em>SO_REUSEPORT</em>,
+     * or else one shared by all of them.
+     *
+     * @return the number of sockets listening for connections.
+     */
+    public int getListeningSocketsCount() {
+        return serverChannels.size();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones, waiting for the threads of the server to finish.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        running = false;
+        for (ServerSocketChannel serverChannel : serverChannels) serverChannel.close();
+        try {
+            for (Thread acceptor : acceptors) acceptor.join();
+            for (EventLoop eventLoop : eventLoops) {
+                eventLoop.selector.wakeup();
+                if (eventLoop.thread.isAlive()) eventLoop.thread.join();
+                else eventLoop.selector.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    HttpHandler getHandler() {
+        return handler;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    void connectionClosed() {
+        connectionsCount.decrementAndGet();
+    }
+
+    private void acceptConnections(ServerSocketChannel serverChannel) {
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not accept a connection: " + e.getMessage(), e);
+                continue;
+            }
+            if (connectionsCount.incrementAndGet() > maxConnections) {
+                connectionsCount.decrementAndGet();
+                log.fine("Refusing a connection: there are already " + maxConnections + " open.");
+                closeQuietly(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                connectionsCount.decrementAndGet();
+                closeQuietly(channel);
+                continue;
+            }
+            EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+            eventLoop.execute(() -> eventLoop.register(channel));
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing else can be done with a broken connection
+        }
+    }
+
+    /**
+     * Thread reading and writing a set of connections through its {@link Selector}. Connections are only touched in
+     * this thread: the others hand it tasks through {@link #execute(Runnable)}.
+     */
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private final Set<NioConnection> connections = new HashSet<>();
+
+        private EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-http-loop-" + index);
+        }
+
+        /**
+         * Runs the <code>task</code> in the thread of this event loop.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.currentTimeMillis();
+            try {
+                while (running) {
+                    selector.select(SELECT_TIMEOUT_MILLIS);
+                    for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) task.run();
+                    for (Iterator<SelectionKey> keys = selector.selectedKeys().iterator(); keys.hasNext(); ) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((NioConnection) key.attachment()).onReady(key);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastIdleCheck >= SELECT_TIMEOUT_MILLIS) {
+                        lastIdleCheck = now;
+                        new ArrayList<>(connections).forEach(connection -> connection.closeIfIdle(now));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.log(Level.SEVERE, "The event loop " + thread.getName() + " failed: " + e.getMessage(), e);
+            } finally {
+                new ArrayList<>(connections).forEach(NioConnection::close);
+                tasks.clear();
+                closeQuietly(selector);
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                NioConnection connection = new NioConnection(NioHttpServer.this, this, channel);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                connections.add(connection);
+            } catch (IOException e) {
+                connectionsCount.decrementAndGet();
+                closeQuietly(channel);
+            }
+        }
+
+        void unregister(NioConnection connection) {
+            connections.remove(connection);
+        }
+    }
+}
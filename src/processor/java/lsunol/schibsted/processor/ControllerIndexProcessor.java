@@ -0,0 +1,104 @@
+package lsunol.schibsted.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Annotation processor which writes the index of web controllers at compile time: the binary names of the concrete,
+ * public subclasses of <code>ApplicationController</code>, one per line, in the {@link #CONTROLLER_INDEX_RESOURCE}
+ * resource. The web application registers the controllers listed there on start up, so it does not need to scan the
+ * classpath. It does not claim any annotation, so it runs on every compilation along with any other processor.
+ * <p>
+ * A compilation may only see some of the classes (i.e.: an IDE recompiling the modified ones), so the controllers
+ * listed by the index of a previous compilation are kept as long as they still are controllers.
+ */
+@SupportedAnnotationTypes("*")
+public class ControllerIndexProcessor extends AbstractProcessor {
+
+    public static final String CONTROLLER_INDEX_RESOURCE = "META-INF/lsunol.schibsted.controllers";
+
+    private static final String CONTROLLER_BASE_CLASS = "lsunol.schibsted.controllers.ApplicationController";
+
+    private final Set<String> controllers = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnvironment) {
+        TypeElement controllerBaseClass = processingEnv.getElementUtils().getTypeElement(CONTROLLER_BASE_CLASS);
+        if (controllerBaseClass == null) return false;
+        for (Element element : roundEnvironment.getRootElements()) collectControllers(element, controllerBaseClass);
+        if (roundEnvironment.processingOver()) {
+            boolean previousIndex = readPreviousIndex(controllerBaseClass);
+            if (previousIndex || !controllers.isEmpty()) writeIndex();
+        }
+        return false;
+    }
+
+    private void collectControllers(Element element, TypeElement controllerBaseClass) {
+        if (element.getKind() != ElementKind.CLASS) return;
+        TypeElement type = (TypeElement) element;
+        if (isController(type, controllerBaseClass)) controllers.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+        for (Element enclosedElement : type.getEnclosedElements()) {
+            if (enclosedElement.getModifiers().contains(Modifier.STATIC)) collectControllers(enclosedElement, controllerBaseClass);
+        }
+    }
+
+    private boolean isController(TypeElement type, TypeElement controllerBaseClass) {
+        Types types = processingEnv.getTypeUtils();
+        return !type.equals(controllerBaseClass) && type.getModifiers().contains(Modifier.PUBLIC) && !type.getModifiers().contains(Modifier.ABSTRACT)
+                && types.isSubtype(types.erasure(type.asType()), types.erasure(controllerBaseClass.asType()));
+    }
+
+    /**
+     * Adds the controllers listed by the index of a previous compilation which still exist and still are controllers.
+     *
+     * @return true if there was an index.
+     */
+    private boolean readPreviousIndex(TypeElement controllerBaseClass) {
+        try {
+            FileObject index = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", CONTROLLER_INDEX_RESOURCE);
+            try (Reader reader = index.openReader(true); BufferedReader lines = new BufferedReader(reader)) {
+                for (String controller = lines.readLine(); controller != null; controller = lines.readLine()) {
+                    if (controller.trim().isEmpty()) continue;
+                    TypeElement type = processingEnv.getElementUtils().getTypeElement(controller.trim().replace('$', '.'));
+                    if (type != null && isController(type, controllerBaseClass)) controllers.add(controller.trim());
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            // No previous index: this is a full compilation
+            return false;
+        }
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", CONTROLLER_INDEX_RESOURCE);
+            try (Writer writer = index.openWriter()) {
+                for (String controller : controllers) writer.write(controller + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write the controller index: " + e.getMessage());
+        }
+    }
+}
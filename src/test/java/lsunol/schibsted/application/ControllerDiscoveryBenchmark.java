@@ -0,0 +1,65 @@
+package lsunol.schibsted.application;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares how long a fresh JVM takes to find the web controllers by reading the index written at compile time and by
+ * scanning the controllers package, as the web application does on start up. Every measure runs in a new JVM, so
+ * classes are loaded from scratch as they are on a real start up.
+ * <p>
+ * Run it with the test classpath, with the application classes before the test ones (the scan only looks at the first
+ * directory of the controllers package): <code>java -cp ... lsunol.schibsted.application.ControllerDiscoveryBenchmark [runs]</code>
+ */
+public class ControllerDiscoveryBenchmark {
+
+    private static final int DEFAULT_RUNS = 20;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("--measure")) {
+            measure(args[1]);
+            return;
+        }
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RUNS;
+        for (String discovery : new String[] {"scan", "index"}) {
+            List<Long> micros = new ArrayList<>();
+            int controllers = 0;
+            for (int i = 0; i < runs; i++) {
+                String[] result = runMeasure(discovery).split(" ");
+                micros.add(Long.parseLong(result[0]));
+                controllers = Integer.parseInt(result[1]);
+            }
+            Collections.sort(micros);
+            System.out.printf("%-5s %d controllers: median %d us, min %d us, max %d us (%d runs)%n", discovery, controllers,
+                    micros.get(micros.size() / 2), micros.get(0), micros.get(micros.size() - 1), runs);
+        }
+    }
+
+    private static String runMeasure(String discovery) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ControllerDiscoveryBenchmark.class.getName(), "--measure", discovery)
+                .redirectErrorStream(true).start();
+        String lastLine = null;
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) lastLine = line;
+        }
+        if (process.waitFor() != 0) throw new IllegalStateException("The " + discovery + " measure failed: " + lastLine);
+        return lastLine;
+    }
+
+    private static void measure(String discovery) throws Exception {
+        // Only the discovery is measured, not the initialization of the application class itself
+        Class.forName(WebApplication.class.getName());
+        long start = System.nanoTime();
+        List<Class> controllers = discovery.equals("index") ? WebApplication.getIndexedWebControllers() : WebApplication.scanWebControllers();
+        long micros = (System.nanoTime() - start) / 1000;
+        if (controllers == null) throw new IllegalStateException("There is no controller index in the classpath.");
+        System.out.println(micros + " " + controllers.size());
+    }
+}
@@ -0,0 +1,35 @@
+package lsunol.schibsted.application;
+
+import lsunol.schibsted.controllers.*;
+import lsunol.schibsted.controllers.nested.NestedController;
+import org.junit.Test;
+
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WebApplicationTest {
+
+    @Test
+    public void controllerIndexListsEveryController() throws Exception {
+        List<Class> indexedControllers = WebApplication.getIndexedWebControllers();
+        assertNotNull("The controller index should be written when compiling.", indexedControllers);
+        assertTrue(indexedControllers.containsAll(Arrays.asList(LoginController.class, LogoutController.class, Page1Controller.class,
+                Page2Controller.class, Page3Controller.class, UserChangesController.class, UserRestApiController.class)));
+        for (Class controller : indexedControllers) {
+            assertTrue(ApplicationController.class.isAssignableFrom(controller));
+            assertFalse(Modifier.isAbstract(controller.getModifiers()));
+        }
+    }
+
+    @Test
+    public void controllerScanFindsTheIndexedControllersAndTheOnesInSubPackages() throws Exception {
+        List<Class> scannedControllers = WebApplication.scanWebControllers();
+        assertTrue(scannedControllers.containsAll(WebApplication.getIndexedWebControllers()));
+        assertTrue(scannedControllers.contains(NestedController.class));
+        assertFalse(scannedControllers.contains(ApplicationController.class));
+        assertFalse(scannedControllers.contains(AuthenticatedController.class));
+    }
+}
@@ -0,0 +1,53 @@
+package lsunol.schibsted.controllers;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import lsunol.schibsted.database.DuplicateKeyException;
+import lsunol.schibsted.database.InMemoryUserRepository;
+import lsunol.schibsted.database.UserRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class AdminAuthenticatorTest {
+
+    private UserRepository userRepository;
+    private AdminAuthenticator authenticator;
+
+    @Before
+    public void setUp() throws DuplicateKeyException {
+        userRepository = spy(new InMemoryUserRepository());
+        userRepository.addNewUser("admin", "1234", Arrays.asList("ADMIN"));
+        authenticator = new AdminAuthenticator(userRepository);
+    }
+
+    @Test
+    public void successfulLoginIsCached() {
+        assertTrue(authenticator.authenticate(request("admin", "1234")) instanceof Authenticator.Success);
+        assertTrue(authenticator.authenticate(request("admin", "1234")) instanceof Authenticator.Success);
+        verify(userRepository, times(1)).checkUserCredentials("admin", "1234");
+    }
+
+    @Test
+    public void failedLoginIsNotCached() {
+        assertTrue(authenticator.authenticate(request("admin", "wrong")) instanceof Authenticator.Failure);
+        assertTrue(authenticator.authenticate(request("admin", "wrong")) instanceof Authenticator.Failure);
+        verify(userRepository, times(2)).checkUserCredentials("admin", "wrong");
+    }
+
+    private static HttpExchange request(String username, String password) {
+        Headers headers = new Headers();
+        headers.add("Authorization", "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8)));
+        HttpExchange httpExchange = mock(HttpExchange.class);
+        when(httpExchange.getRequestHeaders()).thenReturn(headers);
+        when(httpExchange.getResponseHeaders()).thenReturn(new Headers());
+        return httpExchange;
+    }
+}
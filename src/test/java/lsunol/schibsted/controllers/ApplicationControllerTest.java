@@ -4,6 +4,7 @@ import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import lsunol.schibsted.TestUtils;
 import lsunol.schibsted.application.ApplicationConstants;
+import lsunol.schibsted.controllers.annotations.HttpProduces;
 import lsunol.schibsted.database.DuplicateKeyException;
 import lsunol.schibsted.database.RepositoryManager;
 import lsunol.schibsted.database.SessionRepository;
@@ -18,14 +19,26 @@ import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ApplicationControllerTest {
@@ -104,6 +117,14 @@ public class ApplicationControllerTest {
         assertEquals("strayberry", cookies.get("tasty_cookie"));
     }
 
+    @Test
+    public void getQueryParameters() {
+        when(httpExchange.getRequestURI()).thenReturn(URI.create("/api/users?role=PAGE_1&name=a%20b&empty"));
+        Map<String, String> parameters = ApplicationController.getQueryParameters(httpExchange);
+        assertEquals(2, parameters.size());
+        assertEquals("PAGE_1", parameters.get("role"));
+        assertEquals("a b", parameters.get("name"));
+    }
 
     @Test
     public void setSessionCookie() {
@@ -163,4 +184,175 @@ public class ApplicationControllerTest {
     public void unacceptableFormatFound() {
         assertNull(ApplicationController.getAcceptableResponseType("application/json", "text/html"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void errorIsSentWithoutAcceptHeader() throws IOException {
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        when(httpExchange.getRequestHeaders()).thenReturn(new Headers());
+        when(httpExchange.getResponseBody()).thenReturn(responseBody);
+        ApplicationController.sendResponse(httpExchange, new ResponseToClientException(404, "Not here."));
+        verify(httpExchange).sendResponseHeaders(404, "Not here.".length());
+        assertEquals("text/plain", responseHeaders.getFirst("Content-Type"));
+        assertEquals("Not here.", responseBody.toString());
+    }
+
+    @Test
+    public void errorIsSentInTheAcceptedFormat() throws IOException {
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        Headers requestHeaders = new Headers();
+        requestHeaders.set("Accept", "application/jsonp, application/json;q=0.5");
+        when(httpExchange.getRequestHeaders()).thenReturn(requestHeaders);
+        when(httpExchange.getResponseBody()).thenReturn(responseBody);
+        ApplicationController.sendResponse(httpExchange, new ResponseToClientException(404, "Not here."));
+        assertEquals("application/json", responseHeaders.getFirst("Content-Type"));
+        assertTrue(responseBody.toString().contains("\"msg\":\"Not here.\""));
+    }
+
+    @Test
+    public void staticTemplateIsSentPrecompressed() throws IOException {
+        ByteArrayOutputStream responseBody = mockRequestAcceptingEncoding("deflate;q=0.5, gzip");
+        ApplicationController.sendResponse(httpExchange, 200, "login-form", new HashMap<>());
+        assertEquals("gzip", httpExchange.getResponseHeaders().getFirst("Content-Encoding"));
+        assertEquals("Accept-Encoding", httpExchange.getResponseHeaders().getFirst("Vary"));
+        assertArrayEquals(Template.get("login-form").getCompressedBytes("gzip"), responseBody.toByteArray());
+        verify(httpExchange).sendResponseHeaders(200, responseBody.size());
+        assertEquals(ApplicationController.getTemplate("login-form"), new String(decompress(responseBody.toByteArray())));
+    }
+
+    @Test
+    public void renderedTemplateIsCompressed() throws IOException {
+        ByteArrayOutputStream responseBody = mockRequestAcceptingEncoding("gzip");
+        Map<String, String> templateAttributes = ApplicationController.initializeTemplateParams(requestUser);
+        templateAttributes.put(ApplicationConstants.FEEDBACK_MESSAGE_KEY, "Your password has been changed successfully.");
+        ApplicationController.sendResponse(httpExchange, 200, "page1", templateAttributes);
+        assertEquals("gzip", httpExchange.getResponseHeaders().getFirst("Content-Encoding"));
+        String html = new String(decompress(responseBody.toByteArray()));
+        assertTrue(html.contains("Hello, testUser"));
+        assertTrue(html.contains("Your password has been changed successfully."));
+    }
+
+    @Test
+    public void smallResponseIsNotCompressed() throws IOException {
+        ByteArrayOutputStream responseBody = mockRequestAcceptingEncoding("gzip");
+        ApplicationController.sendResponse(httpExchange, new ResponseToClientException(404, "Not here."));
+        assertNull(httpExchange.getResponseHeaders().getFirst("Content-Encoding"));
+        assertEquals("Not here.", responseBody.toString());
+    }
+
+    @Test
+    public void pageIsSentWithItsEntityTag() throws IOException {
+        mockRequestAcceptingEncoding("identity");
+        when(httpExchange.getRequestMethod()).thenReturn("GET");
+        Map<String, String> templateAttributes = ApplicationController.initializeTemplateParams(requestUser);
+        ApplicationController.sendResponse(httpExchange, 200, "page1", templateAttributes);
+        String entityTag = httpExchange.getResponseHeaders().getFirst("ETag");
+        assertEquals("\"" + Template.get("page1").getEntityTag(templateAttributes) + "\"", entityTag);
+        assertNotEquals(entityTag, "\"" + Template.get("page1").getEntityTag(ApplicationController.initializeTemplateParams(null)) + "\"");
+    }
+
+    @Test
+    public void unchangedPageIsNotModified() throws IOException {
+        ByteArrayOutputStream responseBody = mockRequestAcceptingEncoding("gzip");
+        when(httpExchange.getRequestMethod()).thenReturn("GET");
+        String entityTag = Template.get("login-form").getEntityTag(new HashMap<>());
+        httpExchange.getRequestHeaders().set("If-None-Match", "\"other\", W/\"" + entityTag + "-gzip\"");
+        ApplicationController.sendResponse(httpExchange, 200, "login-form", new HashMap<>());
+        verify(httpExchange).sendResponseHeaders(304, -1);
+        assertEquals("\"" + entityTag + "-gzip\"", httpExchange.getResponseHeaders().getFirst("ETag"));
+        assertEquals(0, responseBody.size());
+    }
+
+    @Test
+    public void renderedPageIsCachedUntilItsUserChanges() throws IOException, DuplicateKeyException {
+        UserRepository userRepository = RepositoryManager.getUserRepository();
+        userRepository.addNewUser("cachedPageUser", "1234", Arrays.asList("PAGE_1"));
+        Map<String, String> templateAttributes = ApplicationController.initializeTemplateParams(userRepository.getUserByUsername("cachedPageUser"));
+        RenderedPageCache cache = ApplicationController.getRenderedPageCache();
+        String entityTag = Template.get("page1").getEntityTag(templateAttributes);
+        assertNull(cache.get(entityTag));
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream responseBody = mockRequestAcceptingEncoding("identity");
+            when(httpExchange.getRequestMethod()).thenReturn("GET");
+            ApplicationController.sendResponse(httpExchange, 200, "page1", templateAttributes);
+            assertTrue(responseBody.toString().contains("Hello, cachedPageUser"));
+        }
+        assertNotNull(cache.get(entityTag));
+
+        userRepository.deleteUser("cachedPageUser");
+        assertNull(cache.get(entityTag));
+    }
+
+    @Test
+    public void entityTagsAreMatchedInAnyEncoding() {
+        assertEquals("\"abc\"", ApplicationController.getMatchingEntityTag("\"abc\"", "abc"));
+        assertEquals("\"abc-deflate\"", ApplicationController.getMatchingEntityTag("\"x\", \"abc-deflate\"", "abc"));
+        assertEquals("\"abc\"", ApplicationController.getMatchingEntityTag("*", "abc"));
+        assertNull(ApplicationController.getMatchingEntityTag("\"abcd\", abc, \"abc-br\"", "abc"));
+        assertNull(ApplicationController.getMatchingEntityTag(null, "abc"));
+    }
+
+    @Test
+    public void asyncResponseIsSentWhenTheFutureCompletes() throws IOException {
+        ByteArrayOutputStream responseBody = mockJsonGetRequest();
+        AsyncController controller = new AsyncController();
+        controller.handle(httpExchange);
+        verify(httpExchange, never()).sendResponseHeaders(anyInt(), anyLong());
+        controller.response.complete(Collections.singletonMap("status", "done"));
+        verify(httpExchange).sendResponseHeaders(200, "{\"status\":\"done\"}".length());
+        assertEquals("{\"status\":\"done\"}", responseBody.toString());
+    }
+
+    @Test
+    public void asyncFailureIsSentWhenTheFutureCompletes() throws IOException {
+        ByteArrayOutputStream responseBody = mockJsonGetRequest();
+        AsyncController controller = new AsyncController();
+        controller.handle(httpExchange);
+        controller.response.completeExceptionally(new CompletionException(new ResponseToClientException(409, "Conflict.")));
+        verify(httpExchange).sendResponseHeaders(eq(409), anyLong());
+        assertTrue(responseBody.toString().contains("\"msg\":\"Conflict.\""));
+    }
+
+    private ByteArrayOutputStream mockRequestAcceptingEncoding(String acceptEncoding) {
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        Headers requestHeaders = new Headers();
+        requestHeaders.set("Accept-Encoding", acceptEncoding);
+        when(httpExchange.getRequestHeaders()).thenReturn(requestHeaders);
+        when(httpExchange.getResponseHeaders()).thenReturn(new Headers());
+        when(httpExchange.getResponseBody()).thenReturn(responseBody);
+        return responseBody;
+    }
+
+    private static byte[] decompress(byte[] gzip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            byte[] buffer = new byte[1024];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private ByteArrayOutputStream mockJsonGetRequest() {
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        Headers requestHeaders = new Headers();
+        requestHeaders.set("Accept", "application/json");
+        when(httpExchange.getRequestHeaders()).thenReturn(requestHeaders);
+        when(httpExchange.getRequestMethod()).thenReturn("GET");
+        when(httpExchange.getResponseBody()).thenReturn(responseBody);
+        return responseBody;
+    }
+
+    public static class AsyncController extends ApplicationController {
+        private final CompletableFuture<Object> response = new CompletableFuture<>();
+
+        @Override
+        public String getRequestMapping() {
+            return "/async";
+        }
+
+        @HttpProduces(name = "application/json")
+        public CompletableFuture<Object> doGet() {
+            return response;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package lsunol.schibsted.controllers;
+
+import com.sun.net.httpserver.HttpExchange;
+import lsunol.schibsted.application.ApplicationConstants;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ContentNegotiatorTest {
+
+    private final ContentNegotiator jsonOrText = new ContentNegotiator("application/json;text/plain");
+
+    @Test
+    public void missingAcceptHeaderAcceptsFirstType() {
+        assertEquals("application/json", jsonOrText.negotiate(null));
+        assertEquals("application/json", jsonOrText.negotiate(" "));
+    }
+
+    @Test
+    public void similarTypeIsNotAccepted() {
+        assertNull(jsonOrText.negotiate("application/jsonp"));
+        assertNull(jsonOrText.negotiate("application/json-seq, text/plainx"));
+    }
+
+    @Test
+    public void highestQualityTypeIsChosen() {
+        assertEquals("text/plain", jsonOrText.negotiate("application/json;q=0.5, text/plain;q=0.8"));
+        assertEquals("application/json", jsonOrText.negotiate("application/json;q=0.9, text/*;q=0.8"));
+    }
+
+    @Test
+    public void zeroQualityIsNotAcceptable() {
+        assertEquals("text/plain", jsonOrText.negotiate("application/json;q=0, */*"));
+        assertNull(jsonOrText.negotiate("*/*;q=0"));
+    }
+
+    @Test
+    public void anyTypeIsAcceptableForAnyRange() {
+        ContentNegotiator anyType = new ContentNegotiator("*/*");
+        assertEquals("*/*", anyType.negotiate("text/css"));
+        assertEquals("*/*", anyType.negotiate("image/webp,image/*;q=0.8"));
+        assertEquals("*/*", anyType.negotiate("text/html;q=0, image/png"));
+        assertNull(anyType.negotiate("text/css;q=0"));
+        assertNull(anyType.negotiate("text/css;q=0, */*;q=0"));
+    }
+
+    @Test
+    public void mostSpecificRangeGivesTheQuality() {
+        assertEquals("application/json", jsonOrText.negotiate("text/*;q=0.9, text/plain;q=0.1, application/*;q=0.5"));
+        assertNull(jsonOrText.negotiate("*/*, application/json;q=0, text/*;q=0"));
+    }
+
+    @Test
+    public void explicitTypeWinsOverWildcardsOnTie() {
+        assertEquals("text/plain", jsonOrText.negotiate("*/*, text/plain"));
+        assertEquals("application/json", jsonOrText.negotiate("*/*"));
+    }
+
+    @Test
+    public void headersAreCaseInsensitiveAndMalformedRangesIgnored() {
+        assertEquals("text/plain", jsonOrText.negotiate("json, */json, TEXT/Plain;Q=0.7, application/json;q=2"));
+    }
+
+    @Test
+    public void negotiatedTypesAreRememberedUpToTheLimit() {
+        ContentNegotiator negotiator = new ContentNegotiator("text/html");
+        for (int i = 0; i < ApplicationConstants.ACCEPT_CACHE_MAX_ENTRIES * 3; i++) {
+            assertEquals("text/html", negotiator.negotiate("text/html;q=0." + (i % 9 + 1) + ", unusual/type" + i));
+            assertNull(negotiator.negotiate("application/json" + i));
+        }
+        assertEquals("text/html", negotiator.negotiate("text/*"));
+    }
+
+    @Test
+    public void methodAnnotationIsParsedOnce() throws NoSuchMethodException {
+        ContentNegotiator negotiator = ContentNegotiator.forMethod(UserRestApiController.class.getMethod("doGet", HttpExchange.class, PathParameters.class));
+        assertSame(negotiator, ContentNegotiator.forMethod(UserRestApiController.class.getMethod("doGet", HttpExchange.class, PathParameters.class)));
+        assertEquals("application/json;text/plain", negotiator.getProduces());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullProducesIsRejected() {
+        new ContentNegotiator(null);
+    }
+}
@@ -0,0 +1,62 @@
+package lsunol.schibsted.controllers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RenderedPageCacheTest {
+
+    private final RenderedPageCache cache = new RenderedPageCache(2);
+
+    @Test
+    public void cachedPagesAreHits() {
+        assertNull(cache.get("a"));
+        cache.put("a", "user1", "<p>a</p>".getBytes());
+        assertArrayEquals("<p>a</p>".getBytes(), cache.get("a").getBody());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedPageIsEvicted() {
+        cache.put("a", "user1", new byte[1]);
+        cache.put("b", "user1", new byte[1]);
+        cache.get("a");
+        cache.put("c", "user2", new byte[1]);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void pagesOfAChangedUserAreInvalidated() {
+        cache.put("a", "user1", new byte[1]);
+        cache.put("b", "user2", new byte[1]);
+        cache.invalidateUser("user1");
+        cache.invalidateUser(null);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictedPageIsNoLongerIndexed() {
+        cache.put("a", "user1", new byte[1]);
+        cache.put("b", "user2", new byte[1]);
+        cache.put("c", "user2", new byte[1]);
+        cache.invalidateUser("user1");
+        assertEquals(0, cache.getInvalidations());
+        cache.invalidateUser("user2");
+        assertEquals(2, cache.getInvalidations());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void compressedBodyIsComputedOnce() {
+        RenderedPageCache.RenderedPage page = cache.put("a", "user1", "<p>a</p>".getBytes());
+        assertSame(page.getCompressedBody("gzip"), page.getCompressedBody("gzip"));
+        assertNotSame(page.getCompressedBody("gzip"), page.getCompressedBody("deflate"));
+    }
+}
@@ -0,0 +1,104 @@
+package lsunol.schibsted.controllers;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RequestCoalescerTest {
+
+    private final RequestCoalescer<String> coalescer = new RequestCoalescer<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Test
+    public void identicalConcurrentRequestsShareTheLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Future<String> first = executor.submit(() -> coalescer.execute("key", () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            await(release);
+            return "response";
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Future<String> second = executor.submit(() -> coalescer.execute("key", () -> "response " + loads.incrementAndGet()));
+        while (coalescer.getCoalesced() == 0) Thread.sleep(1);
+        release.countDown();
+
+        assertEquals("response", first.get(5, TimeUnit.SECONDS));
+        assertSame(first.get(), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals(1, coalescer.getLoads());
+        executor.shutdown();
+    }
+
+    @Test
+    public void requestsAfterAnInvalidationLoadAgain() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> coalescer.execute("key", () -> {
+            loading.countDown();
+            await(release);
+            return "before";
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        coalescer.invalidate();
+
+        assertEquals("after", coalescer.execute("key", () -> "after"));
+        release.countDown();
+        assertEquals("before", first.get(5, TimeUnit.SECONDS));
+        assertEquals(0, coalescer.getCoalesced());
+        executor.shutdown();
+    }
+
+    @Test
+    public void completedResponsesAreNotKept() throws Exception {
+        assertEquals("first", coalescer.execute("key", () -> "first"));
+        assertEquals("second", coalescer.execute("key", () -> "second"));
+        assertEquals(2, coalescer.getLoads());
+    }
+
+    @Test
+    public void failuresAreSharedToo() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> coalescer.execute("key", () -> {
+            loading.countDown();
+            await(release);
+            throw new ResponseToClientException(400, "Bad request");
+        }));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        Future<String> second = executor.submit(() -> coalescer.execute("key", () -> "response"));
+        while (coalescer.getCoalesced() == 0) Thread.sleep(1);
+        release.countDown();
+
+        for (Future<String> request : Arrays.asList(first, second)) {
+            try {
+                request.get(5, TimeUnit.SECONDS);
+                fail("The failure of the load must be thrown to every request");
+            } catch (ExecutionException e) {
+                assertEquals(400, ((ResponseToClientException) e.getCause()).getResponseStatus());
+            }
+        }
+        executor.shutdown();
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            if (!latch.await(5, TimeUnit.SECONDS)) throw new IOException("The test did not release the load.");
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package lsunol.schibsted.controllers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class ResponseCompressionTest {
+
+    @Test
+    public void missingHeaderMeansNoCompression() {
+        assertNull(ResponseCompression.negotiate(null));
+        assertNull(ResponseCompression.negotiate(" "));
+        assertNull(ResponseCompression.negotiate("identity, br"));
+    }
+
+    @Test
+    public void gzipIsPreferredOnTie() {
+        assertEquals("gzip", ResponseCompression.negotiate("deflate, gzip"));
+        assertEquals("gzip", ResponseCompression.negotiate("*"));
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0.5, deflate"));
+    }
+
+    @Test
+    public void zeroQualityIsNotAccepted() {
+        assertEquals("deflate", ResponseCompression.negotiate("gzip;q=0, *"));
+        assertNull(ResponseCompression.negotiate("*;q=0"));
+        assertEquals("gzip", ResponseCompression.negotiate("GZIP;Q=0.3, deflate;q=many, *;q=0"));
+    }
+
+    @Test
+    public void compressedBodiesAreDecompressed() throws IOException {
+        byte[] body = repeat("<p>Hello, compressed world.</p>", 50).getBytes();
+        byte[] gzip = ResponseCompression.compress(body, "gzip");
+        byte[] deflate = ResponseCompression.compress(body, "deflate");
+        assertTrue(gzip.length < body.length && deflate.length < body.length);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(deflate))));
+    }
+
+    @Test
+    public void onlySmallerCompressedBodiesAreKept() {
+        assertTrue(ResponseCompression.compressAll("<p>x</p>".getBytes()).isEmpty());
+        Map<String, byte[]> compressed = ResponseCompression.compressAll(repeat("<br>", 100).getBytes());
+        assertEquals(2, compressed.size());
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) repeated.append(text);
+        return repeated.toString();
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,145 @@
+package lsunol.schibsted.controllers;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RouterTest {
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private Router router;
+
+    @Before
+    public void setUp() {
+        router = new Router();
+        router.addRoutes(new UserRestApiController(), null);
+        router.addRoutes(new Page1Controller(), null);
+        router.addRoutes(new TemplatesController("/api/users/me", "/api/groups/{group}/users/{username}"), null);
+    }
+
+    @Test
+    public void matchStaticTemplate() {
+        Router.Match match = router.match("/page1");
+        assertEquals("/page1", match.getRoute().getTemplate());
+        assertTrue(match.getParameters().asMap().isEmpty());
+    }
+
+    @Test
+    public void matchTemplateWithParameter() {
+        Router.Match match = router.match("/api/users/page1user");
+        assertEquals("/api/users/{username}", match.getRoute().getTemplate());
+        assertEquals("page1user", match.getParameters().get("username"));
+        assertNotNull(match.getRoute().getMethod("delete"));
+    }
+
+    @Test
+    public void matchTemplateWithSeveralParameters() {
+        Router.Match match = router.match("/api/groups/admins/users/admin");
+        assertEquals("admins", match.getParameters().get("group"));
+        assertEquals("admin", match.getParameters().get("username"));
+    }
+
+    @Test
+    public void parametersAreUrlDecoded() {
+        Router.Match match = router.match("/api/users/john%20doe+%C3%A9%2Fx");
+        assertEquals("john doe+\u00e9/x", match.getParameters().get("username"));
+    }
+
+    @Test
+    public void staticTemplateIsPreferredOverParameter() {
+        assertEquals("/api/users/me", router.match("/api/users/me").getRoute().getTemplate());
+        assertEquals("/api/users/{username}", router.match("/api/users/meh").getRoute().getTemplate());
+        assertEquals("/api/users/{username}", router.match("/api/users/m").getRoute().getTemplate());
+    }
+
+    @Test
+    public void trailingSlashIsIgnored() {
+        assertEquals("/api/users", router.match("/api/users/").getRoute().getTemplate());
+        assertEquals("/page1", router.match("/page1/").getRoute().getTemplate());
+    }
+
+    @Test
+    public void unknownPathsDoNotMatch() {
+        assertNull(router.match("/"));
+        assertNull(router.match("/page"));
+        assertNull(router.match("/page12"));
+        assertNull(router.match("/api/users/admin/roles"));
+        assertNull(router.match("/api/groups/admins/users"));
+    }
+
+    @Test
+    public void unknownHttpMethodHasNoControllerMethod() {
+        assertNull(router.match("/page1").getRoute().getMethod("DELETE"));
+        assertNotNull(router.match("/page1").getRoute().getMethod("GET"));
+    }
+
+    @Test
+    public void httpMethodsAreRoutedPerTemplate() {
+        assertNotNull(router.match("/api/users").getRoute().getMethod("PATCH"));
+        assertNull(router.match("/api/users/page1user").getRoute().getMethod("PATCH"));
+        assertNotNull(router.match("/api/users/page1user").getRoute().getMethod("PUT"));
+    }
+
+    @Test
+    public void lastParameterCanMatchTheRestOfThePath() {
+        router.addRoutes(new TemplatesController("/static/{path*}", "/static/users/{username}"), null);
+        assertEquals("css/site%.css", router.match("/static/css/site%25.css").getParameters().get("path"));
+        assertEquals("logo.png", router.match("/static/logo.png/").getParameters().get("path"));
+        assertEquals("/static/users/{username}", router.match("/static/users/admin").getRoute().getTemplate());
+        assertEquals("users/admin/avatar.png", router.match("/static/users/admin/avatar.png").getParameters().get("path"));
+        assertNull(router.match("/static"));
+    }
+
+    @Test
+    public void restOfThePathMustBeLastParameter() {
+        exception.expect(IllegalArgumentException.class);
+        router.addRoutes(new TemplatesController("/files/{path*}/raw"), null);
+    }
+
+    @Test
+    public void duplicatedTemplateIsRejected() {
+        exception.expect(IllegalStateException.class);
+        router.addRoutes(new TemplatesController("/page1"), null);
+    }
+
+    @Test
+    public void differentlyNamedParameterIsRejected() {
+        exception.expect(IllegalStateException.class);
+        router.addRoutes(new TemplatesController("/api/users/{name}/roles"), null);
+    }
+
+    @Test
+    public void parameterMustBeWholeSegment() {
+        exception.expect(IllegalArgumentException.class);
+        router.addRoutes(new TemplatesController("/files/{name}.txt"), null);
+    }
+
+    private static class TemplatesController extends ApplicationController {
+        private final List<String> templates;
+
+        TemplatesController(String... templates) {
+            this.templates = Arrays.asList(templates);
+        }
+
+        @Override
+        public String getRequestMapping() {
+            return templates.get(0);
+        }
+
+        @Override
+        public List<String> getPathTemplates() {
+            return templates;
+        }
+
+        public void doGet() {
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package lsunol.schibsted.controllers;
+
+import com.sun.net.httpserver.HttpServer;
+import lsunol.schibsted.server.NioHttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class StaticResourceControllerTest {
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private Path directory;
+    private byte[] styles;
+    private byte[] video;
+    private HttpServer server;
+    private NioHttpServer nioServer;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("static");
+        StringBuilder css = new StringBuilder();
+        for (int i = 0; i < 100; i++) css.append(".rule").append(i).append(" { color: #").append(100 + i).append("; }\n");
+        styles = css.toString().getBytes(StandardCharsets.UTF_8);
+        Files.createDirectories(directory.resolve("css"));
+        Files.write(directory.resolve("css/site.css"), styles);
+        video = new byte[300 * 1024];
+        for (int i = 0; i < video.length; i++) video[i] = (byte) (i * 31);
+        Files.write(directory.resolve("video.mp4"), video);
+        Files.write(directory.resolve(".secret"), "secret".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolveSibling(directory.getFileName() + ".txt"), "outside".getBytes(StandardCharsets.UTF_8));
+
+        Router router = new Router();
+        router.addRoutes(new StaticResourceController(directory), null);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", router);
+        server.start();
+        nioServer = new NioHttpServer(new InetSocketAddress("localhost", 0), router, executor, 1, 100, 30);
+        nioServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        nioServer.close();
+        executor.shutdownNow();
+        Files.delete(directory.resolveSibling(directory.getFileName() + ".txt"));
+        Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
+    @Test
+    public void smallTextFileIsSentCompressed() throws IOException {
+        HttpURLConnection connection = request(server.getAddress(), "/static/css/site.css", "Accept-Encoding", "gzip");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("text/css", connection.getHeaderField("Content-Type"));
+        assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+        assertNotNull(connection.getHeaderField("Last-Modified"));
+        assertArrayEquals(styles, decompress(read(connection)));
+
+        connection = request(server.getAddress(), "/static/css/site.css");
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertEquals(String.valueOf(styles.length), connection.getHeaderField("Content-Length"));
+        assertArrayEquals(styles, read(connection));
+    }
+
+    @Test
+    public void unmodifiedFileIsNotSent() throws IOException {
+        String lastModified = request(server.getAddress(), "/static/css/site.css").getHeaderField("Last-Modified");
+        assertEquals(304, request(server.getAddress(), "/static/css/site.css", "If-Modified-Since", lastModified).getResponseCode());
+        assertEquals(200, request(server.getAddress(), "/static/css/site.css", "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT").getResponseCode());
+    }
+
+    @Test
+    public void modifiedFileIsReadAgain() throws IOException {
+        assertArrayEquals(styles, read(request(server.getAddress(), "/static/css/site.css")));
+        byte[] newStyles = "body { margin: 0; }".getBytes(StandardCharsets.UTF_8);
+        Files.write(directory.resolve("css/site.css"), newStyles);
+        assertArrayEquals(newStyles, read(request(server.getAddress(), "/static/css/site.css")));
+    }
+
+    @Test
+    public void rangeOfSmallFileIsSent() throws IOException {
+        HttpURLConnection connection = request(server.getAddress(), "/static/css/site.css", "Range", "bytes=10-19", "Accept-Encoding", "gzip");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 10-19/" + styles.length, connection.getHeaderField("Content-Range"));
+        assertNull(connection.getHeaderField("Content-Encoding"));
+        assertArrayEquals(Arrays.copyOfRange(styles, 10, 20), read(connection));
+    }
+
+    @Test
+    public void largeFileIsTransferredByBothServers() throws IOException {
+        for (InetSocketAddress address : Arrays.asList(server.getAddress(), nioServer.getAddress())) {
+            HttpURLConnection connection = request(address, "/static/video.mp4");
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("application/octet-stream", connection.getHeaderField("Content-Type"));
+            assertArrayEquals(video, read(connection));
+
+            connection = request(address, "/static/video.mp4", "Range", "bytes=-1000");
+            assertEquals(206, connection.getResponseCode());
+            assertEquals("bytes " + (video.length - 1000) + "-" + (video.length - 1) + "/" + video.length, connection.getHeaderField("Content-Range"));
+            assertArrayEquals(Arrays.copyOfRange(video, video.length - 1000, video.length), read(connection));
+        }
+    }
+
+    @Test
+    public void headRequestDeclaresTheLength() throws IOException {
+        for (InetSocketAddress address : Arrays.asList(server.getAddress(), nioServer.getAddress())) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + address.getPort() + "/static/video.mp4").openConnection();
+            connection.setRequestMethod("HEAD");
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(String.valueOf(video.length), connection.getHeaderField("Content-Length"));
+        }
+    }
+
+    @Test
+    public void unsatisfiableRangeIsRejected() throws IOException {
+        HttpURLConnection connection = request(server.getAddress(), "/static/video.mp4", "Range", "bytes=" + video.length + "-");
+        assertEquals(416, connection.getResponseCode());
+        assertEquals("bytes */" + video.length, connection.getHeaderField("Content-Range"));
+    }
+
+    @Test
+    public void rangeOfOlderVersionIsIgnored() throws IOException {
+        HttpURLConnection connection = request(server.getAddress(), "/static/css/site.css", "Range", "bytes=0-9", "If-Range", "Thu, 01 Jan 1970 00:00:00 GMT");
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(styles, read(connection));
+    }
+
+    @Test
+    public void onlyVisibleFilesInTheDirectoryAreSent() throws IOException {
+        assertEquals(404, request(server.getAddress(), "/static/missing.css").getResponseCode());
+        assertEquals(404, request(server.getAddress(), "/static/css").getResponseCode());
+        assertEquals(404, request(server.getAddress(), "/static/.secret").getResponseCode());
+        assertEquals(404, request(server.getAddress(), "/static/%2e%2e/" + directory.getFileName() + ".txt").getResponseCode());
+        assertEquals(404, request(server.getAddress(), "/static/css/%2e%2e%2f%2e%2e%2f" + directory.getFileName() + ".txt").getResponseCode());
+    }
+
+    @Test
+    public void rangesAreParsed() throws ResponseToClientException {
+        assertArrayEquals(new long[] {0, 99}, StaticResourceController.getRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {900, 999}, StaticResourceController.getRange("bytes=900-2000", 1000));
+        assertArrayEquals(new long[] {100, 999}, StaticResourceController.getRange("bytes=100-", 1000));
+        assertArrayEquals(new long[] {0, 999}, StaticResourceController.getRange("bytes=-2000", 1000));
+        assertNull(StaticResourceController.getRange(null, 1000));
+        assertNull(StaticResourceController.getRange("bytes=0-9,20-29", 1000));
+        assertNull(StaticResourceController.getRange("bytes=9-0", 1000));
+        assertNull(StaticResourceController.getRange("items=0-9", 1000));
+        exception.expect(ResponseToClientException.class);
+        StaticResourceController.getRange("bytes=-0", 1000);
+    }
+
+    @Test
+    public void contentTypeIsGivenByTheExtension() {
+        assertEquals("application/javascript", StaticResourceController.getContentType("js/app.min.js"));
+        assertEquals("image/png", StaticResourceController.getContentType("LOGO.PNG"));
+        assertEquals("application/octet-stream", StaticResourceController.getContentType("v1.2/README"));
+    }
+
+    private static HttpURLConnection request(InetSocketAddress address, String path, String... headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + address.getPort() + path).openConnection();
+        for (int i = 0; i < headers.length; i += 2) connection.setRequestProperty(headers[i], headers[i + 1]);
+        return connection;
+    }
+
+    private static byte[] read(HttpURLConnection connection) throws IOException {
+        try (InputStream input = connection.getInputStream()) {
+            return readAll(input);
+        }
+    }
+
+    private static byte[] decompress(byte[] gzip) throws IOException {
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            return readAll(input);
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) bytes.write(buffer, 0, read);
+        return bytes.toByteArray();
+    }
+}
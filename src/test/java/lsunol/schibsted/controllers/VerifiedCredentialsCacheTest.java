@@ -0,0 +1,111 @@
+package lsunol.schibsted.controllers;
+
+import lsunol.schibsted.database.DuplicateKeyException;
+import lsunol.schibsted.database.InMemoryUserRepository;
+import lsunol.schibsted.database.UserRepository;
+import lsunol.schibsted.model.User;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VerifiedCredentialsCacheTest {
+
+    private static final String HEADER = "Basic YWRtaW46MTIzNA==";
+
+    private UserRepository userRepository;
+    private VerifiedCredentialsCache credentialsCache;
+    private User admin;
+
+    @Before
+    public void setUp() throws DuplicateKeyException {
+        userRepository = new InMemoryUserRepository();
+        admin = userRepository.addNewUser("admin", "1234", Arrays.asList("ADMIN"));
+        credentialsCache = new VerifiedCredentialsCache(60_000, 16, userRepository::getUserByUsername);
+    }
+
+    @Test
+    public void verifiedHeaderIsCached() {
+        credentialsCache.put(HEADER, credentialsCache.snapshot(admin));
+        assertEquals("admin", credentialsCache.getVerifiedUsername(HEADER));
+    }
+
+    @Test
+    public void reloadedSnapshotOfTheSameUserKeepsEntry() {
+        // As a repository whose cache was cleared, which loads a new snapshot of the user for every lookup
+        VerifiedCredentialsCache reloadingCache = new VerifiedCredentialsCache(60_000, 16, username -> {
+            User user = userRepository.getUserByUsername(username);
+            return user == null ? null : User.fromPasswordDigest(user.getUsername(), user.getPasswordDigest(), user.getRoles(), user.getVersion());
+        });
+        reloadingCache.put(HEADER, reloadingCache.snapshot(admin));
+        assertEquals("admin", reloadingCache.getVerifiedUsername(HEADER));
+        userRepository.updateUser("admin", "4321", null);
+        assertNull(reloadingCache.getVerifiedUsername(HEADER));
+    }
+
+    @Test
+    public void unknownHeaderIsNotVerified() {
+        assertNull(credentialsCache.getVerifiedUsername(HEADER));
+        assertNull(credentialsCache.getVerifiedUsername(null));
+    }
+
+    @Test
+    public void passwordChangeInvalidatesEntry() {
+        credentialsCache.put(HEADER, credentialsCache.snapshot(admin));
+        userRepository.updateUser("admin", "4321", null);
+        assertNull(credentialsCache.getVerifiedUsername(HEADER));
+    }
+
+    @Test
+    public void passwordChangedAfterSnapshotIsNotTrusted() {
+        VerifiedCredentialsCache.VerifiedCredentials snapshot = credentialsCache.snapshot(admin);
+        userRepository.updateUser("admin", "4321", null);
+        credentialsCache.put(HEADER, snapshot);
+        assertNull(credentialsCache.getVerifiedUsername(HEADER));
+    }
+
+    @Test
+    public void roleChangeInvalidatesEntry() {
+        credentialsCache.put(HEADER, credentialsCache.snapshot(admin));
+        userRepository.addRoleToUser("admin", Arrays.asList("PAGE_1"));
+        assertNull(credentialsCache.getVerifiedUsername(HEADER));
+    }
+
+    @Test
+    public void deletedUserInvalidatesEntry() {
+        credentialsCache.put(HEADER, credentialsCache.snapshot(admin));
+        userRepository.deleteUser("admin");
+        assertNull(credentialsCache.getVerifiedUsername(HEADER));
+    }
+
+    @Test
+    public void headerWithTheSameHashCodeIsNotVerified() {
+        // "Aa" and "BB" have the same hash code
+        credentialsCache.put("Basic Aa", credentialsCache.snapshot(admin));
+        assertEquals("Basic Aa".hashCode(), "Basic BB".hashCode());
+        assertNull(credentialsCache.getVerifiedUsername("Basic BB"));
+        assertEquals("admin", credentialsCache.getVerifiedUsername("Basic Aa"));
+    }
+
+    @Test
+    public void leastRecentlyUsedHeaderIsDropped() {
+        VerifiedCredentialsCache smallCache = new VerifiedCredentialsCache(60_000, 2, userRepository::getUserByUsername);
+        smallCache.put("Basic first", smallCache.snapshot(admin));
+        smallCache.put("Basic second", smallCache.snapshot(admin));
+        smallCache.getVerifiedUsername("Basic first");
+        smallCache.put("Basic third", smallCache.snapshot(admin));
+        assertNull(smallCache.getVerifiedUsername("Basic second"));
+        assertEquals("admin", smallCache.getVerifiedUsername("Basic first"));
+        assertEquals("admin", smallCache.getVerifiedUsername("Basic third"));
+    }
+
+    @Test
+    public void expiredEntryIsNotTrusted() {
+        VerifiedCredentialsCache expiringCache = new VerifiedCredentialsCache(-1, 16, userRepository::getUserByUsername);
+        expiringCache.put(HEADER, expiringCache.snapshot(admin));
+        assertNull(expiringCache.getVerifiedUsername(HEADER));
+    }
+}
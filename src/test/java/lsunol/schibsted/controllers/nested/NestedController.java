@@ -0,0 +1,14 @@
+package lsunol.schibsted.controllers.nested;
+
+import lsunol.schibsted.controllers.ApplicationController;
+
+/**
+ * Controller in a sub-package of the controllers package, which the controller discovery must find too.
+ */
+public class NestedController extends ApplicationController {
+
+    @Override
+    public String getRequestMapping() {
+        return "/nested";
+    }
+}
@@ -0,0 +1,70 @@
+package lsunol.schibsted.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private static final String DATABASE_URL = "jdbc:h2:mem:connectionPoolTest";
+
+    private Connection database;
+    private ConnectionPool connectionPool;
+
+    @Before
+    public void setUp() throws SQLException {
+        // The pool can only connect while this connection keeps the in-memory database alive
+        database = DriverManager.getConnection(DATABASE_URL);
+        connectionPool = new ConnectionPool(DATABASE_URL + ";IFEXISTS=TRUE", 1, 10);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connectionPool.close();
+        database.close();
+    }
+
+    @Test
+    public void batchesLeftByABorrowerAreDiscarded() throws SQLException {
+        try (Statement statement = database.createStatement()) {
+            statement.execute("CREATE TABLE batched (id INT)");
+        }
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            PreparedStatement insert = pooledConnection.prepare("INSERT INTO batched VALUES (?)");
+            insert.setInt(1, 1);
+            insert.addBatch();
+            // Fails before the batch is executed
+        }
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow()) {
+            assertEquals(0, pooledConnection.prepare("INSERT INTO batched VALUES (?)").executeBatch().length);
+        }
+    }
+
+    @Test
+    public void brokenConnectionIsOpenedAgainOnTheNextBorrow() throws SQLException {
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow();
+             Statement statement = pooledConnection.getConnection().createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        try {
+            connectionPool.borrow();
+            fail("No connection should be opened while the database is down.");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        database = DriverManager.getConnection(DATABASE_URL);
+        try (ConnectionPool.PooledConnection pooledConnection = connectionPool.borrow();
+             Statement statement = pooledConnection.getConnection().createStatement()) {
+            assertTrue(statement.execute("SELECT 1"));
+        }
+    }
+}
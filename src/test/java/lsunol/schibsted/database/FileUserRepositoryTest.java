@@ -0,0 +1,308 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FileUserRepositoryTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path directory;
+    private FileUserRepository userRepository;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.newFolder("users").toPath();
+        userRepository = new FileUserRepository(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        userRepository.close();
+    }
+
+    @Test
+    public void recoversUsersFromTheLog() throws IOException, DuplicateKeyException {
+        userRepository.addNewUser("persistedUser", "password", Arrays.asList("PAGE_1"));
+        userRepository.addNewUser("deletedUser", "password", Arrays.asList("PAGE_1"));
+        userRepository.updateUser("persistedUser", "newPassword", null);
+        userRepository.addRoleToUser("persistedUser", Arrays.asList("PAGE_2"));
+        userRepository.deleteUser("deletedUser");
+        long version = userRepository.getUserByUsername("persistedUser").getVersion();
+
+        // Simulates a crash: the repository is not closed, so no snapshot is taken
+        try (FileUserRepository recoveredRepository = new FileUserRepository(directory)) {
+            User recoveredUser = recoveredRepository.getUserByUsername("persistedUser");
+            assertNotNull(recoveredUser);
+            assertEquals(version, recoveredUser.getVersion());
+            assertTrue(recoveredUser.isPasswordCorrect("newPassword"));
+            assertEquals(Arrays.asList("PAGE_1", "PAGE_2"), recoveredUser.getRoles());
+            assertNull(recoveredRepository.getUserByUsername("deletedUser"));
+            assertEquals(1, recoveredRepository.getUsersByRole("PAGE_2").size());
+        }
+    }
+
+    @Test
+    public void recoversUsersFromTheSnapshotAndTheLog() throws IOException, DuplicateKeyException {
+        userRepository.addNewUser("snapshotUser", "password", Arrays.asList("PAGE_1"));
+        userRepository.takeSnapshot();
+        userRepository.addNewUser("logUser", "password", Arrays.asList("PAGE_2"));
+        userRepository.deleteUser("snapshotUser");
+
+        try (FileUserRepository recoveredRepository = new FileUserRepository(directory)) {
+            assertNull(recoveredRepository.getUserByUsername("snapshotUser"));
+            assertNotNull(recoveredRepository.getUserByUsername("logUser"));
+        }
+    }
+
+    @Test
+    public void takesSnapshotsPeriodically() throws IOException, DuplicateKeyException {
+        Path snapshottingDirectory = temporaryFolder.newFolder("snapshottingUsers").toPath();
+        try (FileUserRepository snapshottingRepository = new FileUserRepository(snapshottingDirectory, true, 2)) {
+            snapshottingRepository.addNewUser("firstUser", "password", new ArrayList<>());
+            assertFalse(Files.exists(snapshottingDirectory.resolve(FileUserRepository.SNAPSHOT_FILE_NAME)));
+            snapshottingRepository.addNewUser("secondUser", "password", new ArrayList<>());
+            assertTrue(Files.exists(snapshottingDirectory.resolve(FileUserRepository.SNAPSHOT_FILE_NAME)));
+            long truncatedLogSize = Files.size(snapshottingDirectory.resolve(FileUserRepository.LOG_FILE_NAME));
+            snapshottingRepository.addNewUser("thirdUser", "password", new ArrayList<>());
+            assertTrue(Files.size(snapshottingDirectory.resolve(FileUserRepository.LOG_FILE_NAME)) > truncatedLogSize);
+
+            try (FileUserRepository recoveredRepository = new FileUserRepository(snapshottingDirectory)) {
+                assertEquals(3, recoveredRepository.getAllUsers().size());
+            }
+        }
+    }
+
+    @Test
+    public void discardsTornRecordAtTheEndOfTheLog() throws IOException, DuplicateKeyException {
+        userRepository.addNewUser("completeUser", "password", new ArrayList<>());
+        userRepository.addNewUser("tornUser", "password", new ArrayList<>());
+        try (RandomAccessFile logFile = new RandomAccessFile(directory.resolve(FileUserRepository.LOG_FILE_NAME).toFile(), "rw")) {
+            logFile.setLength(logFile.length() - 3);
+        }
+
+        try (FileUserRepository recoveredRepository = new FileUserRepository(directory)) {
+            assertNotNull(recoveredRepository.getUserByUsername("completeUser"));
+            assertNull(recoveredRepository.getUserByUsername("tornUser"));
+            // New records are appended right after the last valid one
+            recoveredRepository.addNewUser("afterRecoveryUser", "password", new ArrayList<>());
+            try (FileUserRepository reopenedRepository = new FileUserRepository(directory)) {
+                assertNotNull(reopenedRepository.getUserByUsername("afterRecoveryUser"));
+            }
+        }
+    }
+
+    @Test
+    public void failedWriteIsDiscardedFromTheLog() throws Exception {
+        userRepository.addNewUser("firstUser", "password", new ArrayList<>());
+        FailingFileChannel logChannel = replaceLogChannel(userRepository);
+        logChannel.failNextWrite = true;
+        try {
+            userRepository.addNewUser("failedUser", "password", new ArrayList<>());
+            fail("A modification which could not be written should fail.");
+        } catch (UncheckedIOException e) {
+            // A modification which is not durable is never visible
+            assertNull(userRepository.getUserByUsername("failedUser"));
+        }
+        userRepository.addNewUser("laterUser", "password", new ArrayList<>());
+
+        // Simulates a crash: the later modification must not be lost behind the torn record
+        try (FileUserRepository recoveredRepository = new FileUserRepository(directory)) {
+            assertNotNull(recoveredRepository.getUserByUsername("firstUser"));
+            assertNull(recoveredRepository.getUserByUsername("failedUser"));
+            assertNotNull(recoveredRepository.getUserByUsername("laterUser"));
+        }
+    }
+
+    @Test
+    public void logIsNotWrittenAfterATornRecordCannotBeDiscardedUntilTheNextSnapshot() throws Exception {
+        FailingFileChannel logChannel = replaceLogChannel(userRepository);
+        logChannel.failNextWrite = true;
+        logChannel.failTruncate = true;
+        for (String username : Arrays.asList("failedUser", "laterUser")) {
+            try {
+                userRepository.addNewUser(username, "password", new ArrayList<>());
+                fail("No modification should be written after a torn record.");
+            } catch (UncheckedIOException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, logChannel.writes);
+        assertNull(userRepository.getUserByUsername("failedUser"));
+
+        // A snapshot starts a new log, which can be written again
+        logChannel.failTruncate = false;
+        userRepository.takeSnapshot();
+        userRepository.addNewUser("afterSnapshotUser", "password", new ArrayList<>());
+        try (FileUserRepository recoveredRepository = new FileUserRepository(directory)) {
+            assertNotNull(recoveredRepository.getUserByUsername("afterSnapshotUser"));
+        }
+    }
+
+    @Test
+    public void failedWriteIsNotSavedBySnapshots() throws Exception {
+        userRepository.addNewUser("firstUser", "password", new ArrayList<>());
+        FailingFileChannel logChannel = replaceLogChannel(userRepository);
+        logChannel.failNextWrite = true;
+        try {
+            userRepository.updateUser("firstUser", "failedPassword", null);
+            fail("A modification which could not be written should fail.");
+        } catch (UncheckedIOException e) {
+            // Expected
+        }
+        userRepository.takeSnapshot();
+
+        try (FileUserRepository recoveredRepository = new FileUserRepository(directory)) {
+            assertTrue(recoveredRepository.checkUserCredentials("firstUser", "password"));
+        }
+    }
+
+    @Test
+    public void closedRepositoryRejectsModifications() throws IOException, DuplicateKeyException {
+        userRepository.close();
+        try {
+            userRepository.addNewUser("lateUser", "password", new ArrayList<>());
+            fail("A closed repository should not accept modifications.");
+        } catch (IllegalStateException e) {
+            assertNull(userRepository.getUserByUsername("lateUser"));
+        }
+    }
+
+    private static FailingFileChannel replaceLogChannel(FileUserRepository repository) throws ReflectiveOperationException {
+        Field logChannelField = FileUserRepository.class.getDeclaredField("logChannel");
+        logChannelField.setAccessible(true);
+        FailingFileChannel failingChannel = new FailingFileChannel((FileChannel) logChannelField.get(repository));
+        logChannelField.set(repository, failingChannel);
+        return failingChannel;
+    }
+
+    /**
+     * File channel which writes half of the bytes of a write and fails, as a full disk would.
+     */
+    private static class FailingFileChannel extends FileChannel {
+        private final FileChannel channel;
+        private volatile boolean failNextWrite;
+        private volatile boolean failTruncate;
+        private volatile int writes;
+
+        FailingFileChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            writes++;
+            if (!failNextWrite) return channel.write(src);
+            failNextWrite = false;
+            ByteBuffer half = src.duplicate();
+            half.limit(src.position() + src.remaining() / 2);
+            channel.write(half);
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate) throw new IOException("Input/output error");
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
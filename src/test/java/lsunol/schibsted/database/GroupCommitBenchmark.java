@@ -0,0 +1,55 @@
+package lsunol.schibsted.database;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the write throughput of several concurrent writers of a {@link FileUserRepository} with group commit
+ * enabled and disabled. Every write is fsync'ed, so the results depend mostly on the disk.
+ * <p>
+ * Run it with the test classpath: <code>java -cp ... lsunol.schibsted.database.GroupCommitBenchmark [writers] [writesPerWriter]</code>
+ */
+public class GroupCommitBenchmark {
+
+    private static final int DEFAULT_WRITERS = 8;
+    private static final int DEFAULT_WRITES_PER_WRITER = 200;
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_WRITERS;
+        int writesPerWriter = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WRITES_PER_WRITER;
+        for (boolean groupCommit : new boolean[] {true, false}) {
+            System.out.printf("%-21s %.0f user writes per second (%d writers)%n", groupCommit ? "with group commit" : "without group commit",
+                    measureWritesPerSecond(groupCommit, writers, writesPerWriter), writers);
+        }
+    }
+
+    private static double measureWritesPerSecond(boolean groupCommit, int writers, int writesPerWriter) throws Exception {
+        Path directory = Files.createTempDirectory("users");
+        FileUserRepository repository = new FileUserRepository(directory, groupCommit, FileUserRepository.DEFAULT_SNAPSHOT_EVERY_RECORDS);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> results = new ArrayList<>();
+            for (int writer = 0; writer < writers; writer++) {
+                String prefix = "writer" + writer + "-";
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < writesPerWriter; i++) repository.addNewUser(prefix + i, "password", Arrays.asList("PAGE_1"));
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) result.get();
+            return writers * writesPerWriter / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            executor.shutdown();
+            repository.close();
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
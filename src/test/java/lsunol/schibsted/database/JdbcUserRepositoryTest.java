@@ -0,0 +1,77 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JdbcUserRepositoryTest {
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private String jdbcUrl;
+    private JdbcUserRepository userRepository;
+
+    @Before
+    public void setUp() throws SQLException {
+        jdbcUrl = "jdbc:h2:mem:jdbcUserRepositoryTest" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        userRepository = new JdbcUserRepository(jdbcUrl, 2, 10);
+    }
+
+    @After
+    public void tearDown() {
+        userRepository.close();
+    }
+
+    @Test
+    public void servesRepeatedLookupsFromTheCache() throws DuplicateKeyException {
+        userRepository.addNewUser("cachedUser", "password", Arrays.asList("PAGE_1"));
+        User user = userRepository.getUserByUsername("cachedUser");
+        assertSame(user, userRepository.getUserByUsername("cachedUser"));
+    }
+
+    @Test
+    public void modificationsInvalidateTheCache() throws DuplicateKeyException {
+        userRepository.addNewUser("modifiedUser", "password", Arrays.asList("PAGE_1"));
+        User user = userRepository.getUserByUsername("modifiedUser");
+        userRepository.updateUser("modifiedUser", "newPassword", null);
+        User updatedUser = userRepository.getUserByUsername("modifiedUser");
+        assertEquals(user.getVersion() + 1, updatedUser.getVersion());
+        assertTrue(userRepository.checkUserCredentials("modifiedUser", "newPassword"));
+        userRepository.deleteUser("modifiedUser");
+        assertNull(userRepository.getUserByUsername("modifiedUser"));
+    }
+
+    @Test
+    public void usersAreSharedByRepositoriesOnTheSameDatabase() throws SQLException, DuplicateKeyException {
+        userRepository.addNewUser("sharedUser", "password", Arrays.asList("PAGE_1", "PAGE_2"));
+        try (JdbcUserRepository otherRepository = new JdbcUserRepository(jdbcUrl)) {
+            User user = otherRepository.getUserByUsername("sharedUser");
+            assertNotNull(user);
+            assertTrue(user.isPasswordCorrect("password"));
+            assertEquals(Arrays.asList("PAGE_1", "PAGE_2"), user.getRoles());
+        }
+    }
+
+    @Test
+    public void prefixSearchTreatsWildcardsLiterally() throws DuplicateKeyException {
+        userRepository.addNewUser("under_score", "password", new ArrayList<>());
+        userRepository.addNewUser("underXscore", "password", new ArrayList<>());
+        assertEquals(1, userRepository.searchUsersByPrefix("under_", 10).size());
+        assertEquals(0, userRepository.searchUsersByPrefix("%", 10).size());
+    }
+
+    @Test
+    public void pooledConnectionsAreReused() throws DuplicateKeyException {
+        // More operations than pooled connections: each one must give its connection back
+        for (int i = 0; i < 10; i++) userRepository.addNewUser("pooledUser" + i, "password", Arrays.asList("PAGE_1"));
+        assertEquals(10, userRepository.getUsersByRole("PAGE_1").size());
+    }
+}
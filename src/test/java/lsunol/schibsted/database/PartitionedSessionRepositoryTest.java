@@ -0,0 +1,135 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.Session;
+import lsunol.schibsted.model.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PartitionedSessionRepositoryTest {
+
+    private static final int SESSIONS_COUNT = 300;
+    private static final String SECRET = "clusterSecret";
+
+    private final List<PartitionedSessionRepository> nodes = new ArrayList<>();
+    private final User user = new User("sessionUser", "password", Arrays.asList("PAGE_1"));
+
+    @After
+    public void tearDown() throws IOException {
+        for (PartitionedSessionRepository node : nodes) node.close();
+    }
+
+    @Test
+    public void ringSpreadsKeysAndOnlyMovesTheKeysOfANewNode() {
+        ConsistentHashRing ring = new ConsistentHashRing(128).withNode("a:1").withNode("b:1").withNode("c:1");
+        ConsistentHashRing grownRing = ring.withNode("d:1");
+        Map<String, Integer> keysByNode = new HashMap<>();
+        int movedKeys = 0;
+        for (int i = 0; i < 10000; i++) {
+            String key = UUID.randomUUID().toString();
+            List<String> owners = ring.getOwners(key, 2);
+            assertEquals(2, new HashSet<>(owners).size());
+            keysByNode.merge(owners.get(0), 1, Integer::sum);
+            String newPrimary = grownRing.getOwners(key, 2).get(0);
+            if (!newPrimary.equals(owners.get(0))) {
+                assertEquals("d:1", newPrimary);
+                movedKeys++;
+            }
+        }
+        for (int keys : keysByNode.values()) assertTrue("Unbalanced ring: " + keysByNode, keys > 2500 && keys < 4200);
+        assertTrue("Too many keys moved: " + movedKeys, movedKeys > 1500 && movedKeys < 3500);
+    }
+
+    @Test
+    public void sessionsArePartitionedWithOneReplica() throws IOException, InterruptedException {
+        startNodes(3);
+        List<Session> sessions = generateSessions(nodes.get(0));
+        int storedSessions = 0;
+        for (PartitionedSessionRepository node : nodes) {
+            assertTrue(node.getLocalSessionsCount() < SESSIONS_COUNT);
+            storedSessions += node.getLocalSessionsCount();
+        }
+        assertEquals(2 * SESSIONS_COUNT, storedSessions);
+        assertReadableFromEveryNode(sessions);
+    }
+
+    @Test
+    public void sessionsAreServedFromTheNearCache() throws IOException, InterruptedException {
+        startNodes(2);
+        Session session = nodes.get(0).generateSessionForUser(user);
+        PartitionedSessionRepository otherNode = nodes.get(1);
+        assertEquals("sessionUser", otherNode.getUsernameFromSession(session.getSessionKey()));
+        assertEquals("sessionUser", otherNode.getUsernameFromSession(session.getSessionKey()));
+        assertEquals(1, otherNode.getNearCacheMisses());
+        assertEquals(1, otherNode.getNearCacheHits());
+    }
+
+    @Test
+    public void sessionsAreRebalancedWhenANodeJoins() throws IOException, InterruptedException {
+        startNodes(2);
+        List<Session> sessions = generateSessions(nodes.get(0));
+        startNodes(1);
+        awaitRebalancing();
+        int storedSessions = 0;
+        for (PartitionedSessionRepository node : nodes) storedSessions += node.getLocalSessionsCount();
+        assertTrue(nodes.get(2).getLocalSessionsCount() > 0);
+        assertEquals(2 * SESSIONS_COUNT, storedSessions);
+        assertReadableFromEveryNode(sessions);
+    }
+
+    @Test
+    public void sessionsAreHandedOverWhenANodeLeaves() throws IOException, InterruptedException {
+        startNodes(3);
+        List<Session> sessions = generateSessions(nodes.get(0));
+        nodes.remove(1).close();
+        awaitRebalancing();
+        for (PartitionedSessionRepository node : nodes) assertEquals(2, node.getNodes().size());
+        // With two nodes left, every session is in both
+        for (PartitionedSessionRepository node : nodes) assertEquals(SESSIONS_COUNT, node.getLocalSessionsCount());
+        assertReadableFromEveryNode(sessions);
+    }
+
+    @Test
+    public void nodesWithoutTheSecretAreRejected() throws IOException {
+        startNodes(1);
+        try (PartitionedSessionRepository intruder = new PartitionedSessionRepository("localhost", 0, "wrongSecret", Collections.singletonList(nodes.get(0).getAddress()))) {
+            assertEquals(1, intruder.getNodes().size());
+            assertEquals(1, nodes.get(0).getNodes().size());
+            intruder.generateSessionForUser(user);
+            assertEquals(0, nodes.get(0).getLocalSessionsCount());
+        }
+    }
+
+    private void startNodes(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            List<String> seeds = nodes.isEmpty() ? Collections.emptyList() : Collections.singletonList(nodes.get(0).getAddress());
+            nodes.add(new PartitionedSessionRepository("localhost", 0, SECRET, seeds));
+        }
+        for (PartitionedSessionRepository node : nodes) assertEquals(nodes.size(), node.getNodes().size());
+    }
+
+    private List<Session> generateSessions(PartitionedSessionRepository node) throws InterruptedException {
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < SESSIONS_COUNT; i++) sessions.add(node.generateSessionForUser(user));
+        awaitRebalancing();
+        return sessions;
+    }
+
+    private void awaitRebalancing() throws InterruptedException {
+        for (PartitionedSessionRepository node : nodes) node.awaitRebalancing();
+    }
+
+    private void assertReadableFromEveryNode(List<Session> sessions) {
+        for (PartitionedSessionRepository node : nodes) {
+            for (Session session : sessions) {
+                Session found = node.getSession(session.getSessionKey());
+                assertNotNull(found);
+                assertEquals("sessionUser", found.getUsername());
+            }
+        }
+    }
+}
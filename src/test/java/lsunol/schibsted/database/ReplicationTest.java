@@ -0,0 +1,120 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReplicationTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final String SECRET = "clusterSecret";
+
+    private ObservableUserRepository leaderRepository;
+    private ReplicationLeader leader;
+    private final List<FollowerUserRepository> followers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        leaderRepository = new ObservableUserRepository(new InMemoryUserRepository());
+        leader = new ReplicationLeader(leaderRepository, "localhost", 0, SECRET);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (FollowerUserRepository follower : followers) follower.close();
+        leader.close();
+    }
+
+    @Test
+    public void followersReplicateTheModificationsOfTheLeader() throws DuplicateKeyException, InterruptedException {
+        FollowerUserRepository firstFollower = follow(leader.getPort());
+        FollowerUserRepository secondFollower = follow(leader.getPort());
+        leaderRepository.addNewUser("replicatedUser", "password", Arrays.asList("PAGE_1"));
+        leaderRepository.updateUser("replicatedUser", "newPassword", Arrays.asList("PAGE_1", "PAGE_2"));
+        leaderRepository.addNewUser("deletedUser", "password", new ArrayList<>());
+        leaderRepository.deleteUser("deletedUser");
+        for (FollowerUserRepository follower : Arrays.asList(firstFollower, secondFollower)) {
+            assertTrue(follower.awaitSequence(leaderRepository.getChangeFeed().getLastSequence(), TIMEOUT_MILLIS));
+            User user = follower.getUserByUsername("replicatedUser");
+            assertTrue(user.isPasswordCorrect("newPassword"));
+            assertEquals(Arrays.asList("PAGE_1", "PAGE_2"), user.getRoles());
+            assertEquals(leaderRepository.getUserByUsername("replicatedUser").getVersion(), user.getVersion());
+            assertEquals(1, follower.getUsersByRole("PAGE_2").size());
+            assertNull(follower.getUserByUsername("deletedUser"));
+        }
+    }
+
+    @Test
+    public void followersRejectModifications() {
+        FollowerUserRepository follower = follow(leader.getPort());
+        try {
+            follower.updateUser("anyUser", "password", null);
+            fail("A follower should not accept modifications.");
+        } catch (ReadOnlyRepositoryException e) {
+            assertTrue(e.getMessage().contains("follower"));
+        }
+    }
+
+    @Test
+    public void lateFollowersReceiveASnapshot() throws DuplicateKeyException, InterruptedException {
+        for (int i = 0; i < 50; i++) leaderRepository.addNewUser("existingUser" + i, "password", Arrays.asList("PAGE_1"));
+        UserChangeFeed followerFeed = new UserChangeFeed();
+        FollowerUserRepository follower = follow(leader.getPort(), followerFeed);
+        assertTrue(follower.awaitSequence(leaderRepository.getChangeFeed().getLastSequence(), TIMEOUT_MILLIS));
+        assertEquals(50, follower.getAllUsers().size());
+        assertEquals(50, followerFeed.getLastSequence());
+    }
+
+    @Test
+    public void followersResynchronizeWithARestartedLeader() throws DuplicateKeyException, InterruptedException, IOException {
+        leaderRepository.addNewUser("keptUser", "password", new ArrayList<>());
+        leaderRepository.addNewUser("forgottenUser", "password", new ArrayList<>());
+        UserChangeFeed followerFeed = new UserChangeFeed();
+        FollowerUserRepository follower = follow(leader.getPort(), followerFeed);
+        assertTrue(follower.awaitSequence(leaderRepository.getChangeFeed().getLastSequence(), TIMEOUT_MILLIS));
+        long appliedChanges = followerFeed.getLastSequence();
+
+        // A new leader on the same port, which only knows some of the users, with its own feed
+        int port = leader.getPort();
+        leader.close();
+        leaderRepository = new ObservableUserRepository(new InMemoryUserRepository());
+        leaderRepository.addNewUser("keptUser", "password", new ArrayList<>());
+        leaderRepository.addNewUser("newUser", "password", new ArrayList<>());
+        leader = new ReplicationLeader(leaderRepository, "localhost", port, SECRET);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (follower.getUserByUsername("newUser") == null && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertNotNull(follower.getUserByUsername("newUser"));
+        assertNotNull(follower.getUserByUsername("keptUser"));
+        assertNull(follower.getUserByUsername("forgottenUser"));
+        // Only the users which differ are published to the feed of the follower
+        assertEquals(appliedChanges + 2, followerFeed.getLastSequence());
+    }
+
+    @Test
+    public void followersWithoutTheSecretAreRejected() throws DuplicateKeyException, InterruptedException, IOException {
+        leaderRepository.addNewUser("secretUser", "password", new ArrayList<>());
+        try (FollowerUserRepository intruder = new FollowerUserRepository("localhost", leader.getPort(), "wrongSecret", new UserChangeFeed())) {
+            assertFalse(intruder.awaitSequence(leaderRepository.getChangeFeed().getLastSequence(), 500));
+            assertNull(intruder.getUserByUsername("secretUser"));
+        }
+    }
+
+    private FollowerUserRepository follow(int port) {
+        return follow(port, new UserChangeFeed());
+    }
+
+    private FollowerUserRepository follow(int port, UserChangeFeed changeFeed) {
+        FollowerUserRepository follower = new FollowerUserRepository("localhost", port, SECRET, changeFeed);
+        followers.add(follower);
+        return follower;
+    }
+}
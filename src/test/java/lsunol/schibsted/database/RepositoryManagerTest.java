@@ -0,0 +1,54 @@
+package lsunol.schibsted.database;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class RepositoryManagerTest {
+
+    @Test
+    public void findsTheBuiltInProvidersByName() {
+        assertTrue(RepositoryManager.getUserRepositoryProvider("memory").createUserRepository() instanceof InMemoryUserRepository);
+        assertEquals("file", RepositoryManager.getUserRepositoryProvider("file").getName());
+        assertEquals("jdbc", RepositoryManager.getUserRepositoryProvider("jdbc").getName());
+        assertTrue(RepositoryManager.getSessionRepositoryProvider("memory").createSessionRepository() instanceof InMemorySessionRepository);
+        assertEquals("partitioned", RepositoryManager.getSessionRepositoryProvider("partitioned").getName());
+    }
+
+    @Test
+    public void unknownProvidersListTheAvailableOnes() {
+        try {
+            RepositoryManager.getUserRepositoryProvider("mongodb");
+            fail("An unknown provider should not be found.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("[memory, file, jdbc]"));
+        }
+    }
+
+    @Test
+    public void repositoriesAreCreatedOnceForAllThreads() throws InterruptedException, ExecutionException {
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        try {
+            List<Future<Object[]>> repositories = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                repositories.add(executor.submit(() -> {
+                    barrier.await();
+                    return new Object[] {RepositoryManager.getUserRepository(), RepositoryManager.getSessionRepository()};
+                }));
+            }
+            Object[] expected = repositories.get(0).get();
+            for (Future<Object[]> repository : repositories) {
+                assertSame(expected[0], repository.get()[0]);
+                assertSame(expected[1], repository.get()[1]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
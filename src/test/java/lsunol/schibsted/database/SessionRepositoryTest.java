@@ -7,7 +7,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
@@ -29,9 +31,10 @@ public class SessionRepositoryTest {
     }
 
     @Parameterized.Parameters
-    public static Collection<Object[]> instancesToTest() {
+    public static Collection<Object[]> instancesToTest() throws IOException {
         Set<Object[]> implementations = new HashSet<>();
         implementations.add(new Object[] {new InMemorySessionRepository()});
+        implementations.add(new Object[] {new PartitionedSessionRepository("localhost", 0, "clusterSecret", Collections.emptyList())});
         // add all implementations of SessionRepository here
         return implementations;
     }
@@ -0,0 +1,164 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class UserChangeFeedTest {
+
+    private UserChangeFeed changeFeed;
+    private ObservableUserRepository userRepository;
+
+    @Before
+    public void setUp() {
+        changeFeed = new UserChangeFeed(4);
+        userRepository = new ObservableUserRepository(new InMemoryUserRepository(), changeFeed);
+    }
+
+    @Test
+    public void publishesNumberedChangesInOrder() throws DuplicateKeyException, MissedChangesException {
+        userRepository.addNewUser("changedUser", "password", Arrays.asList("PAGE_1"));
+        userRepository.updateUser("changedUser", "newPassword", null);
+        userRepository.deleteUser("changedUser");
+        userRepository.deleteUser("non-existing-user");
+
+        List<UserChange> changes = changeFeed.getChangesAfter(0, 10);
+        assertEquals(3, changes.size());
+        assertEquals(1, changes.get(0).getSequence());
+        assertEquals(UserChange.Type.CREATED, changes.get(0).getType());
+        assertEquals(UserChange.Type.UPDATED, changes.get(1).getType());
+        assertEquals(Long.valueOf(1), changes.get(1).getVersion());
+        assertEquals(UserChange.Type.DELETED, changes.get(2).getType());
+        assertNull(changes.get(2).getUser());
+        assertEquals(1, changeFeed.getChangesAfter(1, 1).size());
+        assertTrue(changeFeed.getChangesAfter(3, 10).isEmpty());
+    }
+
+    @Test
+    public void batchesOnlyPublishTheUsersTheyChange() throws DuplicateKeyException, MissedChangesException {
+        userRepository.addNewUser("grantedUser", "password", Arrays.asList("PAGE_1"));
+        userRepository.addNewUser("untouchedUser", "password", Arrays.asList("PAGE_2"));
+        userRepository.addRolesToUsers(Arrays.asList("grantedUser", "untouchedUser"), Arrays.asList("PAGE_2"));
+        List<UserChange> changes = changeFeed.getChangesAfter(2, 10);
+        assertEquals(1, changes.size());
+        assertEquals("grantedUser", changes.get(0).getUsername());
+    }
+
+    @Test
+    public void grantOfRolesTheUserHasIsNotPublished() throws DuplicateKeyException, MissedChangesException {
+        UserRepository delegate = mock(UserRepository.class);
+        when(delegate.getUserByUsername("unchangedUser")).thenReturn(new User("unchangedUser", "password", Arrays.asList("PAGE_1")));
+        ObservableUserRepository observableRepository = new ObservableUserRepository(delegate, changeFeed);
+        observableRepository.addRoleToUser("unchangedUser", Arrays.asList("PAGE_1"));
+        assertTrue(changeFeed.getChangesAfter(0, 10).isEmpty());
+    }
+
+    @Test
+    public void slowModificationDoesNotBlockOtherWriters() throws Exception {
+        UserRepository delegate = mock(UserRepository.class);
+        CountDownLatch slowWriteStarted = new CountDownLatch(1);
+        CountDownLatch slowWriteReleased = new CountDownLatch(1);
+        when(delegate.addNewUser(eq("slowUser"), anyString(), anyList())).thenAnswer(invocation -> {
+            slowWriteStarted.countDown();
+            slowWriteReleased.await();
+            return new User("slowUser", "password", new ArrayList<>());
+        });
+        when(delegate.addNewUser(eq("fastUser"), anyString(), anyList())).thenReturn(new User("fastUser", "password", new ArrayList<>()));
+        ObservableUserRepository observableRepository = new ObservableUserRepository(delegate, changeFeed);
+        CompletableFuture<User> slowWrite = CompletableFuture.supplyAsync(() -> {
+            try {
+                return observableRepository.addNewUser("slowUser", "password", new ArrayList<>());
+            } catch (DuplicateKeyException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(slowWriteStarted.await(5, TimeUnit.SECONDS));
+
+        // Runs while the slow modification is still in the wrapped repository
+        observableRepository.addNewUser("fastUser", "password", new ArrayList<>());
+        slowWriteReleased.countDown();
+        slowWrite.get(5, TimeUnit.SECONDS);
+        List<UserChange> changes = changeFeed.getChangesAfter(0, 10);
+        assertEquals("fastUser", changes.get(0).getUsername());
+        assertEquals("slowUser", changes.get(1).getUsername());
+    }
+
+    @Test
+    public void pushesChangesToSubscribers() throws DuplicateKeyException {
+        List<String> received = new ArrayList<>();
+        changeFeed.subscribe(change -> received.add(change.getType() + " " + change.getUsername()));
+        userRepository.addNewUser("subscribedUser", "password", new ArrayList<>());
+        userRepository.addRoleToUser("subscribedUser", Arrays.asList("PAGE_1"));
+        assertEquals(Arrays.asList("CREATED subscribedUser", "UPDATED subscribedUser"), received);
+    }
+
+    @Test(expected = MissedChangesException.class)
+    public void rejectsChangesNoLongerKept() throws DuplicateKeyException, MissedChangesException {
+        for (int i = 0; i < 6; i++) userRepository.addNewUser("user" + i, "password", new ArrayList<>());
+        assertEquals(3, changeFeed.getChangesAfter(3, 10).size());
+        changeFeed.getChangesAfter(1, 10);
+    }
+
+    @Test(expected = MissedChangesException.class)
+    public void rejectsChangesNotPublishedYet() throws MissedChangesException {
+        // i.e.: the client followed the feed before a restart
+        changeFeed.getChangesAfter(10, 10);
+    }
+
+    @Test
+    public void longPollWaitsForTheNextChange() throws Exception {
+        CompletableFuture<List<UserChange>> poll = CompletableFuture.supplyAsync(() -> {
+            try {
+                return changeFeed.awaitChangesAfter(0, 10, 5000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(poll.isDone());
+        userRepository.addNewUser("awaitedUser", "password", new ArrayList<>());
+        assertEquals("awaitedUser", poll.get(5, TimeUnit.SECONDS).get(0).getUsername());
+        assertTrue(changeFeed.awaitChangesAfter(1, 10, 10).isEmpty());
+    }
+
+    @Test
+    public void asyncPollIsCompletedByTheNextChange() throws Exception {
+        CompletableFuture<List<UserChange>> poll = changeFeed.changesAfter(0, 10, 5000);
+        Thread.sleep(50);
+        assertFalse(poll.isDone());
+        userRepository.addNewUser("awaitedUser", "password", new ArrayList<>());
+        assertEquals("awaitedUser", poll.get(5, TimeUnit.SECONDS).get(0).getUsername());
+    }
+
+    @Test
+    public void asyncPollIsCompletedRightAwayOrAfterTheTimeout() throws Exception {
+        userRepository.addNewUser("existingUser", "password", new ArrayList<>());
+        assertEquals(1, changeFeed.changesAfter(0, 10, 5000).getNow(null).size());
+        assertTrue(changeFeed.changesAfter(1, 10, 0).getNow(null).isEmpty());
+        CompletableFuture<List<UserChange>> poll = changeFeed.changesAfter(1, 10, 50);
+        assertTrue(poll.get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void asyncPollFailsWithMissedChanges() throws Exception {
+        CompletableFuture<List<UserChange>> poll = changeFeed.changesAfter(10, 10, 5000);
+        assertTrue(poll.isCompletedExceptionally());
+        try {
+            poll.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MissedChangesException);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package lsunol.schibsted.database;
 
+import lsunol.schibsted.model.User;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
@@ -8,6 +10,11 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -15,6 +22,9 @@ import static org.junit.Assert.*;
 @RunWith(Parameterized.class)
 public class UserRepositoryTest {
 
+    private static Path fileRepositoryDirectory;
+    private static Collection<Object[]> implementations;
+
     private UserRepository userRepository;
 
     @Rule
@@ -25,13 +35,26 @@ public class UserRepositoryTest {
     }
 
     @Parameterized.Parameters
-    public static Collection<Object[]> instancesToTest() {
-        Set<Object[]> implementations = new HashSet<>();
+    public static Collection<Object[]> instancesToTest() throws IOException, SQLException {
+        fileRepositoryDirectory = Files.createTempDirectory("users");
+        implementations = new HashSet<>();
         implementations.add(new Object[] {new InMemoryUserRepository()});
+        implementations.add(new Object[] {new FileUserRepository(fileRepositoryDirectory)});
+        implementations.add(new Object[] {new JdbcUserRepository("jdbc:h2:mem:userRepositoryTest;DB_CLOSE_DELAY=-1")});
+        implementations.add(new Object[] {new WriteBehindUserRepository(new InMemoryUserRepository())});
+        implementations.add(new Object[] {new ObservableUserRepository(new InMemoryUserRepository())});
         // add all implementations of UserRepository here
         return implementations;
     }
 
+    @AfterClass
+    public static void closeRepositories() throws IOException {
+        for (Object[] implementation : implementations) {
+            if (implementation[0] instanceof Closeable) ((Closeable) implementation[0]).close();
+        }
+        Files.walk(fileRepositoryDirectory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+
     @Before
     public void setUp() throws DuplicateKeyException {
         createOrReplaceUser("username", "password", new LinkedList<String>() {{ add("PAGE_1"); add("PAGE_2"); }});
@@ -90,6 +113,41 @@ public class UserRepositoryTest {
 
     }
 
+    @Test
+    public void updateUser() {
+        User previousSnapshot = userRepository.getUserByUsername("username");
+        User updatedUser = userRepository.updateUser("username", "newPassword", Arrays.asList("PAGE_3"));
+        assertEquals(previousSnapshot.getVersion() + 2, updatedUser.getVersion());
+        assertSame(updatedUser, userRepository.getUserByUsername("username"));
+        assertTrue(userRepository.checkUserCredentials("username", "newPassword"));
+        assertEquals(Arrays.asList("PAGE_3"), userRepository.getUserByUsername("username").getRoles());
+        // Previous snapshots are never modified
+        assertTrue(previousSnapshot.isPasswordCorrect("password"));
+        assertEquals(Arrays.asList("PAGE_1", "PAGE_2"), previousSnapshot.getRoles());
+    }
+
+    @Test
+    public void updateOnlyRolesKeepsPassword() {
+        userRepository.updateUser("username", null, Arrays.asList("PAGE_3"));
+        assertTrue(userRepository.checkUserCredentials("username", "password"));
+    }
+
+    @Test
+    public void replaceUserKeepsTheHashedPassword() {
+        User previousSnapshot = userRepository.getUserByUsername("username");
+        User replacedUser = userRepository.replaceUser(new User("username", "newPassword", Arrays.asList("PAGE_3")));
+        assertEquals(previousSnapshot.getVersion() + 1, replacedUser.getVersion());
+        assertTrue(userRepository.checkUserCredentials("username", "newPassword"));
+        assertEquals(Arrays.asList("PAGE_3"), userRepository.getUserByUsername("username").getRoles());
+        assertNull(userRepository.replaceUser(new User("non-existing-user", "anyPassword", new ArrayList<>())));
+    }
+
+    @Test
+    public void updateNonExistingUser() {
+        assertNull(userRepository.updateUser("non-existing-user", "anyPassword", null));
+        assertNull(userRepository.getUserByUsername("non-existing-user"));
+    }
+
     @Test
     public void deleteExistingUser() throws DuplicateKeyException {
         userRepository.addNewUser("secondTestUser", "secondPassword", new LinkedList<>());
@@ -104,6 +162,92 @@ public class UserRepositoryTest {
         assertEquals(usersCount, userRepository.getAllUsers().size());
     }
 
+    @Test
+    public void getUsersByRole() throws DuplicateKeyException {
+        createOrReplaceUser("roleIndexUser", "password", Arrays.asList("INDEXED_ROLE"));
+        assertEquals(1, userRepository.getUsersByRole("INDEXED_ROLE").size());
+        assertEquals("roleIndexUser", userRepository.getUsersByRole("INDEXED_ROLE").get(0).getUsername());
+        assertTrue(userRepository.getUsersByRole("PAGE_1").stream().anyMatch(user -> user.getUsername().equals("username")));
+        assertTrue(userRepository.getUsersByRole("non-existing-role").isEmpty());
+    }
+
+    @Test
+    public void getUsersByRoleFollowsRoleChanges() throws DuplicateKeyException {
+        createOrReplaceUser("roleIndexUser", "password", Arrays.asList("INDEXED_ROLE"));
+        userRepository.addRoleToUser("roleIndexUser", Arrays.asList("ADDED_ROLE"));
+        assertEquals(1, userRepository.getUsersByRole("ADDED_ROLE").size());
+        userRepository.updateUser("roleIndexUser", null, Arrays.asList("REPLACING_ROLE"));
+        assertTrue(userRepository.getUsersByRole("INDEXED_ROLE").isEmpty());
+        assertTrue(userRepository.getUsersByRole("ADDED_ROLE").isEmpty());
+        assertEquals(1, userRepository.getUsersByRole("REPLACING_ROLE").size());
+        userRepository.deleteUser("roleIndexUser");
+        assertTrue(userRepository.getUsersByRole("REPLACING_ROLE").isEmpty());
+    }
+
+    @Test
+    public void searchUsersByPrefix() throws DuplicateKeyException {
+        createOrReplaceUser("prefixSearchB", "password", new LinkedList<>());
+        createOrReplaceUser("prefixSearchA", "password", new LinkedList<>());
+        createOrReplaceUser("prefixSearchC", "password", new LinkedList<>());
+        createOrReplaceUser("prefixSearcX", "password", new LinkedList<>());
+        List<User> found = userRepository.searchUsersByPrefix("prefixSearch", 10);
+        assertEquals(3, found.size());
+        assertEquals("prefixSearchA", found.get(0).getUsername());
+        assertEquals("prefixSearchC", found.get(2).getUsername());
+        assertEquals(2, userRepository.searchUsersByPrefix("prefixSearch", 2).size());
+        userRepository.deleteUser("prefixSearchA");
+        assertEquals("prefixSearchB", userRepository.searchUsersByPrefix("prefixSearch", 1).get(0).getUsername());
+        assertTrue(userRepository.searchUsersByPrefix("non-existing-prefix", 10).isEmpty());
+    }
+
+    @Test
+    public void addNewUsersInBatch() throws DuplicateKeyException {
+        userRepository.deleteUsers(Arrays.asList("batchUser1", "batchUser2"));
+        List<User> addedUsers = userRepository.addNewUsers(Arrays.asList(
+                new User("batchUser1", "password1", Arrays.asList("PAGE_1")),
+                new User("batchUser2", "password2", Arrays.asList("PAGE_2"))));
+        assertEquals(2, addedUsers.size());
+        assertTrue(userRepository.checkUserCredentials("batchUser2", "password2"));
+        assertEquals(Arrays.asList("PAGE_1"), userRepository.getUserByUsername("batchUser1").getRoles());
+    }
+
+    @Test
+    public void addNewUsersInBatchWithATakenNameAddsNone() {
+        userRepository.deleteUser("rejectedBatchUser");
+        try {
+            userRepository.addNewUsers(Arrays.asList(
+                    new User("rejectedBatchUser", "password", new LinkedList<>()),
+                    new User("username", "password", new LinkedList<>())));
+            fail("A batch with an already existing user should be rejected.");
+        } catch (DuplicateKeyException e) {
+            assertNull(userRepository.getUserByUsername("rejectedBatchUser"));
+        }
+    }
+
+    @Test
+    public void grantAndRevokeRolesInBatch() throws DuplicateKeyException {
+        createOrReplaceUser("grantedUser1", "password", Arrays.asList("PAGE_1"));
+        createOrReplaceUser("grantedUser2", "password", Arrays.asList("PAGE_2"));
+        List<User> grantedUsers = userRepository.addRolesToUsers(Arrays.asList("grantedUser1", "grantedUser2", "non-existing-user"), Arrays.asList("PAGE_2", "BATCH_ROLE"));
+        assertEquals(2, grantedUsers.size());
+        assertEquals(Arrays.asList("PAGE_1", "PAGE_2", "BATCH_ROLE"), userRepository.getUserByUsername("grantedUser1").getRoles());
+        assertEquals(Arrays.asList("PAGE_2", "BATCH_ROLE"), userRepository.getUserByUsername("grantedUser2").getRoles());
+        assertEquals(2, userRepository.getUsersByRole("BATCH_ROLE").size());
+
+        userRepository.removeRolesFromUsers(Arrays.asList("grantedUser1", "grantedUser2"), Arrays.asList("BATCH_ROLE", "PAGE_1"));
+        assertEquals(Arrays.asList("PAGE_2"), userRepository.getUserByUsername("grantedUser1").getRoles());
+        assertTrue(userRepository.getUsersByRole("BATCH_ROLE").isEmpty());
+    }
+
+    @Test
+    public void deleteUsersInBatch() throws DuplicateKeyException {
+        createOrReplaceUser("deletedUser1", "password", new LinkedList<>());
+        createOrReplaceUser("deletedUser2", "password", new LinkedList<>());
+        assertEquals(2, userRepository.deleteUsers(Arrays.asList("deletedUser1", "deletedUser2", "non-existing-user")));
+        assertNull(userRepository.getUserByUsername("deletedUser1"));
+        assertNull(userRepository.getUserByUsername("deletedUser2"));
+    }
+
     @Test
     public void getAllUsers() {
         assertNotNull(userRepository.getAllUsers());
@@ -0,0 +1,202 @@
+package lsunol.schibsted.database;
+
+import lsunol.schibsted.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class WriteBehindUserRepositoryTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InMemoryUserRepository delegate;
+    private WriteBehindUserRepository userRepository;
+
+    @Before
+    public void setUp() {
+        delegate = spy(new InMemoryUserRepository());
+        // Long interval and big batches, so nothing is written until flush() or close() is called
+        userRepository = new WriteBehindUserRepository(delegate, 60000, 1000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        userRepository.close();
+    }
+
+    @Test
+    public void acknowledgesModificationsBeforeWritingThem() throws DuplicateKeyException, InterruptedException, IOException {
+        userRepository.addNewUser("pendingUser", "password", Arrays.asList("PAGE_1"));
+        assertNotNull(userRepository.getUserByUsername("pendingUser"));
+        assertNull(delegate.getUserByUsername("pendingUser"));
+        assertEquals(1, userRepository.getQueueDepth());
+
+        userRepository.flush();
+        assertEquals(0, userRepository.getQueueDepth());
+        assertEquals(0, userRepository.getFlushLagMillis());
+        assertTrue(delegate.checkUserCredentials("pendingUser", "password"));
+    }
+
+    @Test
+    public void coalescesModificationsOfTheSameUser() throws DuplicateKeyException, InterruptedException, IOException {
+        delegate.addNewUser("coalescedUser", "password", Arrays.asList("PAGE_1"));
+        try (WriteBehindUserRepository repository = new WriteBehindUserRepository(delegate, 60000, 1000)) {
+            repository.updateUser("coalescedUser", "secondPassword", null);
+            repository.updateUser("coalescedUser", "thirdPassword", null);
+            repository.addRoleToUser("coalescedUser", Arrays.asList("PAGE_2"));
+            assertEquals(1, repository.getQueueDepth());
+            assertEquals(2, repository.getCoalescedWrites());
+
+            repository.flush();
+            verify(delegate, times(1)).replaceUser(any(User.class));
+            verify(delegate, never()).addRoleToUser(anyString(), anyList());
+            assertEquals(Arrays.asList("PAGE_1", "PAGE_2"), delegate.getUserByUsername("coalescedUser").getRoles());
+            assertTrue(delegate.checkUserCredentials("coalescedUser", "thirdPassword"));
+        }
+    }
+
+    @Test
+    public void passwordIsQueuedHashed() throws DuplicateKeyException, InterruptedException, IOException {
+        delegate.addNewUser("passwordUser", "password", Arrays.asList("PAGE_1"));
+        try (WriteBehindUserRepository repository = new WriteBehindUserRepository(delegate, 60000, 1000)) {
+            repository.updateUser("passwordUser", "newPassword", null);
+            repository.flush();
+            verify(delegate, never()).updateUser(anyString(), anyString(), any());
+            assertTrue(delegate.checkUserCredentials("passwordUser", "newPassword"));
+        }
+    }
+
+    @Test
+    public void deletingAPendingUserWritesNothing() throws DuplicateKeyException, InterruptedException, IOException {
+        userRepository.addNewUser("shortLivedUser", "password", new ArrayList<>());
+        userRepository.deleteUser("shortLivedUser");
+        userRepository.flush();
+        verify(delegate, never()).addNewUsers(anyList());
+        verify(delegate, never()).deleteUser("shortLivedUser");
+    }
+
+    @Test
+    public void deletingTheOnlyPendingUserKeepsTheWriterRunning() throws DuplicateKeyException, InterruptedException, IOException {
+        try (WriteBehindUserRepository repository = new WriteBehindUserRepository(delegate, 50, 1000)) {
+            repository.addNewUser("shortLivedUser", "password", new ArrayList<>());
+            // The writer is waiting for the interval of the deleted user when it finds no pending write
+            repository.deleteUser("shortLivedUser");
+            Thread.sleep(100);
+            repository.addNewUser("laterUser", "password", new ArrayList<>());
+            repository.flush();
+            assertNotNull(delegate.getUserByUsername("laterUser"));
+        }
+    }
+
+    @Test
+    public void recreatedUserReplacesTheWrittenOne() throws DuplicateKeyException, InterruptedException, IOException {
+        userRepository.addNewUser("recreatedUser", "password", Arrays.asList("PAGE_1"));
+        userRepository.flush();
+        userRepository.deleteUser("recreatedUser");
+        userRepository.addNewUser("recreatedUser", "newPassword", Arrays.asList("PAGE_2"));
+        userRepository.flush();
+        User user = delegate.getUserByUsername("recreatedUser");
+        assertTrue(user.isPasswordCorrect("newPassword"));
+        assertEquals(Arrays.asList("PAGE_2"), user.getRoles());
+    }
+
+    @Test
+    public void writesInTheBackgroundAfterTheInterval() throws DuplicateKeyException, InterruptedException, IOException {
+        try (WriteBehindUserRepository repository = new WriteBehindUserRepository(delegate, 10, 1000)) {
+            repository.addNewUser("backgroundUser", "password", new ArrayList<>());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (repository.getFlushedBatches() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertNotNull(delegate.getUserByUsername("backgroundUser"));
+            assertEquals(1, repository.getFlushedBatches());
+        }
+    }
+
+    @Test
+    public void closeWritesPendingModificationsDurably() throws IOException, DuplicateKeyException {
+        Path directory = temporaryFolder.newFolder("users").toPath();
+        WriteBehindUserRepository repository = new WriteBehindUserRepository(new FileUserRepository(directory), 60000, 1000);
+        for (int i = 0; i < 100; i++) repository.addNewUser("durableUser" + i, "password", Arrays.asList("PAGE_1"));
+        repository.close();
+        try (FileUserRepository reopenedRepository = new FileUserRepository(directory)) {
+            assertEquals(100, reopenedRepository.getAllUsers().size());
+        }
+        try {
+            repository.deleteUser("durableUser0");
+            fail("A closed repository should not accept modifications.");
+        } catch (IllegalStateException e) {
+            assertNotNull(repository.getUserByUsername("durableUser0"));
+        }
+    }
+
+    @Test
+    public void flushGivesUpOnAWriteWhichKeepsFailing() throws DuplicateKeyException, InterruptedException, IOException {
+        UserRepository failingDelegate = mock(UserRepository.class);
+        doThrow(new RepositoryException("Database is down", null)).when(failingDelegate).addNewUsers(anyList());
+        WriteBehindUserRepository repository = new WriteBehindUserRepository(failingDelegate, 60000, 1000);
+        repository.addNewUser("retriedUser", "password", new ArrayList<>());
+        try {
+            repository.flush();
+            fail("A write which keeps failing should be reported.");
+        } catch (IOException e) {
+            assertEquals("Database is down", e.getCause().getMessage());
+        }
+        verify(failingDelegate, times(WriteBehindUserRepository.MAX_FLUSH_ATTEMPTS)).addNewUsers(anyList());
+        assertEquals(1, repository.getQueueDepth());
+        try {
+            repository.close();
+        } catch (IOException e) {
+            // Expected, as the modification is still pending
+        }
+    }
+
+    @Test
+    public void flushFailsOnceTheWriterHasStopped() throws DuplicateKeyException, InterruptedException, IOException, ReflectiveOperationException {
+        Field flusherField = WriteBehindUserRepository.class.getDeclaredField("flusher");
+        flusherField.setAccessible(true);
+        WriteBehindUserRepository repository = new WriteBehindUserRepository(delegate, 60000, 1000);
+        Thread flusher = (Thread) flusherField.get(repository);
+        flusher.interrupt();
+        flusher.join(5000);
+        repository.addNewUser("strandedUser", "password", new ArrayList<>());
+        try {
+            repository.flush();
+            fail("A flush should not wait for a writer which has stopped.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("The write-behind thread has stopped"));
+        }
+        try {
+            repository.close();
+            fail("Modifications left by a writer which has stopped should be reported.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("1 modifications could not be written"));
+        }
+    }
+
+    @Test
+    public void closeReportsModificationsWhichCouldNotBeWritten() throws DuplicateKeyException {
+        UserRepository failingDelegate = mock(UserRepository.class);
+        doThrow(new RepositoryException("Database is down", null)).when(failingDelegate).addNewUsers(anyList());
+        WriteBehindUserRepository repository = new WriteBehindUserRepository(failingDelegate, 60000, 1000);
+        repository.addNewUser("lostUser", "password", new ArrayList<>());
+        try {
+            repository.close();
+            fail("Modifications which could not be written should be reported.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("1 modifications could not be written"));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package lsunol.schibsted.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class RoleSetTest {
+
+    @Test
+    public void sameRoleNameAlwaysGetsTheSameId() {
+        assertEquals(RoleRegistry.getRoleId("PAGE_1"), RoleRegistry.getRoleId("PAGE_1"));
+        assertNotEquals(RoleRegistry.getRoleId("PAGE_1"), RoleRegistry.getRoleId("PAGE_2"));
+        assertEquals("PAGE_1", RoleRegistry.getRoleName(RoleRegistry.getRoleId("PAGE_1")));
+    }
+
+    @Test
+    public void containsRegisteredRoles() {
+        RoleSet roleSet = RoleSet.of("PAGE_1", "PAGE_3");
+        assertTrue(roleSet.contains(RoleRegistry.getRoleId("PAGE_1")));
+        assertTrue(roleSet.contains(RoleRegistry.getRoleId("PAGE_3")));
+        assertFalse(roleSet.contains(RoleRegistry.getRoleId("PAGE_2")));
+    }
+
+    @Test
+    public void intersects() {
+        assertTrue(RoleSet.of("PAGE_1", "PAGE_2").intersects(RoleSet.of("PAGE_2", "ADMIN")));
+        assertFalse(RoleSet.of("PAGE_1").intersects(RoleSet.of("PAGE_2", "ADMIN")));
+        assertFalse(RoleSet.EMPTY.intersects(RoleSet.of("PAGE_1")));
+    }
+
+    @Test
+    public void supportsMoreThan64Roles() {
+        for (int i = 0; i < 70; i++) RoleRegistry.getRoleId("MANY_ROLES_" + i);
+        RoleSet roleSet = RoleSet.of("MANY_ROLES_69");
+        assertTrue(roleSet.contains(RoleRegistry.getRoleId("MANY_ROLES_69")));
+        assertFalse(roleSet.contains(RoleRegistry.getRoleId("MANY_ROLES_5")));
+        assertTrue(roleSet.intersects(RoleSet.of("MANY_ROLES_1", "MANY_ROLES_69")));
+    }
+
+    @Test
+    public void equalSetsAreEqual() {
+        assertEquals(RoleSet.of("PAGE_1", "PAGE_2"), RoleSet.of(Arrays.asList("PAGE_2", "PAGE_1")));
+        assertEquals(RoleSet.of("PAGE_1", "PAGE_2").hashCode(), RoleSet.of("PAGE_2", "PAGE_1").hashCode());
+        assertEquals(RoleSet.EMPTY, RoleSet.of(new LinkedList<>()));
+    }
+}
@@ -0,0 +1,63 @@
+package lsunol.schibsted.model;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the heap retained per {@link User} and compares it with the previous layout, which kept the password as a
+ * 32 characters hex String and a list of roles of its own in every user. The results depend on the JVM and its
+ * garbage collector, so they are only indicative.
+ * <p>
+ * Run it with the test classpath: <code>java -cp ... lsunol.schibsted.model.UserFootprintBenchmark [users]</code>
+ */
+public class UserFootprintBenchmark {
+
+    private static final int DEFAULT_USERS = 100_000;
+    private static final List<List<String>> ROLE_COMBINATIONS = Arrays.asList(
+            Arrays.asList("PAGE_1"), Arrays.asList("PAGE_2"), Arrays.asList("PAGE_3"), Arrays.asList("PAGE_1", "PAGE_2"));
+
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        int usersCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_USERS;
+        String[] usernames = new String[usersCount];
+        for (int i = 0; i < usersCount; i++) usernames[i] = "user" + i;
+
+        Object[] legacyUsers = new Object[usersCount];
+        long before = usedHeap();
+        for (int i = 0; i < usersCount; i++) legacyUsers[i] = new LegacyUser(usernames[i], "1234", ROLE_COMBINATIONS.get(i % ROLE_COMBINATIONS.size()));
+        long legacyBytesPerUser = (usedHeap() - before) / usersCount;
+        System.out.printf("%-14s %d bytes per user (username excluded, %d users)%n", "legacy layout", legacyBytesPerUser, legacyUsers.length);
+        legacyUsers = null;
+
+        Object[] users = new Object[usersCount];
+        before = usedHeap();
+        for (int i = 0; i < usersCount; i++) users[i] = new User(usernames[i], "1234", ROLE_COMBINATIONS.get(i % ROLE_COMBINATIONS.size()));
+        long compactBytesPerUser = (usedHeap() - before) / usersCount;
+        System.out.printf("%-14s %d bytes per user (username excluded, %d users)%n", "compact layout", compactBytesPerUser, users.length);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Replica of the fields kept by {@link User} before the compact layout.
+     */
+    private static class LegacyUser {
+        private final String username;
+        private final List<String> roles;
+        private final String password;
+
+        private LegacyUser(String username, String password, List<String> roles) throws NoSuchAlgorithmException {
+            this.username = username;
+            this.roles = new ArrayList<>(roles);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(password.getBytes())) sb.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+            this.password = sb.toString();
+        }
+    }
+}
@@ -4,8 +4,11 @@ import org.junit.Test;
 
 import java.lang.reflect.Field;
 import java.util.Arrays;
+import java.util.LinkedList;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class UserTest {
@@ -22,5 +25,14 @@ public class UserTest {
     @Test
     public void passwordVerificationWorks() throws NoSuchFieldException, IllegalAccessException {
         assertTrue(testUser.isPasswordCorrect("samplepassword"));
+        assertFalse(testUser.isPasswordCorrect("wrongpassword"));
+        assertFalse(testUser.isPasswordCorrect(null));
+    }
+
+    @Test
+    public void usersWithTheSameRolesShareThem() {
+        User anotherUser = new User("anotheruser", "samplepassword", new LinkedList<>(Arrays.asList("PAGE_1", "PAGE_2")));
+        assertSame(testUser.getRoles(), anotherUser.getRoles());
+        assertSame(testUser.getRoleSet(), anotherUser.getRoleSet());
     }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+package lsunol.schibsted.server;
+
+import com.sun.net.httpserver.HttpServer;
+import lsunol.schibsted.application.ApplicationConstants;
+import lsunol.schibsted.controllers.LoginController;
+import lsunol.schibsted.controllers.Router;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the JDK <code>HttpServer</code> and the {@link NioHttpServer}, with one acceptor and with one acceptor per
+ * core, running the same router and controllers with the same handler thread pool as the web application. It
+ * measures, for each engine:
+ * <ul>
+ * <li>Connections per second: every client opens a connection, asks for the login page with <em>Connection: close</em>
+ * and reads the response until the server closes the connection.</li>
+ * <li>Latency: every client keeps its connection open and asks for the login page again as soon as it gets the
+ * previous one.</li>
+ * </ul>
+ * Run it with the test classpath: <code>java -cp ... lsunol.schibsted.server.HttpEngineBenchmark [seconds] [clients]</code>
+ */
+public class HttpEngineBenchmark {
+
+    private static final int DEFAULT_SECONDS = 5;
+    private static final int DEFAULT_CLIENTS = 32;
+    private static final byte[] CLOSE_REQUEST = "GET /login HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] KEEP_ALIVE_REQUEST = "GET /login HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SECONDS;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Router router = new Router();
+        router.addRoutes(new LoginController(), null);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (String engine : new String[] {"jdk", "nio", "nio x" + cores}) {
+            ExecutorService executor = Executors.newFixedThreadPool(ApplicationConstants.SERVER_THREADS);
+            HttpServer jdkServer = null;
+            NioHttpServer nioServer = null;
+            int port;
+            if (engine.equals("jdk")) {
+                jdkServer = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+                jdkServer.setExecutor(executor);
+                jdkServer.createContext("/", router);
+                jdkServer.start();
+                port = jdkServer.getAddress().getPort();
+            } else {
+                int acceptors = engine.equals("nio") ? 1 : cores;
+                nioServer = new NioHttpServer(new InetSocketAddress("localhost", 0), router, executor, acceptors, ApplicationConstants.NIO_EVENT_LOOPS, ApplicationConstants.NIO_MAX_CONNECTIONS, ApplicationConstants.KEEP_ALIVE_SECONDS);
+                nioServer.start();
+                port = nioServer.getAddress().getPort();
+            }
+            try {
+                // Warm up both measures before measuring them
+                runClients(port, clients, 1, false);
+                runClients(port, clients, 1, true);
+                List<Long> connections = runClients(port, clients, seconds, false);
+                System.out.printf("%-6s %d clients: %.0f connections/s%n", engine, clients, connections.size() / (double) seconds);
+                List<Long> latencies = runClients(port, clients, seconds, true);
+                Collections.sort(latencies);
+                System.out.printf("%-6s %d clients: %.0f requests/s, latency p50 %d us, p99 %d us, max %d us%n", engine, clients,
+                        latencies.size() / (double) seconds, latencies.get(latencies.size() / 2), latencies.get(latencies.size() * 99 / 100), latencies.get(latencies.size() - 1));
+            } finally {
+                if (jdkServer != null) jdkServer.stop(0);
+                if (nioServer != null) nioServer.close();
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Runs the <code>clients</code> for the given <code>seconds</code> and returns the microseconds each request took.
+     */
+    private static List<Long> runClients(int port, int clients, int seconds, boolean keepAlive) throws Exception {
+        ExecutorService clientThreads = Executors.newFixedThreadPool(clients);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Future<List<Long>>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) results.add(clientThreads.submit(() -> keepAlive ? requestKeepingAlive(port, end) : requestClosing(port, end)));
+        List<Long> micros = new ArrayList<>();
+        for (Future<List<Long>> result : results) micros.addAll(result.get());
+        clientThreads.shutdown();
+        return micros;
+    }
+
+    private static List<Long> requestClosing(int port, long end) throws IOException {
+        List<Long> micros = new ArrayList<>();
+        byte[] buffer = new byte[8192];
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(CLOSE_REQUEST);
+                InputStream input = socket.getInputStream();
+                while (input.read(buffer) >= 0) {
+                    // Read until the server closes the connection
+                }
+            }
+            micros.add((System.nanoTime() - start) / 1000);
+        }
+        return micros;
+    }
+
+    private static List<Long> requestKeepingAlive(int port, long end) throws IOException {
+        List<Long> micros = new ArrayList<>();
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream output = socket.getOutputStream();
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            while (System.nanoTime() < end) {
+                long start = System.nanoTime();
+                output.write(KEEP_ALIVE_REQUEST);
+                readResponse(input);
+                micros.add((System.nanoTime() - start) / 1000);
+            }
+        }
+        return micros;
+    }
+
+    /**
+     * Reads a response whose length is given by its <em>Content-Length</em> header.
+     */
+    private static void readResponse(InputStream input) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4) {
+            int read = input.read();
+            if (read < 0) throw new IOException("The server closed the connection.");
+            head.append((char) read);
+        }
+        long contentLength = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) contentLength = Long.parseLong(line.substring(15).trim());
+        }
+        for (long skipped = 0; skipped < contentLength; skipped++) {
+            if (input.read() < 0) throw new IOException("The server closed the connection.");
+        }
+    }
+}
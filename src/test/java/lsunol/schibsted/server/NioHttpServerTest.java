@@ -0,0 +1,294 @@
+package lsunol.schibsted.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NioHttpServerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private NioHttpServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void requestIsHandled() throws IOException {
+        start(NioHttpServerTest::echo, 10, 30);
+        try (Socket socket = connect()) {
+            send(socket, "GET /api/users?sort=name HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            Response response = readResponse(socket.getInputStream());
+            assertEquals(200, response.code);
+            assertEquals("GET /api/users?sort=name ", response.body);
+            assertTrue(response.head.contains("\r\nX-method: GET\r\n"));
+        }
+    }
+
+    @Test
+    public void requestBodyIsRead() throws IOException {
+        start(NioHttpServerTest::echo, 10, 30);
+        try (Socket socket = connect()) {
+            send(socket, "POST /api/users HTTP/1.1\r\nContent-Length: 17\r\n\r\n");
+            send(socket, "{\"username\": \"a\"}");
+            assertEquals("POST /api/users {\"username\": \"a\"}", readResponse(socket.getInputStream()).body);
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws IOException {
+        start(NioHttpServerTest::echo, 10, 30);
+        try (Socket socket = connect()) {
+            send(socket, "GET /first HTTP/1.1\r\n\r\nPUT /second HTTP/1.1\r\nContent-Length: 1\r\n\r\nxGET /third HTTP/1.1\r\n\r\n");
+            InputStream input = socket.getInputStream();
+            assertEquals("GET /first ", readResponse(input).body);
+            assertEquals("PUT /second x", readResponse(input).body);
+            assertEquals("GET /third ", readResponse(input).body);
+            assertEquals(1, server.getConnectionsCount());
+        }
+    }
+
+    @Test
+    public void connectionIsClosedWhenRequested() throws IOException {
+        start(NioHttpServerTest::echo, 10, 30);
+        try (Socket socket = connect()) {
+            send(socket, "GET /bye HTTP/1.1\r\nConnection: close\r\n\r\n");
+            Response response = readResponse(socket.getInputStream());
+            assertTrue(response.head.contains("\r\nConnection: close\r\n"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        try (Socket socket = connect()) {
+            send(socket, "GET /old HTTP/1.0\r\n\r\n");
+            assertEquals("GET /old ", readResponse(socket.getInputStream()).body);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void responsesWithoutBodyKeepTheConnection() throws IOException {
+        start(exchange -> {
+            boolean empty = exchange.getRequestURI().getPath().equals("/empty");
+            exchange.sendResponseHeaders(empty ? 204 : 200, 5);
+            if (!empty && !exchange.getRequestMethod().equals("HEAD")) exchange.getResponseBody().write("hello".getBytes(StandardCharsets.UTF_8));
+            exchange.close();
+        }, 10, 30);
+        try (Socket socket = connect()) {
+            send(socket, "HEAD /hello HTTP/1.1\r\n\r\nGET /empty HTTP/1.1\r\n\r\nGET /hello HTTP/1.1\r\n\r\n");
+            InputStream input = socket.getInputStream();
+            Response head = readHead(input);
+            assertEquals(200, head.code);
+            assertTrue(head.head.contains("\r\nContent-Length: 5\r\n"));
+            assertEquals(204, readHead(input).code);
+            assertEquals("hello", readResponse(input).body);
+        }
+    }
+
+    @Test
+    public void responseCanBeCompletedFromAnotherThread() throws IOException {
+        start(exchange -> CompletableFuture.runAsync(() -> {
+            try {
+                exchange.sendResponseHeaders(202, 0);
+                exchange.getResponseBody().write("later".getBytes(StandardCharsets.UTF_8));
+                exchange.getResponseBody().close();
+            } catch (IOException e) {
+                exchange.close();
+            }
+        }), 10, 30);
+        try (Socket socket = connect()) {
+            send(socket, "GET /later HTTP/1.1\r\n\r\n");
+            Response response = readResponse(socket.getInputStream());
+            assertEquals(202, response.code);
+            assertEquals("later", response.body);
+        }
+    }
+
+    @Test
+    public void failedHandlerClosesTheConnection() throws IOException {
+        start(exchange -> {
+            throw new IllegalStateException("Broken handler");
+        }, 10, 30);
+        try (Socket socket = connect()) {
+            send(socket, "GET / HTTP/1.1\r\n\r\n");
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void invalidRequestsAreRejected() throws IOException {
+        start(NioHttpServerTest::echo, 10, 30);
+        assertEquals(400, requestOnce("GARBAGE\r\n\r\n").code);
+        assertEquals(400, requestOnce("POST / HTTP/1.1\r\nContent-Length: many\r\n\r\n").code);
+        assertEquals(413, requestOnce("POST / HTTP/1.1\r\nContent-Length: " + (NioHttpServer.MAX_REQUEST_BODY_BYTES + 1) + "\r\n\r\n").code);
+        char[] longHeader = new char[NioHttpServer.MAX_REQUEST_HEAD_BYTES];
+        Arrays.fill(longHeader, 'a');
+        assertEquals(431, requestOnce("GET / HTTP/1.1\r\nX-long: " + new String(longHeader)).code);
+    }
+
+    @Test
+    public void connectionsOverTheLimitAreClosed() throws IOException {
+        start(NioHttpServerTest::echo, 1, 30);
+        try (Socket first = connect(); Socket second = connect()) {
+            assertEquals(-1, second.getInputStream().read());
+            send(first, "GET /first HTTP/1.1\r\n\r\n");
+            assertEquals("GET /first ", readResponse(first.getInputStream()).body);
+            assertEquals(1, server.getConnectionsCount());
+        }
+    }
+
+    @Test
+    public void idleConnectionsAreClosed() throws IOException {
+        start(NioHttpServerTest::echo, 10, 1);
+        try (Socket socket = connect()) {
+            send(socket, "GET /once HTTP/1.1\r\n\r\n");
+            readResponse(socket.getInputStream());
+            socket.setSoTimeout(5000);
+            long start = System.currentTimeMillis();
+            assertEquals(-1, socket.getInputStream().read());
+            assertTrue(System.currentTimeMillis() - start >= 900);
+        }
+    }
+
+    @Test
+    public void severalAcceptorsListenOnTheSamePort() throws IOException {
+        server = new NioHttpServer(new InetSocketAddress("localhost", 0), NioHttpServerTest::echo, executor, 4, 2, 100, 30);
+        server.start();
+        assertTrue(server.getListeningSocketsCount() == 4 || server.getListeningSocketsCount() == 1);
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 20; i++) sockets.add(connect());
+            for (int i = 0; i < sockets.size(); i++) send(sockets.get(i), "GET /" + i + " HTTP/1.1\r\n\r\n");
+            for (int i = 0; i < sockets.size(); i++) assertEquals("GET /" + i + " ", readResponse(sockets.get(i).getInputStream()).body);
+            assertEquals(20, server.getConnectionsCount());
+        } finally {
+            for (Socket socket : sockets) socket.close();
+        }
+    }
+
+    @Test
+    public void fileIsSentFromTheFileSystem() throws Exception {
+        Path file = Files.createTempFile("nio-http-server", ".txt");
+        try {
+            StringBuilder contents = new StringBuilder();
+            for (int i = 0; i < 1 << 20; i++) contents.append((char) ('a' + i % 26));
+            Files.write(file, contents.toString().getBytes(StandardCharsets.ISO_8859_1));
+            AtomicReference<FileChannel> sentFile = new AtomicReference<>();
+            start(exchange -> {
+                if (!exchange.getRequestURI().getPath().equals("/file")) {
+                    echo(exchange);
+                    return;
+                }
+                sentFile.set(FileChannel.open(file, StandardOpenOption.READ));
+                exchange.sendResponseHeaders(200, 600000);
+                ((FileSender) exchange).sendFile(sentFile.get(), 1000, 600000);
+            }, 10, 30);
+            try (Socket socket = connect()) {
+                send(socket, "GET /file HTTP/1.1\r\n\r\n");
+                Response response = readResponse(socket.getInputStream());
+                assertEquals(600000, response.contentLength);
+                assertEquals(contents.substring(1000, 601000), response.body);
+                send(socket, "GET /next HTTP/1.1\r\n\r\n");
+                assertEquals("GET /next ", readResponse(socket.getInputStream()).body);
+                assertFalse(sentFile.get().isOpen());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void echo(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        for (int read = exchange.getRequestBody().read(buffer); read >= 0; read = exchange.getRequestBody().read(buffer)) requestBody.write(buffer, 0, read);
+        byte[] response = (exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + requestBody.toString("UTF-8")).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("X-method", exchange.getRequestMethod());
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(response);
+        }
+    }
+
+    private void start(HttpHandler handler, int maxConnections, int keepAliveSeconds) throws IOException {
+        server = new NioHttpServer(new InetSocketAddress("localhost", 0), handler, executor, 2, maxConnections, keepAliveSeconds);
+        server.start();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", server.getAddress().getPort());
+        socket.setSoTimeout(10000);
+        return socket;
+    }
+
+    private Response requestOnce(String request) throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, request);
+            return readResponse(socket.getInputStream());
+        }
+    }
+
+    private static void send(Socket socket, String data) throws IOException {
+        socket.getOutputStream().write(data.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * Reads the head of a response, and its body as long as its <em>Content-Length</em> header.
+     */
+    private static Response readResponse(InputStream input) throws IOException {
+        Response response = readHead(input);
+        byte[] body = new byte[response.contentLength];
+        for (int offset = 0; offset < body.length; ) {
+            int read = input.read(body, offset, body.length - offset);
+            if (read < 0) throw new IOException("Unexpected end of the response body.");
+            offset += read;
+        }
+        response.body = new String(body, StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private static Response readHead(InputStream input) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int read = input.read();
+            if (read < 0) throw new IOException("Unexpected end of the response head: " + head);
+            head.append((char) read);
+        }
+        Response response = new Response();
+        response.head = head.toString();
+        response.code = Integer.parseInt(response.head.split(" ")[1]);
+        for (String line : response.head.split("\r\n")) {
+            if (line.startsWith("Content-Length: ")) response.contentLength = Integer.parseInt(line.substring(16));
+        }
+        return response;
+    }
+
+    private static class Response {
+        String head;
+        int code;
+        int contentLength;
+        String body;
+    }
+}